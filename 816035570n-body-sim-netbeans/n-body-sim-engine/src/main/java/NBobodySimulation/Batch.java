@@ -0,0 +1,284 @@
+package NBobodySimulation;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Headless entry point for short batch runs. Only engine classes are loaded, so no part of the GUI stack starts.
+ * <br>
+ * Generates a system, integrates it with an {@link IntegrationSession} and prints its {@link SystemStatistics} as CSV
+ * at evenly spaced sample times:
+ * <pre>
+ * java -jar n-body-sim-engine.jar plummer 200 10 20
+ * </pre>
+ * Arguments: scenario (plummer, disk, ring or debris, which is four planets among massless test particles), number of
+ * bodies, duration, number of samples (default 10) and random seed (default 1). {@code --wisdom-holman} anywhere in the
+ * arguments integrates with the {@link WisdomHolman} mapping, which suits planets around a central mass that do not pass
+ * close to each other. {@code --particle-mesh} evaluates the forces on a {@link ParticleMesh} grid instead of by direct
+ * sum, for thousands of bodies. {@code --cache} replays and extends the run from {@link TrajectoryCache#inUserHome()},
+ * so repeating a run only integrates past its last horizon. {@code --reorder} sorts the bodies along a
+ * {@link MortonOrder} curve every {@value #REORDER_INTERVAL} segments, which helps large systems on the particle mesh.
+ * {@code --checkpoint <file>} writes the last sample to a memory-mapped {@link ParticleStore} file.
+ * {@code --off-heap} runs millions of bodies instead: they live in a {@link ParticleStore}, mapped onto the checkpoint
+ * file if there is one, and an {@link OffHeapLeapfrog} takes {@value #OFF_HEAP_STEPS_PER_SAMPLE} fixed steps per sample
+ * on the particle mesh, so the heap does not grow with the number of bodies once they are generated. The potential
+ * energy printed is the one on the mesh.
+ * {@code --serve <port>} streams {@value #SERVE_FRAMES_PER_SAMPLE} frames per sample to browsers through a
+ * {@link FrameServer}, and keeps serving the last frame after the run until Enter is pressed. The server listens on
+ * loopback; {@code --bind <address>} listens on another address, such as 0.0.0.0 for browsers on other machines.
+ * <br>
+ * {@code --ensemble <members> <file>} runs an {@link Ensemble} of that many copies of the system with jittered positions
+ * instead, and writes one line per member to the file. A member ends at a collision, closer than
+ * {@value #COLLISION_DISTANCE}, or at an ejection beyond {@value #ESCAPE_FACTOR} times the initial radius of the system.
+ */
+public class Batch {
+
+    static final String CSV_HEADER = "time,bodies,kineticEnergy,potentialEnergy,energyError,centerX,centerY";
+    static final int DEFAULT_SAMPLES = 10;
+    private static final int PARTICLE_MESH_SIZE = 128;
+    private static final int REORDER_INTERVAL = 10;
+    private static final int OFF_HEAP_STEPS_PER_SAMPLE = 50;
+    private static final int SERVE_FRAMES_PER_SAMPLE = 50;
+    private static final double COLLISION_DISTANCE = 1;
+    private static final double ESCAPE_FACTOR = 10;
+    // The relative jitter of the positions of ensemble members
+    private static final double ENSEMBLE_JITTER = 1e-3;
+
+    // Frames are samples here; the encounter checks are left off, except for ensemble members
+    private static class BatchSettings implements IntegrationSettings {
+        private final double frameInterval;
+        private final boolean wisdomHolman;
+        private final double closeApproachDistance;
+        private final double escapeRadius;
+
+        BatchSettings(double frameInterval, boolean wisdomHolman) {
+            this(frameInterval, wisdomHolman, 0, 0);
+        }
+
+        BatchSettings(double frameInterval, boolean wisdomHolman, double closeApproachDistance, double escapeRadius) {
+            this.frameInterval = frameInterval;
+            this.wisdomHolman = wisdomHolman;
+            this.closeApproachDistance = closeApproachDistance;
+            this.escapeRadius = escapeRadius;
+        }
+
+        @Override
+        public double getFrameInterval() {
+            return frameInterval;
+        }
+
+        @Override
+        public boolean recenterOnCenterOfMass() {
+            return false;
+        }
+
+        @Override
+        public double getCloseApproachDistance() {
+            return closeApproachDistance;
+        }
+
+        @Override
+        public double getEscapeRadius() {
+            return escapeRadius;
+        }
+
+        @Override
+        public double getBoundary() {
+            return 0;
+        }
+
+        @Override
+        public boolean useWisdomHolman() {
+            return wisdomHolman;
+        }
+    }
+
+    public static void main(String[] args) throws InterruptedException, IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean wisdomHolman = arguments.remove("--wisdom-holman");
+        boolean cached = arguments.remove("--cache");
+        boolean particleMesh = arguments.remove("--particle-mesh");
+        boolean reorder = arguments.remove("--reorder");
+        boolean offHeap = arguments.remove("--off-heap");
+        String checkpoint = null;
+        int checkpointOption = arguments.indexOf("--checkpoint");
+        if (checkpointOption >= 0 && checkpointOption + 1 < arguments.size()) {
+            checkpoint = arguments.remove(checkpointOption + 1);
+            arguments.remove(checkpointOption);
+        }
+        InetAddress bindAddress = InetAddress.getLoopbackAddress();
+        int bindOption = arguments.indexOf("--bind");
+        if (bindOption >= 0 && bindOption + 1 < arguments.size()) {
+            bindAddress = InetAddress.getByName(arguments.remove(bindOption + 1));
+            arguments.remove(bindOption);
+        }
+        int port = -1;
+        int serveOption = arguments.indexOf("--serve");
+        if (serveOption >= 0 && serveOption + 1 < arguments.size()) {
+            port = Integer.parseInt(arguments.remove(serveOption + 1));
+            arguments.remove(serveOption);
+        }
+        int ensembleMembers = 0;
+        String ensembleFile = null;
+        int ensemble = arguments.indexOf("--ensemble");
+        if (ensemble >= 0 && ensemble + 2 < arguments.size()) {
+            ensembleMembers = Integer.parseInt(arguments.get(ensemble + 1));
+            ensembleFile = arguments.get(ensemble + 2);
+            arguments.subList(ensemble, ensemble + 3).clear();
+        }
+        args = arguments.toArray(new String[0]);
+        if (args.length < 3 || ensemble >= 0 && ensembleFile == null) {
+            System.err.println("Usage: Batch <plummer|disk|ring|debris> <bodies> <duration> [samples] [seed] [--wisdom-holman] [--particle-mesh] [--reorder] [--cache] [--checkpoint <file>] [--off-heap] [--serve <port>] [--bind <address>] [--ensemble <members> <file>]");
+            System.exit(1);
+        }
+        int count = Integer.parseInt(args[1]);
+        double duration = Double.parseDouble(args[2]);
+        int samples = args.length > 3 ? Integer.parseInt(args[3]) : DEFAULT_SAMPLES;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 1;
+        if (offHeap) {
+            if (wisdomHolman || cached || reorder || port >= 0 || ensemble >= 0) {
+                System.err.println("--off-heap runs the particle mesh only, without --wisdom-holman, --cache, --reorder, --serve or --ensemble");
+                System.exit(1);
+            }
+            runOffHeap(args[0], count, duration, samples, seed, checkpoint);
+            return;
+        }
+        InitialConditions conditions = generate(args[0], count, seed);
+        if (conditions == null) {
+            System.err.println("Unknown scenario '" + args[0] + "'. Expected plummer, disk, ring or debris");
+            System.exit(1);
+        }
+
+        double[] masses = conditions.getMasses();
+        double[] state = conditions.getFlatBodies();
+        if (ensembleFile != null) {
+            runEnsemble(masses, state, duration, seed, ensembleMembers, ensembleFile);
+            return;
+        }
+        SystemStatistics initial = SystemStatistics.compute(state, masses);
+        System.out.println(CSV_HEADER);
+        print(0, initial, initial.getTotalEnergy());
+
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        if (particleMesh) differentialEquations.setParticleMesh(PARTICLE_MESH_SIZE);
+        // Only every frame per sample is printed, the others are there for viewers
+        int framesPerSample = port >= 0 ? SERVE_FRAMES_PER_SAMPLE : 1;
+        IntegrationSession session = new IntegrationSession(new BatchSettings(duration / samples / framesPerSample, wisdomHolman),
+                differentialEquations, masses, state.clone(), 0);
+        if (cached) session.setCache(TrajectoryCache.inUserHome());
+        if (reorder) session.setReorderInterval(REORDER_INTERVAL);
+        FrameServer server = null;
+        if (port >= 0) {
+            server = new FrameServer(bindAddress, port);
+            session.addFrameListener(server);
+            server.start();
+            String host = bindAddress.isLoopbackAddress() || bindAddress.isAnyLocalAddress() ? "localhost" : bindAddress.getHostAddress();
+            System.err.println("Serving frames on http://" + host + ":" + server.getPort() + "/");
+        }
+        session.start();
+        IntegrationSession.Frame last = null;
+        try {
+            sampling:
+            for (int sample = 0; sample < samples; sample++) {
+                for (int k = 0; k < framesPerSample; k++) {
+                    IntegrationSession.Frame frame = session.nextFrame();
+                    while (frame.isBodyChange()) frame = session.nextFrame();
+                    if (frame.isEnd()) break sampling;
+                    last = frame;
+                }
+                print(last.getTime(), SystemStatistics.compute(last.getState(), last.getMasses()), initial.getTotalEnergy());
+            }
+        } finally {
+            session.close();
+        }
+        if (server != null) {
+            System.err.println("Run finished, press Enter to stop serving");
+            System.in.read();
+            server.close();
+        }
+        if (checkpoint != null && last != null) {
+            ParticleStore store = ParticleStore.create(Paths.get(checkpoint), last.getMasses().length);
+            store.copyFrom(last.getTime(), last.getState(), last.getDerivatives(), last.getMasses());
+            store.flush();
+        }
+    }
+
+    private static void runOffHeap(String scenario, int count, double duration, int samples, long seed, String checkpoint) throws IOException {
+        ParticleStore store = generateOffHeap(scenario, count, seed, checkpoint);
+        if (store == null) {
+            System.err.println("Unknown scenario '" + scenario + "'. Expected plummer, disk, ring or debris");
+            System.exit(1);
+        }
+        OffHeapLeapfrog leapfrog = new OffHeapLeapfrog(store, PARTICLE_MESH_SIZE);
+        SystemStatistics initial = SystemStatistics.compute(store, leapfrog.potentialEnergy());
+        System.out.println(CSV_HEADER);
+        print(0, initial, initial.getTotalEnergy());
+        double step = duration / samples / OFF_HEAP_STEPS_PER_SAMPLE;
+        for (int sample = 0; sample < samples; sample++) {
+            leapfrog.advance(step, OFF_HEAP_STEPS_PER_SAMPLE);
+            print(store.getTime(), SystemStatistics.compute(store, leapfrog.potentialEnergy()), initial.getTotalEnergy());
+            store.flush();
+        }
+    }
+
+    // The only time the bodies are on the heap; the generated arrays are garbage once copied into the store
+    private static ParticleStore generateOffHeap(String scenario, int count, long seed, String checkpoint) throws IOException {
+        InitialConditions conditions = generate(scenario, count, seed);
+        if (conditions == null) return null;
+        ParticleStore store = checkpoint == null ? ParticleStore.allocate(conditions.size()) : ParticleStore.create(Paths.get(checkpoint), conditions.size());
+        conditions.writeTo(store);
+        return store;
+    }
+
+    private static void runEnsemble(double[] masses, double[] state, double duration, long seed, int members, String file) throws IOException {
+        SystemStatistics statistics = SystemStatistics.compute(state, masses);
+        double[] center = statistics.getCenterOfMass();
+        double radius = 0;
+        for (int i = 0; i < masses.length; i++) radius = Math.max(radius, Math.hypot(state[4 * i] - center[0], state[4 * i + 1] - center[1]));
+        Ensemble ensemble = new Ensemble(new BatchSettings(duration, false, COLLISION_DISTANCE, ESCAPE_FACTOR * radius), state, masses,
+                (base, member, random) -> {
+                    double[] perturbed = base.clone();
+                    for (int i = 0; i < masses.length; i++) {
+                        perturbed[4 * i] *= 1 + ENSEMBLE_JITTER * random.nextGaussian();
+                        perturbed[4 * i + 1] *= 1 + ENSEMBLE_JITTER * random.nextGaussian();
+                    }
+                    return perturbed;
+                }, members);
+        ensemble.setDuration(duration);
+        ensemble.setSeed(seed);
+        int[] outcomes = new int[Ensemble.Outcome.values().length];
+        for (Ensemble.MemberResult result : ensemble.run(Paths.get(file))) outcomes[result.getOutcome().ordinal()]++;
+        System.out.println("outcome,members");
+        for (Ensemble.Outcome outcome : Ensemble.Outcome.values()) System.out.println(outcome + "," + outcomes[outcome.ordinal()]);
+    }
+
+    static InitialConditions generate(String scenario, int count, long seed) {
+        switch (scenario) {
+            case "plummer":
+                return InitialConditions.plummerSphere(count, 1e6, 100, seed);
+            case "disk":
+                return InitialConditions.exponentialDisk(count, 1e4, 100, 1e6, seed);
+            case "ring":
+                return InitialConditions.keplerRing(count, 1e6, 1e3, 100, 200, seed);
+            case "debris":
+                return InitialConditions.debrisField(4, count, 1e6, 250, 100, 200, seed);
+            default:
+                return null;
+        }
+    }
+
+    static void print(double time, SystemStatistics statistics, double initialEnergy) {
+        double error = initialEnergy == 0 ? 0 : Math.abs((statistics.getTotalEnergy() - initialEnergy) / initialEnergy);
+        double[] center = statistics.getCenterOfMass();
+        // A StringBuilder rather than +, whose first use bootstraps a string concatenation method handle costing more
+        // than the rest of a short run
+        StringBuilder line = new StringBuilder();
+        line.append(time).append(',').append(statistics.getCount()).append(',').append(statistics.getKineticEnergy()).append(',')
+                .append(statistics.getPotentialEnergy()).append(',').append(error).append(',').append(center[0]).append(',').append(center[1]);
+        System.out.println(line);
+    }
+}
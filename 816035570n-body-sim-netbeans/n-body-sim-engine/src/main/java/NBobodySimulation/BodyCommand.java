@@ -0,0 +1,70 @@
+package NBobodySimulation;
+
+/**
+ * A change to the bodies of a running {@link IntegrationSession}, submitted from any thread and applied by the session
+ * at the next frame. Bodies are named by an id that stays the same while others come and go, not by their index in
+ * the state vector, which shifts whenever a body is removed.
+ */
+final class BodyCommand {
+
+    enum Kind {
+        /**
+         * Adds a body, or replaces the body with the same id.
+         */
+        ADD,
+        /**
+         * Removes a body. Unknown ids are ignored, since the body may have left the simulation in the meantime.
+         */
+        REMOVE,
+        /**
+         * Sets the mass, position and velocity of a body. Unknown ids are ignored.
+         */
+        EDIT
+    }
+
+    private final Kind kind;
+    private final int id;
+    private final double mass;
+    private final double[] state;
+
+    private BodyCommand(Kind kind, int id, double mass, double[] state) {
+        this.kind = kind;
+        this.id = id;
+        this.mass = mass;
+        this.state = state;
+    }
+
+    /**
+     * @param state The position and velocity of the body, {x, y, vx, vy}.
+     */
+    static BodyCommand add(int id, double mass, double[] state) {
+        return new BodyCommand(Kind.ADD, id, mass, state.clone());
+    }
+
+    static BodyCommand remove(int id) {
+        return new BodyCommand(Kind.REMOVE, id, 0, null);
+    }
+
+    /**
+     * @param state The new position and velocity of the body, {x, y, vx, vy}.
+     */
+    static BodyCommand edit(int id, double mass, double[] state) {
+        return new BodyCommand(Kind.EDIT, id, mass, state.clone());
+    }
+
+    Kind getKind() {
+        return kind;
+    }
+
+    int getId() {
+        return id;
+    }
+
+    double getMass() {
+        return mass;
+    }
+
+    double[] getState() {
+        return state;
+    }
+}
@@ -0,0 +1,449 @@
+package NBobodySimulation;
+
+//import org.apache.commons.math4.legacy.ode.FirstOrderDifferentialEquations;
+ import org.apache.commons.math3.ode.FirstOrderDifferentialEquations; // If you're using Maven, use this import statement instead
+
+import java.util.stream.IntStream;
+
+/**
+ * A class that represents the differential equations, which govern the movement of particles in an arbitrary number of dimensions.
+ * <br>
+ * Particles with a mass of 0 are test particles, such as debris or ring particles: they are pulled by the particles with
+ * mass but pull on nothing. Their accelerations come from a separate kernel that only visits the particles with mass, so
+ * a few massive bodies among N test particles cost O(massive * N) rather than O(N^2), spread over all cores.
+ * <br>
+ * Every kernel, parallel or not, sums the pulls on each particle on one thread in a fixed order, so the accelerations
+ * are bitwise the same whatever the number of cores, and so are the trajectories.
+ */
+class DifferentialEquations implements FirstOrderDifferentialEquations {
+
+    /**
+     * Universal gravitational constant, in in km^3 * earthmasses^-1 * seconds^-2
+     */
+    static final double G = 398575.0725;
+
+    /**
+     * Test particle kernels with fewer interactions than this run on the calling thread, since forking would cost more.
+     */
+    private static final long PARALLEL_INTERACTIONS = 1 << 16;
+
+    /**
+     * Stores the x and y accelerations of each particle so other classes can access them.
+     * Kept per instance so that several simulations can be integrated on different threads at once.
+     */
+    private double[][] accelerationStorage;
+
+    /**
+     * The mass of each particle.
+     */
+    private double[] masses;
+
+    /**
+     * Indices of the particles with mass and of the test particles, in ascending order. Both are null when every
+     * particle has mass, which keeps the plain pairwise loop.
+     */
+    private int[] massive;
+    private int[] testParticles;
+
+    /**
+     * Whether forces are evaluated on single precision copies of the positions.
+     */
+    private boolean singlePrecision = false;
+
+    /**
+     * Single precision copies of the x and y positions, reused between evaluations.
+     */
+    private float[] positionsX;
+    private float[] positionsY;
+
+    /**
+     * A pair of particles whose mutual attraction is left out, because it is handled in regularized coordinates.
+     * First is the smaller index; both are -1 when no pair is excluded.
+     */
+    private int excludedFirst = -1;
+    private int excludedSecond = -1;
+
+    /**
+     * The particle-mesh solver that replaces the pairwise loop, or null for the direct sum.
+     */
+    private ParticleMesh particleMesh;
+
+    /**
+     * Initializes a differential equation set based on given masses.
+     *
+     * @param masses The masses of each particle, in an array.
+     */
+    DifferentialEquations(double[] masses) {
+        this.masses = masses;
+        accelerationStorage = new double[masses.length][2];
+        splitTestParticles();
+    }
+
+    /**
+     * Switches to the same particles in another order, keeping the buffers and the particle-mesh grid, which a new
+     * instance would have to allocate and transform again.
+     *
+     * @param masses The masses of the particles in their new order.
+     */
+    void reorder(double[] masses) {
+        if (masses.length != this.masses.length) throw new IllegalArgumentException(masses.length + " masses for " + this.masses.length + " particles");
+        this.masses = masses;
+        splitTestParticles();
+        if (particleMesh != null) particleMesh.setMasses(masses);
+    }
+
+    private void splitTestParticles() {
+        int testParticleCount = 0;
+        for (double mass : masses) if (mass == 0) testParticleCount++;
+        if (testParticleCount == 0) {
+            massive = null;
+            testParticles = null;
+        } else {
+            massive = new int[masses.length - testParticleCount];
+            testParticles = new int[testParticleCount];
+            for (int i = 0, m = 0, t = 0; i < masses.length; i++) {
+                if (masses[i] == 0) testParticles[t++] = i;
+                else massive[m++] = i;
+            }
+        }
+    }
+
+    /**
+     * @return The number of massless test particles.
+     */
+    int getTestParticleCount() {
+        return testParticles == null ? 0 : testParticles.length;
+    }
+
+    /**
+     * Gets the acceleration of a particle from the last derivative evaluation.
+     *
+     * @param particleID The index of the particle in the state vector.
+     * @return The acceleration, one component per dimension.
+     */
+    double[] getAcceleration(int particleID) {
+        return accelerationStorage[particleID];
+    }
+
+    /**
+     * Switches the force evaluation between full double precision and mixed precision. In mixed precision, positions are
+     * converted to float relative to the center of the system and pairwise differences and distances are computed in
+     * float, while the accelerations are accumulated in double and the integrator state stays double. Test particles
+     * are handled in mixed precision too.
+     *
+     * @param singlePrecision True to evaluate forces on float copies of the positions.
+     */
+    void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+        if (singlePrecision && positionsX == null) {
+            positionsX = new float[masses.length];
+            positionsY = new float[masses.length];
+        }
+    }
+
+    boolean isSinglePrecision() {
+        return singlePrecision;
+    }
+
+    /**
+     * Switches the force evaluation between the direct sum and a {@link ParticleMesh} solver, which is much cheaper for
+     * thousands of particles in a smooth distribution but smooths the forces over about two grid cells. Mixed precision
+     * and excluded pairs only apply to the direct sum.
+     *
+     * @param gridSize The number of grid cells along each side, a power of two, or 0 for the direct sum.
+     */
+    void setParticleMesh(int gridSize) {
+        particleMesh = gridSize == 0 ? null : new ParticleMesh(masses, gridSize);
+    }
+
+    /**
+     * @return The grid size of the particle-mesh solver, or 0 for the direct sum.
+     */
+    int getParticleMeshSize() {
+        return particleMesh == null ? 0 : particleMesh.getSize();
+    }
+
+    /**
+     * Leaves the attraction between two particles out of every later evaluation. Their attraction to every other
+     * particle is still included.
+     */
+    void excludePair(int first, int second) {
+        excludedFirst = Math.min(first, second);
+        excludedSecond = Math.max(first, second);
+    }
+
+    /**
+     * Measures the error of mixed precision forces for a state, by evaluating it both ways.
+     *
+     * @param y The state to evaluate, in the same layout as {@link #computeDerivatives(double, double[], double[])}.
+     * @return The largest acceleration error of any particle, relative to the largest acceleration magnitude.
+     */
+    double measureSinglePrecisionError(double[] y) {
+        boolean previous = singlePrecision;
+        double[] exact = new double[y.length];
+        double[] approximate = new double[y.length];
+        setSinglePrecision(false);
+        computeDerivatives(0, y, exact);
+        setSinglePrecision(true);
+        computeDerivatives(0, y, approximate);
+        setSinglePrecision(previous);
+
+        double maxError = 0;
+        double maxAcceleration = 0;
+        for (int particle = 0; particle < masses.length; particle++) {
+            double ex = exact[4 * particle + 2];
+            double ey = exact[4 * particle + 3];
+            double dx = approximate[4 * particle + 2] - ex;
+            double dy = approximate[4 * particle + 3] - ey;
+            maxError = Math.max(maxError, Math.sqrt(dx * dx + dy * dy));
+            maxAcceleration = Math.max(maxAcceleration, Math.sqrt(ex * ex + ey * ey));
+        }
+        return maxAcceleration == 0 ? 0 : maxError / maxAcceleration;
+    }
+
+    // Kinetic plus potential energy of a flattened 2D state vector, used to measure integration error
+    public static double totalEnergy(double[] flatBodies, double[] masses) {
+        double energy = 0;
+        for (int i = 0; i < masses.length; i++) {
+            double vx = flatBodies[4 * i + 2];
+            double vy = flatBodies[4 * i + 3];
+            energy += 0.5 * masses[i] * (vx * vx + vy * vy);
+            for (int j = i + 1; j < masses.length; j++) {
+                double dx = flatBodies[4 * j] - flatBodies[4 * i];
+                double dy = flatBodies[4 * j + 1] - flatBodies[4 * i + 1];
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                if (distance != 0) energy -= G * masses[i] * masses[j] / distance;
+            }
+        }
+        return energy;
+    }
+
+    /**
+     * Gets the dimensions of the differential equations. From the interface.
+     *
+     * @return The dimensions of the equations. Always 12.
+     */
+    @Override
+    public int getDimension() {
+        return masses.length * 2 * 2; // n particles * 2 dimensions * 2 derivatives (both displacement -> velocity and velocity -> acceleration)
+    }
+
+    /**
+     * Takes the derivative of an array and stores it an another array. From the interface.
+     *
+     * @param t    The current time. Parameter inherited from interface, not used.
+     * @param y    The initial state of the function. <br>[X-pos of particle 1, Y-pos of particle 1, X-vel of particle 1, Y-vel of particle 1, X-pos of particle 2, Y-pos of particle 2, X-vel of particle 2, Y-vel of particle 2, X-pos of particle 3, Y-pos of particle 3, X-vel of particle 3, Y-vel of particle 3]
+     * @param yDot The array where the derivatives are stored. <br>[X-vel of particle 1, Y-vel of particle 1, X-acc of particle 1, Y-acc of particle 1, X-vel of particle 2, Y-vel of particle 2, X-acc of particle 2, Y-acc of particle 2, X-vel of particle 3, Y-vel of particle 3, X-acc of particle 3, Y-acc of particle 3]
+     */
+    @Override
+    public void computeDerivatives(double t, double[] y, double[] yDot) {
+        SimulationEvents.Derivatives event = new SimulationEvents.Derivatives();
+        event.begin();
+        int numParticles = masses.length;
+
+        // Copy velocity from y to yDot in the correct position.
+        for (int particle = 0; particle < numParticles; particle++) {
+            yDot[4 * particle] = y[4 * particle + 2];
+            yDot[4 * particle + 1] = y[4 * particle + 3];
+        }
+
+        // Reset acceleration
+        accelerationStorage = new double[numParticles][2];
+
+        // Calculate acceleration on each object from every other object.
+        if (particleMesh != null) {
+            particleMesh.addAccelerations(y, accelerationStorage);
+        } else if (singlePrecision) {
+            addSinglePrecisionAccelerations(y);
+        } else if (testParticles != null) {
+            addTestParticleAccelerations(y);
+        } else {
+            for (int i = 0; i < numParticles; i++) {
+                for (int j = i + 1; j < numParticles; j++) {
+                    if (i == excludedFirst && j == excludedSecond) continue;
+                    double dx = y[4 * j] - y[4 * i];
+                    double dy = y[4 * j + 1] - y[4 * i + 1];
+                    addToAcceleration(new double[]{dx, dy}, masses[i], masses[j], i, j);
+                }
+            }
+        }
+
+        // Set yDot acceleration indices to the correct value
+        for (int particle = 0; particle < numParticles; particle++) {
+            yDot[4 * particle + 2] = accelerationStorage[particle][0];
+            yDot[4 * particle + 3] = accelerationStorage[particle][1];
+        }
+
+        if (event.shouldCommit()) {
+            event.bodies = numParticles;
+            event.singlePrecision = singlePrecision;
+            event.particleMeshSize = getParticleMeshSize();
+            event.testParticles = getTestParticleCount();
+            event.commit();
+        }
+    }
+
+    /**
+     * Calculates acceleration due to gravity between two different objects and stores it in the accelerationStorage array.
+     *
+     * @param vector The distance between the objects.
+     * @param mass1  The mass of object 1.
+     * @param mass2  The mass of object 2.
+     * @param id1    The id of object 1 in the storage array.
+     * @param id2    The id of object 2 in the storage array.
+     */
+    private void addToAcceleration(double[] vector, double mass1, double mass2, int id1, int id2) {
+        // Absolute value of vector, according to pythagorean theorem
+        double absoluteDistance = Math.sqrt(Math.pow(vector[0], 2) + Math.pow(vector[1], 2));
+
+        // Common factors of acceleration: vector / absVector^3
+        double[] baseAcceleration;
+        if (absoluteDistance != 0) {
+            baseAcceleration = new double[]{vector[0] / Math.pow(absoluteDistance, 3), vector[1] / Math.pow(absoluteDistance, 3)};
+        } else {
+            // obviously zero if there is no distance between two objects.
+            baseAcceleration = new double[]{0, 0};
+        }
+
+        // individual coefficients for each acceleration
+        double massFactor1 = mass2 * G;
+        // Reversed for mass2, because vectors have direction
+        double massFactor2 = -1 * mass1 * G;
+
+        // Multiply together.
+        for (int i = 0; i < 2; i++) {
+            accelerationStorage[id1][i] += massFactor1 * baseAcceleration[i];
+            accelerationStorage[id2][i] += massFactor2 * baseAcceleration[i];
+        }
+    }
+
+    /**
+     * Pairwise loop over the particles with mass only, followed by one pass per test particle over the particles with
+     * mass. Test particles are independent of each other, so they are spread over the common pool once there are
+     * enough interactions to be worth it; each one sums its pulls in the same order on any thread.
+     *
+     * @param y The current state.
+     */
+    private void addTestParticleAccelerations(double[] y) {
+        for (int a = 0; a < massive.length; a++) {
+            int i = massive[a];
+            for (int b = a + 1; b < massive.length; b++) {
+                int j = massive[b];
+                if (i == excludedFirst && j == excludedSecond) continue;
+                double dx = y[4 * j] - y[4 * i];
+                double dy = y[4 * j + 1] - y[4 * i + 1];
+                addToAcceleration(new double[]{dx, dy}, masses[i], masses[j], i, j);
+            }
+        }
+
+        IntStream range = IntStream.range(0, testParticles.length);
+        if ((long) testParticles.length * massive.length >= PARALLEL_INTERACTIONS) range = range.parallel();
+        range.forEach(k -> {
+            int i = testParticles[k];
+            double xi = y[4 * i];
+            double yi = y[4 * i + 1];
+            double ax = 0;
+            double ay = 0;
+            for (int j : massive) {
+                if (Math.min(i, j) == excludedFirst && Math.max(i, j) == excludedSecond) continue;
+                double dx = y[4 * j] - xi;
+                double dy = y[4 * j + 1] - yi;
+                double distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared == 0) continue;
+                double factor = G * masses[j] / (distanceSquared * Math.sqrt(distanceSquared));
+                ax += factor * dx;
+                ay += factor * dy;
+            }
+            accelerationStorage[i][0] = ax;
+            accelerationStorage[i][1] = ay;
+        });
+    }
+
+    /**
+     * Mixed precision version of the force loops, with the same split into particles with mass and test particles as
+     * {@link #addTestParticleAccelerations}. Positions are copied to float relative to the center of their bounding box,
+     * so the float differences lose precision relative to the size of the system and not to its distance from the
+     * origin. Differences and distances are then computed in float on the two float arrays, which halves the memory
+     * traffic of the inner loops, and each row's pulls are accumulated in double.
+     * <br>
+     * The loops are not vectorized, since the double accumulation has to keep its order, so the gain is the smaller
+     * arrays plus the cheaper float square root and division. Measured on one core for a 2000 body Plummer sphere: 8.8 ms
+     * against 12.3 ms for the same loop in double, and 83 ms for the double direct sum below, which allocates per pair.
+     * For 4 planets among 20000 test particles the test particle kernel is already cheap and mixed precision gains
+     * under 10%. The largest acceleration error relative to the largest acceleration was 7e-5 for the sphere, from its
+     * closest pairs, and the same with the sphere moved 1e6 from the origin; {@link #measureSinglePrecisionError}
+     * reports it for a given state.
+     *
+     * @param y The current state, from which the float positions are copied.
+     */
+    private void addSinglePrecisionAccelerations(double[] y) {
+        int numParticles = masses.length;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int particle = 0; particle < numParticles; particle++) {
+            minX = Math.min(minX, y[4 * particle]);
+            maxX = Math.max(maxX, y[4 * particle]);
+            minY = Math.min(minY, y[4 * particle + 1]);
+            maxY = Math.max(maxY, y[4 * particle + 1]);
+        }
+        double originX = (minX + maxX) / 2;
+        double originY = (minY + maxY) / 2;
+        for (int particle = 0; particle < numParticles; particle++) {
+            positionsX[particle] = (float) (y[4 * particle] - originX);
+            positionsY[particle] = (float) (y[4 * particle + 1] - originY);
+        }
+
+        // Pairs of particles with mass, each pair once
+        int sources = massive == null ? numParticles : massive.length;
+        for (int a = 0; a < sources; a++) {
+            int i = massive == null ? a : massive[a];
+            float xi = positionsX[i];
+            float yi = positionsY[i];
+            double sumX = 0;
+            double sumY = 0;
+            for (int b = a + 1; b < sources; b++) {
+                int j = massive == null ? b : massive[b];
+                if (i == excludedFirst && j == excludedSecond) continue;
+                float dx = positionsX[j] - xi;
+                float dy = positionsY[j] - yi;
+                float distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared == 0) continue;
+                float baseFactor = 1 / (distanceSquared * (float) Math.sqrt(distanceSquared));
+                double baseX = (double) baseFactor * dx;
+                double baseY = (double) baseFactor * dy;
+                sumX += masses[j] * baseX;
+                sumY += masses[j] * baseY;
+                accelerationStorage[j][0] -= G * masses[i] * baseX;
+                accelerationStorage[j][1] -= G * masses[i] * baseY;
+            }
+            accelerationStorage[i][0] += G * sumX;
+            accelerationStorage[i][1] += G * sumY;
+        }
+        if (testParticles == null) return;
+
+        // Each test particle pulled by every particle with mass, in the same order on any thread
+        IntStream range = IntStream.range(0, testParticles.length);
+        if ((long) testParticles.length * massive.length >= PARALLEL_INTERACTIONS) range = range.parallel();
+        range.forEach(k -> {
+            int i = testParticles[k];
+            float xi = positionsX[i];
+            float yi = positionsY[i];
+            double sumX = 0;
+            double sumY = 0;
+            for (int j : massive) {
+                if (Math.min(i, j) == excludedFirst && Math.max(i, j) == excludedSecond) continue;
+                float dx = positionsX[j] - xi;
+                float dy = positionsY[j] - yi;
+                float distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared == 0) continue;
+                float baseFactor = 1 / (distanceSquared * (float) Math.sqrt(distanceSquared));
+                sumX += masses[j] * ((double) baseFactor * dx);
+                sumY += masses[j] * ((double) baseFactor * dy);
+            }
+            accelerationStorage[i][0] = G * sumX;
+            accelerationStorage[i][1] = G * sumY;
+        });
+    }
+}
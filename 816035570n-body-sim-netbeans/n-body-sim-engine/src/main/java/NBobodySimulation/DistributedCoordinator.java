@@ -0,0 +1,374 @@
+package NBobodySimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Drives a distributed run across several {@link DistributedWorker} processes over TCP.
+ * <br>
+ * Bodies are split into vertical slabs holding roughly equal numbers of bodies, one slab per worker. Every step the
+ * coordinator asks all workers to drift, collects each slab's mass, center of mass and boundary bands, hands every
+ * worker the summaries of all slabs plus the bands of its two neighbours, and finally routes bodies that crossed into
+ * another slab.
+ * <br>
+ * Slab bounds are set from the bodies at the start, and again every {@link #setRebalanceInterval rebalance interval}
+ * steps, so slabs do not drift out of balance as the system evolves. A rebalance gathers every body and costs one
+ * extra force evaluation.
+ * <br>
+ * A slab beyond the neighbours, and the part of a neighbour outside its boundary band, pull as a single point mass at
+ * their center of mass. About the center of mass the dipole term vanishes, so the force error of such a slab grows
+ * with the square of its width over its distance; widen the boundary band when slabs are wide compared to their
+ * spacing.
+ * <br>
+ * The coordinator listens on loopback unless given another bind address. For local testing,
+ * {@link #launchLocalWorkers(int)} starts the workers as separate JVMs on this machine. Start a run from the command
+ * line with:
+ * <pre>
+ * java -cp n-body-sim-engine.jar NBobodySimulation.DistributedCoordinator debris 2000 4 0.01 0.00001 --local
+ * </pre>
+ * Arguments: scenario and number of bodies as for {@link Batch}, number of workers, duration and time step.
+ * {@code --local} starts the workers on this machine; otherwise start them by hand with the host and port printed.
+ * {@code --bind <address>} listens on another address, such as 0.0.0.0 for workers on other machines,
+ * {@code --port <port>} on a fixed port, and {@code --rebalance <steps>} sets the rebalance interval.
+ */
+public class DistributedCoordinator implements Closeable {
+
+    private static final int RECORD = DistributedProtocol.BODY_DOUBLES;
+
+    private final double[] initialState;
+    private final double[] masses;
+    private final int numWorkers;
+    private final double timeStep;
+    private double boundaryWidth = 50;
+    private int rebalanceInterval;
+    private int stepsSinceRebalance;
+
+    private final ServerSocket serverSocket;
+    private final List<Process> localWorkers = new ArrayList<>();
+    private DataInputStream[] inputs;
+    private DataOutputStream[] outputs;
+    private Socket[] sockets;
+    private double[] upperBounds;
+    private double currentTime = 0;
+
+    /**
+     * Listens on loopback, for workers on this machine.
+     *
+     * @param flatBodies The flattened state of the bodies to distribute. Only read once, in {@link #start()}.
+     * @param masses     The mass of each body.
+     * @param numWorkers The number of worker processes that will connect.
+     * @param port       The port to listen on, or 0 for any free port.
+     * @param timeStep   The fixed leapfrog time step.
+     */
+    public DistributedCoordinator(double[] flatBodies, double[] masses, int numWorkers, int port, double timeStep) throws IOException {
+        this(flatBodies, masses, numWorkers, InetAddress.getLoopbackAddress(), port, timeStep);
+    }
+
+    /**
+     * @param flatBodies  The flattened state of the bodies to distribute. Only read once, in {@link #start()}.
+     * @param masses      The mass of each body.
+     * @param numWorkers  The number of worker processes that will connect.
+     * @param bindAddress The address to listen on, such as the wildcard address for workers on other machines.
+     * @param port        The port to listen on, or 0 for any free port.
+     * @param timeStep    The fixed leapfrog time step.
+     */
+    public DistributedCoordinator(double[] flatBodies, double[] masses, int numWorkers, InetAddress bindAddress, int port, double timeStep) throws IOException {
+        if (numWorkers < 1) throw new IllegalArgumentException("Invalid number of workers '" + numWorkers + "'");
+        this.initialState = flatBodies;
+        this.masses = masses;
+        this.numWorkers = numWorkers;
+        this.timeStep = timeStep;
+        this.serverSocket = new ServerSocket(port, numWorkers, bindAddress);
+    }
+
+    public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean local = arguments.remove("--local");
+        String bind = option(arguments, "--bind");
+        String port = option(arguments, "--port");
+        String rebalance = option(arguments, "--rebalance");
+        InetAddress bindAddress = bind == null ? InetAddress.getLoopbackAddress() : InetAddress.getByName(bind);
+        if (arguments.size() != 5) {
+            System.err.println("Usage: DistributedCoordinator <plummer|disk|ring|debris> <bodies> <workers> <duration> <timeStep> [--local] [--bind <address>] [--port <port>] [--rebalance <steps>]");
+            System.exit(1);
+        }
+        InitialConditions conditions = Batch.generate(arguments.get(0), Integer.parseInt(arguments.get(1)), 1);
+        if (conditions == null) {
+            System.err.println("Unknown scenario '" + arguments.get(0) + "'. Expected plummer, disk, ring or debris");
+            System.exit(1);
+        }
+        int numWorkers = Integer.parseInt(arguments.get(2));
+        double duration = Double.parseDouble(arguments.get(3));
+        double timeStep = Double.parseDouble(arguments.get(4));
+
+        double[] masses = conditions.getMasses();
+        double[] state = conditions.getFlatBodies();
+        try (DistributedCoordinator coordinator = new DistributedCoordinator(state, masses, numWorkers, bindAddress,
+                port == null ? 0 : Integer.parseInt(port), timeStep)) {
+            coordinator.setRebalanceInterval(rebalance == null ? 0 : Integer.parseInt(rebalance));
+            if (local) {
+                coordinator.launchLocalWorkers(numWorkers);
+            } else {
+                System.err.println("Waiting for " + numWorkers + " workers on " + bindAddress.getHostAddress() + ":" + coordinator.getPort());
+            }
+            coordinator.start();
+            double initialEnergy = SystemStatistics.compute(state, masses).getTotalEnergy();
+            System.out.println(Batch.CSV_HEADER);
+            Batch.print(0, SystemStatistics.compute(state, masses), initialEnergy);
+            long steps = Math.round(duration / timeStep);
+            for (int sample = 1; sample <= Batch.DEFAULT_SAMPLES; sample++) {
+                long sampleSteps = steps * sample / Batch.DEFAULT_SAMPLES - steps * (sample - 1) / Batch.DEFAULT_SAMPLES;
+                for (long step = 0; step < sampleSteps; step++) coordinator.step();
+                Batch.print(coordinator.getCurrentTime(), SystemStatistics.compute(coordinator.gather(), masses), initialEnergy);
+            }
+        }
+    }
+
+    // Removes an option and its value from the arguments, returning the value or null if the option is not there
+    private static String option(List<String> arguments, String name) {
+        int index = arguments.indexOf(name);
+        if (index < 0 || index + 1 >= arguments.size()) return null;
+        String value = arguments.get(index + 1);
+        arguments.subList(index, index + 2).clear();
+        return value;
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public double getCurrentTime() {
+        return currentTime;
+    }
+
+    /**
+     * Sets how far into a slab bodies are still sent to the neighbouring slab individually instead of only as part of its center of mass.
+     */
+    public void setBoundaryWidth(double boundaryWidth) {
+        this.boundaryWidth = boundaryWidth;
+    }
+
+    /**
+     * Recomputes the slab bounds every this many steps, or never for 0.
+     */
+    public void setRebalanceInterval(int steps) {
+        if (steps < 0) throw new IllegalArgumentException("Invalid rebalance interval '" + steps + "'");
+        this.rebalanceInterval = steps;
+    }
+
+    /**
+     * Starts the workers as child JVMs on this machine, using this JVM's class path.
+     */
+    public void launchLocalWorkers(int count) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        InetAddress bound = serverSocket.getInetAddress();
+        String host = bound.isAnyLocalAddress() ? InetAddress.getLoopbackAddress().getHostAddress() : bound.getHostAddress();
+        for (int i = 0; i < count; i++) {
+            ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+                    DistributedWorker.class.getName(), host, String.valueOf(getPort()));
+            builder.inheritIO();
+            localWorkers.add(builder.start());
+        }
+    }
+
+    /**
+     * Waits for all workers to connect, partitions the bodies and computes the initial accelerations.
+     */
+    public void start() throws IOException {
+        if (masses.length == 0) throw new IllegalStateException("No bodies to distribute");
+        sockets = new Socket[numWorkers];
+        inputs = new DataInputStream[numWorkers];
+        outputs = new DataOutputStream[numWorkers];
+        for (int w = 0; w < numWorkers; w++) {
+            sockets[w] = serverSocket.accept();
+            sockets[w].setTcpNoDelay(true);
+            inputs[w] = new DataInputStream(new BufferedInputStream(sockets[w].getInputStream()));
+            outputs[w] = new DataOutputStream(new BufferedOutputStream(sockets[w].getOutputStream()));
+        }
+        partition(initialState);
+        exchange(0);
+    }
+
+    /**
+     * Advances every worker by one leapfrog step.
+     */
+    public void step() throws IOException {
+        exchange(timeStep);
+        currentTime += timeStep;
+        if (rebalanceInterval > 0 && ++stepsSinceRebalance >= rebalanceInterval) {
+            stepsSinceRebalance = 0;
+            partition(gather());
+            // The accelerations at the current positions, from the new slabs, for the first half kick of the next step
+            exchange(0);
+        }
+    }
+
+    // Splits the bodies into slabs of roughly equal counts along x and hands each worker its slab
+    private void partition(double[] flatBodies) throws IOException {
+        Integer[] order = new Integer[masses.length];
+        for (int i = 0; i < order.length; i++) order[i] = i;
+        Arrays.sort(order, Comparator.comparingDouble(i -> flatBodies[4 * i]));
+
+        upperBounds = new double[numWorkers];
+        int from = 0;
+        for (int w = 0; w < numWorkers; w++) {
+            int to = (int) ((long) masses.length * (w + 1) / numWorkers);
+            double lower = w == 0 ? Double.NEGATIVE_INFINITY : upperBounds[w - 1];
+            if (w == numWorkers - 1) {
+                upperBounds[w] = Double.POSITIVE_INFINITY;
+                to = masses.length;
+            } else {
+                if (to <= from || to >= masses.length) upperBounds[w] = lower;
+                else upperBounds[w] = Math.max(lower, (flatBodies[4 * order[to - 1]] + flatBodies[4 * order[to]]) / 2);
+                // A slab owns exactly the bodies strictly below its upper bound, even when x coordinates tie
+                while (to > from && flatBodies[4 * order[to - 1]] >= upperBounds[w]) to--;
+                while (to < masses.length && flatBodies[4 * order[to]] < upperBounds[w]) to++;
+            }
+
+            int[] ids = new int[to - from];
+            double[] records = new double[ids.length * RECORD];
+            for (int i = from; i < to; i++) {
+                int body = order[i];
+                int b = (i - from) * RECORD;
+                ids[i - from] = body;
+                records[b] = masses[body];
+                System.arraycopy(flatBodies, 4 * body, records, b + 1, 4);
+            }
+            DataOutputStream out = outputs[w];
+            out.writeByte(DistributedProtocol.INIT);
+            out.writeInt(w);
+            out.writeInt(numWorkers);
+            out.writeDouble(lower);
+            out.writeDouble(upperBounds[w]);
+            out.writeDouble(boundaryWidth);
+            DistributedProtocol.writeBodies(out, ids, records, ids.length);
+            out.flush();
+            from = to;
+        }
+    }
+
+    private void exchange(double dt) throws IOException {
+        for (DataOutputStream out : outputs) {
+            out.writeByte(DistributedProtocol.DRIFT);
+            out.writeDouble(dt);
+            out.flush();
+        }
+
+        double[] summaries = new double[3 * numWorkers];
+        double[][] lowerBands = new double[numWorkers][];
+        double[][] upperBands = new double[numWorkers][];
+        for (int w = 0; w < numWorkers; w++) {
+            for (int k = 0; k < 3; k++) summaries[3 * w + k] = inputs[w].readDouble();
+            lowerBands[w] = DistributedProtocol.readDoubles(inputs[w]);
+            upperBands[w] = DistributedProtocol.readDoubles(inputs[w]);
+        }
+
+        double[] none = new double[0];
+        for (int w = 0; w < numWorkers; w++) {
+            DataOutputStream out = outputs[w];
+            out.writeByte(DistributedProtocol.FORCE);
+            DistributedProtocol.writeDoubles(out, summaries);
+            DistributedProtocol.writeDoubles(out, w > 0 ? upperBands[w - 1] : none);
+            DistributedProtocol.writeDoubles(out, w < numWorkers - 1 ? lowerBands[w + 1] : none);
+            out.writeDouble(dt);
+            out.flush();
+        }
+
+        // Route bodies that crossed a slab bound to their new owner
+        List<List<Integer>> routedIds = new ArrayList<>();
+        List<List<double[]>> routedRecords = new ArrayList<>();
+        for (int w = 0; w < numWorkers; w++) {
+            routedIds.add(new ArrayList<>());
+            routedRecords.add(new ArrayList<>());
+        }
+        for (int w = 0; w < numWorkers; w++) {
+            int[][] ids = new int[1][];
+            double[] records = DistributedProtocol.readBodies(inputs[w], ids);
+            for (int i = 0; i < ids[0].length; i++) {
+                int owner = ownerOf(records[i * RECORD + 1]);
+                routedIds.get(owner).add(ids[0][i]);
+                routedRecords.get(owner).add(Arrays.copyOfRange(records, i * RECORD, (i + 1) * RECORD));
+            }
+        }
+        for (int w = 0; w < numWorkers; w++) {
+            int size = routedIds.get(w).size();
+            if (size == 0) continue;
+            int[] ids = new int[size];
+            double[] records = new double[size * RECORD];
+            for (int i = 0; i < size; i++) {
+                ids[i] = routedIds.get(w).get(i);
+                System.arraycopy(routedRecords.get(w).get(i), 0, records, i * RECORD, RECORD);
+            }
+            outputs[w].writeByte(DistributedProtocol.IMMIGRANTS);
+            DistributedProtocol.writeBodies(outputs[w], ids, records, size);
+            outputs[w].flush();
+        }
+    }
+
+    private int ownerOf(double x) {
+        for (int w = 0; w < numWorkers; w++) {
+            if (x < upperBounds[w]) return w;
+        }
+        return numWorkers - 1;
+    }
+
+    /**
+     * Collects all bodies from the workers.
+     *
+     * @return The flattened state, in the same body order as the state it was started from.
+     */
+    public double[] gather() throws IOException {
+        double[] flatBodies = new double[masses.length * 4];
+        for (DataOutputStream out : outputs) {
+            out.writeByte(DistributedProtocol.GATHER);
+            out.flush();
+        }
+        for (DataInputStream in : inputs) {
+            int[][] ids = new int[1][];
+            double[] records = DistributedProtocol.readBodies(in, ids);
+            for (int i = 0; i < ids[0].length; i++) {
+                System.arraycopy(records, i * RECORD + 1, flatBodies, 4 * ids[0][i], 4);
+            }
+        }
+        return flatBodies;
+    }
+
+    /**
+     * Shuts the workers down and waits for any local worker processes to exit.
+     */
+    @Override
+    public void close() throws IOException {
+        if (outputs != null) {
+            for (DataOutputStream out : outputs) {
+                try {
+                    out.writeByte(DistributedProtocol.SHUTDOWN);
+                    out.flush();
+                } catch (IOException e) {
+                    System.err.println("Could not shut down worker: " + e.getMessage());
+                }
+            }
+            for (Socket socket : sockets) socket.close();
+        }
+        serverSocket.close();
+        for (Process worker : localWorkers) {
+            try {
+                worker.waitFor();
+            } catch (InterruptedException e) {
+                worker.destroy();
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package NBobodySimulation;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Wire format shared by {@link DistributedCoordinator} and {@link DistributedWorker}.
+ * Every message starts with one of the command bytes below, everything else is big-endian ints and doubles.
+ */
+final class DistributedProtocol {
+
+    static final byte INIT = 1;
+    static final byte DRIFT = 2;
+    static final byte FORCE = 3;
+    static final byte IMMIGRANTS = 4;
+    static final byte GATHER = 5;
+    static final byte SHUTDOWN = 6;
+
+    /**
+     * Doubles per owned body record: mass, x, y, vx, vy, ax, ay. Preceded by the body id as an int.
+     */
+    static final int BODY_DOUBLES = 7;
+
+    /**
+     * Doubles per boundary body record: mass, x, y.
+     */
+    static final int BOUNDARY_DOUBLES = 3;
+
+    private DistributedProtocol() {
+    }
+
+    /**
+     * Writes owned bodies: a count, then id and {@link #BODY_DOUBLES} values per body.
+     */
+    static void writeBodies(DataOutputStream out, int[] ids, double[] records, int count) throws IOException {
+        out.writeInt(count);
+        for (int i = 0; i < count; i++) {
+            out.writeInt(ids[i]);
+            for (int k = 0; k < BODY_DOUBLES; k++) out.writeDouble(records[i * BODY_DOUBLES + k]);
+        }
+    }
+
+    /**
+     * Reads owned bodies written by {@link #writeBodies}. Returns the records, and fills the id array given as the first slot of {@code ids}.
+     */
+    static double[] readBodies(DataInputStream in, int[][] ids) throws IOException {
+        int count = in.readInt();
+        ids[0] = new int[count];
+        double[] records = new double[count * BODY_DOUBLES];
+        for (int i = 0; i < count; i++) {
+            ids[0][i] = in.readInt();
+            for (int k = 0; k < BODY_DOUBLES; k++) records[i * BODY_DOUBLES + k] = in.readDouble();
+        }
+        return records;
+    }
+
+    /**
+     * Writes a flat array of doubles prefixed by its length.
+     */
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        out.writeInt(values.length);
+        for (double value : values) out.writeDouble(value);
+    }
+
+    /**
+     * Reads a flat array of doubles written by {@link #writeDoubles}.
+     */
+    static double[] readDoubles(DataInputStream in) throws IOException {
+        double[] values = new double[in.readInt()];
+        for (int i = 0; i < values.length; i++) values[i] = in.readDouble();
+        return values;
+    }
+}
@@ -0,0 +1,251 @@
+package NBobodySimulation;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Arrays;
+
+/**
+ * One process of a distributed run. A worker owns the bodies inside a vertical slab of space and integrates them
+ * with a kick-drift-kick leapfrog, driven step by step by a {@link DistributedCoordinator}.
+ * <br>
+ * Forces on owned bodies come from three sources: every other owned body exactly, the bodies of the two neighbouring
+ * slabs that lie within the boundary band exactly, and every remaining slab (or the rest of a neighbouring slab) as a
+ * single point mass at its center of mass.
+ * <br>
+ * Start with {@code java -cp <classpath> NBobodySimulation.DistributedWorker <host> <port>}.
+ */
+public class DistributedWorker {
+
+    private static final int RECORD = DistributedProtocol.BODY_DOUBLES;
+
+    private final DataInputStream in;
+    private final DataOutputStream out;
+
+    private int domain;
+    private int numDomains;
+    private double lowerBound;
+    private double upperBound;
+    private double boundaryWidth;
+
+    // Owned bodies: ids[i] and records[i * RECORD ...] = mass, x, y, vx, vy, ax, ay
+    private int[] ids = new int[0];
+    private double[] records = new double[0];
+    private int count;
+
+    DistributedWorker(Socket socket) throws IOException {
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.err.println("Usage: DistributedWorker <host> <port>");
+            System.exit(1);
+        }
+        try (Socket socket = new Socket(args[0], Integer.parseInt(args[1]))) {
+            new DistributedWorker(socket).serve();
+        }
+    }
+
+    /**
+     * Answers coordinator commands until told to shut down or the connection closes.
+     */
+    void serve() throws IOException {
+        while (true) {
+            byte command = in.readByte();
+            switch (command) {
+                case DistributedProtocol.INIT:
+                    init();
+                    break;
+                case DistributedProtocol.DRIFT:
+                    drift(in.readDouble());
+                    break;
+                case DistributedProtocol.FORCE:
+                    force();
+                    break;
+                case DistributedProtocol.IMMIGRANTS:
+                    int[][] newIds = new int[1][];
+                    double[] newRecords = DistributedProtocol.readBodies(in, newIds);
+                    append(newIds[0], newRecords);
+                    break;
+                case DistributedProtocol.GATHER:
+                    DistributedProtocol.writeBodies(out, ids, records, count);
+                    out.flush();
+                    break;
+                case DistributedProtocol.SHUTDOWN:
+                    return;
+                default:
+                    throw new IOException("Unknown distributed command '" + command + "'");
+            }
+        }
+    }
+
+    private void init() throws IOException {
+        domain = in.readInt();
+        numDomains = in.readInt();
+        lowerBound = in.readDouble();
+        upperBound = in.readDouble();
+        boundaryWidth = in.readDouble();
+        int[][] newIds = new int[1][];
+        records = DistributedProtocol.readBodies(in, newIds);
+        ids = newIds[0];
+        count = ids.length;
+    }
+
+    private void append(int[] newIds, double[] newRecords) {
+        int needed = count + newIds.length;
+        if (needed > ids.length) {
+            int capacity = Math.max(needed, ids.length * 2);
+            ids = Arrays.copyOf(ids, capacity);
+            records = Arrays.copyOf(records, capacity * RECORD);
+        }
+        System.arraycopy(newIds, 0, ids, count, newIds.length);
+        System.arraycopy(newRecords, 0, records, count * RECORD, newRecords.length);
+        count = needed;
+    }
+
+    /**
+     * First half kick and full drift, then reports this slab's summary and boundary bands.
+     */
+    private void drift(double timeStep) throws IOException {
+        double mass = 0;
+        double comX = 0;
+        double comY = 0;
+        for (int i = 0; i < count; i++) {
+            int b = i * RECORD;
+            records[b + 3] += records[b + 5] * timeStep / 2;
+            records[b + 4] += records[b + 6] * timeStep / 2;
+            records[b + 1] += records[b + 3] * timeStep;
+            records[b + 2] += records[b + 4] * timeStep;
+            mass += records[b];
+            comX += records[b] * records[b + 1];
+            comY += records[b] * records[b + 2];
+        }
+        if (mass > 0) {
+            comX /= mass;
+            comY /= mass;
+        }
+
+        out.writeDouble(mass);
+        out.writeDouble(comX);
+        out.writeDouble(comY);
+        DistributedProtocol.writeDoubles(out, band(true));
+        DistributedProtocol.writeDoubles(out, band(false));
+        out.flush();
+    }
+
+    private double[] band(boolean lower) {
+        double[] band = new double[count * DistributedProtocol.BOUNDARY_DOUBLES];
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            int b = i * RECORD;
+            double x = records[b + 1];
+            boolean inside = lower ? x < lowerBound + boundaryWidth : x >= upperBound - boundaryWidth;
+            if (!inside) continue;
+            band[size++] = records[b];
+            band[size++] = x;
+            band[size++] = records[b + 2];
+        }
+        return Arrays.copyOf(band, size);
+    }
+
+    /**
+     * Computes new accelerations from the exchanged data, applies the second half kick and hands back bodies that left the slab.
+     */
+    private void force() throws IOException {
+        double[] summaries = DistributedProtocol.readDoubles(in);
+        double[] lowerNeighbourBand = DistributedProtocol.readDoubles(in);
+        double[] upperNeighbourBand = DistributedProtocol.readDoubles(in);
+        double timeStep = in.readDouble();
+
+        for (int i = 0; i < count; i++) {
+            records[i * RECORD + 5] = 0;
+            records[i * RECORD + 6] = 0;
+        }
+
+        // Owned bodies, exactly and pairwise
+        for (int i = 0; i < count; i++) {
+            int bi = i * RECORD;
+            for (int j = i + 1; j < count; j++) {
+                int bj = j * RECORD;
+                double dx = records[bj + 1] - records[bi + 1];
+                double dy = records[bj + 2] - records[bi + 2];
+                double distance = Math.sqrt(dx * dx + dy * dy);
+                if (distance == 0) continue;
+                double factor = DifferentialEquations.G / (distance * distance * distance);
+                records[bi + 5] += records[bj] * factor * dx;
+                records[bi + 6] += records[bj] * factor * dy;
+                records[bj + 5] -= records[bi] * factor * dx;
+                records[bj + 6] -= records[bi] * factor * dy;
+            }
+        }
+
+        for (int k = 0; k < numDomains; k++) {
+            if (k == domain) continue;
+            double mass = summaries[3 * k];
+            double comX = summaries[3 * k + 1];
+            double comY = summaries[3 * k + 2];
+            double[] band = k == domain - 1 ? lowerNeighbourBand : k == domain + 1 ? upperNeighbourBand : null;
+            if (band != null) {
+                // Neighbour: band bodies exactly, the rest of the slab as one point mass
+                double momentX = mass * comX;
+                double momentY = mass * comY;
+                for (int b = 0; b < band.length; b += DistributedProtocol.BOUNDARY_DOUBLES) {
+                    addPointMass(band[b], band[b + 1], band[b + 2]);
+                    mass -= band[b];
+                    momentX -= band[b] * band[b + 1];
+                    momentY -= band[b] * band[b + 2];
+                }
+                if (mass <= 1e-12 * Math.abs(summaries[3 * k])) continue;
+                comX = momentX / mass;
+                comY = momentY / mass;
+            }
+            if (mass > 0) addPointMass(mass, comX, comY);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int b = i * RECORD;
+            records[b + 3] += records[b + 5] * timeStep / 2;
+            records[b + 4] += records[b + 6] * timeStep / 2;
+        }
+
+        sendEmigrants();
+    }
+
+    private void addPointMass(double mass, double x, double y) {
+        for (int i = 0; i < count; i++) {
+            int b = i * RECORD;
+            double dx = x - records[b + 1];
+            double dy = y - records[b + 2];
+            double distance = Math.sqrt(dx * dx + dy * dy);
+            if (distance == 0) continue;
+            double factor = DifferentialEquations.G * mass / (distance * distance * distance);
+            records[b + 5] += factor * dx;
+            records[b + 6] += factor * dy;
+        }
+    }
+
+    private void sendEmigrants() throws IOException {
+        int[] leavingIds = new int[count];
+        double[] leaving = new double[count * RECORD];
+        int leavingCount = 0;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            double x = records[i * RECORD + 1];
+            boolean outside = x < lowerBound || x >= upperBound;
+            int target = outside ? leavingCount++ : kept++;
+            int[] targetIds = outside ? leavingIds : ids;
+            double[] targetRecords = outside ? leaving : records;
+            targetIds[target] = ids[i];
+            System.arraycopy(records, i * RECORD, targetRecords, target * RECORD, RECORD);
+        }
+        count = kept;
+        DistributedProtocol.writeBodies(out, leavingIds, leaving, leavingCount);
+        out.flush();
+    }
+}
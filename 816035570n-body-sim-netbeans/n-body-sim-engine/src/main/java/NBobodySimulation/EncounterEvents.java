@@ -0,0 +1,293 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.AbstractIntegrator;
+import org.apache.commons.math3.ode.events.EventHandler;
+
+/**
+ * Event handlers that stop the integrator at the exact moment something changes the shape of the problem: two bodies
+ * come within a set distance, a body moves beyond the escape radius, or a body leaves the boundary box.
+ * <br>
+ * Each handler is a continuous switching function over the flattened 2D state vector, so the integrator locates the
+ * crossing by root finding inside the step instead of noticing it at the next frame. The handlers only stop the
+ * integration; {@link IntegrationSession} (or an {@link Ensemble} member) decides what to do about it and restarts from
+ * the stop time.
+ * <br>
+ * The handlers hold the masses of the current bodies, so a new instance is needed whenever bodies are removed.
+ * <br>
+ * The close approach function costs O(massive * N), so it is only sampled as often as a pair could cross the close
+ * approach distance: the check interval is a fraction of the time the fastest possible pair takes to close that
+ * distance, from the speeds at registration plus the speed two bodies falling together from rest reach there. Escapes
+ * and boundary crossings are only checked at step ends, since a body does not cross those far out and back inside one
+ * step.
+ */
+class EncounterEvents {
+
+    // How much of the crossing time of the close approach distance passes between samples, and how precisely
+    // crossings are located
+    private static final double CROSSING_FRACTION = 0.5;
+    private static final double CONVERGENCE = 1e-6;
+    private static final int MAX_ITERATIONS = 100;
+    // How far back inside the escape radius a body must come before it counts again, so it cannot stop every step
+    private static final double RETURN_FRACTION = 0.99;
+
+    private double[] masses;
+    private final double closeApproachDistance;
+    private final double escapeRadius;
+    private final double boundary;
+    private boolean closeApproach;
+    // Bodies already beyond the escape radius, left out of the escape function until they come well back inside
+    private final boolean[] outside;
+
+    /**
+     * @param masses                The masses of the bodies in the state vector.
+     * @param closeApproachDistance The separation that counts as a close approach, or 0 to ignore close approaches.
+     * @param escapeRadius          The distance from the center of mass beyond which unbound bodies are removed, or 0.
+     * @param boundary              The half width of the box outside which bodies are removed, or 0.
+     * @param y                     The current state vector, to tell whether a close approach is already under way.
+     */
+    EncounterEvents(double[] masses, double closeApproachDistance, double escapeRadius, double boundary, double[] y) {
+        this.masses = masses;
+        this.closeApproachDistance = closeApproachDistance;
+        this.escapeRadius = escapeRadius;
+        this.boundary = boundary;
+        this.closeApproach = closeApproachDistance > 0 && minimumSeparation(y) < closeApproachDistance;
+        this.outside = new boolean[masses.length];
+        if (escapeRadius > 0) updateOutside(y);
+    }
+
+    /**
+     * @return Whether these are the thresholds the events were created with.
+     */
+    boolean hasThresholds(double closeApproachDistance, double escapeRadius, double boundary) {
+        return this.closeApproachDistance == closeApproachDistance && this.escapeRadius == escapeRadius && this.boundary == boundary;
+    }
+
+    /**
+     * Follows the bodies into a new order without measuring the state again, so whether a close approach is under way
+     * and which bodies count as outside stay as they were.
+     *
+     * @param masses The masses in the new order.
+     * @param order  For each new position, the old position of the body that moves there.
+     */
+    void reorder(double[] masses, int[] order) {
+        this.masses = masses;
+        boolean[] previous = outside.clone();
+        for (int k = 0; k < order.length; k++) outside[k] = previous[order[k]];
+    }
+
+    /**
+     * Replaces the event handlers of an integrator with the enabled ones of this instance. The close approach check
+     * interval is worked out from the state, so call this again whenever the integration restarts.
+     *
+     * @param y The state the integration starts from.
+     */
+    void registerWith(AbstractIntegrator integrator, double[] y) {
+        integrator.clearEventHandlers();
+        if (closeApproachDistance > 0) integrator.addEventHandler(new CloseApproach(), closeApproachCheckInterval(y), CONVERGENCE, MAX_ITERATIONS);
+        if (escapeRadius > 0) integrator.addEventHandler(new Escape(), Double.POSITIVE_INFINITY, CONVERGENCE, MAX_ITERATIONS);
+        if (boundary > 0) integrator.addEventHandler(new Boundary(), Double.POSITIVE_INFINITY, CONVERGENCE, MAX_ITERATIONS);
+    }
+
+    /**
+     * @return The time between samples of the close approach function, a fraction of the time the fastest pair would
+     * take to close the close approach distance. Infinite when nothing moves or attracts.
+     */
+    double closeApproachCheckInterval(double[] y) {
+        double[] center = centerOfMass(y);
+        double fastest = 0;
+        double heaviest = 0;
+        for (int i = 0; i < masses.length; i++) {
+            fastest = Math.max(fastest, Math.hypot(y[4 * i + 2] - center[2], y[4 * i + 3] - center[3]));
+            heaviest = Math.max(heaviest, masses[i]);
+        }
+        // Two of the fastest bodies head on, plus what two of the heaviest gain falling together to that separation
+        double closingSpeed = 2 * fastest + Math.sqrt(2 * DifferentialEquations.G * 2 * heaviest / closeApproachDistance);
+        return closingSpeed == 0 ? Double.POSITIVE_INFINITY : CROSSING_FRACTION * closeApproachDistance / closingSpeed;
+    }
+
+    /**
+     * @return True between the start and end of a close approach. This follows the direction of the last crossing, so
+     * it is right at the stop time, where the separation equals the close approach distance.
+     */
+    boolean inCloseApproach() {
+        return closeApproach;
+    }
+
+    /**
+     * @return True if an instance made now from the state would be in the same condition as this one, with the same
+     * close approach under way or not and the same bodies left out of the escape function, so integration can restart
+     * from the state alone.
+     */
+    boolean restartsAlike(double[] y) {
+        if (closeApproach != (closeApproachDistance > 0 && minimumSeparation(y) < closeApproachDistance)) return false;
+        if (escapeRadius == 0) return true;
+        double[] center = centerOfMass(y);
+        for (int i = 0; i < masses.length; i++) {
+            if (outside[i] != radius(y, i, center) > escapeRadius) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Marks the bodies that should leave the simulation: those outside the boundary box, and those beyond the escape
+     * radius with enough energy to never come back.
+     *
+     * @return One flag per body, or null if no body should be removed.
+     */
+    boolean[] findLostBodies(double[] y) {
+        boolean[] lost = null;
+        double[] center = escapeRadius > 0 ? centerOfMass(y) : null;
+        double totalMass = 0;
+        for (double mass : masses) totalMass += mass;
+        for (int i = 0; i < masses.length; i++) {
+            boolean outside = boundary > 0 && boxDistance(y, i) > boundary;
+            if (!outside && center != null && radius(y, i, center) > escapeRadius) {
+                // Specific orbital energy relative to the rest of the system, taken as a point mass at the center of mass
+                double vx = y[4 * i + 2] - center[2];
+                double vy = y[4 * i + 3] - center[3];
+                double energy = 0.5 * (vx * vx + vy * vy) - DifferentialEquations.G * (totalMass - masses[i]) / radius(y, i, center);
+                outside = energy > 0;
+            }
+            if (outside) {
+                if (lost == null) lost = new boolean[masses.length];
+                lost[i] = true;
+            }
+        }
+        return lost;
+    }
+
+    private double minimumSeparation(double[] y) {
+        int[] pair = closestPair(y);
+        if (pair == null) return Double.POSITIVE_INFINITY;
+        double dx = y[4 * pair[1]] - y[4 * pair[0]];
+        double dy = y[4 * pair[1] + 1] - y[4 * pair[0] + 1];
+        return Math.sqrt(dx * dx + dy * dy);
+    }
+
+    /**
+     * Pairs of massless test particles are skipped, since they do not interact, so a few bodies with mass among many
+     * test particles cost O(massive * N).
+     *
+     * @return The indices of the two closest bodies with a positive combined mass, lower index first, or null if there
+     * is no such pair.
+     */
+    int[] closestPair(double[] y) {
+        int first = -1;
+        int second = -1;
+        double minimum = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < masses.length; i++) {
+            if (masses[i] <= 0) continue;
+            for (int j = 0; j < masses.length; j++) {
+                // A pair of two bodies with mass is visited from its lower index only
+                if (j == i || (j < i && masses[j] > 0)) continue;
+                double dx = y[4 * j] - y[4 * i];
+                double dy = y[4 * j + 1] - y[4 * i + 1];
+                double distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared < minimum) {
+                    minimum = distanceSquared;
+                    first = Math.min(i, j);
+                    second = Math.max(i, j);
+                }
+            }
+        }
+        return first < 0 ? null : new int[]{first, second};
+    }
+
+    // {x, y, vx, vy} of the center of mass
+    private double[] centerOfMass(double[] y) {
+        double[] center = new double[4];
+        double totalMass = 0;
+        for (int i = 0; i < masses.length; i++) {
+            totalMass += masses[i];
+            for (int k = 0; k < 4; k++) center[k] += masses[i] * y[4 * i + k];
+        }
+        if (totalMass != 0) for (int k = 0; k < 4; k++) center[k] /= totalMass;
+        return center;
+    }
+
+    // Bodies well back inside the radius count again, and bodies beyond it that were still counted stop counting
+    private void updateOutside(double[] y) {
+        double[] center = centerOfMass(y);
+        for (int i = 0; i < masses.length; i++) {
+            double radius = radius(y, i, center);
+            if (outside[i] ? radius < RETURN_FRACTION * escapeRadius : radius > escapeRadius) outside[i] = !outside[i];
+        }
+    }
+
+    private static double radius(double[] y, int i, double[] center) {
+        return Math.hypot(y[4 * i] - center[0], y[4 * i + 1] - center[1]);
+    }
+
+    private static double boxDistance(double[] y, int i) {
+        return Math.max(Math.abs(y[4 * i]), Math.abs(y[4 * i + 1]));
+    }
+
+    // Base for handlers that stop the integration at every crossing and leave the state alone
+    private abstract static class StoppingHandler implements EventHandler {
+        @Override
+        public void init(double t0, double[] y0, double t) {
+        }
+
+        @Override
+        public Action eventOccurred(double t, double[] y, boolean increasing) {
+            return Action.STOP;
+        }
+
+        @Override
+        public void resetState(double t, double[] y) {
+        }
+    }
+
+    // Negative while some pair of bodies is within the close approach distance
+    private class CloseApproach extends StoppingHandler {
+        @Override
+        public double g(double t, double[] y) {
+            return minimumSeparation(y) - closeApproachDistance;
+        }
+
+        @Override
+        public Action eventOccurred(double t, double[] y, boolean increasing) {
+            closeApproach = !increasing;
+            return Action.STOP;
+        }
+    }
+
+    // Negative once any body that was inside the escape radius goes beyond it. Bodies already outside are left out,
+    // so a bound body lingering beyond the radius does not hide the next one to cross it.
+    private class Escape extends StoppingHandler {
+        @Override
+        public void init(double t0, double[] y0, double t) {
+            updateOutside(y0);
+        }
+
+        @Override
+        public double g(double t, double[] y) {
+            double[] center = centerOfMass(y);
+            double farthest = 0;
+            for (int i = 0; i < masses.length; i++) if (!outside[i]) farthest = Math.max(farthest, radius(y, i, center));
+            return escapeRadius - farthest;
+        }
+
+        @Override
+        public Action eventOccurred(double t, double[] y, boolean increasing) {
+            // The body that crossed is the farthest of those still counted, now on the radius
+            double[] center = centerOfMass(y);
+            int crossed = -1;
+            for (int i = 0; i < masses.length; i++) {
+                if (!outside[i] && (crossed < 0 || radius(y, i, center) > radius(y, crossed, center))) crossed = i;
+            }
+            if (crossed >= 0) outside[crossed] = true;
+            return Action.STOP;
+        }
+    }
+
+    // Positive while some body is outside the boundary box
+    private class Boundary extends StoppingHandler {
+        @Override
+        public double g(double t, double[] y) {
+            double farthest = 0;
+            for (int i = 0; i < masses.length; i++) farthest = Math.max(farthest, boxDistance(y, i));
+            return farthest - boundary;
+        }
+    }
+}
@@ -0,0 +1,218 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs many perturbed copies of one configuration in parallel, for stability maps and parameter sweeps.
+ * Members are independent and headless: they integrate flattened state vectors directly and never touch
+ * the UI. Each member stops as soon as it meets the ejection or collision criterion,
+ * and its summary is appended to the output file the moment it finishes.
+ * <br>
+ * The criteria come from the base settings: a pair closer than the close approach distance is a collision, and a body
+ * beyond the escape radius with enough energy to never come back, or outside the boundary, is an ejection. Each member
+ * registers {@link EncounterEvents} on its integrator, so a pass that only lasts part of a step is still caught. Members
+ * always integrate with Dormand-Prince, which can stop at those events.
+ */
+public class Ensemble {
+
+    /**
+     * Produces the initial state of one ensemble member from the base state.
+     */
+    public interface Perturbation {
+        /**
+         * @param baseState The flattened base state of the ensemble. Must not be modified.
+         * @param member    The index of the member being generated.
+         * @param random    A random source seeded for this member, so sweeps are reproducible.
+         * @return The flattened initial state of the member, same layout as the base state.
+         */
+        double[] perturb(double[] baseState, int member, Random random);
+    }
+
+    /**
+     * How a member run ended.
+     */
+    public enum Outcome {
+        SURVIVED,
+        EJECTION,
+        COLLISION,
+        FAILED,
+    }
+
+    /**
+     * The summary of one finished member.
+     */
+    public static class MemberResult {
+        final int member;
+        final Outcome outcome;
+        final double time;
+        final int body;
+        final double energyError;
+
+        MemberResult(int member, Outcome outcome, double time, int body, double energyError) {
+            this.member = member;
+            this.outcome = outcome;
+            this.time = time;
+            this.body = body;
+            this.energyError = energyError;
+        }
+
+        public int getMember() {
+            return member;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public double getTime() {
+            return time;
+        }
+
+        public double getEnergyError() {
+            return energyError;
+        }
+
+        String toCsv() {
+            return member + "," + outcome + "," + time + "," + body + "," + energyError;
+        }
+    }
+
+    private static final String CSV_HEADER = "member,outcome,time,body,energyError";
+
+    private final IntegrationSettings settings;
+    private final double[] baseState;
+    private final double[] masses;
+    private final Perturbation perturbation;
+    private final int members;
+    private double duration = 1000;
+    private long seed = 0;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private BufferedWriter writer;
+
+    /**
+     * @param settings     The base settings, for the close approach distance, escape radius and boundary that end a
+     *                     member early. Read once per member as it starts.
+     * @param baseState    The flattened state every member is perturbed from.
+     * @param masses       The mass of each body, shared by all members.
+     * @param perturbation Produces the initial state of each member.
+     * @param members      The number of members.
+     */
+    public Ensemble(IntegrationSettings settings, double[] baseState, double[] masses, Perturbation perturbation, int members) {
+        if (masses.length == 0) throw new IllegalArgumentException("Ensemble base state has no bodies");
+        if (members < 1) throw new IllegalArgumentException("Invalid number of ensemble members '" + members + "'");
+        this.settings = settings;
+        this.baseState = baseState;
+        this.masses = masses;
+        this.perturbation = perturbation;
+        this.members = members;
+    }
+
+    public void setDuration(double duration) {
+        this.duration = duration;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Runs every member on a work-stealing pool and streams one CSV line per member to the output file.
+     *
+     * @param output The file the summaries are written to. Overwritten if it exists.
+     * @return The summaries of all members, in member order.
+     * @throws IOException If the output file cannot be written.
+     */
+    public List<MemberResult> run(Path output) throws IOException {
+        MemberResult[] results = new MemberResult[members];
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try (BufferedWriter out = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            writer = out;
+            out.write(CSV_HEADER);
+            out.newLine();
+            List<ForkJoinTask<?>> tasks = new ArrayList<>(members);
+            for (int member = 0; member < members; member++) {
+                final int index = member;
+                tasks.add(pool.submit(() -> {
+                    results[index] = runMember(index, baseState, masses);
+                    write(results[index]);
+                }));
+            }
+            for (ForkJoinTask<?> task : tasks) task.join();
+        } finally {
+            writer = null;
+            pool.shutdown();
+        }
+
+        List<MemberResult> resultList = new ArrayList<>(members);
+        for (MemberResult result : results) resultList.add(result);
+        return resultList;
+    }
+
+    private synchronized void write(MemberResult result) {
+        try {
+            writer.write(result.toCsv());
+            writer.newLine();
+            writer.flush();
+        } catch (IOException e) {
+            System.err.println("Could not write ensemble result for member " + result.member + ": " + e.getMessage());
+        }
+    }
+
+    private MemberResult runMember(int member, double[] baseState, double[] masses) {
+        double[] state = perturbation.perturb(baseState, member, new Random(seed + member));
+        if (state.length != baseState.length) {
+            throw new IllegalArgumentException("Perturbed state length does not match base state length => " + state.length + " != " + baseState.length);
+        }
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        DormandPrince853Integrator integrator = new DormandPrince853Integrator(Math.pow(10, -10), 10000, 0.01, 0.0001);
+        EncounterEvents events = new EncounterEvents(masses, settings.getCloseApproachDistance(), settings.getEscapeRadius(),
+                settings.getBoundary(), state);
+        double initialEnergy = DifferentialEquations.totalEnergy(state, masses);
+        if (events.inCloseApproach()) {
+            return new MemberResult(member, Outcome.COLLISION, 0, events.closestPair(state)[0], 0);
+        }
+
+        double time = 0;
+        while (time < duration) {
+            try {
+                events.registerWith(integrator, state);
+                time = integrator.integrate(differentialEquations, time, state, duration, state);
+            } catch (Exception e) {
+                // The integrator gave up, almost always because of a near collision.
+                return new MemberResult(member, Outcome.FAILED, time, -1, energyError(state, masses, initialEnergy));
+            }
+            if (events.inCloseApproach()) {
+                return new MemberResult(member, Outcome.COLLISION, time, events.closestPair(state)[0], energyError(state, masses, initialEnergy));
+            }
+            boolean[] lost = events.findLostBodies(state);
+            if (lost != null) {
+                int ejected = 0;
+                while (!lost[ejected]) ejected++;
+                return new MemberResult(member, Outcome.EJECTION, time, ejected, energyError(state, masses, initialEnergy));
+            }
+            // Otherwise a bound body crossed the escape radius; carry on from the stop time
+        }
+        return new MemberResult(member, Outcome.SURVIVED, time, -1, energyError(state, masses, initialEnergy));
+    }
+
+    private static double energyError(double[] state, double[] masses, double initialEnergy) {
+        double energy = DifferentialEquations.totalEnergy(state, masses);
+        return initialEnergy == 0 ? Math.abs(energy) : Math.abs((energy - initialEnergy) / initialEnergy);
+    }
+}
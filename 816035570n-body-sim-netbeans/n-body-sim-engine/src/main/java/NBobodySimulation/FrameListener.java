@@ -0,0 +1,15 @@
+package NBobodySimulation;
+
+/**
+ * Receives the state of a running simulation after every step. Called on the simulation thread, so implementations
+ * must copy what they need and return quickly.
+ */
+public interface FrameListener {
+    public void onFrame(double time, double[] flatBodies);
+
+    /**
+     * Receives the whole-system statistics of the same frame, right after {@link #onFrame}.
+     */
+    public default void onStatistics(double time, SystemStatistics statistics) {
+    }
+}
@@ -0,0 +1,435 @@
+package NBobodySimulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A small embedded HTTP and WebSocket server that streams simulation frames to browsers, for watching headless runs.
+ * <br>
+ * {@code GET /} serves a canvas viewer page, which opens a WebSocket on {@code /frames}. The simulation thread only
+ * stores the latest frame in {@link #onFrame(double, double[])}; a single NIO selector thread does all encoding and
+ * socket work. Each client has at most one frame in flight: while a slow client is still receiving, newer frames
+ * replace each other and only the latest is sent once it catches up, so no client can hold up the simulation or the
+ * other clients.
+ * <br>
+ * Binary messages are little-endian: a type byte (0 = key frame, 1 = delta), frame number (int), time (double) and
+ * body count (int). A key frame follows with x and y of every body as floats. A delta follows with the number of
+ * changed bodies (int) and, for each, its index (int) and x and y (floats). Deltas are relative to the last frame sent
+ * to that client and only include bodies that moved more than {@link #setDeltaThreshold(double)}.
+ * <br>
+ * The server listens on loopback unless given another bind address, since anyone who can reach it can watch the run.
+ */
+public class FrameServer implements FrameListener, Closeable {
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int MAX_REQUEST_BYTES = 8192;
+    private static final byte KEY_FRAME = 0;
+    private static final byte DELTA_FRAME = 1;
+    private static final int HEADER_BYTES = 1 + 4 + 8 + 4;
+
+    /**
+     * One published frame. Immutable once published.
+     */
+    private static class Frame {
+        final int number;
+        final double time;
+        final float[] positions;
+
+        Frame(int number, double time, float[] positions) {
+            this.number = number;
+            this.time = time;
+            this.positions = positions;
+        }
+    }
+
+    /**
+     * Connection state of one client.
+     */
+    private static class Client {
+        ByteBuffer request = ByteBuffer.allocate(MAX_REQUEST_BYTES);
+        boolean webSocket;
+        boolean closeAfterWrite;
+        ByteBuffer outgoing;
+        // A pong or close frame waiting for the message in flight
+        ByteBuffer control;
+        ByteBuffer incoming = ByteBuffer.allocate(1024);
+        int lastFrameSent = -1;
+        float[] lastPositions;
+    }
+
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final AtomicReference<Frame> latestFrame = new AtomicReference<>();
+    private final Thread selectorThread;
+    private int frameCounter = 0;
+    private volatile double deltaThreshold = 0.5;
+
+    /**
+     * Binds the server to loopback, for browsers on this machine. Nothing is served until {@link #start()}.
+     *
+     * @param port The port to listen on, or 0 for any free port.
+     */
+    public FrameServer(int port) throws IOException {
+        this(InetAddress.getLoopbackAddress(), port);
+    }
+
+    /**
+     * Binds the server. Nothing is served until {@link #start()}.
+     *
+     * @param bindAddress The address to listen on, such as the wildcard address for browsers on other machines.
+     * @param port        The port to listen on, or 0 for any free port.
+     */
+    public FrameServer(InetAddress bindAddress, int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(bindAddress, port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        selectorThread = new Thread(this::serve, "frame-server");
+        selectorThread.setDaemon(true);
+    }
+
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
+    }
+
+    public InetAddress getAddress() {
+        return serverChannel.socket().getInetAddress();
+    }
+
+    /**
+     * Sets how far a body must move, in simulation units, before a delta includes it again.
+     */
+    public void setDeltaThreshold(double deltaThreshold) {
+        this.deltaThreshold = deltaThreshold;
+    }
+
+    public void start() {
+        selectorThread.start();
+    }
+
+    /**
+     * Publishes a frame. Only copies the positions, all networking happens on the server thread.
+     */
+    @Override
+    public void onFrame(double time, double[] flatBodies) {
+        float[] positions = new float[flatBodies.length / 2];
+        for (int i = 0; i < positions.length / 2; i++) {
+            positions[2 * i] = (float) flatBodies[4 * i];
+            positions[2 * i + 1] = (float) flatBodies[4 * i + 1];
+        }
+        latestFrame.set(new Frame(frameCounter++, time, positions));
+        selector.wakeup();
+    }
+
+    @Override
+    public void close() throws IOException {
+        selector.close();
+        serverChannel.close();
+        try {
+            selectorThread.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void serve() {
+        try {
+            while (selector.isOpen()) {
+                selector.select();
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) accept();
+                        if (key.isValid() && key.isReadable()) read(key);
+                        if (key.isValid() && key.isWritable()) write(key);
+                    } catch (IOException | CancelledKeyException e) {
+                        // A key is also cancelled when close() shuts the selector while it is being served
+                        disconnect(key);
+                    }
+                }
+                offerLatestFrame();
+            }
+        } catch (IOException | ClosedSelectorException | CancelledKeyException e) {
+            if (selector.isOpen()) System.err.println("Frame server stopped: " + e.getMessage());
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = serverChannel.accept();
+        if (channel == null) return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        channel.register(selector, SelectionKey.OP_READ, new Client());
+    }
+
+    private void disconnect(SelectionKey key) {
+        key.cancel();
+        try {
+            key.channel().close();
+        } catch (IOException e) {
+            // Already gone
+        }
+    }
+
+    // Hands the latest frame to every WebSocket client that has nothing in flight.
+    private void offerLatestFrame() throws IOException {
+        Frame frame = latestFrame.get();
+        if (frame == null) return;
+        for (SelectionKey key : selector.keys()) {
+            if (!key.isValid() || !(key.attachment() instanceof Client)) continue;
+            Client client = (Client) key.attachment();
+            if (!client.webSocket || client.closeAfterWrite || client.outgoing != null || client.lastFrameSent == frame.number) continue;
+            client.outgoing = webSocketMessage(encode(client, frame));
+            client.lastFrameSent = frame.number;
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        }
+    }
+
+    private void write(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        if (client.outgoing == null) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            return;
+        }
+        ((SocketChannel) key.channel()).write(client.outgoing);
+        if (client.outgoing.hasRemaining()) return;
+        client.outgoing = client.control;
+        client.control = null;
+        if (client.outgoing != null) return;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+        if (client.closeAfterWrite) disconnect(key);
+    }
+
+    private void read(SelectionKey key) throws IOException {
+        Client client = (Client) key.attachment();
+        SocketChannel channel = (SocketChannel) key.channel();
+        ByteBuffer buffer = client.webSocket ? client.incoming : client.request;
+        if (channel.read(buffer) < 0) {
+            disconnect(key);
+            return;
+        }
+        if (client.webSocket) readWebSocket(key, client);
+        else readRequest(key, client);
+    }
+
+    private void readRequest(SelectionKey key, Client client) throws IOException {
+        String request = new String(client.request.array(), 0, client.request.position(), StandardCharsets.ISO_8859_1);
+        int end = request.indexOf("\r\n\r\n");
+        if (end < 0) {
+            if (!client.request.hasRemaining()) respond(key, client, "431 Request Header Fields Too Large", "text/plain", "");
+            return;
+        }
+
+        String[] lines = request.substring(0, end).split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        String path = requestLine.length > 1 ? requestLine[1] : "";
+        String webSocketKey = null;
+        for (String line : lines) {
+            int colon = line.indexOf(':');
+            if (colon > 0 && line.substring(0, colon).trim().equalsIgnoreCase("Sec-WebSocket-Key")) webSocketKey = line.substring(colon + 1).trim();
+        }
+
+        if (path.equals("/frames") && webSocketKey != null) {
+            String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                    + "Upgrade: websocket\r\n"
+                    + "Connection: Upgrade\r\n"
+                    + "Sec-WebSocket-Accept: " + acceptKey(webSocketKey) + "\r\n\r\n";
+            client.outgoing = ByteBuffer.wrap(response.getBytes(StandardCharsets.ISO_8859_1));
+            client.webSocket = true;
+            client.request = null;
+            key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        } else if (path.equals("/") || path.equals("/index.html")) {
+            respond(key, client, "200 OK", "text/html; charset=utf-8", VIEWER_PAGE);
+        } else {
+            respond(key, client, "404 Not Found", "text/plain", "Not found");
+        }
+    }
+
+    private void respond(SelectionKey key, Client client, String status, String contentType, String body) {
+        byte[] content = body.getBytes(StandardCharsets.UTF_8);
+        String header = "HTTP/1.1 " + status + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + content.length + "\r\nConnection: close\r\n\r\n";
+        byte[] head = header.getBytes(StandardCharsets.ISO_8859_1);
+        client.outgoing = ByteBuffer.allocate(head.length + content.length).put(head).put(content);
+        client.outgoing.flip();
+        client.closeAfterWrite = true;
+        key.interestOps(SelectionKey.OP_WRITE);
+    }
+
+    private static String acceptKey(String webSocketKey) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((webSocketKey + WEBSOCKET_GUID).getBytes(StandardCharsets.ISO_8859_1));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    // Viewers only send close and ping frames that matter: pings are answered with a pong carrying the same payload
+    // and a close is echoed before disconnecting. Everything else is discarded.
+    private void readWebSocket(SelectionKey key, Client client) {
+        ByteBuffer in = client.incoming;
+        in.flip();
+        while (in.remaining() >= 2) {
+            in.mark();
+            int opcode = in.get() & 0x0F;
+            int second = in.get() & 0xFF;
+            long length = second & 0x7F;
+            if (length == 126) {
+                if (in.remaining() < 2) {
+                    in.reset();
+                    break;
+                }
+                length = in.getShort() & 0xFFFF;
+            } else if (length == 127) {
+                if (in.remaining() < 8) {
+                    in.reset();
+                    break;
+                }
+                length = in.getLong();
+            }
+            int maskBytes = (second & 0x80) != 0 ? 4 : 0;
+            if (length > in.capacity()) {
+                disconnect(key);
+                return;
+            }
+            if (in.remaining() < maskBytes + length) {
+                in.reset();
+                break;
+            }
+            byte[] mask = new byte[maskBytes];
+            in.get(mask);
+            if (opcode == 0x9 && !client.closeAfterWrite) {
+                // Control frames carry at most 125 bytes
+                if (length > 125) {
+                    disconnect(key);
+                    return;
+                }
+                byte[] payload = new byte[(int) length];
+                in.get(payload);
+                for (int i = 0; i < payload.length && maskBytes > 0; i++) payload[i] ^= mask[i % 4];
+                sendControl(key, client, (byte) 0x8A, payload);
+            } else {
+                in.position(in.position() + (int) length);
+            }
+            if (opcode == 0x8 && !client.closeAfterWrite) {
+                client.closeAfterWrite = true;
+                sendControl(key, client, (byte) 0x88, new byte[0]);
+            }
+        }
+        in.compact();
+    }
+
+    // Sends a control frame now, or right after the message in flight. A newer pong replaces one still waiting.
+    private static void sendControl(SelectionKey key, Client client, byte opcode, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(2 + payload.length);
+        frame.put(opcode).put((byte) payload.length).put(payload);
+        frame.flip();
+        if (client.outgoing == null) {
+            client.outgoing = frame;
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        } else {
+            client.control = frame;
+        }
+    }
+
+    private ByteBuffer encode(Client client, Frame frame) {
+        float[] positions = frame.positions;
+        int count = positions.length / 2;
+        boolean keyFrame = client.lastPositions == null || client.lastPositions.length != positions.length;
+        ByteBuffer payload;
+        if (!keyFrame) {
+            float threshold = (float) deltaThreshold;
+            int changed = 0;
+            for (int i = 0; i < count; i++) {
+                if (moved(client.lastPositions, positions, i, threshold)) changed++;
+            }
+            // A delta entry is 12 bytes against 8 for a key frame entry
+            keyFrame = changed * 12 > count * 8;
+            if (!keyFrame) {
+                payload = header(DELTA_FRAME, frame, count, 4 + changed * 12);
+                payload.putInt(changed);
+                for (int i = 0; i < count; i++) {
+                    if (!moved(client.lastPositions, positions, i, threshold)) continue;
+                    payload.putInt(i).putFloat(positions[2 * i]).putFloat(positions[2 * i + 1]);
+                    client.lastPositions[2 * i] = positions[2 * i];
+                    client.lastPositions[2 * i + 1] = positions[2 * i + 1];
+                }
+                payload.flip();
+                return payload;
+            }
+        }
+        payload = header(KEY_FRAME, frame, count, count * 8);
+        for (float position : positions) payload.putFloat(position);
+        client.lastPositions = positions.clone();
+        payload.flip();
+        return payload;
+    }
+
+    private static boolean moved(float[] last, float[] current, int i, float threshold) {
+        return Math.abs(current[2 * i] - last[2 * i]) > threshold || Math.abs(current[2 * i + 1] - last[2 * i + 1]) > threshold;
+    }
+
+    private static ByteBuffer header(byte type, Frame frame, int count, int bodyBytes) {
+        ByteBuffer payload = ByteBuffer.allocate(HEADER_BYTES + bodyBytes).order(ByteOrder.LITTLE_ENDIAN);
+        payload.put(type).putInt(frame.number).putDouble(frame.time).putInt(count);
+        return payload;
+    }
+
+    // Wraps a payload in an unmasked binary WebSocket frame.
+    private static ByteBuffer webSocketMessage(ByteBuffer payload) {
+        int length = payload.remaining();
+        int headerLength = length < 126 ? 2 : length <= 0xFFFF ? 4 : 10;
+        ByteBuffer message = ByteBuffer.allocate(headerLength + length).order(ByteOrder.BIG_ENDIAN);
+        message.put((byte) 0x82);
+        if (length < 126) {
+            message.put((byte) length);
+        } else if (length <= 0xFFFF) {
+            message.put((byte) 126).putShort((short) length);
+        } else {
+            message.put((byte) 127).putLong(length);
+        }
+        message.put(payload);
+        message.flip();
+        return message;
+    }
+
+    private static final String VIEWER_PAGE = "<!DOCTYPE html>\n"
+            + "<html><head><title>N-Body Simulation</title></head>\n"
+            + "<body style=\"margin:0;background:#fff\"><canvas id=\"c\"></canvas><script>\n"
+            + "const c = document.getElementById('c'), g = c.getContext('2d');\n"
+            + "c.width = innerWidth; c.height = innerHeight;\n"
+            + "let pos = new Float32Array(0), scale = 0;\n"
+            + "const ws = new WebSocket('ws://' + location.host + '/frames');\n"
+            + "ws.binaryType = 'arraybuffer';\n"
+            + "ws.onmessage = e => {\n"
+            + "  const v = new DataView(e.data), type = v.getUint8(0), count = v.getInt32(13, true);\n"
+            + "  if (type === 0) { pos = new Float32Array(e.data.slice(17, 17 + count * 8)); }\n"
+            + "  else { const n = v.getInt32(17, true); for (let k = 0; k < n; k++) { const o = 21 + k * 12, i = v.getInt32(o, true);\n"
+            + "    pos[2 * i] = v.getFloat32(o + 4, true); pos[2 * i + 1] = v.getFloat32(o + 8, true); } }\n"
+            + "  if (!scale) { let m = 1; for (const p of pos) m = Math.max(m, Math.abs(p)); scale = Math.min(c.width, c.height) / (2.4 * m); }\n"
+            + "  g.clearRect(0, 0, c.width, c.height); g.fillStyle = '#000';\n"
+            + "  for (let i = 0; i < pos.length; i += 2) g.fillRect(c.width / 2 + pos[i] * scale - 1, c.height / 2 - pos[i + 1] * scale - 1, 3, 3);\n"
+            + "};\n"
+            + "</script></body></html>\n";
+}
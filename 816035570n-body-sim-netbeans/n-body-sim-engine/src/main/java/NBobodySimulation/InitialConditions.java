@@ -0,0 +1,302 @@
+package NBobodySimulation;
+
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Procedural initial conditions for large systems, generated in parallel straight into a flattened state vector and a
+ * mass array, in the layout used by {@link DifferentialEquations}.
+ * <br>
+ * Bodies are generated in fixed-size chunks, and each chunk draws from its own random stream derived from the seed and
+ * the chunk index. The same seed therefore gives the same bodies regardless of how many threads do the work.
+ * <br>
+ * Every generator returns its system in the center of mass frame, so it neither drifts nor sits off the origin.
+ * <br>
+ * The engine is two dimensional, so spherical distributions are sampled in 3D and projected onto the x-y plane.
+ */
+public class InitialConditions {
+
+    private static final int CHUNK_SIZE = 4096;
+
+    private final double[] masses;
+    private final double[] flatBodies;
+
+    private InitialConditions(int count) {
+        this.masses = new double[count];
+        this.flatBodies = new double[4 * count];
+    }
+
+    /**
+     * Wraps a hand-made system, such as a preset.
+     *
+     * @param flatBodies The flattened state, four values per body. Copied.
+     * @param masses     The mass of each body. Copied.
+     */
+    public static InitialConditions fromState(double[] flatBodies, double[] masses) {
+        if (flatBodies.length != 4 * masses.length) throw new IllegalArgumentException("Expected " + 4 * masses.length + " state values, got " + flatBodies.length);
+        InitialConditions conditions = new InitialConditions(masses.length);
+        System.arraycopy(flatBodies, 0, conditions.flatBodies, 0, flatBodies.length);
+        System.arraycopy(masses, 0, conditions.masses, 0, masses.length);
+        return conditions;
+    }
+
+    public double[] getMasses() {
+        return masses;
+    }
+
+    public double[] getFlatBodies() {
+        return flatBodies;
+    }
+
+    public int size() {
+        return masses.length;
+    }
+
+    /**
+     * Copies the bodies into an off-heap store of the same size.
+     */
+    public void writeTo(ParticleStore store) {
+        store.copyFrom(flatBodies, masses);
+    }
+
+    /**
+     * Fills bodies {@code from} (inclusive) to {@code to} (exclusive).
+     */
+    private interface ChunkGenerator {
+        void generate(int from, int to, SplittableRandom random);
+    }
+
+    private static void generate(int from, int count, long seed, ChunkGenerator generator) {
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            SplittableRandom random = new SplittableRandom(seed * 0x9E3779B97F4A7C15L + chunk);
+            int start = from + chunk * CHUNK_SIZE;
+            generator.generate(start, Math.min(start + CHUNK_SIZE, from + count), random);
+        });
+    }
+
+    /**
+     * A Plummer sphere sampled in virial equilibrium in 3D and projected onto the plane. The projection is only
+     * roughly in equilibrium in the two dimensional engine, and settles after a few crossing times.
+     *
+     * @param count       The number of bodies.
+     * @param totalMass   The total mass, shared equally.
+     * @param scaleRadius The Plummer scale radius.
+     * @param seed        The random seed.
+     */
+    public static InitialConditions plummerSphere(int count, double totalMass, double scaleRadius, long seed) {
+        InitialConditions conditions = new InitialConditions(count);
+        double bodyMass = totalMass / count;
+        double velocityScale = Math.sqrt(DifferentialEquations.G * totalMass / scaleRadius);
+        generate(0, count, seed, (from, to, random) -> {
+            for (int i = from; i < to; i++) {
+                conditions.masses[i] = bodyMass;
+                // Radius from the inverse cumulative mass profile, cut off at 99.9% of the mass
+                double u = 1e-10 + random.nextDouble() * 0.999;
+                double radius = scaleRadius / Math.sqrt(Math.pow(u, -2.0 / 3.0) - 1);
+                double[] direction = isotropicDirection(random);
+                conditions.flatBodies[4 * i] = radius * direction[0];
+                conditions.flatBodies[4 * i + 1] = radius * direction[1];
+
+                // Speed as a fraction of the local escape speed, by rejection from q^2 (1 - q^2)^3.5 (Aarseth, Henon & Wielen 1974)
+                double q;
+                do {
+                    q = random.nextDouble();
+                } while (random.nextDouble() * 0.1 > q * q * Math.pow(1 - q * q, 3.5));
+                double escapeSpeed = Math.sqrt(2) * velocityScale * Math.pow(1 + radius * radius / (scaleRadius * scaleRadius), -0.25);
+                double[] velocityDirection = isotropicDirection(random);
+                conditions.flatBodies[4 * i + 2] = q * escapeSpeed * velocityDirection[0];
+                conditions.flatBodies[4 * i + 3] = q * escapeSpeed * velocityDirection[1];
+            }
+        });
+        conditions.moveToCenterOfMassFrame();
+        return conditions;
+    }
+
+    /**
+     * A uniform sphere of nearly still bodies, projected onto the plane. It collapses in about one free-fall time and
+     * goes through many close encounters at the moment of maximum collapse.
+     * <br>
+     * Bodies that start exactly at rest fall straight into each other, which no integrator survives, so each gets a
+     * small random velocity.
+     *
+     * @param count       The number of bodies.
+     * @param totalMass   The total mass, shared equally.
+     * @param radius      The radius of the sphere.
+     * @param warmth      The largest random speed, as a fraction of the circular speed at the edge of the sphere.
+     * @param seed        The random seed.
+     */
+    public static InitialConditions coldCollapse(int count, double totalMass, double radius, double warmth, long seed) {
+        InitialConditions conditions = new InitialConditions(count);
+        double bodyMass = totalMass / count;
+        double maxSpeed = warmth * Math.sqrt(DifferentialEquations.G * totalMass / radius);
+        generate(0, count, seed, (from, to, random) -> {
+            for (int i = from; i < to; i++) {
+                conditions.masses[i] = bodyMass;
+                double r = radius * Math.cbrt(random.nextDouble());
+                double[] direction = isotropicDirection(random);
+                conditions.flatBodies[4 * i] = r * direction[0];
+                conditions.flatBodies[4 * i + 1] = r * direction[1];
+                double speed = maxSpeed * random.nextDouble();
+                double[] velocityDirection = isotropicDirection(random);
+                conditions.flatBodies[4 * i + 2] = speed * velocityDirection[0];
+                conditions.flatBodies[4 * i + 3] = speed * velocityDirection[1];
+            }
+        });
+        conditions.moveToCenterOfMassFrame();
+        return conditions;
+    }
+
+    /**
+     * An exponential disk on circular orbits, rotating counterclockwise, optionally around a central mass at index 0.
+     *
+     * @param count        The number of disk bodies, not counting the central mass.
+     * @param diskMass     The total mass of the disk, shared equally.
+     * @param scaleLength  The exponential scale length of the surface density.
+     * @param centralMass  The mass of a central body, or 0 for none.
+     * @param seed         The random seed.
+     */
+    public static InitialConditions exponentialDisk(int count, double diskMass, double scaleLength, double centralMass, long seed) {
+        int offset = centralMass > 0 ? 1 : 0;
+        InitialConditions conditions = new InitialConditions(count + offset);
+        if (offset == 1) conditions.masses[0] = centralMass;
+        fillDisk(conditions, offset, count, diskMass, scaleLength, centralMass, seed);
+        conditions.moveToCenterOfMassFrame();
+        return conditions;
+    }
+
+    private static void fillDisk(InitialConditions conditions, int from, int count, double diskMass, double scaleLength, double centralMass, long seed) {
+        double bodyMass = diskMass / count;
+        generate(from, count, seed, (start, end, random) -> {
+            for (int i = start; i < end; i++) {
+                conditions.masses[i] = bodyMass;
+                // The radius of an exponential disk follows a gamma distribution of shape 2
+                double radius = -scaleLength * Math.log((1 - random.nextDouble()) * (1 - random.nextDouble()));
+                double angle = 2 * Math.PI * random.nextDouble();
+                double enclosed = centralMass + diskMass * (1 - (1 + radius / scaleLength) * Math.exp(-radius / scaleLength));
+                double speed = radius > 0 ? Math.sqrt(DifferentialEquations.G * enclosed / radius) : 0;
+                conditions.flatBodies[4 * i] = radius * Math.cos(angle);
+                conditions.flatBodies[4 * i + 1] = radius * Math.sin(angle);
+                conditions.flatBodies[4 * i + 2] = -speed * Math.sin(angle);
+                conditions.flatBodies[4 * i + 3] = speed * Math.cos(angle);
+            }
+        });
+    }
+
+    /**
+     * A ring of bodies on circular Kepler orbits around a central mass at index 0.
+     *
+     * @param count        The number of ring bodies, not counting the central mass.
+     * @param centralMass  The mass of the central body.
+     * @param ringMass     The total mass of the ring, shared equally. Use 0 for massless ring particles.
+     * @param innerRadius  The inner edge of the ring.
+     * @param outerRadius  The outer edge of the ring.
+     * @param seed         The random seed.
+     */
+    public static InitialConditions keplerRing(int count, double centralMass, double ringMass, double innerRadius, double outerRadius, long seed) {
+        InitialConditions conditions = new InitialConditions(count + 1);
+        conditions.masses[0] = centralMass;
+        double bodyMass = ringMass / count;
+        generate(1, count, seed, (from, to, random) -> {
+            for (int i = from; i < to; i++) {
+                conditions.masses[i] = bodyMass;
+                // Uniform in area between the two radii
+                double radius = Math.sqrt(innerRadius * innerRadius + random.nextDouble() * (outerRadius * outerRadius - innerRadius * innerRadius));
+                double angle = 2 * Math.PI * random.nextDouble();
+                double speed = Math.sqrt(DifferentialEquations.G * centralMass / radius);
+                conditions.flatBodies[4 * i] = radius * Math.cos(angle);
+                conditions.flatBodies[4 * i + 1] = radius * Math.sin(angle);
+                conditions.flatBodies[4 * i + 2] = -speed * Math.sin(angle);
+                conditions.flatBodies[4 * i + 3] = speed * Math.cos(angle);
+            }
+        });
+        conditions.moveToCenterOfMassFrame();
+        return conditions;
+    }
+
+    /**
+     * A few planets in a field of massless debris, all on circular Kepler orbits around a central mass at index 0. The
+     * planets take indices 1 to {@code planets} and the debris follows; the debris feels the central mass and the
+     * planets but pulls on nothing, so it runs as test particles.
+     *
+     * @param planets      The number of planets.
+     * @param debris       The number of debris particles.
+     * @param centralMass  The mass of the central body.
+     * @param planetMass   The mass of each planet.
+     * @param innerRadius  The inner edge of the orbits.
+     * @param outerRadius  The outer edge of the orbits.
+     * @param seed         The random seed.
+     */
+    public static InitialConditions debrisField(int planets, int debris, double centralMass, double planetMass,
+                                                double innerRadius, double outerRadius, long seed) {
+        InitialConditions conditions = keplerRing(planets + debris, centralMass, 0, innerRadius, outerRadius, seed);
+        for (int i = 1; i <= planets; i++) conditions.masses[i] = planetMass;
+        conditions.moveToCenterOfMassFrame();
+        return conditions;
+    }
+
+    /**
+     * Two exponential disk galaxies, each around a central mass, on a collision course. The first galaxy's central
+     * mass is at index 0 and the second's at index {@code countPerGalaxy + 1}.
+     *
+     * @param countPerGalaxy The number of disk bodies in each galaxy.
+     * @param diskMass       The disk mass of each galaxy.
+     * @param scaleLength    The disk scale length of each galaxy.
+     * @param centralMass    The central mass of each galaxy.
+     * @param separation     The initial distance between the galaxy centers, along x.
+     * @param impactParameter The offset between the galaxies, along y.
+     * @param approachSpeed  The relative speed of the galaxies, along x.
+     * @param seed           The random seed.
+     */
+    public static InitialConditions collidingGalaxies(int countPerGalaxy, double diskMass, double scaleLength, double centralMass,
+                                                      double separation, double impactParameter, double approachSpeed, long seed) {
+        int perGalaxy = countPerGalaxy + 1;
+        InitialConditions conditions = new InitialConditions(2 * perGalaxy);
+        conditions.masses[0] = centralMass;
+        conditions.masses[perGalaxy] = centralMass;
+        fillDisk(conditions, 1, countPerGalaxy, diskMass, scaleLength, centralMass, seed);
+        fillDisk(conditions, perGalaxy + 1, countPerGalaxy, diskMass, scaleLength, centralMass, seed + 1);
+
+        double[][] offsets = {
+                {-separation / 2, -impactParameter / 2, approachSpeed / 2, 0},
+                {separation / 2, impactParameter / 2, -approachSpeed / 2, 0},
+        };
+        for (int galaxy = 0; galaxy < 2; galaxy++) {
+            double[] offset = offsets[galaxy];
+            int from = galaxy * perGalaxy;
+            // The second galaxy counter-rotates, for a more interesting encounter
+            boolean flip = galaxy == 1;
+            IntStream.range(from, from + perGalaxy).parallel().forEach(i -> {
+                if (flip) {
+                    conditions.flatBodies[4 * i + 1] = -conditions.flatBodies[4 * i + 1];
+                    conditions.flatBodies[4 * i + 3] = -conditions.flatBodies[4 * i + 3];
+                }
+                for (int k = 0; k < 4; k++) conditions.flatBodies[4 * i + k] += offset[k];
+            });
+        }
+        conditions.moveToCenterOfMassFrame();
+        return conditions;
+    }
+
+    private static double[] isotropicDirection(SplittableRandom random) {
+        double cosTheta = 2 * random.nextDouble() - 1;
+        double sinTheta = Math.sqrt(1 - cosTheta * cosTheta);
+        double phi = 2 * Math.PI * random.nextDouble();
+        return new double[]{sinTheta * Math.cos(phi), sinTheta * Math.sin(phi), cosTheta};
+    }
+
+    // Removes any net drift, so the system stays centered on the origin.
+    private void moveToCenterOfMassFrame() {
+        double totalMass = 0;
+        double[] center = new double[4];
+        for (int i = 0; i < masses.length; i++) {
+            totalMass += masses[i];
+            for (int k = 0; k < 4; k++) center[k] += masses[i] * flatBodies[4 * i + k];
+        }
+        if (totalMass == 0) return;
+        for (int k = 0; k < 4; k++) center[k] /= totalMass;
+        IntStream.range(0, masses.length).parallel().forEach(i -> {
+            for (int k = 0; k < 4; k++) flatBodies[4 * i + k] -= center[k];
+        });
+    }
+}
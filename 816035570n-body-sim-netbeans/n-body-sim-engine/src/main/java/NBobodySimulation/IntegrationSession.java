@@ -0,0 +1,825 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.exception.NumberIsTooLargeException;
+import org.apache.commons.math3.exception.NumberIsTooSmallException;
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * One long-running integration of the whole simulation, on its own thread, sampled at frame times.
+ * <br>
+ * The integrator runs over long segments, so its adaptive step size is set by the accuracy it needs and not by the
+ * frame rate. After each step a {@link StepHandler} reads every frame time the step covered from the integrator's
+ * dense output, which costs a polynomial evaluation and no force evaluations. Frames wait in a short queue, so the
+ * integrator stays a few frames ahead of the display and pauses when the display pauses.
+ * <br>
+ * Integration only restarts at segment ends, and when an {@link EncounterEvents} handler stops it to regularize a
+ * close pair or remove bodies. While two bodies are within the close approach distance, the closest pair is integrated
+ * in the regularized coordinates of {@link RegularizedPair} until it separates again. On the particle mesh, whose
+ * forces stay finite, close approaches are not regularized.
+ * <br>
+ * With {@link IntegrationSettings#useWisdomHolman()} the segments are mapped with {@link WisdomHolman} instead, which
+ * steps exactly onto the frame times and needs no dense output.
+ * <br>
+ * With a {@link TrajectoryCache}, a session whose start was run before replays the cached frames up to the last
+ * checkpoint, an exact segment start, then integrates on from there and appends the new frames, until bodies are
+ * added, removed or lost, or a setting changes. A resumed run gives the same frames as a fresh one.
+ * <br>
+ * Bodies can be added, removed and edited while the session runs by submitting {@link BodyCommand}s from any thread.
+ * The integration stops at the next frame, applies them and carries on from there, so nothing restarts.
+ * <br>
+ * With a reorder interval, the bodies are sorted along a {@link MortonOrder} curve every few segments, so bodies close
+ * in space stay close in the state vector as they move. A reorder is published as a body change whose ids are the same
+ * bodies in the new order.
+ * <br>
+ * {@link FrameListener}s, such as a {@link FrameServer}, see every drawable frame on the session thread as it is queued,
+ * whether or not anyone takes it from the queue.
+ */
+class IntegrationSession {
+
+    // Frames computed ahead of the display
+    private static final int FRAME_BUFFER = 4;
+    // Length of one integrate call, in frames. Restarts are cheap at this spacing and let the state be recentered.
+    private static final int SEGMENT_FRAMES = 100;
+    // A regularized pair goes back to plain integration beyond this multiple of the close approach distance, so a pair
+    // hovering around the distance does not switch back and forth
+    static final double SEPARATED_FACTOR = 1.5;
+    // Tolerances of the regularized integration, which also carries the pair's orbital energy
+    static final double REGULARIZED_ABSOLUTE_TOLERANCE = 1e-6;
+    static final double REGULARIZED_RELATIVE_TOLERANCE = 1e-10;
+    private static final double MIN_STEP = 1e-10;
+    private static final double MAX_STEP = 10000;
+    private static final double ABSOLUTE_TOLERANCE = 0.01;
+    private static final double RELATIVE_TOLERANCE = 0.0001;
+    // Everything about the integration that decides the frames but is not a setting. Bump the version whenever the
+    // frames of the same settings change, so old cache entries are no longer found.
+    private static final String CACHE_INTEGRATOR = "v3 DormandPrince853 " + MIN_STEP + " " + MAX_STEP + " " + ABSOLUTE_TOLERANCE
+            + " " + RELATIVE_TOLERANCE + " regularized " + REGULARIZED_ABSOLUTE_TOLERANCE + " " + REGULARIZED_RELATIVE_TOLERANCE
+            + " " + SEPARATED_FACTOR + " segment " + SEGMENT_FRAMES;
+
+    /**
+     * The state of the simulation at one time. A body change frame records bodies leaving, joining or being edited,
+     * and is not meant to be drawn; the end frame means the session has stopped.
+     */
+    static class Frame {
+        private final double time;
+        private final double[] state;
+        private final double[] derivatives;
+        private final double[] masses;
+        private final int[] ids;
+        private final boolean[] removed;
+        private final boolean bodyChange;
+
+        private Frame(double time, double[] state, double[] derivatives, double[] masses, int[] ids, boolean[] removed, boolean bodyChange) {
+            this.time = time;
+            this.state = state;
+            this.derivatives = derivatives;
+            this.masses = masses;
+            this.ids = ids;
+            this.removed = removed;
+            this.bodyChange = bodyChange;
+        }
+
+        double getTime() {
+            return time;
+        }
+
+        double[] getState() {
+            return state;
+        }
+
+        /**
+         * @return The time derivative of the state, so {@code derivatives[4 * i + 2]} and {@code [4 * i + 3]} are the
+         * acceleration of body i.
+         */
+        double[] getDerivatives() {
+            return derivatives;
+        }
+
+        double[] getMasses() {
+            return masses;
+        }
+
+        /**
+         * @return The id of each body, in state vector order. The same array is shared by all frames between two body
+         * changes.
+         */
+        int[] getIds() {
+            return ids;
+        }
+
+        /**
+         * @return One flag per body as they were before this frame, marking those that escaped or left the boundary, or
+         * null.
+         */
+        boolean[] getRemoved() {
+            return removed;
+        }
+
+        boolean isBodyChange() {
+            return bodyChange;
+        }
+
+        boolean isEnd() {
+            return state == null;
+        }
+    }
+
+    // Thrown from the step handler to abandon the integration once the session is closed
+    private static class SessionClosedException extends RuntimeException {
+    }
+
+    // Thrown from the step handler to stop the integration at a frame, once the session has moved to that frame
+    private static class CommandsPendingException extends RuntimeException {
+    }
+
+    private final IntegrationSettings settings;
+    private final DormandPrince853Integrator integrator;
+    private final BlockingQueue<Frame> frames = new ArrayBlockingQueue<>(FRAME_BUFFER);
+    private final Queue<BodyCommand> commands = new ConcurrentLinkedQueue<>();
+    private final List<FrameListener> frameListeners = new CopyOnWriteArrayList<>();
+    private final Thread thread;
+    private volatile boolean closed;
+
+    private DifferentialEquations differentialEquations;
+    private EncounterEvents events;
+    private double[] masses;
+    private int[] ids;
+    private double[] state;
+    private double time;
+    private double nextFrameTime;
+    private TrajectoryCache cache;
+    private TrajectoryCache.Entry recording;
+    private double[] recordedParameters;
+    // For each body, its position in the order the cache entry started with, or null while they are still in that order
+    private int[] recordedOrder;
+    private int reorderInterval;
+    private int segmentsSinceReorder;
+
+    /**
+     * @param settings              Read while running, for the frame interval and the event thresholds.
+     * @param differentialEquations The equations for the current bodies. Owned by the session from now on.
+     * @param masses                The masses of the current bodies.
+     * @param state                 The flattened state at the start time. Owned by the session from now on.
+     * @param startTime             The simulation time of the state.
+     */
+    IntegrationSession(IntegrationSettings settings, DifferentialEquations differentialEquations, double[] masses, double[] state, double startTime) {
+        this.settings = settings;
+        this.differentialEquations = differentialEquations;
+        this.masses = masses;
+        this.state = state;
+        this.time = startTime;
+        this.nextFrameTime = startTime + frameInterval();
+        ids = new int[masses.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = i;
+        integrator = new RecordedDormandPrince853Integrator(MIN_STEP, MAX_STEP, ABSOLUTE_TOLERANCE, RELATIVE_TOLERANCE);
+        integrator.addStepHandler(new FrameSampler());
+        createEvents();
+        thread = new Thread(this::run, "Integration session");
+        thread.setDaemon(true);
+    }
+
+    /**
+     * Replays and records the trajectory in a cache. Must be set before {@link #start()}.
+     */
+    void setCache(TrajectoryCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Names the bodies for {@link BodyCommand}s and {@link Frame#getIds()}; by default they are numbered from 0. Must be
+     * set before {@link #start()}. Ids must be unique, since commands find bodies by them.
+     */
+    void setIds(int[] ids) {
+        if (ids.length != masses.length) throw new IllegalArgumentException(ids.length + " ids for " + masses.length + " bodies");
+        Set<Integer> distinct = new HashSet<>();
+        for (int id : ids) {
+            if (!distinct.add(id)) throw new IllegalArgumentException("Duplicate body id '" + id + "'");
+        }
+        this.ids = ids.clone();
+    }
+
+    /**
+     * Sorts the bodies along a Morton curve every this many segments of {@value #SEGMENT_FRAMES} frames, or never for 0.
+     * Only pays off for large systems on the particle mesh. Part of the trajectory cache key, since the order changes the
+     * sums. Must be set before {@link #start()}.
+     */
+    void setReorderInterval(int segments) {
+        if (segments < 0) throw new IllegalArgumentException("Invalid reorder interval '" + segments + "'");
+        this.reorderInterval = segments;
+    }
+
+    /**
+     * Passes every drawable frame to a listener, on the session thread. Only {@link FrameListener#onFrame} is called,
+     * since the session does not compute statistics.
+     */
+    void addFrameListener(FrameListener listener) {
+        frameListeners.add(listener);
+    }
+
+    void removeFrameListener(FrameListener listener) {
+        frameListeners.remove(listener);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues a change to the bodies, applied at the next frame. A body change frame follows once it is applied.
+     */
+    void submit(BodyCommand command) {
+        commands.add(command);
+    }
+
+    /**
+     * @return The key under which a session with these settings caches the trajectory from this state.
+     */
+    static String cacheKey(IntegrationSettings settings, DifferentialEquations differentialEquations, int reorderInterval,
+                           double[] masses, double[] state, double startTime) {
+        return TrajectoryCache.key(CACHE_INTEGRATOR, cacheParameters(settings, differentialEquations, reorderInterval), masses, state, startTime);
+    }
+
+    // The body order changes the sums, so the reorder interval decides the frames as much as the settings do
+    private static double[] cacheParameters(IntegrationSettings settings, DifferentialEquations differentialEquations, int reorderInterval) {
+        return new double[]{settings.getFrameInterval(), settings.recenterOnCenterOfMass() ? 1 : 0, settings.getCloseApproachDistance(),
+                settings.getEscapeRadius(), settings.getBoundary(), settings.useWisdomHolman() ? 1 : 0,
+                differentialEquations.isSinglePrecision() ? 1 : 0, differentialEquations.getParticleMeshSize(), reorderInterval};
+    }
+
+    /**
+     * Waits for the next frame. After the end frame, no more frames will come.
+     */
+    Frame nextFrame() throws InterruptedException {
+        return frames.take();
+    }
+
+    /**
+     * Stops the integration. Frames already in the queue are replaced by the end frame, so a caller waiting in
+     * {@link #nextFrame()} returns.
+     */
+    void close() {
+        closed = true;
+        thread.interrupt();
+        frames.clear();
+        frames.offer(endFrame());
+    }
+
+    /**
+     * Waits for the session thread to finish after {@link #close()}, so its cache entry is complete.
+     */
+    void join() throws InterruptedException {
+        thread.join();
+    }
+
+    private Frame endFrame() {
+        return new Frame(time, null, null, masses, ids, null, false);
+    }
+
+    private double frameInterval() {
+        return settings.getFrameInterval();
+    }
+
+    private void run() {
+        try {
+            if (cache != null) replayCache();
+            while (!closed) {
+                checkpoint();
+                // Thresholds changed in the settings take effect from the next segment
+                if (!events.hasThresholds(closeApproachDistance(), settings.getEscapeRadius(), settings.getBoundary())) createEvents();
+                if (settings.recenterOnCenterOfMass()) SystemStatistics.compute(state, masses).recenter(state);
+                double segmentEnd = Math.max(nextFrameTime, time + SEGMENT_FRAMES * frameInterval());
+                try {
+                    if (settings.useWisdomHolman()) {
+                        time = integrateWisdomHolman(segmentEnd);
+                    } else {
+                        int[] pair = closePair();
+                        if (pair != null) {
+                            time = integrateRegularized(pair, segmentEnd);
+                        } else {
+                            events.registerWith(integrator, state);
+                            time = integrator.integrate(differentialEquations, time, state, segmentEnd, state);
+                        }
+                    }
+                } catch (CommandsPendingException e) {
+                    // The frame sampler already moved the session to the frame it stopped at
+                }
+                applyCommands();
+                removeLostBodies();
+                reorderBodies();
+                // The last body change event records that no bodies are left
+                if (masses.length == 0) break;
+            }
+        } catch (SessionClosedException e) {
+            stopRecording();
+            return;
+        } catch (NumberIsTooSmallException e) {
+            // Asymptote error (the integrator can't converge and gives up)
+            System.out.println(e.getMessage());
+        } catch (NumberIsTooLargeException e) {
+            // Double overflow error (inputs too large for double datatype to handle)
+            System.out.println(e.getMessage());
+        } catch (Exception e) {
+            System.out.println(e.getMessage());
+        }
+        stopRecording();
+        try {
+            publish(endFrame());
+        } catch (SessionClosedException e) {
+            // Closed while waiting for room; close() queues its own end frame
+        }
+    }
+
+    private void publish(Frame frame) {
+        record(frame);
+        queue(frame);
+    }
+
+    private void queue(Frame frame) {
+        if (!frame.isEnd() && !frame.isBodyChange()) {
+            for (FrameListener listener : frameListeners) listener.onFrame(frame.getTime(), frame.getState());
+        }
+        try {
+            frames.put(frame);
+        } catch (InterruptedException e) {
+            throw new SessionClosedException();
+        }
+    }
+
+    private Frame frame(double frameTime, double[] frameState, double[] frameDerivatives) {
+        return new Frame(frameTime, frameState, frameDerivatives, masses, ids, null, false);
+    }
+
+    // Called by the frame samplers right after publishing the frame at nextFrameTime
+    private void stopForCommands(double[] frameState) {
+        if (commands.isEmpty()) return;
+        time = nextFrameTime;
+        state = frameState.clone();
+        nextFrameTime += frameInterval();
+        throw new CommandsPendingException();
+    }
+
+    // Publishes a frame for every frame time inside each step, from the dense output
+    private class FrameSampler implements StepHandler {
+        @Override
+        public void init(double t0, double[] y0, double t) {
+        }
+
+        @Override
+        public void handleStep(StepInterpolator interpolator, boolean isLast) {
+            if (closed) throw new SessionClosedException();
+            double stepEnd = interpolator.getCurrentTime();
+            while (nextFrameTime <= stepEnd) {
+                interpolator.setInterpolatedTime(nextFrameTime);
+                double[] frameState = interpolator.getInterpolatedState().clone();
+                publish(frame(nextFrameTime, frameState, interpolator.getInterpolatedDerivatives().clone()));
+                stopForCommands(frameState);
+                nextFrameTime += frameInterval();
+            }
+        }
+    }
+
+    /**
+     * Dormand-Prince with an {@link SimulationEvents.IntegratorStep} event for every step attempt. Every attempt ends
+     * in an error estimate, which decides whether the step is accepted, so that is where the event is committed.
+     */
+    private static class RecordedDormandPrince853Integrator extends DormandPrince853Integrator {
+        RecordedDormandPrince853Integrator(double minStep, double maxStep, double scalAbsoluteTolerance, double scalRelativeTolerance) {
+            super(minStep, maxStep, scalAbsoluteTolerance, scalRelativeTolerance);
+        }
+
+        @Override
+        protected double estimateError(double[][] yDotK, double[] y0, double[] y1, double h) {
+            double error = super.estimateError(yDotK, y0, y1, h);
+            SimulationEvents.IntegratorStep event = new SimulationEvents.IntegratorStep();
+            if (event.shouldCommit()) {
+                event.integrator = getName();
+                event.time = getCurrentStepStart();
+                event.stepSize = h;
+                event.error = error;
+                // The same test as EmbeddedRungeKuttaIntegrator.integrate
+                event.accepted = error < 1.0;
+                event.commit();
+            }
+            return error;
+        }
+    }
+
+    // Publishes a frame for every frame time inside each step of a regularized integration, whose steps are in fictitious time
+    private class RegularizedFrameSampler implements StepHandler {
+        private final RegularizedPair pair;
+
+        RegularizedFrameSampler(RegularizedPair pair) {
+            this.pair = pair;
+        }
+
+        @Override
+        public void init(double s0, double[] y0, double s) {
+        }
+
+        @Override
+        public void handleStep(StepInterpolator interpolator, boolean isLast) {
+            if (closed) throw new SessionClosedException();
+            double stepStart = interpolator.getPreviousTime();
+            double stepEnd = interpolator.getCurrentTime();
+            interpolator.setInterpolatedTime(stepEnd);
+            double stepEndTime = pair.time(interpolator.getInterpolatedState());
+            while (nextFrameTime <= stepEndTime) {
+                interpolator.setInterpolatedTime(findFictitiousTime(interpolator, stepStart, stepEnd, nextFrameTime));
+                double[] frameState = new double[4 * masses.length];
+                pair.toPhysical(interpolator.getInterpolatedState(), frameState);
+                double[] frameDerivatives = new double[frameState.length];
+                differentialEquations.computeDerivatives(nextFrameTime, frameState, frameDerivatives);
+                publish(frame(nextFrameTime, frameState, frameDerivatives));
+                stopForCommands(frameState);
+                nextFrameTime += frameInterval();
+            }
+        }
+
+        // Solves t(s) = time inside the step by Newton's method on the dense output, where dt/ds = r > 0, falling back
+        // to bisection whenever Newton leaves the bracket
+        private double findFictitiousTime(StepInterpolator interpolator, double low, double high, double time) {
+            double s = high;
+            for (int iteration = 0; iteration < 100 && high - low > Math.ulp(high); iteration++) {
+                interpolator.setInterpolatedTime(s);
+                double[] y = interpolator.getInterpolatedState();
+                double error = pair.time(y) - time;
+                if (error == 0) return s;
+                if (error > 0) high = s;
+                else low = s;
+                double next = s - error / pair.separation(y);
+                s = next > low && next < high ? next : (low + high) / 2;
+            }
+            return s;
+        }
+    }
+
+    /**
+     * @return The closest pair while a close approach is under way and the pair has mass to regularize, otherwise null.
+     */
+    private int[] closePair() {
+        return events.inCloseApproach() ? events.closestPair(state) : null;
+    }
+
+    /**
+     * Integrates with one pair in Levi-Civita coordinates until the pair flies apart, another pair closes in or the
+     * segment ends, then converts the state back.
+     *
+     * @return The physical time reached.
+     */
+    private double integrateRegularized(int[] closest, double segmentEnd) {
+        SimulationEvents.CloseApproach event = new SimulationEvents.CloseApproach();
+        event.begin();
+        RegularizedPair pair = new RegularizedPair(masses, closest[0], closest[1], differentialEquations.isSinglePrecision());
+        double[] y = pair.regularize(state, time);
+        // Step limits in fictitious time, scaled by how long the segment would take at the current separation
+        double span = (segmentEnd - time) / pair.separation(y);
+        DormandPrince853Integrator regularized = new RecordedDormandPrince853Integrator(span * 1e-15, span,
+                REGULARIZED_ABSOLUTE_TOLERANCE, REGULARIZED_RELATIVE_TOLERANCE);
+        regularized.addStepHandler(new RegularizedFrameSampler(pair));
+        pair.registerWith(regularized, y, segmentEnd, SEPARATED_FACTOR * closeApproachDistance(), closeApproachDistance());
+        double start = time;
+        double end = start;
+        try {
+            // There is no fictitious end time; one of the events always stops the integration first
+            regularized.integrate(pair, 0, y, Double.MAX_VALUE, y);
+            pair.toPhysical(y, state);
+            end = pair.time(y);
+        } catch (CommandsPendingException e) {
+            // The frame sampler already moved the session to the frame it stopped at, in physical coordinates
+            end = time;
+        } finally {
+            if (event.shouldCommit()) {
+                event.startTime = start;
+                event.endTime = end;
+                event.first = ids[pair.getFirst()];
+                event.second = ids[pair.getSecond()];
+                event.commit();
+            }
+            // Whether a close approach is still under way, possibly of another pair, is decided afresh from the new state
+            createEvents();
+        }
+        return end;
+    }
+
+    /**
+     * Maps the state forward with {@link WisdomHolman}, in equal steps that end exactly on each frame time up to the
+     * segment end. Close approaches are not regularized here; escapes and boundary crossings are checked at the end of
+     * the segment.
+     *
+     * @return The time of the last frame.
+     */
+    private double integrateWisdomHolman(double segmentEnd) {
+        WisdomHolman mapping = new WisdomHolman(differentialEquations, masses, state);
+        double stepLimit = mapping.stepLimit();
+        while (nextFrameTime <= segmentEnd) {
+            if (closed) throw new SessionClosedException();
+            double span = nextFrameTime - time;
+            int steps = Math.max(1, (int) Math.ceil(span / stepLimit));
+            mapping.advance(time, span / steps, steps);
+            time = nextFrameTime;
+            double[] frameState = new double[state.length];
+            mapping.toPhysical(frameState);
+            double[] frameDerivatives = new double[frameState.length];
+            differentialEquations.computeDerivatives(time, frameState, frameDerivatives);
+            publish(frame(time, frameState, frameDerivatives));
+            nextFrameTime += frameInterval();
+            if (!commands.isEmpty()) break;
+        }
+        mapping.toPhysical(state);
+        return time;
+    }
+
+    /**
+     * Opens the cache entry of the start state and publishes the frames it holds up to its checkpoint, then moves the
+     * session to the checkpoint so integration picks up exactly where the cached run restarted.
+     */
+    private void replayCache() {
+        recordedParameters = cacheParameters(settings, differentialEquations, reorderInterval);
+        try {
+            recording = cache.open(cacheKey(settings, differentialEquations, reorderInterval, masses, state, time), masses.length);
+            TrajectoryCache.Checkpoint checkpoint = recording.readCheckpoint();
+            recording.resumeFromCheckpoint();
+            if (checkpoint == null) return;
+            for (int i = 0; i < checkpoint.getFrames(); i++) {
+                if (closed) throw new SessionClosedException();
+                double[] frameState = new double[state.length];
+                double[] frameDerivatives = new double[state.length];
+                double frameTime = recording.read(i, frameState, frameDerivatives);
+                queue(frame(frameTime, frameState, frameDerivatives));
+            }
+            time = checkpoint.getTime();
+            state = checkpoint.getState();
+            nextFrameTime = checkpoint.getNextFrameTime();
+            segmentsSinceReorder = checkpoint.getSegments();
+            resumeOrder(checkpoint.getOrder());
+            createEvents();
+            System.out.println("Replayed " + checkpoint.getFrames() + " cached frames, integrating on from t=" + time);
+        } catch (IOException e) {
+            System.err.println("Could not use the trajectory cache: " + e.getMessage());
+            stopRecording();
+        }
+    }
+
+    /**
+     * Records the state at the start of a segment in the cache entry, as the point a later run resumes from. Settings
+     * only take effect at segment starts, so this is also where a changed setting ends the entry, since a replay must
+     * only lead to states a fresh run with the same settings reaches.
+     */
+    private void checkpoint() {
+        if (recording == null) return;
+        if (!Arrays.equals(recordedParameters, cacheParameters(settings, differentialEquations, reorderInterval))) {
+            stopRecording();
+            return;
+        }
+        // Not while a close approach is under way or a body hovers around the escape radius, since a restart from the
+        // state alone would see those differently
+        if (!events.restartsAlike(state)) return;
+        try {
+            recording.checkpoint(time, nextFrameTime, segmentsSinceReorder, state, recordedOrder);
+        } catch (IOException e) {
+            System.err.println("Could not cache the trajectory: " + e.getMessage());
+            stopRecording();
+        }
+    }
+
+    /**
+     * Puts the bodies in the order they had at the checkpoint, from the order the entry started with, and tells the
+     * simulation, which got the replayed frames in the entry's order.
+     */
+    private void resumeOrder(int[] order) {
+        boolean reordered = false;
+        for (int k = 0; k < order.length; k++) reordered |= order[k] != k;
+        if (!reordered) return;
+        double[] orderedMasses = new double[order.length];
+        int[] orderedIds = new int[order.length];
+        for (int k = 0; k < order.length; k++) {
+            orderedMasses[k] = masses[order[k]];
+            orderedIds[k] = ids[order[k]];
+        }
+        masses = orderedMasses;
+        ids = orderedIds;
+        differentialEquations.reorder(masses);
+        recordedOrder = order;
+        double[] derivatives = new double[state.length];
+        differentialEquations.computeDerivatives(time, state, derivatives);
+        queue(new Frame(time, state.clone(), derivatives, masses, ids, null, true));
+    }
+
+    /**
+     * Appends a frame to the cache entry, with the bodies in the entry's order. Body change frames are not stored: a
+     * reorder is undone here instead, and commands and lost bodies end the entry.
+     */
+    private void record(Frame frame) {
+        if (recording == null || frame.isEnd() || frame.isBodyChange()) return;
+        double[] frameState = frame.getState();
+        double[] frameDerivatives = frame.getDerivatives();
+        if (recordedOrder != null) {
+            frameState = new double[frameState.length];
+            frameDerivatives = new double[frameDerivatives.length];
+            for (int k = 0; k < recordedOrder.length; k++) {
+                System.arraycopy(frame.getState(), 4 * k, frameState, 4 * recordedOrder[k], 4);
+                System.arraycopy(frame.getDerivatives(), 4 * k, frameDerivatives, 4 * recordedOrder[k], 4);
+            }
+        }
+        try {
+            recording.append(frame.getTime(), frameState, frameDerivatives);
+        } catch (IOException e) {
+            System.err.println("Could not cache the trajectory: " + e.getMessage());
+            stopRecording();
+        }
+    }
+
+    private void stopRecording() {
+        if (recording == null) return;
+        try {
+            recording.close();
+        } catch (IOException e) {
+            System.err.println("Could not close the cached trajectory: " + e.getMessage());
+        }
+        recording = null;
+        recordedOrder = null;
+    }
+
+    private void createEvents() {
+        events = new EncounterEvents(masses, closeApproachDistance(), settings.getEscapeRadius(), settings.getBoundary(), state);
+    }
+
+    // The particle mesh smooths the forces between close bodies, so there is no singularity to regularize, and the pair
+    // equations of RegularizedPair only know the direct sum
+    private double closeApproachDistance() {
+        return differentialEquations.getParticleMeshSize() > 0 ? 0 : settings.getCloseApproachDistance();
+    }
+
+    /**
+     * Removes the bodies that escaped or left the boundary, shrinking the state vector so later steps get cheaper, and
+     * publishes the removal so the simulation can drop the same bodies.
+     */
+    private void removeLostBodies() {
+        SimulationEvents.BodyChange event = new SimulationEvents.BodyChange();
+        event.begin();
+        boolean[] lost = events.findLostBodies(state);
+        if (lost == null) return;
+        // A fresh run would lose the same bodies, but the entry holds a fixed number of them
+        stopRecording();
+        int kept = 0;
+        for (boolean isLost : lost) if (!isLost) kept++;
+        double[] keptMasses = new double[kept];
+        int[] keptIds = new int[kept];
+        double[] keptState = new double[4 * kept];
+        kept = 0;
+        for (int i = 0; i < lost.length; i++) {
+            if (lost[i]) continue;
+            keptMasses[kept] = masses[i];
+            keptIds[kept] = ids[i];
+            System.arraycopy(state, 4 * i, keptState, 4 * kept, 4);
+            kept++;
+        }
+        publish(new Frame(time, keptState.clone(), replaceBodies(keptMasses, keptIds, keptState), keptMasses, keptIds, lost, true));
+        commitBodyChange(event, "Lost", lost.length - kept);
+    }
+
+    /**
+     * Sorts the bodies along a Morton curve once the reorder interval has passed, and publishes the new order. The
+     * force evaluation and the encounter events follow the bodies into the new order rather than being built again,
+     * and the cache entry goes on, storing the frames in its own order.
+     */
+    private void reorderBodies() {
+        if (reorderInterval == 0 || ++segmentsSinceReorder < reorderInterval) return;
+        segmentsSinceReorder = 0;
+        SimulationEvents.BodyChange event = new SimulationEvents.BodyChange();
+        event.begin();
+        int[] order = MortonOrder.order(state);
+        if (order == null) return;
+        double[] orderedMasses = new double[order.length];
+        int[] orderedIds = new int[order.length];
+        for (int k = 0; k < order.length; k++) {
+            orderedMasses[k] = masses[order[k]];
+            orderedIds[k] = ids[order[k]];
+        }
+        if (recording != null) {
+            int[] previous = recordedOrder;
+            recordedOrder = new int[order.length];
+            for (int k = 0; k < order.length; k++) recordedOrder[k] = previous == null ? order[k] : previous[order[k]];
+        }
+        masses = orderedMasses;
+        ids = orderedIds;
+        state = MortonOrder.permute(state, order);
+        differentialEquations.reorder(masses);
+        events.reorder(masses, order);
+        double[] derivatives = new double[state.length];
+        differentialEquations.computeDerivatives(time, state, derivatives);
+        publish(new Frame(time, state.clone(), derivatives, masses, ids, null, true));
+        commitBodyChange(event, "Reorder", order.length);
+    }
+
+    /**
+     * Applies the queued {@link BodyCommand}s, resizing the state vector, and publishes the new bodies.
+     */
+    private void applyCommands() {
+        if (commands.isEmpty()) return;
+        // The integration stopped early for them, somewhere a fresh run does not restart from
+        stopRecording();
+        SimulationEvents.BodyChange event = new SimulationEvents.BodyChange();
+        event.begin();
+        // Removed bodies are only marked, and compacted once at the end, so each command costs a lookup
+        int count = ids.length;
+        int[] changedIds = ids.clone();
+        double[] changedMasses = masses.clone();
+        double[] changedState = state.clone();
+        boolean[] removed = new boolean[count];
+        Map<Integer, Integer> indexOf = new HashMap<>(2 * count);
+        for (int i = 0; i < count; i++) indexOf.put(ids[i], i);
+        int applied = 0;
+        BodyCommand command;
+        while ((command = commands.poll()) != null) {
+            Integer found = indexOf.get(command.getId());
+            int index = found == null || removed[found] ? -1 : found;
+            switch (command.getKind()) {
+                case ADD:
+                    if (index < 0) {
+                        if (count == changedIds.length) {
+                            int capacity = Math.max(4, 2 * count);
+                            changedIds = Arrays.copyOf(changedIds, capacity);
+                            changedMasses = Arrays.copyOf(changedMasses, capacity);
+                            changedState = Arrays.copyOf(changedState, 4 * capacity);
+                            removed = Arrays.copyOf(removed, capacity);
+                        }
+                        index = count++;
+                        changedIds[index] = command.getId();
+                        indexOf.put(command.getId(), index);
+                    }
+                    changedMasses[index] = command.getMass();
+                    System.arraycopy(command.getState(), 0, changedState, 4 * index, 4);
+                    break;
+                case REMOVE:
+                    if (index < 0) continue;
+                    removed[index] = true;
+                    break;
+                case EDIT:
+                    if (index < 0) continue;
+                    changedMasses[index] = command.getMass();
+                    System.arraycopy(command.getState(), 0, changedState, 4 * index, 4);
+                    break;
+            }
+            applied++;
+        }
+        if (applied == 0) return;
+        int kept = 0;
+        for (int i = 0; i < count; i++) {
+            if (removed[i]) continue;
+            changedIds[kept] = changedIds[i];
+            changedMasses[kept] = changedMasses[i];
+            System.arraycopy(changedState, 4 * i, changedState, 4 * kept, 4);
+            kept++;
+        }
+        changedIds = Arrays.copyOf(changedIds, kept);
+        changedMasses = Arrays.copyOf(changedMasses, kept);
+        changedState = Arrays.copyOf(changedState, 4 * kept);
+        publish(new Frame(time, changedState.clone(), replaceBodies(changedMasses, changedIds, changedState), changedMasses, changedIds, null, true));
+        commitBodyChange(event, "Commands", applied);
+    }
+
+    private void commitBodyChange(SimulationEvents.BodyChange event, String cause, int changes) {
+        if (!event.shouldCommit()) return;
+        event.cause = cause;
+        event.simulationTime = time;
+        event.changes = changes;
+        event.bodies = masses.length;
+        event.commit();
+    }
+
+    /**
+     * Switches the session to a new set of bodies, keeping the force settings.
+     *
+     * @return The derivatives of the new state.
+     */
+    private double[] replaceBodies(double[] newMasses, int[] newIds, double[] newState) {
+        masses = newMasses;
+        ids = newIds;
+        state = newState;
+        boolean singlePrecision = differentialEquations.isSinglePrecision();
+        int particleMeshSize = differentialEquations.getParticleMeshSize();
+        differentialEquations = new DifferentialEquations(masses);
+        differentialEquations.setSinglePrecision(singlePrecision);
+        differentialEquations.setParticleMesh(particleMeshSize);
+        double[] derivatives = new double[state.length];
+        if (masses.length > 0) differentialEquations.computeDerivatives(time, state, derivatives);
+        createEvents();
+        return derivatives;
+    }
+}
@@ -0,0 +1,41 @@
+package NBobodySimulation;
+
+/**
+ * The settings an {@link IntegrationSession} reads while it runs. Implemented by the UI's simulation settings, and by
+ * headless runs such as {@link Batch}.
+ */
+public interface IntegrationSettings {
+
+    /**
+     * @return The simulation time between two frames.
+     */
+    public double getFrameInterval();
+
+    /**
+     * @return Whether the session moves the state into the center of mass frame at the start of every segment, so the
+     * system does not drift off screen. The only place a run is recentered; frames are never changed afterwards.
+     */
+    public boolean recenterOnCenterOfMass();
+
+    /**
+     * @return The separation that counts as a close approach, or 0 to ignore close approaches. Ignored on the particle
+     * mesh, whose forces stay finite at any separation.
+     */
+    public double getCloseApproachDistance();
+
+    /**
+     * @return The distance from the center of mass beyond which unbound bodies are removed, or 0.
+     */
+    public double getEscapeRadius();
+
+    /**
+     * @return The half width of the box outside which bodies are removed, or 0.
+     */
+    public double getBoundary();
+
+    /**
+     * @return Whether to integrate with the {@link WisdomHolman} mapping instead of Dormand-Prince, for systems
+     * dominated by one central mass.
+     */
+    public boolean useWisdomHolman();
+}
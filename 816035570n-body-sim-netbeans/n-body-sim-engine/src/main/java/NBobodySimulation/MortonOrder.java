@@ -0,0 +1,81 @@
+package NBobodySimulation;
+
+import java.util.Arrays;
+
+/**
+ * Orders bodies along a Morton (Z-order) curve over their bounding box, so bodies close in space are close in the state
+ * vector. Kernels that scatter bodies onto a grid, such as the deposit and interpolation of {@link ParticleMesh}, then
+ * walk memory in order instead of jumping around it.
+ * <br>
+ * Positions are quantized to 16 bits per axis and the bits of x and y interleaved into one key. Keys are sorted
+ * together with the body index, so bodies in the same cell keep their relative order and the result does not depend on
+ * the sort.
+ */
+final class MortonOrder {
+
+    private static final int BITS = 16;
+
+    private MortonOrder() {
+    }
+
+    /**
+     * @param state The flattened state, {x, y, vx, vy} per body.
+     * @return For each position in the new order, the index of the body that goes there, or null if the bodies are
+     * already in order.
+     */
+    static int[] order(double[] state) {
+        int count = state.length / 4;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, state[4 * i]);
+            maxX = Math.max(maxX, state[4 * i]);
+            minY = Math.min(minY, state[4 * i + 1]);
+            maxY = Math.max(maxY, state[4 * i + 1]);
+        }
+        double extent = Math.max(maxX - minX, maxY - minY);
+        if (count < 2 || extent == 0 || !Double.isFinite(extent)) return null;
+        double scale = ((1 << BITS) - 1) / extent;
+
+        // The 32 bit key above the 31 bit index, so one sort of longs orders both; shifting the key by 32 would put its
+        // top bit in the sign and sort the upper half of the box first
+        long[] keys = new long[count];
+        for (int i = 0; i < count; i++) {
+            int x = (int) ((state[4 * i] - minX) * scale);
+            int y = (int) ((state[4 * i + 1] - minY) * scale);
+            keys[i] = (interleave(x) | interleave(y) << 1) << 31 | i;
+        }
+        Arrays.sort(keys);
+
+        int[] order = new int[count];
+        boolean sorted = true;
+        for (int k = 0; k < count; k++) {
+            order[k] = (int) (keys[k] & Integer.MAX_VALUE);
+            if (order[k] != k) sorted = false;
+        }
+        return sorted ? null : order;
+    }
+
+    /**
+     * Moves the bodies of a flattened state into a new order.
+     *
+     * @param order From {@link #order}.
+     */
+    static double[] permute(double[] state, int[] order) {
+        double[] permuted = new double[state.length];
+        for (int k = 0; k < order.length; k++) System.arraycopy(state, 4 * order[k], permuted, 4 * k, 4);
+        return permuted;
+    }
+
+    // Spreads the low 16 bits of a value over the even bits of a long
+    private static long interleave(int value) {
+        long bits = value & 0xffffL;
+        bits = (bits | bits << 8) & 0x00ff00ffL;
+        bits = (bits | bits << 4) & 0x0f0f0f0fL;
+        bits = (bits | bits << 2) & 0x33333333L;
+        bits = (bits | bits << 1) & 0x55555555L;
+        return bits;
+    }
+}
@@ -0,0 +1,76 @@
+package NBobodySimulation;
+
+import java.nio.DoubleBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Kick-drift-kick leapfrog on the columns of a {@link ParticleStore}, with forces from a {@link ParticleMesh}, for runs
+ * of millions of particles. Positions, velocities and accelerations stay in the store the whole time, so the heap only
+ * holds the mesh, whose size depends on the grid and not on the number of particles, and a store mapped onto a file is
+ * a checkpoint of the run after every {@link ParticleStore#flush()}.
+ * <br>
+ * The step is fixed and the scheme symplectic, so the energy error stays bounded rather than drifting. The accelerations
+ * kept in the store are those of the current positions, so each step costs one force evaluation. Kicks and drifts run
+ * in parallel over fixed chunks of particles; each particle is only touched by its own chunk, so the result does not
+ * depend on the number of threads.
+ */
+class OffHeapLeapfrog {
+
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    private final ParticleStore store;
+    private final ParticleMesh mesh;
+
+    /**
+     * Evaluates the accelerations of the particles as they are in the store.
+     *
+     * @param gridSize The number of cells along each side of the mesh, a power of two.
+     */
+    OffHeapLeapfrog(ParticleStore store, int gridSize) {
+        this.store = store;
+        this.mesh = new ParticleMesh(gridSize);
+        mesh.computeAccelerations(store);
+    }
+
+    /**
+     * Advances the store by a number of steps and moves its time along.
+     */
+    void advance(double step, int steps) {
+        for (int s = 0; s < steps; s++) {
+            kickAndDrift(step / 2, step);
+            mesh.computeAccelerations(store);
+            kickAndDrift(step / 2, 0);
+            store.setTime(store.getTime() + step);
+        }
+    }
+
+    /**
+     * @return The potential energy of the particles on the mesh.
+     */
+    double potentialEnergy() {
+        return mesh.potentialEnergy(store);
+    }
+
+    // Velocities by the kick times the accelerations, then positions by the drift times the new velocities
+    private void kickAndDrift(double kick, double drift) {
+        DoubleBuffer x = store.column(ParticleStore.X);
+        DoubleBuffer y = store.column(ParticleStore.Y);
+        DoubleBuffer vx = store.column(ParticleStore.VX);
+        DoubleBuffer vy = store.column(ParticleStore.VY);
+        DoubleBuffer ax = store.column(ParticleStore.AX);
+        DoubleBuffer ay = store.column(ParticleStore.AY);
+        int count = store.size();
+        IntStream.range(0, (count + CHUNK_SIZE - 1) / CHUNK_SIZE).parallel().forEach(chunk -> {
+            for (int i = chunk * CHUNK_SIZE; i < Math.min(count, (chunk + 1) * CHUNK_SIZE); i++) {
+                double newVx = vx.get(i) + kick * ax.get(i);
+                double newVy = vy.get(i) + kick * ay.get(i);
+                vx.put(i, newVx);
+                vy.put(i, newVy);
+                if (drift != 0) {
+                    x.put(i, x.get(i) + drift * newVx);
+                    y.put(i, y.get(i) + drift * newVy);
+                }
+            }
+        });
+    }
+}
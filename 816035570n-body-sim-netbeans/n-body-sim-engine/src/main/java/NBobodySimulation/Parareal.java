@@ -0,0 +1,355 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.apache.commons.math3.ode.sampling.StepHandler;
+import org.apache.commons.math3.ode.sampling.StepInterpolator;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Fast-forwards a state over a long time with the Parareal parallel-in-time scheme, for skipping ahead before a
+ * simulation is shown.
+ * <br>
+ * The time span is cut into slices. A coarse integrator, Dormand-Prince at loose tolerances, runs through them
+ * serially to guess the state at the start of each slice. Every iteration then integrates all unfinished slices from
+ * their guessed starts with the fine integrator, on a work-stealing pool, and sweeps through them serially again,
+ * correcting each coarse result by the difference between the fine and coarse results of the previous iteration:
+ * <pre>
+ * U[n+1] = G(U[n]) + F(U[n] of the previous iteration) - G(U[n] of the previous iteration)
+ * </pre>
+ * The sweeps are pipelined with the fine integrations: the fine integration of a slice is submitted as soon as the
+ * sweep has settled its start, so the serial coarse sweep of one iteration runs while the fine integrations of the next
+ * are already under way, and only waits for the fine result of a slice when it gets to that slice.
+ * <br>
+ * After k iterations the first k slices are exact, so the scheme always ends after at most one iteration per slice,
+ * with the fine result. It stops as soon as no slice start moves by more than the tolerance. When the coarse guesses
+ * are close, as for planets around a central mass with the {@link WisdomHolman} mapping as the coarse integrator, that
+ * takes a few iterations, each costing one slice of fine integration in wall time, so with one slice per core the span
+ * takes several times less than integrating it serially. For a chaotic system the slice starts only settle one by one,
+ * and it takes about as long as integrating serially, plus the coarse sweeps. With a single slice, as on one core, the
+ * span is simply integrated serially.
+ * <br>
+ * The bodies are fixed for the whole span: escapes are left to the session that continues from the result. Close
+ * approaches are regularized as the session does, in both the fine and the coarse Dormand-Prince integrations, so a
+ * pair passing close inside the span does not stall the integrator at its minimum step.
+ * <br>
+ * The result depends on the number of slices but not on the number of threads: each slice is integrated serially and
+ * the sweeps run in slice order. With one slice per core by default, the same skip differs slightly between machines;
+ * {@link #setReproducible} fixes the slices so it does not.
+ */
+public class Parareal {
+
+    /**
+     * Receives the progress of a run after every iteration, on the thread that called {@link #run}.
+     */
+    public interface Progress {
+        /**
+         * @param iteration The number of iterations done.
+         * @param converged The number of leading slices whose start no longer moves.
+         * @param slices    The number of slices.
+         */
+        void onIteration(int iteration, int converged, int slices);
+    }
+
+    // The fine integrator matches IntegrationSession, so the result is as accurate as integrating serially
+    private static final double MIN_STEP = 1e-10;
+    private static final double MAX_STEP = 10000;
+    private static final double FINE_ABSOLUTE_TOLERANCE = 0.01;
+    private static final double FINE_RELATIVE_TOLERANCE = 0.0001;
+    // The coarse integrator only has to be close enough for the corrections to converge
+    private static final double COARSE_TOLERANCE_FACTOR = 1000;
+    // About the relative tolerance of the fine integrator
+    private static final double DEFAULT_TOLERANCE = 1e-4;
+    // Enough to keep a workstation busy; a machine with more cores leaves some idle, one with fewer takes turns
+    private static final int REPRODUCIBLE_SLICES = 16;
+
+    private final double[] masses;
+    private final double[] state;
+    private final double startTime;
+    private final double endTime;
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int slices = parallelism;
+    // The count given to setSlices, which setReproducible(false) goes back to, or 0 for one slice per core
+    private int explicitSlices;
+    private boolean reproducible;
+    private double tolerance = DEFAULT_TOLERANCE;
+    private boolean singlePrecision;
+    private int particleMeshSize;
+    private boolean wisdomHolmanCoarse;
+    private double closeApproachDistance;
+    private volatile boolean cancelled;
+
+    /**
+     * @param masses    The masses of the bodies.
+     * @param state     The flattened state at the start time. Not modified.
+     * @param startTime The simulation time of the state.
+     * @param endTime   The simulation time to fast-forward to.
+     */
+    public Parareal(double[] masses, double[] state, double startTime, double endTime) {
+        if (endTime < startTime) throw new IllegalArgumentException("Cannot skip back from t=" + startTime + " to t=" + endTime);
+        this.masses = masses;
+        this.state = state;
+        this.startTime = startTime;
+        this.endTime = endTime;
+    }
+
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * The number of time slices, by default one per core. More slices than cores shortens each slice but needs more
+     * iterations to converge. While {@link #setReproducible reproducible}, the count is kept for when it is turned off.
+     */
+    public void setSlices(int slices) {
+        if (slices < 1) throw new IllegalArgumentException("Invalid number of slices '" + slices + "'");
+        explicitSlices = slices;
+        if (!reproducible) this.slices = slices;
+    }
+
+    /**
+     * Pairs closer than this are integrated with the pair in Levi-Civita coordinates until they separate, as in
+     * {@link IntegrationSession}, or 0 to leave close approaches to the plain integrator. Ignored on the particle mesh.
+     */
+    public void setCloseApproachDistance(double closeApproachDistance) {
+        this.closeApproachDistance = closeApproachDistance;
+    }
+
+    /**
+     * Uses {@value #REPRODUCIBLE_SLICES} slices instead of one per core, so the result is bitwise the same on any
+     * machine, or goes back to the number of slices given to {@link #setSlices}, or one per core if none was.
+     * <br>
+     * On a machine with {@value #REPRODUCIBLE_SLICES} cores or more it costs nothing. With fewer cores the slices take
+     * turns: when they only settle one by one, a run does about slices * (slices + 1) / 2 slices of fine integration on
+     * the cores, so on one core a skip over a planetary ring took 9 to 15 times as long as integrating it serially; by the
+     * same count, eight cores take about 1.5 times as long as with one slice per core. A skip that converges in a few iterations pays far less.
+     */
+    public void setReproducible(boolean reproducible) {
+        this.reproducible = reproducible;
+        if (reproducible) slices = REPRODUCIBLE_SLICES;
+        else slices = explicitSlices > 0 ? explicitSlices : Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * Iterations stop once no slice start moves by more than this fraction of the size of the system, or of its spread
+     * of velocities.
+     */
+    public void setTolerance(double tolerance) {
+        this.tolerance = tolerance;
+    }
+
+    /**
+     * Uses the {@link WisdomHolman} mapping as the coarse integrator, which is far cheaper and closer to the fine
+     * result than loose Dormand-Prince for planets around a central mass.
+     */
+    public void setWisdomHolmanCoarse(boolean wisdomHolmanCoarse) {
+        this.wisdomHolmanCoarse = wisdomHolmanCoarse;
+    }
+
+    public void setSinglePrecision(boolean singlePrecision) {
+        this.singlePrecision = singlePrecision;
+    }
+
+    /**
+     * Evaluates the forces with a {@link ParticleMesh} grid of this many cells along each side, or 0 for the direct sum.
+     */
+    public void setParticleMesh(int particleMeshSize) {
+        this.particleMeshSize = particleMeshSize;
+    }
+
+    /**
+     * Makes a run in progress, on any thread, throw a {@link CancellationException} at its next integrator step.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * @param progress Receives the progress after every iteration, or null.
+     * @return The flattened state at the end time.
+     * @throws CancellationException If {@link #cancel()} was called.
+     */
+    public double[] run(Progress progress) {
+        if (slices == 1) {
+            double[] end = fine(state, startTime, endTime);
+            if (progress != null) progress.onIteration(1, 1, 1);
+            return end;
+        }
+        if (endTime == startTime) return state.clone();
+        double[][] starts = new double[slices + 1][];
+        double[][] coarse = new double[slices][];
+        // The fine integrations from the starts the current sweep corrects, and from the starts it settles
+        List<ForkJoinTask<double[]>> current = new ArrayList<>(Collections.nCopies(slices, null));
+        List<ForkJoinTask<double[]>> next = new ArrayList<>(Collections.nCopies(slices, null));
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            starts[0] = state.clone();
+            for (int n = 0; n < slices; n++) {
+                current.set(n, submitFine(pool, n, starts[n], n > 0));
+                coarse[n] = coarse(starts[n], sliceTime(n), sliceTime(n + 1));
+                starts[n + 1] = coarse[n];
+            }
+
+            // Slices before this one start from an exact state and have their fine result
+            for (int exact = 0, iteration = 1; exact < slices; exact++, iteration++) {
+                int converged = exact + 1;
+                boolean moved = false;
+                starts[exact + 1] = current.get(exact).join();
+                if (exact + 1 < slices) next.set(exact + 1, submitFine(pool, exact + 1, starts[exact + 1], false));
+                for (int n = exact + 1; n < slices; n++) {
+                    // Runs while the fine integrations of this iteration finish and those of the next start
+                    double[] corrected = coarse(starts[n], sliceTime(n), sliceTime(n + 1));
+                    double[] fine = current.get(n).join();
+                    double[] settled = new double[corrected.length];
+                    if (fine == null) System.arraycopy(corrected, 0, settled, 0, settled.length);
+                    else for (int i = 0; i < settled.length; i++) settled[i] = corrected[i] + fine[i] - coarse[n][i];
+                    coarse[n] = corrected;
+                    if (fine == null || change(starts[n + 1], settled) > tolerance) moved = true;
+                    else if (!moved) converged = n + 1;
+                    starts[n + 1] = settled;
+                    if (n + 1 < slices) next.set(n + 1, submitFine(pool, n + 1, settled, true));
+                }
+                if (progress != null) progress.onIteration(iteration, converged, slices);
+                if (!moved) break;
+                List<ForkJoinTask<double[]>> swap = current;
+                current = next;
+                next = swap;
+            }
+        } catch (RuntimeException e) {
+            // ForkJoinTask.join rethrows the exception of the task, possibly wrapped
+            if (e.getCause() instanceof CancellationException) throw (CancellationException) e.getCause();
+            throw e;
+        } finally {
+            // Also stops the fine integrations started for an iteration that is no longer needed
+            pool.shutdownNow();
+        }
+        return starts[slices];
+    }
+
+    /**
+     * Starts the fine integration of a slice.
+     *
+     * @param guessed Whether the start is only a guess. A poor guess can put bodies on top of each other, so the
+     *                integration is allowed to fail and gives null; the next iteration starts closer.
+     */
+    private ForkJoinTask<double[]> submitFine(ForkJoinPool pool, int slice, double[] start, boolean guessed) {
+        return pool.submit(() -> {
+            try {
+                return fine(start, sliceTime(slice), sliceTime(slice + 1));
+            } catch (CancellationException e) {
+                throw e;
+            } catch (RuntimeException e) {
+                if (!guessed) throw e;
+                return null;
+            }
+        });
+    }
+
+    private double sliceTime(int slice) {
+        return slice == slices ? endTime : startTime + slice * (endTime - startTime) / slices;
+    }
+
+    private double[] fine(double[] start, double from, double to) {
+        return integrate(start, from, to, FINE_ABSOLUTE_TOLERANCE, FINE_RELATIVE_TOLERANCE);
+    }
+
+    private double[] coarse(double[] start, double from, double to) {
+        if (!wisdomHolmanCoarse) {
+            return integrate(start, from, to, FINE_ABSOLUTE_TOLERANCE * COARSE_TOLERANCE_FACTOR,
+                    FINE_RELATIVE_TOLERANCE * COARSE_TOLERANCE_FACTOR);
+        }
+        checkCancelled();
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        differentialEquations.setSinglePrecision(singlePrecision);
+        differentialEquations.setParticleMesh(particleMeshSize);
+        WisdomHolman mapping = new WisdomHolman(differentialEquations, masses, start);
+        // Steps four times longer than the mapping takes on its own; the corrections make up the accuracy
+        int steps = Math.max(1, (int) Math.ceil((to - from) / (4 * mapping.stepLimit())));
+        mapping.advance(from, (to - from) / steps, steps);
+        double[] end = new double[start.length];
+        mapping.toPhysical(end);
+        return end;
+    }
+
+    private double[] integrate(double[] start, double from, double to, double absoluteTolerance, double relativeTolerance) {
+        checkCancelled();
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        differentialEquations.setSinglePrecision(singlePrecision);
+        differentialEquations.setParticleMesh(particleMeshSize);
+        DormandPrince853Integrator integrator = new DormandPrince853Integrator(MIN_STEP, MAX_STEP, absoluteTolerance, relativeTolerance);
+        integrator.addStepHandler(new CancellationCheck());
+        double[] end = start.clone();
+        double time = from;
+        // As in the session, the particle mesh has no singularity to regularize
+        EncounterEvents events = closeApproachDistance > 0 && particleMeshSize == 0
+                ? new EncounterEvents(masses, closeApproachDistance, 0, 0, end) : null;
+        while (time < to) {
+            int[] pair = events != null && events.inCloseApproach() ? events.closestPair(end) : null;
+            if (pair != null) {
+                time = integrateRegularized(pair, end, time, to);
+                // Whether a close approach is still under way, possibly of another pair, is decided afresh
+                events = new EncounterEvents(masses, closeApproachDistance, 0, 0, end);
+            } else {
+                if (events != null) events.registerWith(integrator, end);
+                time = integrator.integrate(differentialEquations, time, end, to, end);
+            }
+        }
+        return end;
+    }
+
+    /**
+     * Integrates with one pair in Levi-Civita coordinates, as {@link IntegrationSession} does, until the pair flies
+     * apart, another pair closes in or the end time is reached, and converts the state back in place.
+     *
+     * @return The physical time reached.
+     */
+    private double integrateRegularized(int[] closest, double[] state, double time, double to) {
+        RegularizedPair pair = new RegularizedPair(masses, closest[0], closest[1], singlePrecision);
+        double[] y = pair.regularize(state, time);
+        double span = (to - time) / pair.separation(y);
+        DormandPrince853Integrator regularized = new DormandPrince853Integrator(span * 1e-15, span,
+                IntegrationSession.REGULARIZED_ABSOLUTE_TOLERANCE, IntegrationSession.REGULARIZED_RELATIVE_TOLERANCE);
+        regularized.addStepHandler(new CancellationCheck());
+        pair.registerWith(regularized, y, to, IntegrationSession.SEPARATED_FACTOR * closeApproachDistance, closeApproachDistance);
+        regularized.integrate(pair, 0, y, Double.MAX_VALUE, y);
+        pair.toPhysical(y, state);
+        return pair.time(y);
+    }
+
+    // The largest change of a position, relative to the largest distance from the origin, or of a velocity, relative
+    // to the largest speed
+    private static double change(double[] before, double[] after) {
+        double positionScale = 0;
+        double velocityScale = 0;
+        double positionChange = 0;
+        double velocityChange = 0;
+        for (int i = 0; i < after.length; i += 4) {
+            positionScale = Math.max(positionScale, Math.hypot(after[i], after[i + 1]));
+            velocityScale = Math.max(velocityScale, Math.hypot(after[i + 2], after[i + 3]));
+            positionChange = Math.max(positionChange, Math.hypot(after[i] - before[i], after[i + 1] - before[i + 1]));
+            velocityChange = Math.max(velocityChange, Math.hypot(after[i + 2] - before[i + 2], after[i + 3] - before[i + 3]));
+        }
+        return Math.max(positionScale == 0 ? 0 : positionChange / positionScale, velocityScale == 0 ? 0 : velocityChange / velocityScale);
+    }
+
+    private void checkCancelled() {
+        if (cancelled || Thread.currentThread().isInterrupted()) throw new CancellationException("Skip ahead cancelled");
+    }
+
+    private class CancellationCheck implements StepHandler {
+        @Override
+        public void init(double t0, double[] y0, double t) {
+        }
+
+        @Override
+        public void handleStep(StepInterpolator interpolator, boolean isLast) {
+            checkCancelled();
+        }
+    }
+}
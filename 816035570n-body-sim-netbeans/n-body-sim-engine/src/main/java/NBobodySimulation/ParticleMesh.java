@@ -0,0 +1,307 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+
+import java.nio.DoubleBuffer;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Particle-mesh gravity for smooth distributions of many bodies, at O(N + M^2 log M) per evaluation on an M by M grid
+ * instead of the O(N^2) of the direct sum.
+ * <br>
+ * Each evaluation spans the grid over the bounding box of the bodies and deposits their masses onto it with
+ * cloud-in-cell weights. The accelerations on the grid are the convolution of the mass density with the Newtonian
+ * 1/r^2 kernel the direct sum uses, which is a product after a Fourier transform. The grid is zero-padded to twice its
+ * size in both directions so the convolution is not periodic: bodies feel only the bodies that are there, not their
+ * periodic images. The x and y kernels are packed as the real and imaginary parts of one complex kernel, transformed
+ * once, so an evaluation costs one forward and one inverse two-dimensional FFT, each done as row transforms then
+ * column transforms in parallel. The accelerations are interpolated back to the bodies with the same cloud-in-cell
+ * weights, which makes the forces between bodies antisymmetric, so momentum is conserved and no body pulls itself.
+ * <br>
+ * Forces are smoothed over about two cells, so the solver suits systems whose structure is much larger than a cell:
+ * plummer spheres, disks and collapses of thousands of bodies. Binaries, close approaches and bodies far from the rest,
+ * which stretch the grid, are better served by the direct sum.
+ */
+class ParticleMesh {
+
+    private double[] masses;
+    private final int size;
+    private final int padded;
+    // Transform of the kernel -d / |d|^3 in grid units, x as the real part and y as the imaginary part
+    private final double[][] kernel;
+    // Mass density on the padded grid, then the accelerations, as real and imaginary parts in row-major order
+    private final double[][] grid;
+    // Transform of the potential kernel -1 / |d| in grid units, made on first use
+    private double[][] potentialKernel;
+    // The grid of the current evaluation: the world position of the corner of cell 0 and the width of a cell
+    private double originX;
+    private double originY;
+    private double cell;
+
+    /**
+     * @param masses The masses of the bodies.
+     * @param size   The number of cells along each side of the grid. Must be a power of two.
+     */
+    ParticleMesh(double[] masses, int size) {
+        if (size < 2 || Integer.bitCount(size) != 1) throw new IllegalArgumentException("Grid size must be a power of two, not " + size);
+        this.masses = masses;
+        this.size = size;
+        padded = 2 * size;
+        kernel = new double[2][padded * padded];
+        for (int row = 0; row < padded; row++) {
+            // Offsets past the middle of the padded grid wrap around to negative offsets
+            int dy = row < size ? row : row - padded;
+            for (int column = 0; column < padded; column++) {
+                int dx = column < size ? column : column - padded;
+                double distanceSquared = dx * dx + dy * dy;
+                if (distanceSquared == 0) continue;
+                double factor = 1 / (distanceSquared * Math.sqrt(distanceSquared));
+                kernel[0][row * padded + column] = -dx * factor;
+                kernel[1][row * padded + column] = -dy * factor;
+            }
+        }
+        transform(kernel, TransformType.FORWARD);
+        grid = new double[2][padded * padded];
+    }
+
+    /**
+     * A solver for the particles of {@link ParticleStore}s, which bring their own masses.
+     *
+     * @param size The number of cells along each side of the grid. Must be a power of two.
+     */
+    ParticleMesh(int size) {
+        this(new double[0], size);
+    }
+
+    int getSize() {
+        return size;
+    }
+
+    /**
+     * Switches to new masses for the same number of bodies, keeping the transformed kernel.
+     */
+    void setMasses(double[] masses) {
+        if (masses.length != this.masses.length) throw new IllegalArgumentException(masses.length + " masses for " + this.masses.length + " bodies");
+        this.masses = masses;
+    }
+
+    /**
+     * Adds the accelerations of all bodies in a state to the acceleration storage.
+     *
+     * @param y             The flattened state.
+     * @param accelerations The x and y acceleration of each body, added to.
+     */
+    void addAccelerations(double[] y, double[][] accelerations) {
+        int count = masses.length;
+        if (count == 0) return;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            minX = Math.min(minX, y[4 * i]);
+            maxX = Math.max(maxX, y[4 * i]);
+            minY = Math.min(minY, y[4 * i + 1]);
+            maxY = Math.max(maxY, y[4 * i + 1]);
+        }
+        if (!span(minX, minY, maxX, maxY)) return;
+
+        clear();
+        for (int i = 0; i < count; i++) deposit(y[4 * i], y[4 * i + 1], masses[i]);
+        convolve(kernel);
+
+        // From grid units: the kernel goes as 1/distance^2
+        double scale = DifferentialEquations.G / (cell * cell);
+        for (int i = 0; i < count; i++) {
+            accelerations[i][0] += scale * interpolate(grid[0], y[4 * i], y[4 * i + 1]);
+            accelerations[i][1] += scale * interpolate(grid[1], y[4 * i], y[4 * i + 1]);
+        }
+    }
+
+    /**
+     * Sets the accelerations of every particle in an off-heap store from its own masses and positions, working on its
+     * columns in place, so nothing on the heap grows with the number of particles. The sums are the same as those of
+     * {@link #addAccelerations(double[], double[][])}; the masses this solver was made with are not used.
+     */
+    void computeAccelerations(ParticleStore store) {
+        DoubleBuffer mass = store.column(ParticleStore.MASS);
+        DoubleBuffer x = store.column(ParticleStore.X);
+        DoubleBuffer y = store.column(ParticleStore.Y);
+        DoubleBuffer ax = store.column(ParticleStore.AX);
+        DoubleBuffer ay = store.column(ParticleStore.AY);
+        int count = store.size();
+        if (!span(store)) {
+            for (int i = 0; i < count; i++) {
+                ax.put(i, 0);
+                ay.put(i, 0);
+            }
+            return;
+        }
+
+        clear();
+        for (int i = 0; i < count; i++) deposit(x.get(i), y.get(i), mass.get(i));
+        convolve(kernel);
+
+        double scale = DifferentialEquations.G / (cell * cell);
+        for (int i = 0; i < count; i++) {
+            ax.put(i, scale * interpolate(grid[0], x.get(i), y.get(i)));
+            ay.put(i, scale * interpolate(grid[1], x.get(i), y.get(i)));
+        }
+    }
+
+    /**
+     * The potential energy of the particles in a store as seen on the grid: half the sum of each mass times the
+     * potential at its position. The pull of each particle's cloud on itself is taken out, since it changes with the
+     * cell size and would swamp the rest for a heavy central body. Costs a transform pair of its own, so it suits
+     * samples rather than steps.
+     */
+    double potentialEnergy(ParticleStore store) {
+        DoubleBuffer mass = store.column(ParticleStore.MASS);
+        DoubleBuffer x = store.column(ParticleStore.X);
+        DoubleBuffer y = store.column(ParticleStore.Y);
+        int count = store.size();
+        if (!span(store)) return 0;
+        if (potentialKernel == null) {
+            // -1 / |d| in grid units, real
+            potentialKernel = new double[2][padded * padded];
+            for (int row = 0; row < padded; row++) {
+                int dy = row < size ? row : row - padded;
+                for (int column = 0; column < padded; column++) {
+                    int dx = column < size ? column : column - padded;
+                    double distanceSquared = dx * dx + dy * dy;
+                    if (distanceSquared != 0) potentialKernel[0][row * padded + column] = -1 / Math.sqrt(distanceSquared);
+                }
+            }
+            transform(potentialKernel, TransformType.FORWARD);
+        }
+
+        clear();
+        for (int i = 0; i < count; i++) deposit(x.get(i), y.get(i), mass.get(i));
+        convolve(potentialKernel);
+
+        double sum = 0;
+        for (int i = 0; i < count; i++) {
+            double m = mass.get(i);
+            sum += m * (interpolate(grid[0], x.get(i), y.get(i)) - m * selfPotential(x.get(i), y.get(i)));
+        }
+        return 0.5 * DifferentialEquations.G / cell * sum;
+    }
+
+    // The potential of a unit mass cloud at its own position, in grid units: its four weights on each other
+    private double selfPotential(double x, double y) {
+        double fx = (x - originX) / cell;
+        double fy = (y - originY) / cell;
+        fx -= (int) fx;
+        fy -= (int) fy;
+        double w00 = (1 - fx) * (1 - fy);
+        double w10 = fx * (1 - fy);
+        double w01 = (1 - fx) * fy;
+        double w11 = fx * fy;
+        double sides = w00 * w10 + w00 * w01 + w10 * w11 + w01 * w11;
+        double diagonals = w00 * w11 + w10 * w01;
+        return -2 * (sides + diagonals / Math.sqrt(2));
+    }
+
+    // The bounding box of a store's particles
+    private boolean span(ParticleStore store) {
+        DoubleBuffer x = store.column(ParticleStore.X);
+        DoubleBuffer y = store.column(ParticleStore.Y);
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < store.size(); i++) {
+            minX = Math.min(minX, x.get(i));
+            maxX = Math.max(maxX, x.get(i));
+            minY = Math.min(minY, y.get(i));
+            maxY = Math.max(maxY, y.get(i));
+        }
+        return span(minX, minY, maxX, maxY);
+    }
+
+    // Spans the grid over a bounding box, or returns false if there is nothing to span
+    private boolean span(double minX, double minY, double maxX, double maxY) {
+        // The last cell is left free, so the cloud of a body on the far edge still fits on the unpadded grid
+        cell = Math.max(maxX - minX, maxY - minY) / (size - 2);
+        originX = minX;
+        originY = minY;
+        return cell != 0 && Double.isFinite(cell);
+    }
+
+    private void clear() {
+        Arrays.fill(grid[0], 0);
+        Arrays.fill(grid[1], 0);
+    }
+
+    // Cloud-in-cell deposit of one body's mass onto the four nearest cells
+    private void deposit(double x, double y, double mass) {
+        double gx = (x - originX) / cell;
+        double gy = (y - originY) / cell;
+        int column = (int) gx;
+        int row = (int) gy;
+        double fx = gx - column;
+        double fy = gy - row;
+        int index = row * padded + column;
+        grid[0][index] += mass * (1 - fx) * (1 - fy);
+        grid[0][index + 1] += mass * fx * (1 - fy);
+        grid[0][index + padded] += mass * (1 - fx) * fy;
+        grid[0][index + padded + 1] += mass * fx * fy;
+    }
+
+    // Convolves the density on the grid with a transformed kernel
+    private void convolve(double[][] transformedKernel) {
+        transform(grid, TransformType.FORWARD);
+        for (int k = 0; k < grid[0].length; k++) {
+            double re = grid[0][k] * transformedKernel[0][k] - grid[1][k] * transformedKernel[1][k];
+            double im = grid[0][k] * transformedKernel[1][k] + grid[1][k] * transformedKernel[0][k];
+            grid[0][k] = re;
+            grid[1][k] = im;
+        }
+        // The density and the kernels are real, so for the force kernel the real part of the result is the x
+        // acceleration and the imaginary part the y acceleration
+        transform(grid, TransformType.INVERSE);
+    }
+
+    // Cloud-in-cell interpolation of one part of the grid at a body, with the weights of its deposit
+    private double interpolate(double[] values, double x, double y) {
+        double gx = (x - originX) / cell;
+        double gy = (y - originY) / cell;
+        int column = (int) gx;
+        int row = (int) gy;
+        double fx = gx - column;
+        double fy = gy - row;
+        int index = row * padded + column;
+        double w00 = (1 - fx) * (1 - fy);
+        double w10 = fx * (1 - fy);
+        double w01 = (1 - fx) * fy;
+        double w11 = fx * fy;
+        return w00 * values[index] + w10 * values[index + 1] + w01 * values[index + padded] + w11 * values[index + padded + 1];
+    }
+
+    // Two-dimensional FFT in place: every row, then every column, each set in parallel
+    private void transform(double[][] data, TransformType type) {
+        IntStream.range(0, padded).parallel().forEach(row -> {
+            double[][] line = new double[2][];
+            line[0] = Arrays.copyOfRange(data[0], row * padded, (row + 1) * padded);
+            line[1] = Arrays.copyOfRange(data[1], row * padded, (row + 1) * padded);
+            FastFourierTransformer.transformInPlace(line, DftNormalization.STANDARD, type);
+            System.arraycopy(line[0], 0, data[0], row * padded, padded);
+            System.arraycopy(line[1], 0, data[1], row * padded, padded);
+        });
+        IntStream.range(0, padded).parallel().forEach(column -> {
+            double[][] line = new double[2][padded];
+            for (int row = 0; row < padded; row++) {
+                line[0][row] = data[0][row * padded + column];
+                line[1][row] = data[1][row * padded + column];
+            }
+            FastFourierTransformer.transformInPlace(line, DftNormalization.STANDARD, type);
+            for (int row = 0; row < padded; row++) {
+                data[0][row * padded + column] = line[0][row];
+                data[1][row * padded + column] = line[1][row];
+            }
+        });
+    }
+}
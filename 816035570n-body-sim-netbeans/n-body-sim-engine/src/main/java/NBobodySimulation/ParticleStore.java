@@ -0,0 +1,237 @@
+package NBobodySimulation;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Off-heap storage for 2D particles, for runs too large to keep as {@code double[]} state vectors or {@code OrbitalBody}
+ * objects.
+ * <br>
+ * Fields are stored as separate columns (all masses, then all x positions, and so on) so readers walk memory
+ * sequentially. Each column is its own direct buffer, either anonymous or memory-mapped onto its part of a file, so heap
+ * usage does not grow with the number of particles and a mapped store doubles as a checkpoint. {@link OffHeapLeapfrog}
+ * integrates a store in place with {@link ParticleMesh} forces; a store can also be filled from a frame of an
+ * {@link IntegrationSession} with {@link #copyFrom(double, double[], double[], double[])}.
+ * <br>
+ * File layout: a {@value #HEADER_BYTES} byte header (magic, particle count, simulation time) followed by the
+ * {@value #COLUMNS} columns of little-endian doubles. A buffer is indexed by int, which limits a column to 2 GB and so a
+ * store to {@value #MAX_PARTICLES} particles; larger counts are refused with an {@link IllegalArgumentException}.
+ */
+public class ParticleStore {
+
+    private static final long MAGIC = 0x4e424f4459535431L; // "NBODYST1"
+    private static final int HEADER_BYTES = 32;
+    private static final int COLUMNS = 7;
+
+    /**
+     * The most particles one store holds, so that each column fits in one 2 GB buffer.
+     */
+    public static final int MAX_PARTICLES = Integer.MAX_VALUE / Double.BYTES;
+
+    static final int MASS = 0;
+    static final int X = 1;
+    static final int Y = 2;
+    static final int VX = 3;
+    static final int VY = 4;
+    static final int AX = 5;
+    static final int AY = 6;
+
+    private final int count;
+    private final ByteBuffer header;
+    private final ByteBuffer[] buffers = new ByteBuffer[COLUMNS];
+    private final DoubleBuffer[] columns = new DoubleBuffer[COLUMNS];
+
+    private ParticleStore(ByteBuffer header, ByteBuffer[] buffers, int count) {
+        this.header = header.order(ByteOrder.LITTLE_ENDIAN);
+        this.count = count;
+        for (int c = 0; c < COLUMNS; c++) {
+            this.buffers[c] = buffers[c];
+            columns[c] = buffers[c].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+    }
+
+    private static long columnBytes(int count) {
+        if (count < 0 || count > MAX_PARTICLES) {
+            throw new IllegalArgumentException("Invalid particle count '" + count + "' for a single off-heap store, at most " + MAX_PARTICLES);
+        }
+        return (long) count * Double.BYTES;
+    }
+
+    /**
+     * Allocates an anonymous off-heap store with every field zeroed.
+     *
+     * @param count The number of particles, at most {@value #MAX_PARTICLES}.
+     */
+    public static ParticleStore allocate(int count) {
+        int bytes = (int) columnBytes(count);
+        ByteBuffer[] buffers = new ByteBuffer[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) buffers[c] = ByteBuffer.allocateDirect(bytes);
+        ParticleStore store = new ParticleStore(ByteBuffer.allocateDirect(HEADER_BYTES), buffers, count);
+        store.writeHeader();
+        return store;
+    }
+
+    /**
+     * Creates (or overwrites) a store mapped onto a file. Writes to the store go to the file.
+     *
+     * @param count The number of particles, at most {@value #MAX_PARTICLES}.
+     */
+    public static ParticleStore create(Path file, int count) throws IOException {
+        long bytes = columnBytes(count);
+        SimulationEvents.Checkpoint event = new SimulationEvents.Checkpoint();
+        event.begin();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ParticleStore store = map(channel, count);
+            store.writeHeader();
+            return store;
+        } finally {
+            commit(event, "create", file, HEADER_BYTES + COLUMNS * bytes);
+        }
+    }
+
+    /**
+     * Maps an existing checkpoint file written by a store from {@link #create(Path, int)}.
+     */
+    public static ParticleStore open(Path file) throws IOException {
+        SimulationEvents.Checkpoint event = new SimulationEvents.Checkpoint();
+        event.begin();
+        long size = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining() && channel.read(header) >= 0) ;
+            header.flip();
+            if (header.remaining() < HEADER_BYTES || header.getLong(0) != MAGIC) throw new IOException("Not a particle store: " + file);
+            int count = header.getInt(8);
+            if (count < 0 || count > MAX_PARTICLES) throw new IOException("Invalid particle count '" + count + "' in particle store: " + file);
+            size = HEADER_BYTES + COLUMNS * columnBytes(count);
+            if (channel.size() < size) throw new IOException("Truncated particle store: " + file);
+            return map(channel, count);
+        } finally {
+            commit(event, "open", file, size);
+        }
+    }
+
+    // One mapping for the header and one per column, since a single mapping is limited to 2 GB
+    private static ParticleStore map(FileChannel channel, int count) throws IOException {
+        long bytes = columnBytes(count);
+        ByteBuffer[] buffers = new ByteBuffer[COLUMNS];
+        for (int c = 0; c < COLUMNS; c++) buffers[c] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + c * bytes, bytes);
+        return new ParticleStore(channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES), buffers, count);
+    }
+
+    private static void commit(SimulationEvents.Checkpoint event, String operation, Path file, long bytes) {
+        if (!event.shouldCommit()) return;
+        event.operation = operation;
+        event.path = file == null ? null : file.toString();
+        event.bytes = bytes;
+        event.commit();
+    }
+
+    private void writeHeader() {
+        header.putLong(0, MAGIC);
+        header.putInt(8, count);
+    }
+
+    /**
+     * Writes any changes of a file-backed store to disk. Does nothing for anonymous stores.
+     */
+    public void flush() {
+        if (!(header instanceof MappedByteBuffer)) return;
+        SimulationEvents.Checkpoint event = new SimulationEvents.Checkpoint();
+        event.begin();
+        ((MappedByteBuffer) header).force();
+        long bytes = HEADER_BYTES;
+        for (ByteBuffer buffer : buffers) {
+            ((MappedByteBuffer) buffer).force();
+            bytes += buffer.capacity();
+        }
+        commit(event, "flush", null, bytes);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public double getTime() {
+        return header.getDouble(16);
+    }
+
+    public void setTime(double time) {
+        header.putDouble(16, time);
+    }
+
+    /**
+     * One field of every particle, such as {@link #X}, for kernels that work on the store directly. Absolute gets and
+     * puts only, so threads can share it as long as they touch different particles.
+     */
+    DoubleBuffer column(int field) {
+        return columns[field];
+    }
+
+    public double getMass(int i) {
+        return columns[MASS].get(i);
+    }
+
+    public double[] getPosition(int i) {
+        return new double[]{columns[X].get(i), columns[Y].get(i)};
+    }
+
+    public double[] getVelocity(int i) {
+        return new double[]{columns[VX].get(i), columns[VY].get(i)};
+    }
+
+    public double[] getAcceleration(int i) {
+        return new double[]{columns[AX].get(i), columns[AY].get(i)};
+    }
+
+    public void set(int i, double mass, double x, double y, double vx, double vy) {
+        columns[MASS].put(i, mass);
+        columns[X].put(i, x);
+        columns[Y].put(i, y);
+        columns[VX].put(i, vx);
+        columns[VY].put(i, vy);
+    }
+
+    /**
+     * Fills the store from a flattened state vector and masses, in the layout used by {@link DifferentialEquations}.
+     */
+    public void copyFrom(double[] flatBodies, double[] masses) {
+        if (masses.length != count) throw new IllegalArgumentException("Mass array length does not match store size => " + masses.length + " != " + count);
+        for (int i = 0; i < count; i++) {
+            set(i, masses[i], flatBodies[4 * i], flatBodies[4 * i + 1], flatBodies[4 * i + 2], flatBodies[4 * i + 3]);
+        }
+    }
+
+    /**
+     * Copies positions and velocities out into a flattened state vector. Allocates on the heap, so only for small stores.
+     */
+    public double[] toFlatBodies() {
+        double[] flatBodies = new double[4 * count];
+        for (int i = 0; i < count; i++) {
+            flatBodies[4 * i] = columns[X].get(i);
+            flatBodies[4 * i + 1] = columns[Y].get(i);
+            flatBodies[4 * i + 2] = columns[VX].get(i);
+            flatBodies[4 * i + 3] = columns[VY].get(i);
+        }
+        return flatBodies;
+    }
+
+    /**
+     * Fills the store from one frame of a run: the flattened state, its time derivative for the accelerations, the
+     * masses and the time, in the layout used by {@link DifferentialEquations}.
+     */
+    public void copyFrom(double time, double[] flatBodies, double[] derivatives, double[] masses) {
+        copyFrom(flatBodies, masses);
+        for (int i = 0; i < count; i++) {
+            columns[AX].put(i, derivatives[4 * i + 2]);
+            columns[AY].put(i, derivatives[4 * i + 3]);
+        }
+        setTime(time);
+    }
+}
@@ -0,0 +1,256 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.AbstractIntegrator;
+import org.apache.commons.math3.ode.FirstOrderDifferentialEquations;
+import org.apache.commons.math3.ode.events.EventHandler;
+
+import java.util.Arrays;
+
+/**
+ * The equations of motion of the whole system with one close pair in Levi-Civita coordinates, the two dimensional
+ * form of Kustaanheimo-Stiefel regularization.
+ * <br>
+ * The separation of the pair, as a complex number z, is written as the square of u, and the independent variable is a
+ * fictitious time s with dt = r ds, where r = |z| = |u|^2. In these variables the unperturbed pair is a harmonic
+ * oscillator, u'' = (h / 2) u, with no singularity at r = 0, so the integrator keeps large steps through pericenter.
+ * The rest of the system, the pair's attraction to it, and the Kepler energy h are integrated alongside:
+ * <pre>
+ * u''  = (h / 2) u + (r / 2) conj(u) P
+ * h'   = 2 Re(conj(u u') P)
+ * t'   = r
+ * </pre>
+ * where P is the difference between the accelerations the rest of the system gives the two bodies.
+ * <br>
+ * State layout: the flattened state of {@link DifferentialEquations}, except that the first body's slot holds the
+ * pair's center of mass and the second body's slot holds u and u', followed by h and t.
+ * <br>
+ * The rest of the system is always evaluated by the direct sum, which can leave the pair out exactly; a
+ * {@link ParticleMesh} cannot, so close pairs are only regularized when the session uses the direct sum.
+ */
+class RegularizedPair implements FirstOrderDifferentialEquations {
+
+    // Switching functions are sampled this many times per oscillation of u, or per segment for an unbound pair
+    private static final int CHECKS_PER_PERIOD = 16;
+    private static final int MAX_ITERATIONS = 100;
+
+    private final double[] masses;
+    private final int first;
+    private final int second;
+    private final double pairMass;
+    private final double mu;
+    // The equations for the physical bodies, without the attraction inside the pair
+    private final DifferentialEquations external;
+    private final double[] physical;
+    private final double[] physicalDot;
+    private final double[] eventState;
+    private final int energyIndex;
+    private final int timeIndex;
+
+    /**
+     * @param masses          The masses of the bodies.
+     * @param first           The index of one body of the pair.
+     * @param second          The index of the other body of the pair.
+     * @param singlePrecision Whether the forces from the rest of the system are evaluated in mixed precision.
+     */
+    RegularizedPair(double[] masses, int first, int second, boolean singlePrecision) {
+        this.masses = masses;
+        this.first = Math.min(first, second);
+        this.second = Math.max(first, second);
+        this.pairMass = masses[this.first] + masses[this.second];
+        if (pairMass <= 0) throw new IllegalArgumentException("Cannot regularize a pair without mass");
+        this.mu = DifferentialEquations.G * pairMass;
+        external = new DifferentialEquations(masses);
+        external.setSinglePrecision(singlePrecision);
+        external.excludePair(this.first, this.second);
+        physical = new double[4 * masses.length];
+        physicalDot = new double[4 * masses.length];
+        eventState = new double[4 * masses.length];
+        energyIndex = 4 * masses.length;
+        timeIndex = energyIndex + 1;
+    }
+
+    int getFirst() {
+        return first;
+    }
+
+    int getSecond() {
+        return second;
+    }
+
+    @Override
+    public int getDimension() {
+        return 4 * masses.length + 2;
+    }
+
+    /**
+     * Converts a flattened physical state to regularized variables.
+     */
+    double[] regularize(double[] state, double time) {
+        double[] y = Arrays.copyOf(state, getDimension());
+        int a = 4 * first;
+        int b = 4 * second;
+        double m1 = masses[first] / pairMass;
+        double m2 = masses[second] / pairMass;
+        for (int k = 0; k < 4; k++) y[a + k] = m1 * state[a + k] + m2 * state[b + k];
+
+        double zx = state[b] - state[a];
+        double zy = state[b + 1] - state[a + 1];
+        double vx = state[b + 2] - state[a + 2];
+        double vy = state[b + 3] - state[a + 3];
+        double r = Math.hypot(zx, zy);
+        // Principal square root of z
+        double u1 = Math.sqrt((r + zx) / 2);
+        double u2 = Math.copySign(Math.sqrt(Math.max(0, (r - zx) / 2)), zy);
+        y[b] = u1;
+        y[b + 1] = u2;
+        // u' = v conj(u) / 2
+        y[b + 2] = (vx * u1 + vy * u2) / 2;
+        y[b + 3] = (vy * u1 - vx * u2) / 2;
+        y[energyIndex] = (vx * vx + vy * vy) / 2 - mu / r;
+        y[timeIndex] = time;
+        return y;
+    }
+
+    /**
+     * Converts regularized variables back to a flattened physical state.
+     */
+    void toPhysical(double[] y, double[] state) {
+        System.arraycopy(y, 0, state, 0, 4 * masses.length);
+        int a = 4 * first;
+        int b = 4 * second;
+        double u1 = y[b];
+        double u2 = y[b + 1];
+        double w1 = y[b + 2];
+        double w2 = y[b + 3];
+        double r = u1 * u1 + u2 * u2;
+        // z = u^2 and dz/dt = 2 u' u / r
+        double zx = u1 * u1 - u2 * u2;
+        double zy = 2 * u1 * u2;
+        double vx = 2 * (w1 * u1 - w2 * u2) / r;
+        double vy = 2 * (w1 * u2 + w2 * u1) / r;
+        double[] center = {y[a], y[a + 1], y[a + 2], y[a + 3]};
+        double[] relative = {zx, zy, vx, vy};
+        double m1 = masses[first] / pairMass;
+        double m2 = masses[second] / pairMass;
+        for (int k = 0; k < 4; k++) {
+            state[a + k] = center[k] - m2 * relative[k];
+            state[b + k] = center[k] + m1 * relative[k];
+        }
+    }
+
+    double time(double[] y) {
+        return y[timeIndex];
+    }
+
+    double separation(double[] y) {
+        int b = 4 * second;
+        return y[b] * y[b] + y[b + 1] * y[b + 1];
+    }
+
+    @Override
+    public void computeDerivatives(double s, double[] y, double[] yDot) {
+        toPhysical(y, physical);
+        external.computeDerivatives(y[timeIndex], physical, physicalDot);
+        double r = separation(y);
+
+        // Everything outside the pair, and the pair's center of mass, just moves on the slower clock
+        for (int i = 0; i < 4 * masses.length; i++) yDot[i] = r * physicalDot[i];
+        int a = 4 * first;
+        int b = 4 * second;
+        double m1 = masses[first] / pairMass;
+        double m2 = masses[second] / pairMass;
+        yDot[a] = r * y[a + 2];
+        yDot[a + 1] = r * y[a + 3];
+        yDot[a + 2] = r * (m1 * physicalDot[a + 2] + m2 * physicalDot[b + 2]);
+        yDot[a + 3] = r * (m1 * physicalDot[a + 3] + m2 * physicalDot[b + 3]);
+
+        double px = physicalDot[b + 2] - physicalDot[a + 2];
+        double py = physicalDot[b + 3] - physicalDot[a + 3];
+        double u1 = y[b];
+        double u2 = y[b + 1];
+        double w1 = y[b + 2];
+        double w2 = y[b + 3];
+        double h = y[energyIndex];
+        yDot[b] = w1;
+        yDot[b + 1] = w2;
+        // conj(u) P
+        yDot[b + 2] = h / 2 * u1 + r / 2 * (u1 * px + u2 * py);
+        yDot[b + 3] = h / 2 * u2 + r / 2 * (u1 * py - u2 * px);
+        // u u', then the real part of its conjugate times P
+        double uw1 = u1 * w1 - u2 * w2;
+        double uw2 = u1 * w2 + u2 * w1;
+        yDot[energyIndex] = 2 * (uw1 * px + uw2 * py);
+        yDot[timeIndex] = r;
+    }
+
+    /**
+     * Replaces the event handlers of an integrator with ones that stop it when the physical time reaches an end time,
+     * when the pair flies apart beyond a distance while unbound, and when any other pair comes within the close
+     * approach distance. A bound pair is kept regularized through its apocenter, so a hard binary is not switched back
+     * and forth every orbit; it is released at the end of the segment if it is then no longer close.
+     *
+     * @param y The regularized state the integration starts from, which sets the scale of fictitious time.
+     */
+    void registerWith(AbstractIntegrator integrator, double[] y, double endTime, double separatedDistance,
+                      double closeApproachDistance) {
+        // A bound pair oscillates in u with period 2 pi / sqrt(-h / 2); the separation must be sampled finer than that
+        double h = y[energyIndex];
+        double span = (endTime - time(y)) / separation(y);
+        double checkInterval = (h < 0 ? Math.min(span, 2 * Math.PI / Math.sqrt(-h / 2)) : span) / CHECKS_PER_PERIOD;
+        double convergence = checkInterval * 1e-9;
+        integrator.clearEventHandlers();
+        integrator.addEventHandler(new Stop() {
+            @Override
+            public double g(double s, double[] y) {
+                return time(y) - endTime;
+            }
+        }, checkInterval, convergence, MAX_ITERATIONS);
+        integrator.addEventHandler(new Stop() {
+            @Override
+            public double g(double s, double[] y) {
+                return separation(y) - separatedDistance;
+            }
+
+            @Override
+            public Action eventOccurred(double s, double[] y, boolean increasing) {
+                return increasing && y[energyIndex] >= 0 ? Action.STOP : Action.CONTINUE;
+            }
+        }, checkInterval, convergence, MAX_ITERATIONS);
+        integrator.addEventHandler(new Stop() {
+            @Override
+            public double g(double s, double[] y) {
+                return otherSeparation(y) - closeApproachDistance;
+            }
+        }, checkInterval, convergence, MAX_ITERATIONS);
+    }
+
+    // The smallest separation between two bodies other than the regularized pair
+    private double otherSeparation(double[] y) {
+        toPhysical(y, eventState);
+        double minimum = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < masses.length; i++) {
+            for (int j = i + 1; j < masses.length; j++) {
+                if (i == first && j == second) continue;
+                double dx = eventState[4 * j] - eventState[4 * i];
+                double dy = eventState[4 * j + 1] - eventState[4 * i + 1];
+                minimum = Math.min(minimum, dx * dx + dy * dy);
+            }
+        }
+        return Math.sqrt(minimum);
+    }
+
+    private abstract static class Stop implements EventHandler {
+        @Override
+        public void init(double s0, double[] y0, double s) {
+        }
+
+        @Override
+        public Action eventOccurred(double s, double[] y, boolean increasing) {
+            return Action.STOP;
+        }
+
+        @Override
+        public void resetState(double s, double[] y) {
+        }
+    }
+}
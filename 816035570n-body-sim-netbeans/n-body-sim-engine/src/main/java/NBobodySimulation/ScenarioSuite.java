@@ -0,0 +1,331 @@
+package NBobodySimulation;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * End-to-end benchmark of realistic runs. Each scenario goes through the same pipeline as the simulation window, an
+ * {@link IntegrationSession} sampled frame by frame with {@link SystemStatistics} computed on every frame, but without
+ * waiting for the frame rate or drawing.
+ * <br>
+ * For each scenario the suite records wall time, body-steps per second (bodies times frames, per second), peak heap,
+ * GC time and the largest relative energy error of any frame, and writes them as CSV. Given a baseline report, it
+ * compares throughput and energy error against it and exits with status 1 if either got worse by more than the
+ * threshold. A report can be used as a baseline as it is, so a new baseline is made by copying a report over it:
+ * <pre>
+ * java -cp target/n-body-sim-engine.jar NBobodySimulation.ScenarioSuite --quick --report target/scenarios.csv --baseline ~/.n-body-sim/scenario-baseline-quick.csv
+ * </pre>
+ * Options: {@code --quick} for the reduced sizes, {@code --runs n} (default 3, after one warm-up run; the run with the
+ * median wall time is reported), {@code --report file} (default standard output), {@code --baseline file}, {@code --threshold fraction}
+ * (default 0.3), followed by the names of the scenarios to run (default all).
+ * <br>
+ * Throughput baselines only mean something on the machine they were recorded on, so each machine keeps its own: if
+ * the baseline file does not exist yet, the first report is recorded there and nothing is compared. A baseline
+ * recorded with a different number of processors is compared for energy error and completion only. The default
+ * threshold is wider than the run to run spread of about 15% seen on a single processor machine.
+ */
+public class ScenarioSuite {
+
+    private static final String CSV_HEADER = "scenario,bodies,frames,wallSeconds,bodyStepsPerSecond,peakHeapMB,gcMillis,maxEnergyError,completed,processors";
+    private static final double DEFAULT_THRESHOLD = 0.3;
+    // Energy errors below this are round-off and are not compared
+    private static final double ENERGY_ERROR_FLOOR = 1e-12;
+
+    /**
+     * One benchmark run: a system, how long to run it, and the settings of the session.
+     */
+    private static class Scenario implements IntegrationSettings {
+        private final String name;
+        private final InitialConditions conditions;
+        private final double frameInterval;
+        private final int frames;
+        private final double closeApproachDistance;
+        private final boolean wisdomHolman;
+        private final int particleMeshSize;
+
+        Scenario(String name, InitialConditions conditions, double frameInterval, int frames, double closeApproachDistance,
+                 boolean wisdomHolman, int particleMeshSize) {
+            this.name = name + "-" + conditions.size();
+            this.conditions = conditions;
+            this.frameInterval = frameInterval;
+            this.frames = frames;
+            this.closeApproachDistance = closeApproachDistance;
+            this.wisdomHolman = wisdomHolman;
+            this.particleMeshSize = particleMeshSize;
+        }
+
+        @Override
+        public double getFrameInterval() {
+            return frameInterval;
+        }
+
+        @Override
+        public boolean recenterOnCenterOfMass() {
+            return false;
+        }
+
+        @Override
+        public double getCloseApproachDistance() {
+            return closeApproachDistance;
+        }
+
+        @Override
+        public double getEscapeRadius() {
+            return 0;
+        }
+
+        @Override
+        public double getBoundary() {
+            return 0;
+        }
+
+        @Override
+        public boolean useWisdomHolman() {
+            return wisdomHolman;
+        }
+    }
+
+    private static class Result {
+        String scenario;
+        int bodies;
+        int frames;
+        double wallSeconds;
+        double bodyStepsPerSecond;
+        double peakHeapMB;
+        long gcMillis;
+        double maxEnergyError;
+        boolean completed;
+        int processors;
+
+        String toCsv() {
+            return String.format(Locale.ROOT, "%s,%d,%d,%.3f,%.1f,%.1f,%d,%.3e,%b,%d", scenario, bodies, frames, wallSeconds,
+                    bodyStepsPerSecond, peakHeapMB, gcMillis, maxEnergyError, completed, processors);
+        }
+
+        static Result fromCsv(String line) {
+            String[] fields = line.split(",");
+            Result result = new Result();
+            result.scenario = fields[0];
+            result.bodies = Integer.parseInt(fields[1]);
+            result.frames = Integer.parseInt(fields[2]);
+            result.wallSeconds = Double.parseDouble(fields[3]);
+            result.bodyStepsPerSecond = Double.parseDouble(fields[4]);
+            result.peakHeapMB = Double.parseDouble(fields[5]);
+            result.gcMillis = Long.parseLong(fields[6]);
+            result.maxEnergyError = Double.parseDouble(fields[7]);
+            result.completed = Boolean.parseBoolean(fields[8]);
+            result.processors = Integer.parseInt(fields[9]);
+            return result;
+        }
+    }
+
+    /**
+     * The scenarios, at full size or at the reduced quick size.
+     */
+    private static List<Scenario> scenarios(boolean quick) {
+        List<Scenario> scenarios = new ArrayList<>();
+        // The bodies of the three presets in Runner; the presets only differ in colour, so one run covers them all
+        InitialConditions preset = InitialConditions.fromState(
+                new double[]{150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10}, new double[]{3, 3, 3});
+        // Runner's default speed and frame rate. Two of the bodies pass within a fraction of a unit at t~188, which
+        // stalls Dormand-Prince at its minimum step unless the close approach is regularized.
+        scenarios.add(new Scenario("presets", preset, 1.0 / 144, quick ? 20_000 : 1_000_000, 5, false, 0));
+        scenarios.add(new Scenario("plummer", InitialConditions.plummerSphere(quick ? 200 : 10_000, 1e6, 100, 1),
+                1e-6, quick ? 200 : 10, 0, false, 0));
+        // Collapses in about 0.55 time units; the close approach distance brings in the encounter integrator
+        scenarios.add(new Scenario("coldCollapse", InitialConditions.coldCollapse(quick ? 30 : 1000, 1e4, 1000, 0.1, 1),
+                0.006, 100, 1, false, 0));
+        // A planetary system, once with Dormand-Prince and once with the Wisdom-Holman mapping. The innermost orbit
+        // takes about 0.01 time units, so a frame covers a hundred of them.
+        InitialConditions planets = InitialConditions.keplerRing(quick ? 8 : 100, 1e6, quick ? 8 : 100, 100, 1000, 1);
+        scenarios.add(new Scenario("planets", planets, 1, quick ? 200 : 10_000, 0, false, 0));
+        scenarios.add(new Scenario("planetsWH", planets, 1, quick ? 200 : 10_000, 0, true, 0));
+        // A plummer sphere too large for the direct sum, on a particle-mesh grid
+        scenarios.add(new Scenario("plummerPM", InitialConditions.plummerSphere(quick ? 5000 : 100_000, 1e6, 100, 1),
+                1e-6, quick ? 20 : 10, 0, false, 128));
+        // Four planets in a field of massless debris, which only costs the pulls of the planets and the central mass
+        scenarios.add(new Scenario("debris", InitialConditions.debrisField(4, quick ? 2000 : 100_000, 1e6, 250, 100, 200, 1),
+                1e-3, quick ? 10 : 100, 0, false, 0));
+        return scenarios;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean quick = false;
+        int runs = 3;
+        String reportFile = null;
+        String baselineFile = null;
+        double threshold = DEFAULT_THRESHOLD;
+        List<String> selected = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--quick":
+                    quick = true;
+                    break;
+                case "--runs":
+                    runs = Integer.parseInt(args[++i]);
+                    break;
+                case "--report":
+                    reportFile = args[++i];
+                    break;
+                case "--baseline":
+                    baselineFile = args[++i];
+                    break;
+                case "--threshold":
+                    threshold = Double.parseDouble(args[++i]);
+                    break;
+                default:
+                    selected.add(args[i]);
+            }
+        }
+
+        List<Result> results = new ArrayList<>();
+        for (Scenario scenario : scenarios(quick)) {
+            if (!selected.isEmpty() && selected.stream().noneMatch(scenario.name::startsWith)) continue;
+            // Lets the JIT compile the hot paths of this scenario before anything is measured
+            run(scenario);
+            Result[] attempts = new Result[runs];
+            for (int run = 0; run < runs; run++) {
+                attempts[run] = run(scenario);
+                System.err.println(attempts[run].toCsv());
+            }
+            Arrays.sort(attempts, Comparator.comparingDouble(result -> result.wallSeconds));
+            results.add(attempts[runs / 2]);
+        }
+        if (results.isEmpty()) {
+            System.err.println("No scenario matches " + selected);
+            System.exit(1);
+        }
+
+        List<String> lines = new ArrayList<>();
+        lines.add(CSV_HEADER);
+        for (Result result : results) lines.add(result.toCsv());
+        if (reportFile == null) {
+            lines.forEach(System.out::println);
+        } else {
+            Path path = Paths.get(reportFile);
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            Files.write(path, lines, StandardCharsets.UTF_8);
+        }
+
+        if (baselineFile == null) return;
+        Path baseline = Paths.get(baselineFile);
+        if (!Files.exists(baseline)) {
+            if (baseline.getParent() != null) Files.createDirectories(baseline.getParent());
+            Files.write(baseline, lines, StandardCharsets.UTF_8);
+            System.out.println("No baseline yet, recorded this run as the baseline of this machine in " + baseline);
+        } else if (!compare(results, readReport(baseline), threshold, System.out)) {
+            System.exit(1);
+        }
+    }
+
+    private static Map<String, Result> readReport(Path path) throws IOException {
+        Map<String, Result> report = new HashMap<>();
+        for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+            if (line.isEmpty() || line.equals(CSV_HEADER)) continue;
+            Result result = Result.fromCsv(line);
+            report.put(result.scenario, result);
+        }
+        return report;
+    }
+
+    /**
+     * Prints how each result compares to its baseline.
+     *
+     * @return False if any scenario regressed by more than the threshold.
+     */
+    private static boolean compare(List<Result> results, Map<String, Result> baseline, double threshold, PrintStream out) {
+        boolean passed = true;
+        for (Result result : results) {
+            Result base = baseline.get(result.scenario);
+            if (base == null) {
+                out.println(result.scenario + ": no baseline");
+                continue;
+            }
+            double change = result.bodyStepsPerSecond / base.bodyStepsPerSecond - 1;
+            // Throughput from another machine says nothing about this one
+            boolean sameMachine = base.processors == result.processors;
+            boolean slower = sameMachine && change < -threshold;
+            boolean lessAccurate = result.maxEnergyError > Math.max(base.maxEnergyError, ENERGY_ERROR_FLOOR) * (1 + threshold);
+            boolean failed = base.completed && !result.completed;
+            out.printf(Locale.ROOT, "%s: %.1f body-steps/s (%+.1f%%%s), energy error %.3e (baseline %.3e)%s%n", result.scenario,
+                    result.bodyStepsPerSecond, 100 * change, sameMachine ? "" : ", not compared, baseline has " + base.processors + " processors",
+                    result.maxEnergyError, base.maxEnergyError,
+                    failed ? " ENDED EARLY" : slower || lessAccurate ? " REGRESSION" : "");
+            if (slower || lessAccurate || failed) passed = false;
+        }
+        return passed;
+    }
+
+    private static Result run(Scenario scenario) throws InterruptedException {
+        List<MemoryPoolMXBean> heapPools = new ArrayList<>();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) heapPools.add(pool);
+        }
+        // Leftovers of the previous run should not count towards this one
+        System.gc();
+        for (MemoryPoolMXBean pool : heapPools) pool.resetPeakUsage();
+        long gcBefore = gcMillis();
+
+        double[] masses = scenario.conditions.getMasses();
+        double[] state = scenario.conditions.getFlatBodies().clone();
+        double initialEnergy = SystemStatistics.compute(state, masses).getTotalEnergy();
+        Result result = new Result();
+        result.scenario = scenario.name;
+        result.bodies = masses.length;
+        result.processors = Runtime.getRuntime().availableProcessors();
+        long bodySteps = 0;
+
+        long start = System.nanoTime();
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        differentialEquations.setParticleMesh(scenario.particleMeshSize);
+        IntegrationSession session = new IntegrationSession(scenario, differentialEquations, masses, state, 0);
+        session.start();
+        try {
+            while (result.frames < scenario.frames) {
+                IntegrationSession.Frame frame = session.nextFrame();
+                if (frame.isBodyChange()) continue;
+                if (frame.isEnd()) break;
+                SystemStatistics statistics = SystemStatistics.compute(frame.getState(), frame.getMasses());
+                double error = Math.abs((statistics.getTotalEnergy() - initialEnergy) / initialEnergy);
+                result.maxEnergyError = Math.max(result.maxEnergyError, error);
+                bodySteps += frame.getMasses().length;
+                result.frames++;
+            }
+        } finally {
+            session.close();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        result.completed = result.frames == scenario.frames;
+        result.wallSeconds = elapsed / 1e9;
+        result.bodyStepsPerSecond = bodySteps / result.wallSeconds;
+        long peak = 0;
+        for (MemoryPoolMXBean pool : heapPools) peak += pool.getPeakUsage().getUsed();
+        result.peakHeapMB = peak / (1024.0 * 1024.0);
+        result.gcMillis = gcMillis() - gcBefore;
+        return result;
+    }
+
+    private static long gcMillis() {
+        long total = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, collector.getCollectionTime());
+        }
+        return total;
+    }
+}
@@ -0,0 +1,162 @@
+package NBobodySimulation;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events for each phase of the simulation, so a recording shows what the simulation was doing
+ * next to the CPU samples, allocations and GC pauses. They show up under "N-Body Simulation" in JDK Mission Control:
+ * <pre>
+ * java -XX:StartFlightRecording:filename=run.jfr ...
+ * jfr print --categories "N-Body Simulation" run.jfr
+ * </pre>
+ * Unless a recording is running and has the event enabled, {@code begin()} and {@code commit()} do nothing, and the JIT
+ * removes the event object. Fields that take work to fill are only filled after {@code shouldCommit()}.
+ * <br>
+ * The derivative and integrator step events fire many times a frame, so they record no stack trace.
+ */
+final class SimulationEvents {
+
+    private static final String CATEGORY = "N-Body Simulation";
+
+    private SimulationEvents() {
+    }
+
+    @Name("NBobodySimulation.Step")
+    @Label("Simulation Step")
+    @Description("One frame of the simulation thread: taking the frame, statistics, listeners and the draw request")
+    @Category(CATEGORY)
+    static class Step extends Event {
+        @Label("Simulation Time")
+        double simulationTime;
+
+        @Label("Bodies")
+        int bodies;
+    }
+
+    @Name("NBobodySimulation.Derivatives")
+    @Label("Derivatives")
+    @Description("One evaluation of the gravitational accelerations")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class Derivatives extends Event {
+        @Label("Bodies")
+        int bodies;
+
+        @Label("Single Precision")
+        boolean singlePrecision;
+
+        @Label("Particle Mesh Size")
+        @Description("Grid cells along each side of the particle-mesh solver, 0 for the direct sum")
+        int particleMeshSize;
+
+        @Label("Test Particles")
+        @Description("Massless bodies, pulled by the others but pulling on nothing")
+        int testParticles;
+    }
+
+    @Name("NBobodySimulation.IntegratorStep")
+    @Label("Integrator Step")
+    @Description("One step attempt of the integrator, accepted or rejected by its error estimate")
+    @Category(CATEGORY)
+    @StackTrace(false)
+    static class IntegratorStep extends Event {
+        @Label("Integrator")
+        String integrator;
+
+        @Label("Step Start")
+        double time;
+
+        @Label("Step Size")
+        double stepSize;
+
+        @Label("Error")
+        @Description("Error estimate relative to the tolerance; the step is rejected at 1 or more. NaN if the integrator does not report it.")
+        double error;
+
+        @Label("Accepted")
+        boolean accepted;
+    }
+
+    @Name("NBobodySimulation.BodyChange")
+    @Label("Body Change")
+    @Description("The session changing its bodies between segments: commands applied, bodies lost to escapes or the boundary, or a reorder")
+    @Category(CATEGORY)
+    static class BodyChange extends Event {
+        @Label("Cause")
+        @Description("Commands, Lost or Reorder")
+        String cause;
+
+        @Label("Simulation Time")
+        double simulationTime;
+
+        @Label("Changes")
+        @Description("Commands applied or bodies lost")
+        int changes;
+
+        @Label("Bodies")
+        @Description("Bodies left after the change")
+        int bodies;
+    }
+
+    @Name("NBobodySimulation.CloseApproach")
+    @Label("Close Approach")
+    @Description("Integrating one close pair in regularized coordinates, until it separates, another pair closes in or the segment ends")
+    @Category(CATEGORY)
+    static class CloseApproach extends Event {
+        @Label("Start Time")
+        double startTime;
+
+        @Label("End Time")
+        double endTime;
+
+        @Label("First Body")
+        @Description("Id of the body of the pair that comes first in the state vector")
+        int first;
+
+        @Label("Second Body")
+        int second;
+    }
+
+    @Name("NBobodySimulation.UpdateBodies")
+    @Label("Update Bodies")
+    @Description("Copying the state vector back into the bodies")
+    @Category(CATEGORY)
+    static class UpdateBodies extends Event {
+        @Label("Bodies")
+        int bodies;
+    }
+
+    @Name("NBobodySimulation.Draw")
+    @Label("Draw")
+    @Description("Drawing one frame on the JavaFX thread")
+    @Category(CATEGORY)
+    static class Draw extends Event {
+        @Label("Bodies")
+        int bodies;
+
+        @Label("Density Map")
+        boolean density;
+    }
+
+    @Name("NBobodySimulation.Checkpoint")
+    @Label("Checkpoint I/O")
+    @Description("Creating, opening or flushing a file-backed particle store")
+    @Category(CATEGORY)
+    static class Checkpoint extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Path")
+        String path;
+
+        @Label("Size")
+        @DataAmount(DataAmount.BYTES)
+        long bytes;
+    }
+}
@@ -0,0 +1,103 @@
+package NBobodySimulation;
+
+import java.util.Arrays;
+import java.util.function.IntConsumer;
+
+/**
+ * A uniform grid over the bodies of one frame, for finding the bodies inside a rectangle without testing every body.
+ * <br>
+ * Bodies are bucketed by cell with a counting sort into two flat arrays, reading the positions straight from the
+ * flattened state, so no positions are copied. The grid has about one cell per body, and a query only visits the cells
+ * that overlap the rectangle. A grid is built once per frame, when the frame arrives, and never changes after that, so
+ * it can be queried from another thread while the next frame's grid is built.
+ */
+class SpatialGrid {
+
+    private final double[] state;
+    private final int count;
+    private final int columns;
+    private final int rows;
+    private final double minX;
+    private final double minY;
+    private final double cellWidth;
+    private final double cellHeight;
+
+    // cellStart[c] .. cellStart[c + 1] are the positions in items of the bodies in cell c
+    private final int[] cellStart;
+    private final int[] items;
+
+    /**
+     * Builds the grid for a frame.
+     *
+     * @param state The flattened state, {x, y, vx, vy} per body. Kept, so it must not change while the grid is used.
+     * @param count The number of bodies, which may be less than the state holds.
+     */
+    SpatialGrid(double[] state, int count) {
+        this.state = state;
+        this.count = count;
+        double lowX = Double.POSITIVE_INFINITY;
+        double lowY = Double.POSITIVE_INFINITY;
+        double highX = Double.NEGATIVE_INFINITY;
+        double highY = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; i++) {
+            lowX = Math.min(lowX, state[4 * i]);
+            lowY = Math.min(lowY, state[4 * i + 1]);
+            highX = Math.max(highX, state[4 * i]);
+            highY = Math.max(highY, state[4 * i + 1]);
+        }
+        int side = count == 0 ? 0 : Math.max(1, (int) Math.sqrt(count));
+        columns = side;
+        rows = side;
+        minX = lowX;
+        minY = lowY;
+        cellWidth = side == 0 ? 0 : Math.max((highX - lowX) / columns, Double.MIN_NORMAL);
+        cellHeight = side == 0 ? 0 : Math.max((highY - lowY) / rows, Double.MIN_NORMAL);
+
+        int cells = columns * rows;
+        cellStart = new int[cells + 1];
+        items = new int[count];
+        for (int i = 0; i < count; i++) cellStart[cell(i) + 1]++;
+        for (int c = 0; c < cells; c++) cellStart[c + 1] += cellStart[c];
+        int[] next = Arrays.copyOf(cellStart, cells);
+        for (int i = 0; i < count; i++) items[next[cell(i)]++] = i;
+    }
+
+    int size() {
+        return count;
+    }
+
+    private int cell(int i) {
+        return row(state[4 * i + 1]) * columns + column(state[4 * i]);
+    }
+
+    private int column(double x) {
+        return Math.min(columns - 1, Math.max(0, (int) ((x - minX) / cellWidth)));
+    }
+
+    private int row(double y) {
+        return Math.min(rows - 1, Math.max(0, (int) ((y - minY) / cellHeight)));
+    }
+
+    /**
+     * Calls the consumer with the index of every body inside the rectangle, bounds included.
+     */
+    void query(double queryMinX, double queryMinY, double queryMaxX, double queryMaxY, IntConsumer consumer) {
+        if (count == 0 || queryMaxX < minX || queryMaxY < minY) return;
+        if (queryMinX > minX + cellWidth * columns || queryMinY > minY + cellHeight * rows) return;
+        int firstColumn = column(queryMinX);
+        int lastColumn = column(queryMaxX);
+        int firstRow = row(queryMinY);
+        int lastRow = row(queryMaxY);
+        for (int r = firstRow; r <= lastRow; r++) {
+            for (int c = firstColumn; c <= lastColumn; c++) {
+                int cell = r * columns + c;
+                for (int k = cellStart[cell]; k < cellStart[cell + 1]; k++) {
+                    int i = items[k];
+                    double x = state[4 * i];
+                    double y = state[4 * i + 1];
+                    if (x >= queryMinX && x <= queryMaxX && y >= queryMinY && y <= queryMaxY) consumer.accept(i);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package NBobodySimulation;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Measures the wall time of a short {@link Batch} run from process launch to exit, with class data sharing off, with
+ * the JDK's default archive, and with the engine's AppCDS archive if one is given.
+ * <br>
+ * The archive is built by the engine's {@code cds} profile, which is active by default on JDK 13 and later. From the
+ * engine module directory:
+ * <pre>
+ * mvn package
+ * java -cp target/n-body-sim-engine.jar NBobodySimulation.StartupBenchmark target/n-body-sim-engine.jsa 20
+ * </pre>
+ * An archive is only valid for the JVM build that wrote it and the exact jar it was written from, so the benchmark
+ * must run from the same jar as the training run.
+ */
+public class StartupBenchmark {
+
+    // Small enough that startup, not integration, dominates
+    private static final String[] BATCH_ARGS = {"ring", "10", "0.0001", "1"};
+    private static final int WARMUP_RUNS = 2;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String archive = args.length > 0 ? args[0] : null;
+        int runs = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        if (archive != null && !new File(archive).isFile()) {
+            System.err.println("Archive not found: " + archive);
+            System.exit(1);
+        }
+
+        List<String[]> options = new ArrayList<>();
+        List<String> names = new ArrayList<>();
+        names.add("No CDS");
+        options.add(new String[]{"-Xshare:off"});
+        names.add("JDK CDS");
+        options.add(new String[]{});
+        if (archive != null) {
+            names.add("AppCDS");
+            // -Xshare:on fails the run instead of silently ignoring an archive that does not match
+            options.add(new String[]{"-Xshare:on", "-XX:SharedArchiveFile=" + archive});
+        }
+
+        long[][] times = new long[options.size()][runs];
+        for (int c = 0; c < options.size(); c++) {
+            for (int i = 0; i < WARMUP_RUNS; i++) launch(options.get(c));
+        }
+        // Interleaved, so drift in machine load affects every configuration alike
+        for (int i = 0; i < runs; i++) {
+            for (int c = 0; c < options.size(); c++) times[c][i] = launch(options.get(c));
+        }
+
+        System.out.println("Startup to exit of Batch " + String.join(" ", BATCH_ARGS) + ", " + runs + " runs:");
+        for (int c = 0; c < options.size(); c++) {
+            long[] sorted = times[c].clone();
+            Arrays.sort(sorted);
+            System.out.printf("%-8s median %4d ms, min %4d ms%n", names.get(c), sorted[runs / 2] / 1_000_000, sorted[0] / 1_000_000);
+        }
+    }
+
+    // Runs one batch in a child JVM and returns its wall time in nanoseconds
+    private static long launch(String[] jvmOptions) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(Arrays.asList(jvmOptions));
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Batch.class.getName());
+        command.addAll(Arrays.asList(BATCH_ARGS));
+        ProcessBuilder builder = new ProcessBuilder(command);
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        long start = System.nanoTime();
+        int exit = builder.start().waitFor();
+        long elapsed = System.nanoTime() - start;
+        if (exit != 0) throw new IOException("Batch run failed with exit code " + exit + ": " + String.join(" ", command));
+        return elapsed;
+    }
+}
@@ -0,0 +1,273 @@
+package NBobodySimulation;
+
+import java.nio.DoubleBuffer;
+import java.util.stream.IntStream;
+
+/**
+ * Whole-system totals for one frame: mass, center of mass, momentum, kinetic and potential energy, and the bounding box
+ * of the bodies.
+ * <br>
+ * Everything is gathered in a single parallel pass over the bodies. The bodies are cut into fixed chunks, each chunk
+ * fills its own partial sums, and the partials are merged pairwise in a fixed binary tree over the chunks, so every sum
+ * is grouped the same way and the numbers are bitwise the same on any number of threads. A stream reduction would group
+ * them by how the pool happened to split the work. Merging costs O(N / chunk size), which is far below the noise of the
+ * pass itself. The potential energy sums every pair once, so it costs O(N^2 / cores); every other quantity is O(N / cores).
+ * Row i of the potential holds the N - i - 1 pairs with later bodies, so each chunk takes the rows of an equal share of
+ * the pairs rather than a fixed number of rows, which would leave the first chunks with most of the work.
+ * <br>
+ * Instances are immutable and safe to hand to other threads.
+ */
+public class SystemStatistics {
+
+    private static final int CHUNK_SIZE = 256;
+
+    private final int count;
+    private final double totalMass;
+    private final double centerX;
+    private final double centerY;
+    private final double momentumX;
+    private final double momentumY;
+    private final double kineticEnergy;
+    private final double potentialEnergy;
+    private final double minX;
+    private final double minY;
+    private final double maxX;
+    private final double maxY;
+
+    private SystemStatistics(int count, double totalMass, double centerX, double centerY, double momentumX, double momentumY,
+                             double kineticEnergy, double potentialEnergy, double minX, double minY, double maxX, double maxY) {
+        this.count = count;
+        this.totalMass = totalMass;
+        this.centerX = centerX;
+        this.centerY = centerY;
+        this.momentumX = momentumX;
+        this.momentumY = momentumY;
+        this.kineticEnergy = kineticEnergy;
+        this.potentialEnergy = potentialEnergy;
+        this.minX = minX;
+        this.minY = minY;
+        this.maxX = maxX;
+        this.maxY = maxY;
+    }
+
+    /**
+     * Computes the statistics of a flattened 2D state vector.
+     *
+     * @param flatBodies The state vector, {x, y, vx, vy} per body.
+     * @param masses     The mass of each body.
+     */
+    public static SystemStatistics compute(double[] flatBodies, double[] masses) {
+        int count = masses.length;
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Partial[] partials = new Partial[chunks];
+        if (chunks == 1) {
+            // Small systems, such as the presets, are measured every frame and do not pay for a stream
+            partials[0] = new Partial().add(flatBodies, masses, 0, count).addPotential(flatBodies, masses, 0, count);
+        } else {
+            int[] rows = potentialRows(count, chunks);
+            IntStream.range(0, chunks).parallel().forEach(chunk ->
+                    partials[chunk] = new Partial().add(flatBodies, masses, chunk * CHUNK_SIZE, Math.min(count, (chunk + 1) * CHUNK_SIZE))
+                            .addPotential(flatBodies, masses, rows[chunk], rows[chunk + 1]));
+        }
+        Partial total = merge(partials);
+
+        double centerX = total.mass == 0 ? 0 : total.weightedX / total.mass;
+        double centerY = total.mass == 0 ? 0 : total.weightedY / total.mass;
+        return new SystemStatistics(count, total.mass, centerX, centerY, total.momentumX, total.momentumY,
+                total.kinetic, total.potential, total.minX, total.minY, total.maxX, total.maxY);
+    }
+
+    /**
+     * Computes the statistics of the particles in an off-heap store, with the same chunks and merge tree as
+     * {@link #compute(double[], double[])}. The pair sum would cost O(N^2) for the millions of particles a store is
+     * meant for, so the potential energy is given, usually from the {@link ParticleMesh} the store is integrated with.
+     */
+    static SystemStatistics compute(ParticleStore store, double potentialEnergy) {
+        int count = store.size();
+        int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        Partial[] partials = new Partial[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk ->
+                partials[chunk] = new Partial().add(store, chunk * CHUNK_SIZE, Math.min(count, (chunk + 1) * CHUNK_SIZE)));
+        Partial total = merge(partials);
+
+        double centerX = total.mass == 0 ? 0 : total.weightedX / total.mass;
+        double centerY = total.mass == 0 ? 0 : total.weightedY / total.mass;
+        return new SystemStatistics(count, total.mass, centerX, centerY, total.momentumX, total.momentumY,
+                total.kinetic, potentialEnergy, total.minX, total.minY, total.maxX, total.maxY);
+    }
+
+    /**
+     * Splits the rows of the pair sum so each chunk holds about the same number of pairs. Depends only on the number of
+     * bodies, so the sums are grouped the same way on any number of threads.
+     *
+     * @return The first row of each chunk, then the number of bodies.
+     */
+    static int[] potentialRows(int count, int chunks) {
+        // The rows before b hold b (N - 1) - b (b - 1) / 2 pairs; solved for b at each chunk's share
+        double totalPairs = count * (count - 1.0) / 2;
+        double linear = 2.0 * count - 1;
+        int[] rows = new int[chunks + 1];
+        for (int chunk = 1; chunk < chunks; chunk++) {
+            double pairs = totalPairs * chunk / chunks;
+            int row = (int) Math.ceil((linear - Math.sqrt(Math.max(0, linear * linear - 8 * pairs))) / 2);
+            rows[chunk] = Math.max(rows[chunk - 1], Math.min(count, row));
+        }
+        rows[chunks] = count;
+        return rows;
+    }
+
+    // Merges neighbours, then neighbouring pairs and so on; the tree only depends on the number of chunks
+    private static Partial merge(Partial[] partials) {
+        if (partials.length == 0) return new Partial();
+        for (int width = 1; width < partials.length; width *= 2) {
+            for (int i = 0; i + width < partials.length; i += 2 * width) partials[i] = partials[i].merge(partials[i + width]);
+        }
+        return partials[0];
+    }
+
+    // Running sums for one chunk of bodies
+    private static class Partial {
+        double mass;
+        double weightedX;
+        double weightedY;
+        double momentumX;
+        double momentumY;
+        double kinetic;
+        double potential;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+
+        Partial add(double[] flatBodies, double[] masses, int from, int to) {
+            for (int i = from; i < to; i++) add(masses[i], flatBodies[4 * i], flatBodies[4 * i + 1], flatBodies[4 * i + 2], flatBodies[4 * i + 3]);
+            return this;
+        }
+
+        Partial add(ParticleStore store, int from, int to) {
+            DoubleBuffer masses = store.column(ParticleStore.MASS);
+            DoubleBuffer x = store.column(ParticleStore.X);
+            DoubleBuffer y = store.column(ParticleStore.Y);
+            DoubleBuffer vx = store.column(ParticleStore.VX);
+            DoubleBuffer vy = store.column(ParticleStore.VY);
+            for (int i = from; i < to; i++) add(masses.get(i), x.get(i), y.get(i), vx.get(i), vy.get(i));
+            return this;
+        }
+
+        private void add(double m, double x, double y, double vx, double vy) {
+            mass += m;
+            weightedX += m * x;
+            weightedY += m * y;
+            momentumX += m * vx;
+            momentumY += m * vy;
+            kinetic += 0.5 * m * (vx * vx + vy * vy);
+            minX = Math.min(minX, x);
+            minY = Math.min(minY, y);
+            maxX = Math.max(maxX, x);
+            maxY = Math.max(maxY, y);
+        }
+
+        // Each pair is counted by its lower index only
+        Partial addPotential(double[] flatBodies, double[] masses, int from, int to) {
+            int count = masses.length;
+            for (int i = from; i < to; i++) {
+                double m = masses[i];
+                if (m == 0) continue;
+                double x = flatBodies[4 * i];
+                double y = flatBodies[4 * i + 1];
+                double rowPotential = 0;
+                for (int j = i + 1; j < count; j++) {
+                    double dx = flatBodies[4 * j] - x;
+                    double dy = flatBodies[4 * j + 1] - y;
+                    double distance = Math.sqrt(dx * dx + dy * dy);
+                    if (distance != 0) rowPotential += masses[j] / distance;
+                }
+                potential -= DifferentialEquations.G * m * rowPotential;
+            }
+            return this;
+        }
+
+        Partial merge(Partial other) {
+            Partial merged = new Partial();
+            merged.mass = mass + other.mass;
+            merged.weightedX = weightedX + other.weightedX;
+            merged.weightedY = weightedY + other.weightedY;
+            merged.momentumX = momentumX + other.momentumX;
+            merged.momentumY = momentumY + other.momentumY;
+            merged.kinetic = kinetic + other.kinetic;
+            merged.potential = potential + other.potential;
+            merged.minX = Math.min(minX, other.minX);
+            merged.minY = Math.min(minY, other.minY);
+            merged.maxX = Math.max(maxX, other.maxX);
+            merged.maxY = Math.max(maxY, other.maxY);
+            return merged;
+        }
+    }
+
+    /**
+     * Moves the bodies into the center of mass frame, so the system no longer drifts, and returns the statistics of
+     * the moved bodies. The new statistics follow from these ones without another pass over the bodies.
+     *
+     * @param flatBodies The state vector these statistics were computed from. Modified in place.
+     */
+    public SystemStatistics recenter(double[] flatBodies) {
+        if (totalMass == 0) return this;
+        double velocityX = momentumX / totalMass;
+        double velocityY = momentumY / totalMass;
+        IntStream.range(0, count).parallel().forEach(i -> {
+            flatBodies[4 * i] -= centerX;
+            flatBodies[4 * i + 1] -= centerY;
+            flatBodies[4 * i + 2] -= velocityX;
+            flatBodies[4 * i + 3] -= velocityY;
+        });
+        // Removing the mean velocity removes exactly its share of the kinetic energy
+        double driftEnergy = 0.5 * totalMass * (velocityX * velocityX + velocityY * velocityY);
+        return new SystemStatistics(count, totalMass, 0, 0, 0, 0, kineticEnergy - driftEnergy, potentialEnergy,
+                minX - centerX, minY - centerY, maxX - centerX, maxY - centerY);
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getTotalMass() {
+        return totalMass;
+    }
+
+    public double[] getCenterOfMass() {
+        return new double[]{centerX, centerY};
+    }
+
+    public double[] getCenterOfMassVelocity() {
+        return totalMass == 0 ? new double[2] : new double[]{momentumX / totalMass, momentumY / totalMass};
+    }
+
+    public double[] getMomentum() {
+        return new double[]{momentumX, momentumY};
+    }
+
+    public double getKineticEnergy() {
+        return kineticEnergy;
+    }
+
+    public double getPotentialEnergy() {
+        return potentialEnergy;
+    }
+
+    public double getTotalEnergy() {
+        return kineticEnergy + potentialEnergy;
+    }
+
+    /**
+     * @return {{minX, minY}, {maxX, maxY}}, the smallest box holding every body.
+     */
+    public double[][] getBounds() {
+        return new double[][]{{minX, minY}, {maxX, maxY}};
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Bodies: %d, Mass: %.2f, Center: (%.2f, %.2f), Momentum: (%.2f, %.2f), Energy: %.6e",
+                count, totalMass, centerX, centerY, momentumX, momentumY, getTotalEnergy());
+    }
+}
@@ -0,0 +1,408 @@
+package NBobodySimulation;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Disk-backed cache of sampled trajectories, so a run that was already computed replays from disk instead of
+ * integrating again.
+ * <br>
+ * Entries are content-addressed: the file name is a SHA-256 hash of everything that decides the frames, namely the
+ * integrator and its tolerances, the frame interval and the other session settings, the masses and the initial state
+ * and time (see {@link #key}). A run with the same key replays the entry's frames up to its last checkpoint, then
+ * integrates on from there and appends to the entry, so the horizon grows with every run.
+ * <br>
+ * Frames are interpolated from the integrator's dense output, so integrating on from a frame would not give the frames
+ * a fresh run gives. A checkpoint instead holds a state the integration actually restarted from, at a segment start,
+ * with what else the session needs to restart exactly there; frames written after the last checkpoint are dropped
+ * when the entry is resumed.
+ * <br>
+ * The cache is bounded in size. Opening an entry marks it used, and whenever an entry is closed the least recently
+ * used entries are deleted until the directory fits.
+ * <br>
+ * Frames are stored with the bodies in the order the entry started with, whatever order the session has them in by
+ * then, so a reorder does not end the entry. A checkpoint holds its state in the session's order, with the position in
+ * the entry's order of each body, so a resumed run goes on in exactly the order a fresh run had there.
+ * <br>
+ * File layout: a {@value #HEADER_BYTES} byte header (magic, body count, frame count, frame count at the checkpoint and
+ * the slot holding the checkpoint), two checkpoint slots, each the time, the next frame time, the segment count, the
+ * flattened state and the order of the bodies, then the frames, each the time, the flattened state and its derivatives, all little-endian. A new
+ * checkpoint goes in the slot not in use and is only counted once it is complete, so a run that stops halfway always
+ * leaves a whole checkpoint.
+ */
+public class TrajectoryCache {
+
+    private static final long MAGIC = 0x4e424f4459545233L; // "NBODYTR3"
+    private static final int HEADER_BYTES = 32;
+    private static final String EXTENSION = ".traj";
+    private static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+
+    private final Path directory;
+    private final long maxBytes;
+    // Entries open in this process; two sessions appending to one file would corrupt it
+    private final Set<Path> open = new HashSet<>();
+
+    /**
+     * @param directory The directory of the entries. Created if missing.
+     * @param maxBytes  The size the entries are trimmed to whenever one is closed.
+     */
+    public TrajectoryCache(Path directory, long maxBytes) {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * A cache of {@value #DEFAULT_MAX_BYTES} bytes in the user's home directory.
+     */
+    public static TrajectoryCache inUserHome() {
+        return new TrajectoryCache(Paths.get(System.getProperty("user.home"), ".n-body-sim", "trajectories"), DEFAULT_MAX_BYTES);
+    }
+
+    /**
+     * Hashes what decides a trajectory into an entry key.
+     *
+     * @param integrator A description of the integrator and its tolerances. Must change whenever its results change.
+     * @param parameters Every other setting the frames depend on.
+     */
+    public static String key(String integrator, double[] parameters, double[] masses, double[] state, double startTime) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-256
+            throw new IllegalStateException(e);
+        }
+        digest.update(integrator.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        ByteBuffer numbers = ByteBuffer.allocate(Double.BYTES * (parameters.length + masses.length + state.length + 1) + 3 * Integer.BYTES);
+        numbers.putInt(parameters.length);
+        for (double parameter : parameters) numbers.putDouble(parameter);
+        numbers.putInt(masses.length);
+        for (double mass : masses) numbers.putDouble(mass);
+        numbers.putInt(state.length);
+        for (double value : state) numbers.putDouble(value);
+        numbers.putDouble(startTime);
+        digest.update(numbers.array());
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+
+    /**
+     * Opens the entry of a key, creating an empty one if there is none or the existing one does not match.
+     *
+     * @throws IOException If the entry cannot be read or written, or is already open.
+     */
+    public Entry open(String key, int bodies) throws IOException {
+        Files.createDirectories(directory);
+        Path file = directory.resolve(key + EXTENSION);
+        synchronized (open) {
+            if (!open.add(file)) throw new IOException("Cached trajectory already in use: " + file);
+        }
+        try {
+            Entry entry = Entry.open(this, file, bodies);
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return entry;
+        } catch (IOException | RuntimeException e) {
+            release(file);
+            throw e;
+        }
+    }
+
+    private void release(Path file) {
+        synchronized (open) {
+            open.remove(file);
+        }
+    }
+
+    // Deletes the least recently used entries, other than the one just closed and those still open, until the cache fits
+    private synchronized void evict(Path keep) {
+        List<Path> files = new ArrayList<>();
+        long total = 0;
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : entries) {
+                files.add(file);
+                total += Files.size(file);
+            }
+            files.sort(Comparator.comparingLong(TrajectoryCache::lastModified));
+            for (Path file : files) {
+                if (total <= maxBytes) break;
+                if (file.equals(keep)) continue;
+                synchronized (open) {
+                    if (open.contains(file)) continue;
+                }
+                long size = Files.size(file);
+                Files.deleteIfExists(file);
+                total -= size;
+            }
+        } catch (IOException e) {
+            System.err.println("Could not trim the trajectory cache in " + directory + ": " + e.getMessage());
+        }
+    }
+
+    private static long lastModified(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        } catch (IOException e) {
+            return Long.MIN_VALUE;
+        }
+    }
+
+    /**
+     * A state an integration restarted from, and the frames before it.
+     */
+    public static class Checkpoint {
+        private final int frames;
+        private final double time;
+        private final double nextFrameTime;
+        private final int segments;
+        private final double[] state;
+        private final int[] order;
+
+        Checkpoint(int frames, double time, double nextFrameTime, int segments, double[] state, int[] order) {
+            this.frames = frames;
+            this.time = time;
+            this.nextFrameTime = nextFrameTime;
+            this.segments = segments;
+            this.state = state;
+            this.order = order;
+        }
+
+        /**
+         * @return The number of frames written before the checkpoint, which a resumed run replays.
+         */
+        public int getFrames() {
+            return frames;
+        }
+
+        public double getTime() {
+            return time;
+        }
+
+        public double getNextFrameTime() {
+            return nextFrameTime;
+        }
+
+        /**
+         * @return The number of segments the session had counted towards its next reorder.
+         */
+        public int getSegments() {
+            return segments;
+        }
+
+        public double[] getState() {
+            return state;
+        }
+
+        /**
+         * @return For each body of the state, its position in the order the entry started with.
+         */
+        public int[] getOrder() {
+            return order;
+        }
+    }
+
+    /**
+     * One cached trajectory: frames can be read by index and appended at the end, and the last checkpoint read and
+     * replaced.
+     */
+    public static class Entry implements Closeable {
+        private final TrajectoryCache cache;
+        private final Path file;
+        private final FileChannel channel;
+        private final int bodies;
+        private final ByteBuffer frame;
+        private final ByteBuffer checkpoint;
+        private final ByteBuffer counts = ByteBuffer.allocate(2 * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        private int frames;
+        private int checkpointFrames;
+        private int checkpointSlot;
+
+        private Entry(TrajectoryCache cache, Path file, FileChannel channel, int bodies, int frames, int checkpointFrames, int checkpointSlot) {
+            this.cache = cache;
+            this.file = file;
+            this.channel = channel;
+            this.bodies = bodies;
+            this.frames = frames;
+            this.checkpointFrames = checkpointFrames;
+            this.checkpointSlot = checkpointSlot;
+            frame = ByteBuffer.allocate(frameBytes(bodies)).order(ByteOrder.LITTLE_ENDIAN);
+            checkpoint = ByteBuffer.allocate(checkpointBytes(bodies)).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private static int frameBytes(int bodies) {
+            return Double.BYTES * (1 + 8 * bodies);
+        }
+
+        private static int checkpointBytes(int bodies) {
+            return Double.BYTES * (3 + 4 * bodies) + Integer.BYTES * bodies;
+        }
+
+        private static long firstFrame(int bodies) {
+            return HEADER_BYTES + 2L * checkpointBytes(bodies);
+        }
+
+        private static Entry open(TrajectoryCache cache, Path file, int bodies) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                while (header.hasRemaining() && channel.read(header, header.position()) >= 0) ;
+                boolean valid = !header.hasRemaining() && header.getLong(0) == MAGIC && header.getInt(8) == bodies;
+                int frames = valid ? header.getInt(12) : 0;
+                int checkpointFrames = valid ? header.getInt(16) : 0;
+                int checkpointSlot = valid ? header.getInt(20) : -1;
+                // Frames past the count are from a run that did not finish writing them
+                if (valid && channel.size() < firstFrame(bodies) + (long) frames * frameBytes(bodies)) valid = false;
+                if (valid && (checkpointSlot < -1 || checkpointSlot > 1 || checkpointFrames > frames)) valid = false;
+                if (!valid) {
+                    frames = 0;
+                    checkpointFrames = 0;
+                    checkpointSlot = -1;
+                    channel.truncate(0);
+                    header.clear();
+                    header.putLong(0, MAGIC);
+                    header.putInt(8, bodies);
+                    header.putInt(12, 0);
+                    header.putInt(16, 0);
+                    header.putInt(20, -1);
+                    channel.write(header, 0);
+                }
+                return new Entry(cache, file, channel, bodies, frames, checkpointFrames, checkpointSlot);
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        public int getFrames() {
+            return frames;
+        }
+
+        /**
+         * Reads one frame into the given arrays.
+         *
+         * @return The time of the frame.
+         */
+        public double read(int index, double[] state, double[] derivatives) throws IOException {
+            if (index < 0 || index >= frames) throw new IndexOutOfBoundsException("No cached frame " + index + " of " + frames);
+            readFully(frame, firstFrame(bodies) + (long) index * frame.capacity());
+            double time = frame.getDouble();
+            for (int i = 0; i < 4 * bodies; i++) state[i] = frame.getDouble();
+            for (int i = 0; i < 4 * bodies; i++) derivatives[i] = frame.getDouble();
+            return time;
+        }
+
+        /**
+         * Appends a frame, then counts it in the header, so a run that stops halfway leaves a readable entry.
+         */
+        public void append(double time, double[] state, double[] derivatives) throws IOException {
+            frame.clear();
+            frame.putDouble(time);
+            for (int i = 0; i < 4 * bodies; i++) frame.putDouble(state[i]);
+            for (int i = 0; i < 4 * bodies; i++) frame.putDouble(derivatives[i]);
+            frame.flip();
+            long position = firstFrame(bodies) + (long) frames * frame.capacity();
+            while (frame.hasRemaining()) channel.write(frame, position + frame.position());
+            frames++;
+            writeCounts();
+        }
+
+        /**
+         * @return The last checkpoint, or null if there is none.
+         */
+        public Checkpoint readCheckpoint() throws IOException {
+            if (checkpointSlot < 0) return null;
+            readFully(checkpoint, HEADER_BYTES + (long) checkpointSlot * checkpoint.capacity());
+            double time = checkpoint.getDouble();
+            double nextFrameTime = checkpoint.getDouble();
+            int segments = (int) checkpoint.getDouble();
+            double[] state = new double[4 * bodies];
+            for (int i = 0; i < state.length; i++) state[i] = checkpoint.getDouble();
+            int[] order = new int[bodies];
+            boolean[] seen = new boolean[bodies];
+            for (int i = 0; i < bodies; i++) {
+                order[i] = checkpoint.getInt();
+                if (order[i] < 0 || order[i] >= bodies || seen[order[i]]) throw new IOException("Corrupt cached trajectory: " + file);
+                seen[order[i]] = true;
+            }
+            return new Checkpoint(checkpointFrames, time, nextFrameTime, segments, state, order);
+        }
+
+        /**
+         * Records a state the integration restarts from, after the frames written so far.
+         *
+         * @param order For each body of the state, its position in the order the entry started with, or null if the
+         *              bodies are still in that order.
+         */
+        public void checkpoint(double time, double nextFrameTime, int segments, double[] state, int[] order) throws IOException {
+            int slot = checkpointSlot == 0 ? 1 : 0;
+            checkpoint.clear();
+            checkpoint.putDouble(time);
+            checkpoint.putDouble(nextFrameTime);
+            checkpoint.putDouble(segments);
+            for (int i = 0; i < 4 * bodies; i++) checkpoint.putDouble(state[i]);
+            for (int i = 0; i < bodies; i++) checkpoint.putInt(order == null ? i : order[i]);
+            checkpoint.flip();
+            long position = HEADER_BYTES + (long) slot * checkpoint.capacity();
+            while (checkpoint.hasRemaining()) channel.write(checkpoint, position + checkpoint.position());
+            checkpointFrames = frames;
+            checkpointSlot = slot;
+            writeCounts();
+        }
+
+        /**
+         * Drops the frames written after the last checkpoint, or all of them if there is none, so the entry goes on
+         * from the checkpoint.
+         */
+        public void resumeFromCheckpoint() throws IOException {
+            frames = checkpointFrames;
+            writeCounts();
+        }
+
+        // The frame count, then the checkpoint's frame count and slot in one write, so they change together
+        private void writeCounts() throws IOException {
+            counts.clear();
+            counts.putInt(frames);
+            counts.flip();
+            channel.write(counts, 12);
+            counts.clear();
+            counts.putInt(checkpointFrames);
+            counts.putInt(checkpointSlot);
+            counts.flip();
+            channel.write(counts, 16);
+        }
+
+        private void readFully(ByteBuffer buffer, long position) throws IOException {
+            buffer.clear();
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) throw new IOException("Truncated cached trajectory: " + file);
+            }
+            buffer.flip();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                channel.close();
+            } finally {
+                cache.release(file);
+            }
+            cache.evict(file);
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package NBobodySimulation;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Wisdom-Holman symplectic mapping for systems dominated by one central mass, in the style of WHFast.
+ * <br>
+ * The state is kept in Jacobi coordinates: each body relative to the center of mass of the central body and all bodies
+ * closer in, in order of distance from the central body at construction. The Hamiltonian splits into one Kepler
+ * problem per Jacobi coordinate, solved exactly by a universal-variable Kepler solver, and the small interactions
+ * between the bodies, applied as velocity kicks. Each step is drift, kick, drift; the half drifts of consecutive steps
+ * are merged, so a step costs one force evaluation and one Kepler solve per body.
+ * <br>
+ * The Kepler drift is exact for any step, so the step only has to resolve the interactions: a sizable fraction of the
+ * innermost orbital period, see {@link #stepLimit()}. In exchange there are no error estimates and no close approach
+ * handling; a system without a clear central mass, or with bodies passing close to each other, loses accuracy.
+ */
+class WisdomHolman {
+
+    // Steps per innermost orbital period
+    private static final int STEPS_PER_ORBIT = 20;
+    private static final int MAX_KEPLER_ITERATIONS = 50;
+    // Degree of the Laguerre-Conway iteration for Kepler's equation
+    private static final int LAGUERRE_DEGREE = 5;
+
+    private final DifferentialEquations differentialEquations;
+    private final double[] masses;
+    // Body indices in Jacobi order, the central body first
+    private final int[] order;
+    // Mass of the central body and every body up to and including each Jacobi index
+    private final double[] interiorMass;
+    // Jacobi coordinates {x, y, vx, vy}; index 0 holds the center of mass of the whole system
+    private final double[] jacobi;
+    private final double[] physical;
+    private final double[] derivatives;
+    private final double[] accelerations;
+    private final double[] jacobiAccelerations;
+
+    /**
+     * @param differentialEquations The equations for the bodies, which give the accelerations of the interaction kicks.
+     * @param masses                The masses of the bodies. The most massive one is the central body.
+     * @param state                 The flattened state to start from.
+     */
+    WisdomHolman(DifferentialEquations differentialEquations, double[] masses, double[] state) {
+        this.differentialEquations = differentialEquations;
+        this.masses = masses;
+        int count = masses.length;
+        int central = 0;
+        for (int i = 1; i < count; i++) if (masses[i] > masses[central]) central = i;
+        if (count == 0 || masses[central] <= 0) throw new IllegalArgumentException("Wisdom-Holman needs a central body with mass");
+
+        int centralIndex = central;
+        Integer[] byDistance = new Integer[count];
+        for (int i = 0; i < count; i++) byDistance[i] = i;
+        Arrays.sort(byDistance, Comparator.comparingDouble(i -> i == centralIndex ? -1
+                : Math.hypot(state[4 * i] - state[4 * centralIndex], state[4 * i + 1] - state[4 * centralIndex + 1])));
+        order = new int[count];
+        interiorMass = new double[count];
+        double mass = 0;
+        for (int i = 0; i < count; i++) {
+            order[i] = byDistance[i];
+            mass += masses[order[i]];
+            interiorMass[i] = mass;
+        }
+
+        jacobi = new double[4 * count];
+        physical = new double[4 * count];
+        derivatives = new double[4 * count];
+        accelerations = new double[4 * count];
+        jacobiAccelerations = new double[4 * count];
+        toJacobi(state, jacobi);
+    }
+
+    /**
+     * @return The largest step that resolves the shortest Jacobi orbit: a twentieth of its period, or for an unbound
+     * orbit, of the circular period at its current distance.
+     */
+    double stepLimit() {
+        double limit = Double.POSITIVE_INFINITY;
+        for (int i = 1; i < order.length; i++) {
+            double mu = DifferentialEquations.G * interiorMass[i];
+            double r = Math.hypot(jacobi[4 * i], jacobi[4 * i + 1]);
+            double v2 = jacobi[4 * i + 2] * jacobi[4 * i + 2] + jacobi[4 * i + 3] * jacobi[4 * i + 3];
+            double beta = 2 * mu / r - v2;
+            double period = beta > 0 ? 2 * Math.PI * mu / Math.pow(beta, 1.5) : 2 * Math.PI * Math.sqrt(r * r * r / mu);
+            limit = Math.min(limit, period / STEPS_PER_ORBIT);
+        }
+        return limit;
+    }
+
+    /**
+     * Takes a number of steps of equal size.
+     *
+     * @param time  The simulation time at the start, for the derivatives and the recorded events.
+     * @param step  The step size.
+     * @param steps The number of steps.
+     */
+    void advance(double time, double step, int steps) {
+        drift(step / 2);
+        for (int n = 0; n < steps; n++) {
+            SimulationEvents.IntegratorStep event = new SimulationEvents.IntegratorStep();
+            event.begin();
+            kick(time + (n + 0.5) * step, step);
+            drift(n == steps - 1 ? step / 2 : step);
+            if (event.shouldCommit()) {
+                event.integrator = "Wisdom-Holman";
+                event.time = time + n * step;
+                event.stepSize = step;
+                event.error = Double.NaN;
+                event.accepted = true;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Writes the current state in the flattened physical layout.
+     */
+    void toPhysical(double[] state) {
+        // Walk outwards in: the center of mass of bodies 0..i-1 is that of 0..i less body i's share of its coordinate
+        double cx = jacobi[0];
+        double cy = jacobi[1];
+        double cvx = jacobi[2];
+        double cvy = jacobi[3];
+        for (int i = order.length - 1; i > 0; i--) {
+            int body = order[i];
+            double share = masses[body] / interiorMass[i];
+            cx -= share * jacobi[4 * i];
+            cy -= share * jacobi[4 * i + 1];
+            cvx -= share * jacobi[4 * i + 2];
+            cvy -= share * jacobi[4 * i + 3];
+            state[4 * body] = cx + jacobi[4 * i];
+            state[4 * body + 1] = cy + jacobi[4 * i + 1];
+            state[4 * body + 2] = cvx + jacobi[4 * i + 2];
+            state[4 * body + 3] = cvy + jacobi[4 * i + 3];
+        }
+        int central = order[0];
+        state[4 * central] = cx;
+        state[4 * central + 1] = cy;
+        state[4 * central + 2] = cvx;
+        state[4 * central + 3] = cvy;
+    }
+
+    // Jacobi coordinates of a flattened state. Applied to accelerations, it gives the Jacobi accelerations.
+    private void toJacobi(double[] state, double[] target) {
+        int central = order[0];
+        double sx = masses[central] * state[4 * central];
+        double sy = masses[central] * state[4 * central + 1];
+        double svx = masses[central] * state[4 * central + 2];
+        double svy = masses[central] * state[4 * central + 3];
+        for (int i = 1; i < order.length; i++) {
+            int body = order[i];
+            double inner = interiorMass[i - 1];
+            target[4 * i] = state[4 * body] - sx / inner;
+            target[4 * i + 1] = state[4 * body + 1] - sy / inner;
+            target[4 * i + 2] = state[4 * body + 2] - svx / inner;
+            target[4 * i + 3] = state[4 * body + 3] - svy / inner;
+            sx += masses[body] * state[4 * body];
+            sy += masses[body] * state[4 * body + 1];
+            svx += masses[body] * state[4 * body + 2];
+            svy += masses[body] * state[4 * body + 3];
+        }
+        double total = interiorMass[order.length - 1];
+        target[0] = sx / total;
+        target[1] = sy / total;
+        target[2] = svx / total;
+        target[3] = svy / total;
+    }
+
+    private void drift(double dt) {
+        jacobi[0] += dt * jacobi[2];
+        jacobi[1] += dt * jacobi[3];
+        for (int i = 1; i < order.length; i++) kepler(4 * i, DifferentialEquations.G * interiorMass[i], dt);
+    }
+
+    // Kicks each Jacobi velocity by the full acceleration less the Kepler acceleration already in the drift
+    private void kick(double time, double dt) {
+        toPhysical(physical);
+        differentialEquations.computeDerivatives(time, physical, derivatives);
+        // toJacobi reads the accelerations from the position slots
+        for (int i = 0; i < order.length; i++) {
+            accelerations[4 * i] = derivatives[4 * i + 2];
+            accelerations[4 * i + 1] = derivatives[4 * i + 3];
+        }
+        toJacobi(accelerations, jacobiAccelerations);
+        for (int i = 1; i < order.length; i++) {
+            double x = jacobi[4 * i];
+            double y = jacobi[4 * i + 1];
+            double r = Math.hypot(x, y);
+            double kepler = DifferentialEquations.G * interiorMass[i] / (r * r * r);
+            jacobi[4 * i + 2] += dt * (jacobiAccelerations[4 * i] + kepler * x);
+            jacobi[4 * i + 3] += dt * (jacobiAccelerations[4 * i + 1] + kepler * y);
+        }
+    }
+
+    /**
+     * Advances one Kepler orbit in place with f and g functions of the universal anomaly X, which covers elliptic,
+     * parabolic and hyperbolic orbits alike. Kepler's equation in X,
+     * dt = r0 G1 + eta0 G2 + mu G3, is solved by Laguerre-Conway iteration, with bisection as a fallback.
+     */
+    private void kepler(int offset, double mu, double dt) {
+        double x0 = jacobi[offset];
+        double y0 = jacobi[offset + 1];
+        double vx0 = jacobi[offset + 2];
+        double vy0 = jacobi[offset + 3];
+        double r0 = Math.hypot(x0, y0);
+        double eta0 = x0 * vx0 + y0 * vy0;
+        double beta = 2 * mu / r0 - (vx0 * vx0 + vy0 * vy0);
+        double zeta0 = mu - beta * r0;
+        if (beta > 0) {
+            // Whole periods change nothing
+            double period = 2 * Math.PI * mu / Math.pow(beta, 1.5);
+            dt = Math.IEEEremainder(dt, period);
+        }
+
+        double[] g = new double[4];
+        double x = dt / r0;
+        boolean converged = false;
+        for (int iteration = 0; iteration < MAX_KEPLER_ITERATIONS && !converged; iteration++) {
+            stumpff(beta, x, g);
+            double f = r0 * g[1] + eta0 * g[2] + mu * g[3] - dt;
+            double fPrime = r0 * g[0] + eta0 * g[1] + mu * g[2];
+            double fSecond = eta0 * g[0] + zeta0 * g[1];
+            int n = LAGUERRE_DEGREE;
+            double root = Math.sqrt(Math.abs((n - 1) * (n - 1) * fPrime * fPrime - n * (n - 1) * f * fSecond));
+            double dx = -n * f / (fPrime + Math.copySign(root, fPrime));
+            x += dx;
+            converged = f == 0 || Math.abs(dx) <= 1e-15 * Math.abs(x);
+        }
+        if (!converged || !Double.isFinite(x)) x = bisect(r0, eta0, mu, beta, dt, g);
+
+        stumpff(beta, x, g);
+        double r = r0 * g[0] + eta0 * g[1] + mu * g[2];
+        double f = 1 - mu * g[2] / r0;
+        double gFunction = dt - mu * g[3];
+        double fDot = -mu * g[1] / (r * r0);
+        double gDot = 1 - mu * g[2] / r;
+        jacobi[offset] = f * x0 + gFunction * vx0;
+        jacobi[offset + 1] = f * y0 + gFunction * vy0;
+        jacobi[offset + 2] = fDot * x0 + gDot * vx0;
+        jacobi[offset + 3] = fDot * y0 + gDot * vy0;
+    }
+
+    // The elapsed time grows monotonically with X, at rate r > 0
+    private static double bisect(double r0, double eta0, double mu, double beta, double dt, double[] g) {
+        if (dt == 0) return 0;
+        double sign = Math.signum(dt);
+        double low = 0;
+        double high = dt / r0;
+        while ((elapsed(r0, eta0, mu, beta, high, g) - dt) * sign < 0) {
+            low = high;
+            high *= 2;
+        }
+        for (int iteration = 0; iteration < 200 && Math.abs(high - low) > Math.ulp(high); iteration++) {
+            double middle = (low + high) / 2;
+            if ((elapsed(r0, eta0, mu, beta, middle, g) - dt) * sign < 0) low = middle;
+            else high = middle;
+        }
+        return (low + high) / 2;
+    }
+
+    private static double elapsed(double r0, double eta0, double mu, double beta, double x, double[] g) {
+        stumpff(beta, x, g);
+        return r0 * g[1] + eta0 * g[2] + mu * g[3];
+    }
+
+    /**
+     * Fills g with G0 to G3 at universal anomaly x, where Gk = x^k ck(beta x^2) and ck are the Stumpff functions.
+     */
+    private static void stumpff(double beta, double x, double[] g) {
+        double z = beta * x * x;
+        double c0;
+        double c1;
+        double c2;
+        double c3;
+        if (z > 0.1) {
+            double s = Math.sqrt(z);
+            c0 = Math.cos(s);
+            c1 = Math.sin(s) / s;
+            c2 = (1 - c0) / z;
+            c3 = (1 - c1) / z;
+        } else if (z < -0.1) {
+            double s = Math.sqrt(-z);
+            c0 = Math.cosh(s);
+            c1 = Math.sinh(s) / s;
+            c2 = (1 - c0) / z;
+            c3 = (1 - c1) / z;
+        } else {
+            // Series, c2 = sum (-z)^k / (2k + 2)! and c3 = sum (-z)^k / (2k + 3)!, which converge fast for small z
+            c2 = 0;
+            c3 = 0;
+            double term2 = 0.5;
+            double term3 = 1.0 / 6;
+            for (int k = 0; k < 10; k++) {
+                c2 += term2;
+                c3 += term3;
+                term2 *= -z / ((2 * k + 3) * (2 * k + 4));
+                term3 *= -z / ((2 * k + 4) * (2 * k + 5));
+            }
+            c1 = 1 - z * c3;
+            c0 = 1 - z * c2;
+        }
+        g[0] = c0;
+        g[1] = x * c1;
+        g[2] = x * x * c2;
+        g[3] = x * x * x * c3;
+    }
+}
@@ -0,0 +1,30 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DifferentialEquationsTest {
+
+    @Test
+    void singlePrecisionForcesStayCloseFarFromTheOrigin() {
+        InitialConditions sphere = InitialConditions.plummerSphere(200, 1e6, 100, 1);
+        double[] state = sphere.getFlatBodies().clone();
+        for (int i = 0; i < sphere.size(); i++) {
+            state[4 * i] += 1e7;
+            state[4 * i + 1] -= 1e7;
+        }
+        DifferentialEquations differentialEquations = new DifferentialEquations(sphere.getMasses());
+        double error = differentialEquations.measureSinglePrecisionError(state);
+        assertTrue(error < 1e-3, "relative error " + error);
+    }
+
+    @Test
+    void singlePrecisionAppliesToTestParticles() {
+        InitialConditions debris = InitialConditions.debrisField(4, 500, 1e6, 250, 100, 200, 1);
+        DifferentialEquations differentialEquations = new DifferentialEquations(debris.getMasses());
+        double error = differentialEquations.measureSinglePrecisionError(debris.getFlatBodies());
+        // Zero would mean the mixed precision setting was ignored
+        assertTrue(error > 0 && error < 1e-4, "relative error " + error);
+    }
+}
@@ -0,0 +1,90 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Runs the coordinator against worker JVMs started over loopback.
+ */
+class DistributedCoordinatorTest {
+
+    private static final double[] STATE = {150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10, 20, 120, 25, -5};
+    private static final double[] MASSES = {3, 3, 3, 1};
+    private static final double TIME_STEP = 1e-3;
+    private static final int STEPS = 50;
+
+    @Test
+    void matchesSerialLeapfrogWhenBoundaryBandsCoverEverything() throws IOException {
+        double[] distributed;
+        try (DistributedCoordinator coordinator = new DistributedCoordinator(STATE.clone(), MASSES, 2, 0, TIME_STEP)) {
+            coordinator.setBoundaryWidth(1e9);
+            coordinator.launchLocalWorkers(2);
+            coordinator.start();
+            for (int step = 0; step < STEPS; step++) coordinator.step();
+            assertEquals(STEPS * TIME_STEP, coordinator.getCurrentTime(), 1e-12);
+            distributed = coordinator.gather();
+        }
+
+        double[] serial = leapfrog(STATE.clone(), MASSES, TIME_STEP, STEPS);
+        for (int i = 0; i < serial.length; i++) {
+            assertEquals(serial[i], distributed[i], 1e-9 * Math.max(1, Math.abs(serial[i])), "component " + i);
+        }
+    }
+
+    @Test
+    void bodiesCrossingSlabsComeBackInTheirOriginalOrder() throws IOException {
+        // Massless bodies move in straight lines, many of them across slab bounds
+        int count = 30;
+        double[] state = new double[4 * count];
+        for (int i = 0; i < count; i++) {
+            state[4 * i] = 10 * i;
+            state[4 * i + 1] = i % 7;
+            state[4 * i + 2] = i % 2 == 0 ? 1000 : -1000;
+            state[4 * i + 3] = 1;
+        }
+        double[] masses = new double[count];
+        double[] gathered;
+        try (DistributedCoordinator coordinator = new DistributedCoordinator(state.clone(), masses, 3, 0, TIME_STEP)) {
+            coordinator.setRebalanceInterval(7);
+            coordinator.launchLocalWorkers(3);
+            coordinator.start();
+            for (int step = 0; step < 200; step++) coordinator.step();
+            gathered = coordinator.gather();
+        }
+
+        double time = 200 * TIME_STEP;
+        double[] expected = new double[state.length];
+        for (int i = 0; i < count; i++) {
+            expected[4 * i] = state[4 * i] + state[4 * i + 2] * time;
+            expected[4 * i + 1] = state[4 * i + 1] + state[4 * i + 3] * time;
+            expected[4 * i + 2] = state[4 * i + 2];
+            expected[4 * i + 3] = state[4 * i + 3];
+        }
+        assertArrayEquals(expected, gathered, 1e-9);
+    }
+
+    // Kick-drift-kick with the direct sum, as the workers integrate
+    private static double[] leapfrog(double[] state, double[] masses, double timeStep, int steps) {
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        double[] derivatives = new double[state.length];
+        differentialEquations.computeDerivatives(0, state, derivatives);
+        for (int step = 0; step < steps; step++) {
+            for (int i = 0; i < masses.length; i++) {
+                state[4 * i + 2] += derivatives[4 * i + 2] * timeStep / 2;
+                state[4 * i + 3] += derivatives[4 * i + 3] * timeStep / 2;
+                state[4 * i] += state[4 * i + 2] * timeStep;
+                state[4 * i + 1] += state[4 * i + 3] * timeStep;
+            }
+            differentialEquations.computeDerivatives(0, state, derivatives);
+            for (int i = 0; i < masses.length; i++) {
+                state[4 * i + 2] += derivatives[4 * i + 2] * timeStep / 2;
+                state[4 * i + 3] += derivatives[4 * i + 3] * timeStep / 2;
+            }
+        }
+        return state;
+    }
+}
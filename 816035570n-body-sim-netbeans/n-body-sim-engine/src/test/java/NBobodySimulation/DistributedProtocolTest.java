@@ -0,0 +1,69 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DistributedProtocolTest {
+
+    @Test
+    void bodiesAndDoublesSurviveTheWire() throws IOException {
+        int[] ids = {7, 3, 12};
+        double[] records = new double[ids.length * DistributedProtocol.BODY_DOUBLES];
+        for (int i = 0; i < records.length; i++) records[i] = i * 1.5 - 4;
+        records[2] = -0.0;
+        records[5] = Double.NaN;
+        double[] values = {Double.MIN_VALUE, Double.MAX_VALUE, Double.NEGATIVE_INFINITY, 1e-300};
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        // Only the first two bodies are sent, as a worker sends only what it owns
+        DistributedProtocol.writeBodies(out, ids, records, 2);
+        DistributedProtocol.writeDoubles(out, values);
+        DistributedProtocol.writeDoubles(out, new double[0]);
+        out.flush();
+
+        // Big-endian: a count, then each id and its record
+        ByteBuffer raw = ByteBuffer.wrap(bytes.toByteArray());
+        assertEquals(2, raw.getInt());
+        assertEquals(7, raw.getInt());
+        assertEquals(-4, raw.getDouble());
+        assertEquals(4 + 2 * (4 + 8 * DistributedProtocol.BODY_DOUBLES) + 4 + 8 * values.length + 4, raw.capacity());
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        int[][] readIds = new int[1][];
+        double[] readRecords = DistributedProtocol.readBodies(in, readIds);
+        assertArrayEquals(new int[]{7, 3}, readIds[0]);
+        // Bitwise, so -0.0 and NaN come back as they were sent
+        double[] expected = new double[2 * DistributedProtocol.BODY_DOUBLES];
+        System.arraycopy(records, 0, expected, 0, expected.length);
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(Double.doubleToRawLongBits(expected[i]), Double.doubleToRawLongBits(readRecords[i]), "value " + i);
+        }
+        assertArrayEquals(values, DistributedProtocol.readDoubles(in));
+        assertArrayEquals(new double[0], DistributedProtocol.readDoubles(in));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    void truncatedMessagesFail() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        DistributedProtocol.writeDoubles(out, new double[]{1, 2, 3});
+        out.flush();
+        byte[] truncated = new byte[bytes.size() - 1];
+        System.arraycopy(bytes.toByteArray(), 0, truncated, 0, truncated.length);
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(truncated));
+        assertThrows(EOFException.class, () -> DistributedProtocol.readDoubles(in));
+    }
+}
@@ -0,0 +1,40 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EncounterEventsTest {
+
+    @Test
+    void bodyBeyondTheEscapeRadiusDoesNotHideTheNextEscape() {
+        double[] masses = {1e-3, 0, 0};
+        // A test particle already far outside, and one heading out from inside the radius
+        double[] state = {0, 0, 0, 0, 200, 0, 0, 0, 50, 0, 0, 100};
+        EncounterEvents events = new EncounterEvents(masses, 0, 100, 0, state);
+        DormandPrince853Integrator integrator = new DormandPrince853Integrator(1e-10, 1, 1e-9, 1e-9);
+        events.registerWith(integrator, state);
+        double time = integrator.integrate(new DifferentialEquations(masses), 0, state, 5, state);
+        assertTrue(time < 1, "stopped at " + time);
+        assertEquals(100, Math.hypot(state[8], state[9]), 1e-4);
+
+        // The crossing body is left out from now on, so the run carries on to the end
+        events.registerWith(integrator, state);
+        assertEquals(5, integrator.integrate(new DifferentialEquations(masses), time, state, 5, state), 1e-12);
+    }
+
+    @Test
+    void closeApproachesAreSampledByCrossingTime() {
+        double[] masses = {1, 1};
+        double[] slow = {-500, 0, 0, 1, 500, 0, 0, -1};
+        double[] fast = {-500, 0, 0, 100, 500, 0, 0, -100};
+        EncounterEvents events = new EncounterEvents(masses, 10, 0, 0, slow);
+        double slowInterval = events.closeApproachCheckInterval(slow);
+        double fastInterval = events.closeApproachCheckInterval(fast);
+        assertTrue(fastInterval < slowInterval);
+        // The fastest pair closes at most half the distance between samples
+        assertTrue(fastInterval * 2 * 100 <= 5);
+    }
+}
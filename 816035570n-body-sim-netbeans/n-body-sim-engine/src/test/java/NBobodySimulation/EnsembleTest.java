@@ -0,0 +1,129 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EnsembleTest {
+
+    // Jitters every coordinate, so each member depends on its random stream
+    private static final Ensemble.Perturbation JITTER = (base, member, random) -> {
+        double[] state = base.clone();
+        for (int i = 0; i < state.length; i++) state[i] *= 1 + 1e-3 * random.nextGaussian();
+        return state;
+    };
+
+    @Test
+    void sameSeedGivesTheSameMembersOnAnyNumberOfThreads(@TempDir Path directory) throws IOException {
+        InitialConditions ring = InitialConditions.keplerRing(6, 1e6, 10, 100, 200, 3);
+        List<Ensemble.MemberResult> serial = run(ring, 7, 1, directory.resolve("serial.csv"));
+        List<Ensemble.MemberResult> parallel = run(ring, 7, 4, directory.resolve("parallel.csv"));
+        List<Ensemble.MemberResult> reseeded = run(ring, 8, 4, directory.resolve("reseeded.csv"));
+        for (int member = 0; member < serial.size(); member++) {
+            assertEquals(serial.get(member).toCsv(), parallel.get(member).toCsv());
+        }
+        assertNotEquals(serial.get(0).toCsv(), reseeded.get(0).toCsv());
+    }
+
+    @Test
+    void stopsAtAnEjection(@TempDir Path directory) throws IOException {
+        // A light body leaving a heavy one at three times the escape speed
+        double[] masses = {1e3, 1};
+        double speed = 3 * Math.sqrt(2 * DifferentialEquations.G * 1e3 / 100);
+        double[] state = {0, 0, 0, 0, 100, 0, speed, 0};
+        Ensemble ensemble = new Ensemble(settings(1, 1000), state, masses, (base, member, random) -> base.clone(), 2);
+        ensemble.setDuration(1);
+        for (Ensemble.MemberResult result : ensemble.run(directory.resolve("ejection.csv"))) {
+            assertEquals(Ensemble.Outcome.EJECTION, result.getOutcome());
+            assertEquals(1, result.body);
+            // It slows down on the way out, but never below its speed at infinity, sqrt(8) / 3 of the start
+            double fastest = 900 / speed;
+            double slowest = 900 / (Math.sqrt(8) / 3 * speed);
+            assertTrue(result.getTime() > fastest && result.getTime() < slowest, "ejected at " + result.getTime());
+        }
+    }
+
+    @Test
+    void stopsAtACollision(@TempDir Path directory) throws IOException {
+        // Two bodies falling straight into each other from rest
+        double[] masses = {1e3, 1e3};
+        double[] state = {-50, 0, 0, 0, 50, 0, 0, 0};
+        double freeFall = Math.PI / 2 * Math.sqrt(Math.pow(100, 3) / (2 * DifferentialEquations.G * 2e3));
+        Ensemble ensemble = new Ensemble(settings(5, 0), state, masses, (base, member, random) -> base.clone(), 2);
+        ensemble.setDuration(1);
+        for (Ensemble.MemberResult result : ensemble.run(directory.resolve("collision.csv"))) {
+            assertEquals(Ensemble.Outcome.COLLISION, result.getOutcome());
+            assertTrue(result.getTime() > 0 && result.getTime() < freeFall, "collided at " + result.getTime());
+        }
+    }
+
+    @Test
+    void streamsOneRowPerMember(@TempDir Path directory) throws IOException {
+        InitialConditions ring = InitialConditions.keplerRing(4, 1e6, 10, 100, 200, 5);
+        Path file = directory.resolve("members.csv");
+        List<Ensemble.MemberResult> results = run(ring, 1, 3, file);
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals("member,outcome,time,body,energyError", lines.get(0));
+        assertEquals(results.size() + 1, lines.size());
+        // Rows come in the order members finish, one each
+        boolean[] seen = new boolean[results.size()];
+        for (String line : lines.subList(1, lines.size())) {
+            int member = Integer.parseInt(line.substring(0, line.indexOf(',')));
+            assertFalse(seen[member], "member " + member + " written twice");
+            seen[member] = true;
+            assertEquals(results.get(member).toCsv(), line);
+        }
+    }
+
+    private static List<Ensemble.MemberResult> run(InitialConditions conditions, long seed, int threads, Path file) throws IOException {
+        Ensemble ensemble = new Ensemble(settings(0, 0), conditions.getFlatBodies(), conditions.getMasses(), JITTER, 12);
+        ensemble.setDuration(0.05);
+        ensemble.setSeed(seed);
+        ensemble.setParallelism(threads);
+        return ensemble.run(file);
+    }
+
+    private static IntegrationSettings settings(double closeApproachDistance, double escapeRadius) {
+        return new IntegrationSettings() {
+            @Override
+            public double getFrameInterval() {
+                return 1;
+            }
+
+            @Override
+            public boolean recenterOnCenterOfMass() {
+                return false;
+            }
+
+            @Override
+            public double getCloseApproachDistance() {
+                return closeApproachDistance;
+            }
+
+            @Override
+            public double getEscapeRadius() {
+                return escapeRadius;
+            }
+
+            @Override
+            public double getBoundary() {
+                return 0;
+            }
+
+            @Override
+            public boolean useWisdomHolman() {
+                return false;
+            }
+        };
+    }
+}
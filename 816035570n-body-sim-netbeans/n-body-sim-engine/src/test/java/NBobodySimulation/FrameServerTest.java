@@ -0,0 +1,141 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Talks to the server over loopback as a browser would.
+ */
+class FrameServerTest {
+
+    // The sample handshake of RFC 6455
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    @Test
+    void upgradesToWebSocketAndSendsKeyFrameThenDelta() throws IOException {
+        try (FrameServer server = new FrameServer(0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            server.setDeltaThreshold(1);
+            server.start();
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(("GET /frames HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + KEY + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            String response = readHeader(in);
+            assertTrue(response.startsWith("HTTP/1.1 101"), response);
+            assertTrue(response.contains("Sec-WebSocket-Accept: " + ACCEPT), response);
+
+            server.onFrame(0.5, new double[]{1, 2, 0, 0, -3, 4, 0, 0, 5, -6, 0, 0});
+            ByteBuffer key = readMessage(in);
+            assertEquals(0, key.get());
+            assertEquals(0, key.getInt());
+            assertEquals(0.5, key.getDouble());
+            assertEquals(3, key.getInt());
+            float[] expected = {1, 2, -3, 4, 5, -6};
+            for (float position : expected) assertEquals(position, key.getFloat());
+
+            // Only the second body moves further than the threshold
+            server.onFrame(1.0, new double[]{1.5, 2, 0, 0, 7, 4, 0, 0, 5, -6, 0, 0});
+            ByteBuffer delta = readMessage(in);
+            assertEquals(1, delta.get());
+            assertEquals(1, delta.getInt());
+            assertEquals(1.0, delta.getDouble());
+            assertEquals(3, delta.getInt());
+            assertEquals(1, delta.getInt());
+            assertEquals(1, delta.getInt());
+            assertEquals(7f, delta.getFloat());
+            assertEquals(4f, delta.getFloat());
+        }
+    }
+
+    @Test
+    void answersPingWithPongAndCloseWithClose() throws IOException {
+        try (FrameServer server = new FrameServer(0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            server.start();
+            socket.setSoTimeout(5000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+            out.write(("GET /frames HTTP/1.1\r\nHost: localhost\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                    + "Sec-WebSocket-Key: " + KEY + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            out.flush();
+            assertTrue(readHeader(in).startsWith("HTTP/1.1 101"));
+
+            // Browsers mask everything they send
+            byte[] mask = {0x37, (byte) 0xFA, 0x21, 0x3D};
+            byte[] hello = "Hello".getBytes(StandardCharsets.ISO_8859_1);
+            out.write(new byte[]{(byte) 0x89, (byte) (0x80 | hello.length)});
+            out.write(mask);
+            for (int i = 0; i < hello.length; i++) out.write(hello[i] ^ mask[i % 4]);
+            out.flush();
+            assertEquals(0x8A, in.readUnsignedByte());
+            byte[] pong = new byte[in.readUnsignedByte()];
+            in.readFully(pong);
+            assertEquals("Hello", new String(pong, StandardCharsets.ISO_8859_1));
+
+            out.write(new byte[]{(byte) 0x88, (byte) 0x80});
+            out.write(mask);
+            out.flush();
+            assertEquals(0x88, in.readUnsignedByte());
+            assertEquals(0, in.readUnsignedByte());
+            assertEquals(-1, in.read());
+        }
+    }
+
+    @Test
+    void listensOnLoopbackByDefault() throws IOException {
+        try (FrameServer server = new FrameServer(0)) {
+            assertTrue(server.getAddress().isLoopbackAddress());
+        }
+    }
+
+    @Test
+    void servesTheViewerPage() throws IOException {
+        try (FrameServer server = new FrameServer(0);
+             Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+            server.start();
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write("GET / HTTP/1.1\r\nHost: localhost\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+            String response = new String(socket.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+            assertTrue(response.startsWith("HTTP/1.1 200"), response);
+            assertTrue(response.contains("new WebSocket("), response);
+        }
+    }
+
+    private static String readHeader(InputStream in) throws IOException {
+        ByteArrayOutputStream header = new ByteArrayOutputStream();
+        while (!header.toString(StandardCharsets.ISO_8859_1).endsWith("\r\n\r\n")) {
+            int b = in.read();
+            if (b < 0) break;
+            header.write(b);
+        }
+        return header.toString(StandardCharsets.ISO_8859_1);
+    }
+
+    // Reads one unmasked binary message from the server
+    private static ByteBuffer readMessage(DataInputStream in) throws IOException {
+        assertEquals(0x82, in.readUnsignedByte());
+        int length = in.readUnsignedByte();
+        if (length == 126) length = in.readUnsignedShort();
+        else if (length == 127) length = (int) in.readLong();
+        byte[] payload = new byte[length];
+        in.readFully(payload);
+        return ByteBuffer.wrap(payload).order(ByteOrder.LITTLE_ENDIAN);
+    }
+}
@@ -0,0 +1,82 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class InitialConditionsTest {
+
+    @Test
+    void sameSeedGivesTheSameBodiesOnAnyNumberOfThreads() throws Exception {
+        // Several chunks each, so the chunks really are spread over the threads
+        Callable<InitialConditions[]> generators = () -> new InitialConditions[]{
+                InitialConditions.plummerSphere(20000, 1e6, 100, 9),
+                InitialConditions.keplerRing(20000, 1e6, 1e3, 100, 200, 9),
+                InitialConditions.debrisField(4, 20000, 1e6, 250, 100, 200, 9),
+                InitialConditions.exponentialDisk(20000, 1e4, 100, 1e6, 9),
+                InitialConditions.collidingGalaxies(10000, 1e4, 100, 1e6, 2000, 300, 50, 9),
+        };
+        InitialConditions[] serial = on(1, generators);
+        InitialConditions[] parallel = on(4, generators);
+        for (int g = 0; g < serial.length; g++) {
+            assertArrayEquals(serial[g].getMasses(), parallel[g].getMasses(), "generator " + g);
+            assertArrayEquals(serial[g].getFlatBodies(), parallel[g].getFlatBodies(), "generator " + g);
+        }
+    }
+
+    @Test
+    void plummerSphereHasTheBodiesAskedFor() {
+        InitialConditions sphere = InitialConditions.plummerSphere(5000, 1e6, 100, 2);
+        assertEquals(5000, sphere.size());
+        assertEquals(1e6, SystemStatistics.compute(sphere.getFlatBodies(), sphere.getMasses()).getTotalMass(), 1e-6);
+        assertCenterOfMassFrame(sphere);
+    }
+
+    @Test
+    void keplerRingAddsTheCentralMass() {
+        InitialConditions ring = InitialConditions.keplerRing(5000, 1e6, 1e3, 100, 200, 2);
+        assertEquals(5001, ring.size());
+        assertEquals(1e6, ring.getMasses()[0]);
+        assertEquals(1e6 + 1e3, SystemStatistics.compute(ring.getFlatBodies(), ring.getMasses()).getTotalMass(), 1e-6);
+        assertCenterOfMassFrame(ring);
+    }
+
+    @Test
+    void debrisFieldPutsThePlanetsFirst() {
+        InitialConditions debris = InitialConditions.debrisField(4, 5000, 1e6, 250, 100, 200, 2);
+        assertEquals(5005, debris.size());
+        assertEquals(1e6, debris.getMasses()[0]);
+        for (int i = 1; i <= 4; i++) assertEquals(250, debris.getMasses()[i]);
+        for (int i = 5; i < debris.size(); i++) assertEquals(0, debris.getMasses()[i]);
+        assertCenterOfMassFrame(debris);
+    }
+
+    // At rest on the origin, to rounding against the size and speeds of the system
+    private static void assertCenterOfMassFrame(InitialConditions conditions) {
+        SystemStatistics statistics = SystemStatistics.compute(conditions.getFlatBodies(), conditions.getMasses());
+        double[][] bounds = statistics.getBounds();
+        double size = Math.max(bounds[1][0] - bounds[0][0], bounds[1][1] - bounds[0][1]);
+        double speed = Math.sqrt(2 * statistics.getKineticEnergy() / statistics.getTotalMass());
+        double[] center = statistics.getCenterOfMass();
+        double[] velocity = statistics.getCenterOfMassVelocity();
+        assertEquals(0, center[0], 1e-12 * size);
+        assertEquals(0, center[1], 1e-12 * size);
+        assertEquals(0, velocity[0], 1e-12 * speed);
+        assertEquals(0, velocity[1], 1e-12 * speed);
+    }
+
+    private static InitialConditions[] on(int threads, Callable<InitialConditions[]> generators) throws InterruptedException, ExecutionException {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // Parallel streams started from a pool's task run on that pool
+            return pool.submit(generators).get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
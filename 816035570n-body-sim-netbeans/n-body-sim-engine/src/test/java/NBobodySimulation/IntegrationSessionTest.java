@@ -0,0 +1,162 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class IntegrationSessionTest {
+
+    private static final IntegrationSettings SETTINGS = new IntegrationSettings() {
+        @Override
+        public double getFrameInterval() {
+            // Exact in binary, so segments end on a frame
+            return 0.125;
+        }
+
+        @Override
+        public boolean recenterOnCenterOfMass() {
+            return false;
+        }
+
+        @Override
+        public double getCloseApproachDistance() {
+            return 0;
+        }
+
+        @Override
+        public double getEscapeRadius() {
+            return 0;
+        }
+
+        @Override
+        public double getBoundary() {
+            return 0;
+        }
+
+        @Override
+        public boolean useWisdomHolman() {
+            return false;
+        }
+    };
+
+    @Test
+    void reordersKeepEveryBodyWithItsId() throws InterruptedException {
+        InitialConditions ring = InitialConditions.keplerRing(100, 1e6, 0, 1e5, 2e5, 7);
+        double[] masses = ring.getMasses();
+        int[] ids = new int[masses.length];
+        for (int i = 0; i < ids.length; i++) ids[i] = 1000 + i;
+        IntegrationSession session = new IntegrationSession(SETTINGS, new DifferentialEquations(masses), masses, ring.getFlatBodies().clone(), 0);
+        session.setIds(ids);
+        session.setReorderInterval(1);
+        session.start();
+        IntegrationSession.Frame previous = null;
+        int reorders = 0;
+        for (int frames = 0; frames < 350; ) {
+            IntegrationSession.Frame frame = session.nextFrame();
+            if (frame.isEnd()) break;
+            int[] frameIds = frame.getIds();
+            int[] sorted = frameIds.clone();
+            Arrays.sort(sorted);
+            assertArrayEquals(ids, sorted, "ids at t=" + frame.getTime());
+            for (int k = 0; k < frameIds.length; k++) assertEquals(masses[frameIds[k] - 1000], frame.getMasses()[k]);
+            if (frame.isBodyChange()) {
+                reorders++;
+                // The new order holds the bodies where the last frame left them
+                assertEquals(previous.getTime(), frame.getTime());
+                double[] before = byId(previous);
+                double[] after = byId(frame);
+                for (int i = 0; i < before.length; i++) assertEquals(before[i], after[i], 1e-9 * Math.abs(before[i]) + 1e-9, "component " + i);
+            } else {
+                frames++;
+            }
+            previous = frame;
+        }
+        session.close();
+        session.join();
+        assertTrue(reorders > 0, "no reorder");
+    }
+
+    @Test
+    void appliesCommandsByIdInTheOrderTheyCame() throws InterruptedException {
+        double[] masses = {3, 3, 3};
+        double[] state = {150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10};
+        IntegrationSession session = new IntegrationSession(SETTINGS, new DifferentialEquations(masses), masses, state.clone(), 0);
+        session.start();
+        assertFalse(session.nextFrame().isBodyChange());
+        double[] edited = {1, 2, 3, 4};
+        double[] replaced = {5, 6, 7, 8};
+        double[] joined = {-9, -10, -11, -12};
+        session.submit(BodyCommand.edit(1, 5, edited));
+        session.submit(BodyCommand.remove(0));
+        session.submit(BodyCommand.add(7, 2, new double[]{0, 0, 0, 0}));
+        // Unknown ids are ignored
+        session.submit(BodyCommand.remove(42));
+        session.submit(BodyCommand.edit(0, 9, new double[]{0, 0, 0, 0}));
+        // Adding a body that is there replaces it, and a body removed and added again goes to the end
+        session.submit(BodyCommand.add(2, 4, replaced));
+        session.submit(BodyCommand.remove(7));
+        session.submit(BodyCommand.add(7, 1, joined));
+        IntegrationSession.Frame frame;
+        do {
+            frame = session.nextFrame();
+        } while (!frame.isBodyChange() && !frame.isEnd());
+        session.close();
+        session.join();
+
+        assertTrue(frame.isBodyChange());
+        assertArrayEquals(new int[]{1, 2, 7}, frame.getIds());
+        assertArrayEquals(new double[]{5, 4, 1}, frame.getMasses());
+        assertArrayEquals(new double[]{1, 2, 3, 4, 5, 6, 7, 8, -9, -10, -11, -12}, frame.getState());
+    }
+
+    @Test
+    void addsABodyToASessionStartedAgainAfterAStop() throws InterruptedException {
+        double[] masses = {3, 3, 3};
+        double[] state = {150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10};
+        int[] ids = {0, 1, 2};
+        IntegrationSession first = new IntegrationSession(SETTINGS, new DifferentialEquations(masses), masses, state.clone(), 0);
+        first.setIds(ids);
+        first.start();
+        IntegrationSession.Frame stopped = first.nextFrame();
+        first.close();
+        first.join();
+
+        // The bodies keep their ids across the stop, so a body added afterwards needs a new one
+        IntegrationSession second = new IntegrationSession(SETTINGS, new DifferentialEquations(masses), masses, stopped.getState().clone(), stopped.getTime());
+        assertThrows(IllegalArgumentException.class, () -> second.setIds(new int[]{0, 1, 0}));
+        second.setIds(ids);
+        second.start();
+        IntegrationSession.Frame before = second.nextFrame();
+        double[] added = {0, 300, 8, 0};
+        second.submit(BodyCommand.add(3, 7, added));
+        IntegrationSession.Frame frame = second.nextFrame();
+        while (!frame.isBodyChange() && !frame.isEnd()) {
+            before = frame;
+            frame = second.nextFrame();
+        }
+        second.close();
+        second.join();
+
+        assertTrue(frame.isBodyChange());
+        assertArrayEquals(new int[]{0, 1, 2, 3}, frame.getIds());
+        assertArrayEquals(new double[]{3, 3, 3, 7}, frame.getMasses());
+        assertArrayEquals(added, Arrays.copyOfRange(frame.getState(), 12, 16));
+        // The bodies that were there carry on where the last frame left them
+        assertEquals(before.getTime(), frame.getTime());
+        assertArrayEquals(before.getState(), Arrays.copyOf(frame.getState(), 12));
+    }
+
+    // The state with the bodies in the order of their ids
+    private static double[] byId(IntegrationSession.Frame frame) {
+        double[] state = new double[frame.getState().length];
+        int[] ids = frame.getIds();
+        for (int k = 0; k < ids.length; k++) System.arraycopy(frame.getState(), 4 * k, state, 4 * (ids[k] - 1000), 4);
+        return state;
+    }
+}
@@ -0,0 +1,57 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class MortonOrderTest {
+
+    @Test
+    void visitsTheQuadrantsInZOrder() {
+        // Top right, bottom left, top left, bottom right
+        double[] state = {10, 10, 1, 1, 0, 0, 2, 2, 0, 10, 3, 3, 10, 0, 4, 4};
+        int[] order = MortonOrder.order(state);
+        assertArrayEquals(new int[]{1, 3, 2, 0}, order);
+        assertArrayEquals(new double[]{0, 0, 2, 2, 10, 0, 4, 4, 0, 10, 3, 3, 10, 10, 1, 1}, MortonOrder.permute(state, order));
+        // Sorted bodies stay where they are
+        assertNull(MortonOrder.order(MortonOrder.permute(state, order)));
+    }
+
+    @Test
+    void ordersEveryBodyOnceAndKeepsBodiesInOneCellInOrder() {
+        Random random = new Random(11);
+        int count = 1000;
+        double[] state = new double[4 * count];
+        for (int i = 0; i < count; i++) {
+            // Half of them on a few points, so many bodies share a cell
+            state[4 * i] = i % 2 == 0 ? random.nextInt(4) : random.nextGaussian() * 100;
+            state[4 * i + 1] = i % 2 == 0 ? random.nextInt(4) : random.nextGaussian() * 100;
+            state[4 * i + 2] = i;
+        }
+        int[] order = MortonOrder.order(state);
+        assertNotNull(order);
+        int[] sorted = order.clone();
+        Arrays.sort(sorted);
+        assertArrayEquals(IntStream.range(0, count).toArray(), sorted);
+        double[] permuted = MortonOrder.permute(state, order);
+        for (int k = 0; k < count; k++) assertArrayEquals(Arrays.copyOfRange(state, 4 * order[k], 4 * order[k] + 4), Arrays.copyOfRange(permuted, 4 * k, 4 * k + 4));
+        for (int k = 1; k < count; k++) {
+            boolean sameCell = permuted[4 * k] == permuted[4 * k - 4] && permuted[4 * k + 1] == permuted[4 * k - 3];
+            if (sameCell && order[k] < order[k - 1]) throw new AssertionError("bodies " + order[k - 1] + " and " + order[k] + " swapped");
+        }
+    }
+
+    @Test
+    void leavesDegenerateStatesAlone() {
+        assertNull(MortonOrder.order(new double[0]));
+        assertNull(MortonOrder.order(new double[]{5, 5, 1, 1}));
+        assertNull(MortonOrder.order(new double[]{5, 5, 1, 1, 5, 5, 2, 2}));
+        assertNull(MortonOrder.order(new double[]{0, 0, 0, 0, Double.NaN, 1, 0, 0}));
+    }
+}
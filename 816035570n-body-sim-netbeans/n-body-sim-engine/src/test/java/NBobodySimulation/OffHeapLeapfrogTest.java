@@ -0,0 +1,66 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+class OffHeapLeapfrogTest {
+
+    private static final int GRID = 64;
+
+    @Test
+    void storeForcesAreTheHeapForces() {
+        InitialConditions sphere = InitialConditions.plummerSphere(5000, 1e6, 100, 3);
+        double[] masses = sphere.getMasses();
+        double[] state = sphere.getFlatBodies();
+        double[][] accelerations = new double[masses.length][2];
+        new ParticleMesh(masses, GRID).addAccelerations(state, accelerations);
+
+        ParticleStore store = ParticleStore.allocate(masses.length);
+        sphere.writeTo(store);
+        new ParticleMesh(GRID).computeAccelerations(store);
+        for (int i = 0; i < masses.length; i++) assertArrayEquals(accelerations[i], store.getAcceleration(i), "body " + i);
+    }
+
+    @Test
+    void stepsAStoreInPlaceAndKeepsItsMomentum() {
+        InitialConditions sphere = InitialConditions.plummerSphere(20000, 1e6, 100, 5);
+        ParticleStore store = ParticleStore.allocate(sphere.size());
+        sphere.writeTo(store);
+        OffHeapLeapfrog leapfrog = new OffHeapLeapfrog(store, GRID);
+        SystemStatistics before = SystemStatistics.compute(store, leapfrog.potentialEnergy());
+
+        leapfrog.advance(1e-5, 20);
+        SystemStatistics after = SystemStatistics.compute(store, leapfrog.potentialEnergy());
+        assertEquals(2e-4, store.getTime(), 1e-18);
+        assertFalse(Arrays.equals(sphere.getFlatBodies(), store.toFlatBodies()), "nothing moved");
+        // The mesh forces are antisymmetric, so the momentum only picks up rounding
+        double scale = before.getTotalMass() * Math.sqrt(2 * before.getKineticEnergy() / before.getTotalMass());
+        assertEquals(0, Math.hypot(after.getMomentum()[0], after.getMomentum()[1]) / scale, 1e-12);
+        // A short stretch at a small step, so the energy on the mesh barely moves
+        assertEquals(before.getTotalEnergy(), after.getTotalEnergy(), 1e-3 * Math.abs(before.getTotalEnergy()));
+    }
+
+    @Test
+    void aMappedStoreIsACheckpointOfTheRun(@TempDir Path directory) throws IOException {
+        InitialConditions ring = InitialConditions.keplerRing(3000, 1e6, 10, 100, 200, 7);
+        Path file = directory.resolve("run.nbody");
+        ParticleStore store = ParticleStore.create(file, ring.size());
+        ring.writeTo(store);
+        OffHeapLeapfrog leapfrog = new OffHeapLeapfrog(store, GRID);
+        leapfrog.advance(1e-4, 10);
+        store.flush();
+
+        ParticleStore reopened = ParticleStore.open(file);
+        assertEquals(store.getTime(), reopened.getTime());
+        assertArrayEquals(store.toFlatBodies(), reopened.toFlatBodies());
+        for (int i = 0; i < ring.size(); i++) assertArrayEquals(store.getAcceleration(i), reopened.getAcceleration(i));
+    }
+}
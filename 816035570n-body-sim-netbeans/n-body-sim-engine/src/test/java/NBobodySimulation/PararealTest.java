@@ -0,0 +1,100 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PararealTest {
+
+    // The bodies of the presets in the simulation window
+    private static final double[] MASSES = {3, 3, 3};
+    private static final double[] STATE = {150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10};
+
+    @Test
+    void matchesSerialIntegration() {
+        double[] serial = STATE.clone();
+        new DormandPrince853Integrator(1e-10, 10000, 0.01, 0.0001).integrate(new DifferentialEquations(MASSES), 0, serial, 20, serial);
+        Parareal single = new Parareal(MASSES, STATE, 0, 20);
+        single.setSlices(1);
+        assertArrayEquals(serial, single.run(null));
+
+        // Integrating slice by slice restarts the integrator at each slice start, which is what Parareal converges to
+        double[] sliced = STATE.clone();
+        for (int slice = 0; slice < 4; slice++) {
+            new DormandPrince853Integrator(1e-10, 10000, 0.01, 0.0001).integrate(new DifferentialEquations(MASSES),
+                    slice * 5.0, sliced, (slice + 1) * 5.0, sliced);
+        }
+        // Without a tolerance every slice is iterated until it is exact
+        Parareal exact = new Parareal(MASSES, STATE, 0, 20);
+        exact.setSlices(4);
+        exact.setParallelism(2);
+        exact.setTolerance(0);
+        assertArrayEquals(sliced, exact.run(null));
+    }
+
+    @Test
+    void reproducibleRunsDoNotDependOnTheThreads() {
+        Parareal oneThread = new Parareal(MASSES, STATE, 0, 20);
+        oneThread.setParallelism(1);
+        oneThread.setReproducible(true);
+        Parareal threeThreads = new Parareal(MASSES, STATE, 0, 20);
+        threeThreads.setParallelism(3);
+        threeThreads.setSlices(4);
+        threeThreads.setReproducible(true);
+        assertArrayEquals(oneThread.run(null), threeThreads.run(null));
+
+        // Turning it off goes back to the slices set before, not one per core
+        threeThreads.setReproducible(false);
+        Parareal fourSlices = new Parareal(MASSES, STATE, 0, 20);
+        fourSlices.setSlices(4);
+        assertArrayEquals(fourSlices.run(null), threeThreads.run(null));
+    }
+
+    @Test
+    void regularizesCloseApproaches() {
+        // Two of the bodies pass within a fraction of a unit at t~188, where plain Dormand-Prince reaches its minimum step
+        Parareal parareal = new Parareal(MASSES, STATE, 0, 200);
+        parareal.setSlices(4);
+        parareal.setParallelism(2);
+        parareal.setCloseApproachDistance(5);
+        double[] end = parareal.run(null);
+        double initialEnergy = DifferentialEquations.totalEnergy(STATE, MASSES);
+        double error = Math.abs(DifferentialEquations.totalEnergy(end, MASSES) / initialEnergy - 1);
+        assertTrue(error < 0.05, "energy error " + error);
+    }
+
+    @Test
+    void cancelStopsARun() throws InterruptedException {
+        Parareal parareal = new Parareal(MASSES, STATE, 0, 1e7);
+        parareal.setSlices(4);
+        parareal.setParallelism(2);
+        parareal.setCloseApproachDistance(5);
+        CountDownLatch running = new CountDownLatch(1);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<double[]> run = executor.submit(() -> {
+                running.countDown();
+                return parareal.run(null);
+            });
+            running.await();
+            Thread.sleep(100);
+            parareal.cancel();
+            ExecutionException thrown = assertThrows(ExecutionException.class, () -> run.get(10, TimeUnit.SECONDS));
+            assertInstanceOf(CancellationException.class, thrown.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ParticleMeshTest {
+
+    private static final double SCALE_RADIUS = 100;
+    private static final int PROBES = 64;
+
+    @Test
+    void pullOfASphereMatchesTheDirectSumFarFromIt() {
+        InitialConditions system = sphereWithProbes();
+        double[] masses = system.getMasses();
+        double[] state = system.getFlatBodies();
+        double[] exact = new double[state.length];
+        new DifferentialEquations(masses).computeDerivatives(0, state, exact);
+
+        double coarse = worstProbeError(masses, state, exact, 64);
+        double fine = worstProbeError(masses, state, exact, 128);
+        // Measured 1.0e-3 and 2.1e-4: the smoothing is about a cell, far below the distance to the probes
+        assertTrue(coarse < 1e-2, "relative error on a 64 grid " + coarse);
+        assertTrue(fine < coarse / 2, "relative error on a 128 grid " + fine + " against " + coarse);
+    }
+
+    @Test
+    void aBodyDoesNotPullItself() {
+        // One body with mass off the cell corners, and test particles that only span the grid
+        double[] masses = {1e3, 0, 0, 0, 0};
+        double[] state = {3.37, -1.81, 0, 0, -100, -100, 0, 0, 100, -100, 0, 0, -100, 100, 0, 0, 100, 100, 0, 0};
+        double[][] accelerations = new double[masses.length][2];
+        new ParticleMesh(masses, 64).addAccelerations(state, accelerations);
+        double cell = 200.0 / 62;
+        double oneCell = DifferentialEquations.G * masses[0] / (cell * cell);
+        double self = Math.hypot(accelerations[0][0], accelerations[0][1]) / oneCell;
+        assertTrue(self < 1e-12, "self force " + self + " of the pull at one cell");
+        // The test particles are still pulled
+        assertTrue(Math.hypot(accelerations[1][0], accelerations[1][1]) > 0);
+    }
+
+    @Test
+    void conservesMomentum() {
+        InitialConditions sphere = InitialConditions.plummerSphere(5000, 1e6, SCALE_RADIUS, 4);
+        double[] masses = sphere.getMasses();
+        double[][] accelerations = new double[masses.length][2];
+        new ParticleMesh(masses, 128).addAccelerations(sphere.getFlatBodies(), accelerations);
+        double forceX = 0;
+        double forceY = 0;
+        double magnitude = 0;
+        for (int i = 0; i < masses.length; i++) {
+            forceX += masses[i] * accelerations[i][0];
+            forceY += masses[i] * accelerations[i][1];
+            magnitude += masses[i] * Math.hypot(accelerations[i][0], accelerations[i][1]);
+        }
+        double net = Math.hypot(forceX, forceY) / magnitude;
+        assertTrue(net < 1e-12, "net force " + net + " of the summed forces");
+    }
+
+    // A Plummer sphere cut at three scale radii, and massless probes on a ring at ten
+    private static InitialConditions sphereWithProbes() {
+        InitialConditions sphere = InitialConditions.plummerSphere(4000, 1e6, SCALE_RADIUS, 1);
+        double[] sphereMasses = sphere.getMasses();
+        double[] sphereBodies = sphere.getFlatBodies();
+        int kept = 0;
+        for (int i = 0; i < sphere.size(); i++) if (Math.hypot(sphereBodies[4 * i], sphereBodies[4 * i + 1]) < 3 * SCALE_RADIUS) kept++;
+        double[] masses = new double[kept + PROBES];
+        double[] state = new double[4 * masses.length];
+        int k = 0;
+        for (int i = 0; i < sphere.size(); i++) {
+            if (Math.hypot(sphereBodies[4 * i], sphereBodies[4 * i + 1]) >= 3 * SCALE_RADIUS) continue;
+            masses[k] = sphereMasses[i];
+            System.arraycopy(sphereBodies, 4 * i, state, 4 * k, 4);
+            k++;
+        }
+        for (int p = 0; p < PROBES; p++) {
+            double angle = 2 * Math.PI * p / PROBES + 0.1;
+            state[4 * (kept + p)] = 10 * SCALE_RADIUS * Math.cos(angle);
+            state[4 * (kept + p) + 1] = 10 * SCALE_RADIUS * Math.sin(angle);
+        }
+        return InitialConditions.fromState(state, masses);
+    }
+
+    private static double worstProbeError(double[] masses, double[] state, double[] exact, int gridSize) {
+        DifferentialEquations mesh = new DifferentialEquations(masses);
+        mesh.setParticleMesh(gridSize);
+        double[] approximate = new double[state.length];
+        mesh.computeDerivatives(0, state, approximate);
+        double worst = 0;
+        for (int i = masses.length - PROBES; i < masses.length; i++) {
+            double error = Math.hypot(approximate[4 * i + 2] - exact[4 * i + 2], approximate[4 * i + 3] - exact[4 * i + 3]);
+            worst = Math.max(worst, error / Math.hypot(exact[4 * i + 2], exact[4 * i + 3]));
+        }
+        return worst;
+    }
+}
@@ -0,0 +1,40 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class ParticleStoreTest {
+
+    @Test
+    void checkpointReadsBackWhatWasWritten(@TempDir Path directory) throws IOException {
+        double[] state = {150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10};
+        double[] derivatives = {-15, -30, 1, 2, 5, 40, 3, 4, 10, -10, 5, 6};
+        double[] masses = {3, 0, 2};
+        Path file = directory.resolve("run.nbody");
+
+        ParticleStore written = ParticleStore.create(file, masses.length);
+        written.copyFrom(12.5, state, derivatives, masses);
+        written.flush();
+
+        ParticleStore read = ParticleStore.open(file);
+        assertEquals(masses.length, read.size());
+        assertEquals(12.5, read.getTime());
+        assertArrayEquals(state, read.toFlatBodies());
+        for (int i = 0; i < masses.length; i++) {
+            assertEquals(masses[i], read.getMass(i));
+            assertArrayEquals(new double[]{derivatives[4 * i + 2], derivatives[4 * i + 3]}, read.getAcceleration(i));
+        }
+    }
+
+    @Test
+    void refusesMoreParticlesThanOneBufferHolds() {
+        assertThrows(IllegalArgumentException.class, () -> ParticleStore.allocate(ParticleStore.MAX_PARTICLES + 1));
+    }
+}
@@ -0,0 +1,59 @@
+package NBobodySimulation;
+
+import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class RegularizedPairTest {
+
+    @Test
+    void regularizesAndConvertsBack() {
+        double[] masses = {5, 2, 7};
+        // Pairs whose separation points along each axis, including the negative x axis where the square root branches
+        double[][] separations = {{3, 4}, {-3, 4}, {-3, -4}, {3, -4}, {-5, 0}, {5, 0}, {0, 5}, {0, -5}};
+        for (double[] separation : separations) {
+            double[] state = {10, 20, 1, -2, 10 + separation[0], 20 + separation[1], -3, 4, -50, 30, 0.5, 0.25};
+            RegularizedPair pair = new RegularizedPair(masses, 1, 0, false);
+            double[] y = pair.regularize(state, 2.5);
+            assertEquals(2.5, pair.time(y));
+            assertEquals(5, pair.separation(y), 1e-12);
+            double[] back = new double[state.length];
+            pair.toPhysical(y, back);
+            for (int i = 0; i < state.length; i++) {
+                assertEquals(state[i], back[i], 1e-12 * Math.max(1, Math.abs(state[i])), "component " + i + " for " + separation[0] + ", " + separation[1]);
+            }
+        }
+    }
+
+    @Test
+    void passesPericenterAndKeepsTheEnergy() {
+        // A binary with an eccentricity of 0.999, from apocenter, and a light body far away
+        double[] masses = {1000, 1000, 1};
+        double mu = DifferentialEquations.G * 2000;
+        double apocenter = 1000;
+        double eccentricity = 0.999;
+        double a = apocenter / (1 + eccentricity);
+        double speed = Math.sqrt(mu / a * (1 - eccentricity) / (1 + eccentricity));
+        double[] state = {-apocenter / 2, 0, 0, -speed / 2, apocenter / 2, 0, 0, speed / 2, 0, 1e5, 0, 0};
+        double period = 2 * Math.PI * Math.sqrt(a * a * a / mu);
+        double initialEnergy = DifferentialEquations.totalEnergy(state, masses);
+
+        RegularizedPair pair = new RegularizedPair(masses, 0, 1, false);
+        double[] y = pair.regularize(state, 0);
+        double span = period / pair.separation(y);
+        DormandPrince853Integrator integrator = new DormandPrince853Integrator(span * 1e-15, span, 1e-12, 1e-12);
+        pair.registerWith(integrator, y, period, 2 * apocenter, 0);
+        integrator.integrate(pair, 0, y, Double.MAX_VALUE, y);
+
+        double[] end = new double[state.length];
+        pair.toPhysical(y, end);
+        assertEquals(period, pair.time(y), 1e-9 * period);
+        // Through a pericenter of half a km at full speed and back to apocenter
+        double separation = Math.hypot(end[4] - end[0], end[5] - end[1]);
+        assertEquals(apocenter, separation, 1e-6 * apocenter);
+        double energyError = Math.abs(DifferentialEquations.totalEnergy(end, masses) / initialEnergy - 1);
+        assertTrue(energyError < 1e-10, "energy error " + energyError);
+    }
+}
@@ -0,0 +1,56 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SpatialGridTest {
+
+    @Test
+    void queriesFindExactlyTheBodiesInsideTheRectangle() {
+        Random random = new Random(3);
+        int count = 1000;
+        double[] state = new double[4 * count];
+        for (int i = 0; i < count; i++) {
+            // Clustered, so some cells are crowded and others empty
+            state[4 * i] = random.nextGaussian() * (i % 2 == 0 ? 10 : 300);
+            state[4 * i + 1] = random.nextGaussian() * 100;
+        }
+        SpatialGrid grid = new SpatialGrid(state, count);
+        for (int q = 0; q < 50; q++) {
+            double x1 = random.nextDouble() * 1000 - 500;
+            double y1 = random.nextDouble() * 400 - 200;
+            double x2 = x1 + random.nextDouble() * 300;
+            double y2 = y1 + random.nextDouble() * 300;
+            List<Integer> expected = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                if (state[4 * i] >= x1 && state[4 * i] <= x2 && state[4 * i + 1] >= y1 && state[4 * i + 1] <= y2) expected.add(i);
+            }
+            List<Integer> found = new ArrayList<>();
+            grid.query(x1, y1, x2, y2, found::add);
+            found.sort(null);
+            assertEquals(expected, found, "query " + q);
+        }
+    }
+
+    @Test
+    void handlesNoBodiesAndBodiesOnOnePoint() {
+        List<Integer> found = new ArrayList<>();
+        new SpatialGrid(new double[0], 0).query(-1, -1, 1, 1, found::add);
+        assertTrue(found.isEmpty());
+
+        double[] state = {5, 5, 0, 0, 5, 5, 1, 1, 5, 5, 2, 2};
+        SpatialGrid grid = new SpatialGrid(state, 3);
+        grid.query(0, 0, 10, 10, found::add);
+        found.sort(null);
+        assertEquals(List.of(0, 1, 2), found);
+        found.clear();
+        grid.query(6, 6, 10, 10, found::add);
+        assertTrue(found.isEmpty());
+    }
+}
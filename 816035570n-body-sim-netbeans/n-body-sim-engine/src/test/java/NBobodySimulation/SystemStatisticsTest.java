@@ -0,0 +1,62 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SystemStatisticsTest {
+
+    @Test
+    void pairRowsSplitTheSumEvenly() {
+        for (int count : new int[]{257, 1000, 4099}) {
+            int chunks = (count + 255) / 256;
+            int[] rows = SystemStatistics.potentialRows(count, chunks);
+            assertEquals(0, rows[0]);
+            assertEquals(count, rows[chunks]);
+            double share = count * (count - 1.0) / 2 / chunks;
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                double pairs = 0;
+                for (int i = rows[chunk]; i < rows[chunk + 1]; i++) pairs += count - i - 1;
+                // Within one row of an equal share
+                assertTrue(Math.abs(pairs - share) <= count, "chunk " + chunk + " of " + count + " holds " + pairs + " pairs");
+            }
+        }
+    }
+
+    @Test
+    void mergedChunksMatchADirectSum() {
+        InitialConditions conditions = InitialConditions.plummerSphere(1500, 1e6, 100, 4);
+        double[] state = conditions.getFlatBodies();
+        double[] masses = conditions.getMasses();
+        SystemStatistics statistics = SystemStatistics.compute(state, masses);
+
+        double mass = 0, weightedX = 0, kinetic = 0, potential = 0;
+        for (int i = 0; i < masses.length; i++) {
+            mass += masses[i];
+            weightedX += masses[i] * state[4 * i];
+            kinetic += 0.5 * masses[i] * (state[4 * i + 2] * state[4 * i + 2] + state[4 * i + 3] * state[4 * i + 3]);
+            for (int j = i + 1; j < masses.length; j++) {
+                potential -= DifferentialEquations.G * masses[i] * masses[j]
+                        / Math.hypot(state[4 * j] - state[4 * i], state[4 * j + 1] - state[4 * i + 1]);
+            }
+        }
+        assertEquals(mass, statistics.getTotalMass(), 1e-9 * mass);
+        assertEquals(weightedX / mass, statistics.getCenterOfMass()[0], 1e-9);
+        assertEquals(kinetic, statistics.getKineticEnergy(), 1e-12 * kinetic);
+        assertEquals(potential, statistics.getPotentialEnergy(), 1e-12 * Math.abs(potential));
+    }
+
+    @Test
+    void sameNumbersOnAnyNumberOfThreads() throws Exception {
+        InitialConditions conditions = InitialConditions.plummerSphere(2000, 1e6, 100, 5);
+        SystemStatistics reference = new ForkJoinPool(1).submit(() -> SystemStatistics.compute(conditions.getFlatBodies(), conditions.getMasses())).get();
+        SystemStatistics parallel = new ForkJoinPool(7).submit(() -> SystemStatistics.compute(conditions.getFlatBodies(), conditions.getMasses())).get();
+        assertEquals(reference.getPotentialEnergy(), parallel.getPotentialEnergy(), 0);
+        assertEquals(reference.getKineticEnergy(), parallel.getKineticEnergy(), 0);
+        assertArrayEquals(reference.getCenterOfMass(), parallel.getCenterOfMass(), 0);
+    }
+}
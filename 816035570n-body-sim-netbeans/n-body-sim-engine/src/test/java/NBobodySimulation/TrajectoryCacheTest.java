@@ -0,0 +1,141 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TrajectoryCacheTest {
+
+    // The bodies of the presets in the simulation window, with a close pass at t~188
+    private static final double[] MASSES = {3, 3, 3};
+    private static final double[] STATE = {150, 50, -15, -30, 50, -150, 5, 40, -200, -50, 10, -10};
+
+    private static final IntegrationSettings SETTINGS = new IntegrationSettings() {
+        @Override
+        public double getFrameInterval() {
+            return 0.5;
+        }
+
+        @Override
+        public boolean recenterOnCenterOfMass() {
+            return false;
+        }
+
+        @Override
+        public double getCloseApproachDistance() {
+            return 5;
+        }
+
+        @Override
+        public double getEscapeRadius() {
+            return 0;
+        }
+
+        @Override
+        public double getBoundary() {
+            return 0;
+        }
+
+        @Override
+        public boolean useWisdomHolman() {
+            return false;
+        }
+    };
+
+    @Test
+    void resumedRunGivesTheFramesOfAFreshRun(@TempDir Path directory) throws InterruptedException {
+        List<double[]> fresh = run(null, 0, 500);
+        TrajectoryCache cache = new TrajectoryCache(directory, Long.MAX_VALUE);
+        // Stops partway through a segment and through the close pass, then resumes twice
+        run(cache, 0, 375);
+        run(cache, 0, 420);
+        List<double[]> resumed = run(cache, 0, 500);
+        assertEquals(fresh.size(), resumed.size());
+        for (int i = 0; i < fresh.size(); i++) assertArrayEquals(fresh.get(i), resumed.get(i), "frame " + i);
+    }
+
+    @Test
+    void reordersDoNotEndTheEntry(@TempDir Path directory) throws InterruptedException, IOException {
+        List<double[]> fresh = run(null, 1, 500);
+        TrajectoryCache cache = new TrajectoryCache(directory, Long.MAX_VALUE);
+        run(cache, 1, 250);
+        List<double[]> resumed = run(cache, 1, 500);
+        assertEquals(fresh.size(), resumed.size());
+        for (int i = 0; i < fresh.size(); i++) assertArrayEquals(fresh.get(i), resumed.get(i), "frame " + i);
+        // A reorder used to end the entry at the first segment end
+        String key = IntegrationSession.cacheKey(SETTINGS, new DifferentialEquations(MASSES), 1, MASSES, STATE, 0);
+        try (TrajectoryCache.Entry entry = cache.open(key, MASSES.length)) {
+            assertTrue(entry.getFrames() >= 500, entry.getFrames() + " frames cached");
+        }
+    }
+
+    @Test
+    void evictsTheLeastRecentlyUsedEntriesThatAreNotOpen(@TempDir Path directory) throws IOException {
+        long entryBytes = fill(new TrajectoryCache(directory, Long.MAX_VALUE), directory, "probe");
+        Files.delete(directory.resolve("probe.traj"));
+        // Room for two entries and a half
+        TrajectoryCache cache = new TrajectoryCache(directory, 5 * entryBytes / 2);
+        fill(cache, directory, "a");
+        fill(cache, directory, "b");
+        Files.setLastModifiedTime(directory.resolve("a.traj"), FileTime.fromMillis(1000));
+        Files.setLastModifiedTime(directory.resolve("b.traj"), FileTime.fromMillis(2000));
+        // Opening marks an entry as used, so b is now the least recently used
+        cache.open("a", MASSES.length).close();
+        fill(cache, directory, "c");
+        assertTrue(Files.exists(directory.resolve("a.traj")));
+        assertFalse(Files.exists(directory.resolve("b.traj")));
+        assertTrue(Files.exists(directory.resolve("c.traj")));
+
+        // An entry in use is passed over, even if it is the oldest
+        Files.setLastModifiedTime(directory.resolve("a.traj"), FileTime.fromMillis(1000));
+        try (TrajectoryCache.Entry open = cache.open("a", MASSES.length)) {
+            Files.setLastModifiedTime(directory.resolve("a.traj"), FileTime.fromMillis(1000));
+            fill(cache, directory, "d");
+            assertTrue(Files.exists(directory.resolve("a.traj")));
+            assertFalse(Files.exists(directory.resolve("c.traj")));
+            assertThrows(IOException.class, () -> cache.open("a", MASSES.length));
+        }
+    }
+
+    // Writes an entry of a few frames and closes it, returning its size
+    private static long fill(TrajectoryCache cache, Path directory, String key) throws IOException {
+        try (TrajectoryCache.Entry entry = cache.open(key, MASSES.length)) {
+            for (int i = 0; i < 10; i++) entry.append(i, STATE, STATE);
+        }
+        return Files.size(directory.resolve(key + ".traj"));
+    }
+
+    // The time and state of each frame up to a frame count, with the bodies by id whatever order the session has them in
+    private static List<double[]> run(TrajectoryCache cache, int reorderInterval, int frames) throws InterruptedException {
+        IntegrationSession session = new IntegrationSession(SETTINGS, new DifferentialEquations(MASSES), MASSES, STATE.clone(), 0);
+        session.setCache(cache);
+        session.setReorderInterval(reorderInterval);
+        session.start();
+        List<double[]> result = new ArrayList<>();
+        while (result.size() < frames) {
+            IntegrationSession.Frame frame = session.nextFrame();
+            if (frame.isEnd()) break;
+            if (frame.isBodyChange()) continue;
+            double[] sample = new double[1 + frame.getState().length];
+            sample[0] = frame.getTime();
+            int[] ids = frame.getIds();
+            for (int k = 0; k < ids.length; k++) System.arraycopy(frame.getState(), 4 * k, sample, 1 + 4 * ids[k], 4);
+            result.add(sample);
+        }
+        session.close();
+        session.join();
+        return result;
+    }
+}
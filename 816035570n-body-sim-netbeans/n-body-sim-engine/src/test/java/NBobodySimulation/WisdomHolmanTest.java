@@ -0,0 +1,58 @@
+package NBobodySimulation;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class WisdomHolmanTest {
+
+    private static final double CENTRAL_MASS = 1e6;
+
+    @Test
+    void keplerDriftClosesAnEccentricOrbit() {
+        // A test particle at its pericenter, fast enough for an eccentricity of 0.6
+        double r = 1000;
+        double mu = DifferentialEquations.G * CENTRAL_MASS;
+        double v = Math.sqrt(mu / r * 1.6);
+        double[] masses = {CENTRAL_MASS, 0};
+        double[] state = {0, 0, 0, 0, r, 0, 0, v};
+        double a = 1 / (2 / r - v * v / mu);
+        double period = 2 * Math.PI * Math.sqrt(a * a * a / mu);
+
+        // Without interactions every step is an exact Kepler drift, however long
+        WisdomHolman mapping = new WisdomHolman(new DifferentialEquations(masses), masses, state);
+        mapping.advance(0, period / 7, 7);
+        double[] end = new double[state.length];
+        mapping.toPhysical(end);
+        for (int i = 0; i < state.length; i++) assertEquals(state[i], end[i], 1e-8 * (i % 4 < 2 ? r : v), "component " + i);
+    }
+
+    @Test
+    void conservesTheEnergyOfAPlanetarySystem() {
+        double[] masses = {CENTRAL_MASS, 10, 20, 15};
+        double[] radii = {1000, 1600, 2500};
+        double[] state = new double[4 * masses.length];
+        for (int p = 0; p < radii.length; p++) {
+            double angle = 2.1 * p;
+            double speed = Math.sqrt(DifferentialEquations.G * CENTRAL_MASS / radii[p]);
+            state[4 * (p + 1)] = radii[p] * Math.cos(angle);
+            state[4 * (p + 1) + 1] = radii[p] * Math.sin(angle);
+            state[4 * (p + 1) + 2] = -speed * Math.sin(angle);
+            state[4 * (p + 1) + 3] = speed * Math.cos(angle);
+        }
+        double initialEnergy = DifferentialEquations.totalEnergy(state, masses);
+
+        WisdomHolman mapping = new WisdomHolman(new DifferentialEquations(masses), masses, state);
+        double step = mapping.stepLimit();
+        double[] current = new double[state.length];
+        double worst = 0;
+        // A hundred inner orbits, checked every orbit
+        for (int orbit = 0; orbit < 100; orbit++) {
+            mapping.advance(orbit * 20 * step, step, 20);
+            mapping.toPhysical(current);
+            worst = Math.max(worst, Math.abs(DifferentialEquations.totalEnergy(current, masses) / initialEnergy - 1));
+        }
+        assertTrue(worst < 1e-6, "energy error " + worst);
+    }
+}
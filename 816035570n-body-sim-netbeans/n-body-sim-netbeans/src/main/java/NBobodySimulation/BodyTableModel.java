@@ -0,0 +1,135 @@
+package NBobodySimulation;
+
+import javax.swing.table.AbstractTableModel;
+import java.util.List;
+import java.util.function.IntPredicate;
+
+/**
+ * Table model for the body inspector. Each refresh copies the numbers of every body into primitive arrays, without
+ * building any strings; the table only asks for, and formats, the rows it actually paints.
+ * <br>
+ * Sorting and filtering work on an array of row indices into the snapshot, so neither copies the bodies.
+ */
+class BodyTableModel extends AbstractTableModel {
+
+    private static final String[] COLUMNS = {"#", "x", "y", "vx", "vy", "mass"};
+
+    // Snapshot columns: values[column][row], with column 0 holding the id
+    private double[][] values = new double[COLUMNS.length][0];
+    private int count;
+
+    // view[i] is the snapshot row shown at table row i
+    private int[] view = new int[0];
+    private int viewCount;
+    private int[] scratch = new int[0];
+
+    private int sortColumn = -1;
+    private boolean ascending = true;
+    private IntPredicate filter;
+
+    /**
+     * Takes a new snapshot of the bodies and reapplies the current filter and sort order. Call on the EDT.
+     */
+    void update(List<OrbitalBody> bodies) {
+        // The simulation removes escaped bodies while holding this lock
+        synchronized (bodies) {
+            copy(bodies);
+        }
+        rebuildView();
+        fireTableDataChanged();
+    }
+
+    private void copy(List<OrbitalBody> bodies) {
+        int size = bodies.size();
+        if (values[0].length < size) {
+            values = new double[COLUMNS.length][size];
+            view = new int[size];
+            scratch = new int[size];
+        }
+        count = 0;
+        for (int i = 0; i < size; i++) {
+            OrbitalBody body = bodies.get(i);
+            double[] position = body.getPosition();
+            double[] velocity = body.getVelocity();
+            values[0][i] = body.getId();
+            values[1][i] = position[0];
+            values[2][i] = position[1];
+            values[3][i] = velocity[0];
+            values[4][i] = velocity[1];
+            values[5][i] = body.getMass();
+            count++;
+        }
+    }
+
+    /**
+     * Sorts by a column. Selecting the same column again reverses the order.
+     */
+    void sortBy(int column) {
+        if (column == sortColumn) {
+            ascending = !ascending;
+        } else {
+            sortColumn = column;
+            ascending = true;
+        }
+        rebuildView();
+        fireTableDataChanged();
+    }
+
+    /**
+     * Only shows bodies whose id passes the filter, or all bodies if the filter is null.
+     */
+    void setIdFilter(IntPredicate filter) {
+        this.filter = filter;
+        rebuildView();
+        fireTableDataChanged();
+    }
+
+    private void rebuildView() {
+        viewCount = 0;
+        for (int row = 0; row < count; row++) {
+            if (filter == null || filter.test((int) values[0][row])) view[viewCount++] = row;
+        }
+        if (sortColumn >= 0) mergeSort(values[sortColumn], 0, viewCount);
+    }
+
+    // Stable merge sort of view[from, to) by key, without boxing
+    private void mergeSort(double[] key, int from, int to) {
+        if (to - from < 2) return;
+        int middle = (from + to) >>> 1;
+        mergeSort(key, from, middle);
+        mergeSort(key, middle, to);
+        int left = from;
+        int right = middle;
+        int out = from;
+        while (left < middle && right < to) {
+            int compared = Double.compare(key[view[left]], key[view[right]]);
+            if (!ascending) compared = -compared;
+            scratch[out++] = compared <= 0 ? view[left++] : view[right++];
+        }
+        while (left < middle) scratch[out++] = view[left++];
+        while (right < to) scratch[out++] = view[right++];
+        System.arraycopy(scratch, from, view, from, to - from);
+    }
+
+    @Override
+    public int getRowCount() {
+        return viewCount;
+    }
+
+    @Override
+    public int getColumnCount() {
+        return COLUMNS.length;
+    }
+
+    @Override
+    public String getColumnName(int column) {
+        return COLUMNS[column];
+    }
+
+    @Override
+    public Object getValueAt(int rowIndex, int columnIndex) {
+        double value = values[columnIndex][view[rowIndex]];
+        if (columnIndex == 0) return String.valueOf((int) value);
+        return String.format("%.2f", value);
+    }
+}
@@ -0,0 +1,176 @@
+package NBobodySimulation;
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Renders body positions as a screen-resolution density histogram with a logarithmic color scale, for systems with
+ * more bodies than pixels.
+ * <br>
+ * The image is split into horizontal bands of rows, at most {@value #MAX_BANDS} of them. Bodies are first sorted by band
+ * with a counting sort, in parallel over slices of bodies, and each band then bins only its own bodies into its own
+ * rows of a single histogram of int counters, so no two threads ever write the same counter and there is only one
+ * histogram whatever the number of cores. Binning and sorting cost O(N / bands) per band and coloring O(pixels / bands).
+ * <br>
+ * Buffers only grow, so resizing the view to a size that was used before allocates nothing.
+ */
+class DensityMap {
+
+    private static final int PALETTE_SIZE = 256;
+    private static final int[] PALETTE = buildPalette();
+    private static final int MAX_BANDS = 8;
+    // Mass weighted counters count in this fraction of the average body mass
+    private static final int WEIGHT_STEPS = 16;
+
+    private final int bands = Math.min(MAX_BANDS, Runtime.getRuntime().availableProcessors());
+    private int width;
+    private int height;
+    private int[] counts = new int[0];
+    private int[] pixels = new int[0];
+    // The pixel of each body, or -1 off screen, then the bodies sorted by band
+    private int[] pixelOf = new int[0];
+    private int[] sorted = new int[0];
+    // bandCounts[slice * bands + band] is the number of bodies of a slice in a band, then where they go in sorted
+    private final int[] bandCounts = new int[bands * bands];
+    private final int[] bandStart = new int[bands + 1];
+    private final double[] sliceWeights = new double[bands];
+    private final int[] bandMax = new int[bands];
+
+    DensityMap(int width, int height) {
+        setSize(width, height);
+    }
+
+    int getWidth() {
+        return width;
+    }
+
+    int getHeight() {
+        return height;
+    }
+
+    void setSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+        if (counts.length < width * height) {
+            counts = new int[width * height];
+            pixels = new int[width * height];
+        }
+    }
+
+    /**
+     * Bins the bodies and colors the result.
+     *
+     * @param state         The flattened state, {x, y, vx, vy} per body, in world units.
+     * @param weights       The weight of each body, usually its mass, or null to count bodies.
+     * @param count         The number of bodies.
+     * @param translationX  The world x coordinate of the left edge of the view.
+     * @param translationY  The world y coordinate of the top edge of the view.
+     * @param scale         World units per pixel.
+     * @return The image as ARGB pixels, row by row, {@link #getWidth()} wide. Reused by the next call.
+     */
+    int[] render(double[] state, double[] weights, int count, double translationX, double translationY, double scale) {
+        if (pixelOf.length < count) {
+            pixelOf = new int[count];
+            sorted = new int[count];
+        }
+
+        // Pixel and band of every body, counted per slice of bodies
+        Arrays.fill(bandCounts, 0);
+        IntStream.range(0, bands).parallel().forEach(slice -> {
+            double weightSum = 0;
+            for (int i = from(slice, count); i < from(slice + 1, count); i++) {
+                weightSum += weights == null ? 1 : weights[i];
+                int column = (int) Math.floor((state[4 * i] - translationX) / scale);
+                int row = (int) Math.floor((translationY - state[4 * i + 1]) / scale);
+                if (column < 0 || column >= width || row < 0 || row >= height) {
+                    pixelOf[i] = -1;
+                    continue;
+                }
+                pixelOf[i] = row * width + column;
+                bandCounts[slice * bands + band(row)]++;
+            }
+            sliceWeights[slice] = weightSum;
+        });
+
+        // Densities are measured in average bodies, so the log scale does not depend on the mass units
+        double totalWeight = 0;
+        for (double weight : sliceWeights) totalWeight += weight;
+        double unit = count == 0 || totalWeight <= 0 ? 1 : totalWeight / count;
+        int steps = weights == null ? 1 : WEIGHT_STEPS;
+
+        // Where each slice's bodies of each band start in sorted, bands first so each band is one run
+        int position = 0;
+        for (int band = 0; band < bands; band++) {
+            bandStart[band] = position;
+            for (int slice = 0; slice < bands; slice++) {
+                int slots = bandCounts[slice * bands + band];
+                bandCounts[slice * bands + band] = position;
+                position += slots;
+            }
+        }
+        bandStart[bands] = position;
+        IntStream.range(0, bands).parallel().forEach(slice -> {
+            for (int i = from(slice, count); i < from(slice + 1, count); i++) {
+                if (pixelOf[i] >= 0) sorted[bandCounts[slice * bands + band(pixelOf[i] / width)]++] = i;
+            }
+        });
+
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            int firstPixel = from(band, height) * width;
+            int endPixel = from(band + 1, height) * width;
+            Arrays.fill(counts, firstPixel, endPixel, 0);
+            for (int k = bandStart[band]; k < bandStart[band + 1]; k++) {
+                int i = sorted[k];
+                // Any body with mass shows, however light, and a pixel saturates rather than overflows
+                long weight = weights == null ? 1 : weights[i] == 0 ? 0 : Math.max(1, Math.round(weights[i] / unit * steps));
+                counts[pixelOf[i]] = (int) Math.min(Integer.MAX_VALUE, counts[pixelOf[i]] + weight);
+            }
+            int max = 0;
+            for (int p = firstPixel; p < endPixel; p++) max = Math.max(max, counts[p]);
+            bandMax[band] = max;
+        });
+        int max = 0;
+        for (int bandCount : bandMax) max = Math.max(max, bandCount);
+
+        double logMax = Math.log1p((double) max / steps);
+        IntStream.range(0, bands).parallel().forEach(band -> {
+            for (int p = from(band, height) * width; p < from(band + 1, height) * width; p++) {
+                if (counts[p] == 0) {
+                    pixels[p] = 0; // transparent, so the background shows through
+                } else {
+                    int index = logMax == 0 ? PALETTE_SIZE - 1 : (int) (Math.log1p((double) counts[p] / steps) / logMax * (PALETTE_SIZE - 1));
+                    pixels[p] = PALETTE[index];
+                }
+            }
+        });
+        return pixels;
+    }
+
+    // The first of a range of items split into bands, for band 0 to bands
+    private int from(int band, int items) {
+        return (int) ((long) items * band / bands);
+    }
+
+    // The last band whose first row is at or before the row, the inverse of from(band, height)
+    private int band(int row) {
+        return (int) (((long) (row + 1) * bands + height - 1) / height) - 1;
+    }
+
+    // Dark blue through magenta and orange to pale yellow
+    private static int[] buildPalette() {
+        double[][] stops = {{0.05, 0.03, 0.30}, {0.60, 0.10, 0.55}, {0.95, 0.45, 0.10}, {1.00, 0.95, 0.60}};
+        int[] palette = new int[PALETTE_SIZE];
+        for (int i = 0; i < PALETTE_SIZE; i++) {
+            double position = (double) i / (PALETTE_SIZE - 1) * (stops.length - 1);
+            int stop = Math.min((int) position, stops.length - 2);
+            double fraction = position - stop;
+            int argb = 0xFF000000;
+            for (int c = 0; c < 3; c++) {
+                double value = stops[stop][c] + (stops[stop + 1][c] - stops[stop][c]) * fraction;
+                argb |= ((int) Math.round(value * 255)) << (16 - 8 * c);
+            }
+            palette[i] = argb;
+        }
+        return palette;
+    }
+}
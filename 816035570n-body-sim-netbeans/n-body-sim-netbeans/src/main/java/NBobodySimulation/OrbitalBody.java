@@ -1,12 +1,10 @@
 package NBobodySimulation;
 
 import javafx.scene.paint.Color;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
 
 public class OrbitalBody {
 
+    // Never reset, since sessions find bodies by id and the bodies in the settings outlive a stop
     private static int ID_COUNTER = 0;
 
     private int id;
@@ -16,8 +14,26 @@ public class OrbitalBody {
     private int dimensions;
     private double mass;
     private Color color;
-    private List<double[]> trail;
     private static final int MAX_TRAIL_SIZE = 10000;
+    // The trail as a ring buffer of positions, grown as needed up to MAX_TRAIL_SIZE
+    private double[] trailX = new double[16];
+    private double[] trailY = new double[16];
+    private int trailStart;
+    private int trailSize;
+    // Points ever added, so a view can tell which segments it has not drawn yet
+    private long trailAdded;
+    // A box around every point added, never shrunk as old points drop off, for culling whole trails
+    private double trailMinX = Double.POSITIVE_INFINITY;
+    private double trailMinY = Double.POSITIVE_INFINITY;
+    private double trailMaxX = Double.NEGATIVE_INFINITY;
+    private double trailMaxY = Double.NEGATIVE_INFINITY;
+
+    /**
+     * Receives trail segments, in world units.
+     */
+    interface TrailSegmentConsumer {
+        void accept(double x1, double y1, double x2, double y2);
+    }
 
     // Velocity components
     private void setup(double[] initialPosition, double[] initialVelocity, double mass) {
@@ -29,7 +45,6 @@ public class OrbitalBody {
         this.acceleration =  new double[dimensions];
         for(int i = 0; i < dimensions; i++) this.acceleration[i] = 0;
         this.mass = mass;
-        this.trail = Collections.synchronizedList(new ArrayList<>());
     }
 
     public OrbitalBody(double[] initialPosition, double[] initialVelocity, double mass, java.awt.Color color) {
@@ -42,32 +57,55 @@ public class OrbitalBody {
         setup(initialPosition, initialVelocity, mass);
     }
 
-    public static void resetCounter() {
-        ID_COUNTER = 0;
+    public int getId() {
+        return id;
     }
 
     public double getMass() {
         return mass;
     }
 
+    public void setMass(double mass) {
+        this.mass = mass;
+    }
+
     public int getDimensions() {
         return dimensions;
     }
 
     // Update position based on velocity
-    public void update(double[] position, double[] velocity) {
+    public void update(double[] position, double[] velocity, double[] acceleration) {
         for(int i = 0; i < dimensions; i++){
             this.position[i] = position[i];
             this.velocity[i] = velocity[i];
-            this.acceleration[i] = DifferentialEquations.getAcceleration(id, i);
+            this.acceleration[i] = acceleration[i];
         }
-        // Update trail
-        double[] newTrailPoint = new double[dimensions];
-        System.arraycopy(this.position, 0, newTrailPoint, 0, dimensions);
-        trail.add(newTrailPoint);
-        if (trail.size() > MAX_TRAIL_SIZE) {
-            trail.remove(0);
+        addTrailPoint(position[0], position[1]);
+    }
+
+    private synchronized void addTrailPoint(double x, double y) {
+        if (trailSize == trailX.length && trailSize < MAX_TRAIL_SIZE) {
+            int capacity = Math.min(MAX_TRAIL_SIZE, trailSize * 2);
+            double[] x2 = new double[capacity];
+            double[] y2 = new double[capacity];
+            for (int k = 0; k < trailSize; k++) {
+                x2[k] = trailX[(trailStart + k) % trailX.length];
+                y2[k] = trailY[(trailStart + k) % trailY.length];
+            }
+            trailX = x2;
+            trailY = y2;
+            trailStart = 0;
         }
+        int end = (trailStart + trailSize) % trailX.length;
+        trailX[end] = x;
+        trailY[end] = y;
+        if (trailSize < trailX.length) trailSize++;
+        else trailStart = (trailStart + 1) % trailX.length;
+        trailAdded++;
+        trailMinX = Math.min(trailMinX, x);
+        trailMinY = Math.min(trailMinY, y);
+        trailMaxX = Math.max(trailMaxX, x);
+        trailMaxY = Math.max(trailMaxY, y);
     }
 
     public double[] flatten(){
@@ -110,8 +148,32 @@ public class OrbitalBody {
         return color;
     }
 
-    public double[][] getTrail() {
-        return trail.toArray(new double[0][0]);
+    public synchronized double[][] getTrail() {
+        double[][] trail = new double[trailSize][];
+        for (int k = 0; k < trailSize; k++) {
+            int index = (trailStart + k) % trailX.length;
+            trail[k] = new double[]{trailX[index], trailY[index]};
+        }
+        return trail;
+    }
+
+    /**
+     * Passes the trail segments added after the first {@code drawn} points to the consumer, skipping the whole trail if
+     * it never touched the rectangle.
+     *
+     * @param drawn The number of points added when the trail was last drawn, or 0 for the whole trail.
+     * @return The number of points added so far, to pass as {@code drawn} next time.
+     */
+    synchronized long forEachTrailSegment(long drawn, double minX, double minY, double maxX, double maxY, TrailSegmentConsumer consumer) {
+        if (trailMaxX < minX || trailMinX > maxX || trailMaxY < minY || trailMinY > maxY) return trailAdded;
+        // The first point kept, counted from the first point ever added
+        long first = trailAdded - trailSize;
+        for (long point = Math.max(drawn, first + 1); point < trailAdded; point++) {
+            int from = (int) ((trailStart + point - 1 - first) % trailX.length);
+            int to = (int) ((trailStart + point - first) % trailX.length);
+            consumer.accept(trailX[from], trailY[from], trailX[to], trailY[to]);
+        }
+        return trailAdded;
     }
 
     @Override
@@ -16,9 +16,14 @@ import javax.swing.Timer;
  * @author jeruel
  */
 public class Runner extends JFrame {
+    // Enough bodies to see the structure of a generated system while it still runs in real time
+    private static final int GENERATED_BODIES = 30;
+    // Generated systems have many close passes, which stall the integrator unless the closest pair is regularized
+    private static final double GENERATED_CLOSE_APPROACH = 1;
+
     Simulation simulation = new Simulation();
     SimulationSettings settings = new SimulationSettings();
-    ArrayList<OrbitalBody> bodies = new ArrayList<>();
+    BodyTableModel bodyTableModel = new BodyTableModel();
 
     /**
      * Creates new form Runner
@@ -35,7 +40,7 @@ public class Runner extends JFrame {
          
   
         
-        settings.setBodies(bodies);
+        settings.setBodies(new ArrayList<>());
         settings.setInfinite(false);
         settings.setShowCenterOfGravity(false);
         settings.setBackgroundColor(Color.WHITE);
@@ -49,7 +54,17 @@ public class Runner extends JFrame {
         
         
         simulation.configure(settings);  
-        new Timer(100, e -> updateTextArea(bodies)).start(); 
+        jTable1.getTableHeader().addMouseListener(new java.awt.event.MouseAdapter() {
+            @Override
+            public void mouseClicked(java.awt.event.MouseEvent evt) {
+                int column = jTable1.columnAtPoint(evt.getPoint());
+                if (column >= 0) bodyTableModel.sortBy(jTable1.convertColumnIndexToModel(column));
+            }
+        });
+        new Timer(100, e -> bodyTableModel.update(settings.getBodies())).start(); 
+        // The error is measured when a run starts with single precision forces
+        new Timer(500, e -> singlePrecisionErrorLabel.setText(settings.singlePrecisionForces()
+                ? String.format("Force error : %.1e", simulation.getSinglePrecisionError()) : "Force error : -")).start();
     }
 
     /**
@@ -79,6 +94,24 @@ public class Runner extends JFrame {
         frameRateField = new javax.swing.JTextField();
         jCheckBox3 = new javax.swing.JCheckBox();
         jCheckBox4 = new javax.swing.JCheckBox();
+        singlePrecisionCheckBox = new javax.swing.JCheckBox();
+        singlePrecisionErrorLabel = new javax.swing.JLabel();
+        densityCheckBox = new javax.swing.JCheckBox();
+        massWeightedDensityCheckBox = new javax.swing.JCheckBox();
+        cacheCheckBox = new javax.swing.JCheckBox();
+        reorderLabel = new javax.swing.JLabel();
+        reorderField = new javax.swing.JTextField();
+        recenterCheckBox = new javax.swing.JCheckBox();
+        wisdomHolmanCheckBox = new javax.swing.JCheckBox();
+        reproducibleCheckBox = new javax.swing.JCheckBox();
+        closeApproachLabel = new javax.swing.JLabel();
+        closeApproachField = new javax.swing.JTextField();
+        escapeRadiusLabel = new javax.swing.JLabel();
+        escapeRadiusField = new javax.swing.JTextField();
+        boundaryLabel = new javax.swing.JLabel();
+        boundaryField = new javax.swing.JTextField();
+        particleMeshLabel = new javax.swing.JLabel();
+        particleMeshField = new javax.swing.JTextField();
         jPanel5 = new javax.swing.JPanel();
         Earth = new javax.swing.JButton();
         Mercury = new javax.swing.JButton();
@@ -89,11 +122,13 @@ public class Runner extends JFrame {
         Neptune = new javax.swing.JButton();
         Saturn = new javax.swing.JButton();
         jScrollPane1 = new javax.swing.JScrollPane();
-        jTextArea1 = new javax.swing.JTextArea();
+        jTable1 = new javax.swing.JTable();
         jLabel3 = new javax.swing.JLabel();
         jTextField1 = new javax.swing.JTextField();
         jComboBox1 = new javax.swing.JComboBox<>();
         jLabel4 = new javax.swing.JLabel();
+        jLabel5 = new javax.swing.JLabel();
+        filterField = new javax.swing.JTextField();
 
         setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
         setTitle("N-Body Simulation");
@@ -251,6 +286,114 @@ public class Runner extends JFrame {
             }
         });
 
+        singlePrecisionCheckBox.setText("Single Precision Forces");
+        singlePrecisionCheckBox.setToolTipText("Evaluates forces on float positions, applied at the next start");
+        singlePrecisionCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                singlePrecisionCheckBoxActionPerformed(evt);
+            }
+        });
+
+        singlePrecisionErrorLabel.setText("Force error : -");
+
+        densityCheckBox.setText("Density map");
+        densityCheckBox.setToolTipText("Draws a density heatmap instead of circles, for systems with more bodies than pixels");
+        densityCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                densityCheckBoxActionPerformed(evt);
+            }
+        });
+
+        massWeightedDensityCheckBox.setText("Weight density by mass");
+        massWeightedDensityCheckBox.setToolTipText("Sums body masses instead of counting bodies in the density map");
+        massWeightedDensityCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                massWeightedDensityCheckBoxActionPerformed(evt);
+            }
+        });
+
+        cacheCheckBox.setText("Cache trajectories");
+        cacheCheckBox.setToolTipText("Saves runs under ~/.n-body-sim/trajectories, so starting the same bodies with the same settings again replays them");
+        cacheCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                cacheCheckBoxActionPerformed(evt);
+            }
+        });
+
+        reorderLabel.setText("Reorder every (segments)");
+
+        reorderField.setText("0");
+        reorderField.setToolTipText("Sorts the bodies by position every this many segments of 100 frames, or never for 0, applied at the next start");
+        reorderField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                reorderFieldActionPerformed(evt);
+            }
+        });
+
+        recenterCheckBox.setText("Recenter on center of mass");
+        recenterCheckBox.setToolTipText("Moves the center of mass back to the origin at every segment, so a drifting system stays in view");
+        recenterCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                recenterCheckBoxActionPerformed(evt);
+            }
+        });
+
+        wisdomHolmanCheckBox.setText("Wisdom-Holman");
+        wisdomHolmanCheckBox.setToolTipText("Integrates with the Wisdom-Holman mapping, much faster for planets around one central mass but with no close approach handling");
+        wisdomHolmanCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                wisdomHolmanCheckBoxActionPerformed(evt);
+            }
+        });
+
+        reproducibleCheckBox.setText("Reproducible skip ahead");
+        reproducibleCheckBox.setToolTipText("Skips ahead in 16 time slices on any machine, so the result is the same everywhere, slower with fewer than 16 cores");
+        reproducibleCheckBox.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                reproducibleCheckBoxActionPerformed(evt);
+            }
+        });
+
+        closeApproachLabel.setText("Close approach distance");
+
+        closeApproachField.setText("0");
+        closeApproachField.setToolTipText("Pairs closer than this are integrated in regularized coordinates until they separate, or never for 0");
+        closeApproachField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                closeApproachFieldActionPerformed(evt);
+            }
+        });
+
+        escapeRadiusLabel.setText("Escape radius");
+
+        escapeRadiusField.setText("0");
+        escapeRadiusField.setToolTipText("Unbound bodies farther than this from the center of mass are removed, or never for 0");
+        escapeRadiusField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                escapeRadiusFieldActionPerformed(evt);
+            }
+        });
+
+        boundaryLabel.setText("Boundary");
+
+        boundaryField.setText("0");
+        boundaryField.setToolTipText("Bodies outside the square from -boundary to boundary are removed, or never for 0");
+        boundaryField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                boundaryFieldActionPerformed(evt);
+            }
+        });
+
+        particleMeshLabel.setText("Particle mesh cells");
+
+        particleMeshField.setText("0");
+        particleMeshField.setToolTipText("Grid cells along each side for particle-mesh forces, a power of two, or 0 to sum over every pair, applied at the next start");
+        particleMeshField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                particleMeshFieldActionPerformed(evt);
+            }
+        });
+
         javax.swing.GroupLayout jPanel4Layout = new javax.swing.GroupLayout(jPanel4);
         jPanel4.setLayout(jPanel4Layout);
         jPanel4Layout.setHorizontalGroup(
@@ -271,7 +414,37 @@ public class Runner extends JFrame {
                             .addComponent(jLabel1, javax.swing.GroupLayout.Alignment.LEADING, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, Short.MAX_VALUE))
                         .addGap(18, 18, 18)
                         .addComponent(speedField, javax.swing.GroupLayout.PREFERRED_SIZE, 104, javax.swing.GroupLayout.PREFERRED_SIZE)))
-                .addContainerGap(596, Short.MAX_VALUE))
+                .addGap(80, 80, 80)
+                .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
+                    .addComponent(singlePrecisionCheckBox)
+                    .addComponent(singlePrecisionErrorLabel)
+                    .addComponent(densityCheckBox)
+                    .addComponent(massWeightedDensityCheckBox)
+                    .addComponent(cacheCheckBox)
+                    .addGroup(jPanel4Layout.createSequentialGroup()
+                        .addComponent(reorderLabel, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(18, 18, 18)
+                        .addComponent(reorderField, javax.swing.GroupLayout.PREFERRED_SIZE, 104, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addComponent(recenterCheckBox)
+                    .addComponent(wisdomHolmanCheckBox)
+                    .addComponent(reproducibleCheckBox)
+                    .addGroup(jPanel4Layout.createSequentialGroup()
+                        .addComponent(closeApproachLabel, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(18, 18, 18)
+                        .addComponent(closeApproachField, javax.swing.GroupLayout.PREFERRED_SIZE, 104, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(jPanel4Layout.createSequentialGroup()
+                        .addComponent(escapeRadiusLabel, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(18, 18, 18)
+                        .addComponent(escapeRadiusField, javax.swing.GroupLayout.PREFERRED_SIZE, 104, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(jPanel4Layout.createSequentialGroup()
+                        .addComponent(boundaryLabel, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(18, 18, 18)
+                        .addComponent(boundaryField, javax.swing.GroupLayout.PREFERRED_SIZE, 104, javax.swing.GroupLayout.PREFERRED_SIZE))
+                    .addGroup(jPanel4Layout.createSequentialGroup()
+                        .addComponent(particleMeshLabel, javax.swing.GroupLayout.PREFERRED_SIZE, 150, javax.swing.GroupLayout.PREFERRED_SIZE)
+                        .addGap(18, 18, 18)
+                        .addComponent(particleMeshField, javax.swing.GroupLayout.PREFERRED_SIZE, 104, javax.swing.GroupLayout.PREFERRED_SIZE)))
+                .addContainerGap(300, Short.MAX_VALUE))
         );
         jPanel4Layout.setVerticalGroup(
             jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
@@ -293,6 +466,44 @@ public class Runner extends JFrame {
                     .addComponent(jLabel2, javax.swing.GroupLayout.PREFERRED_SIZE, 25, javax.swing.GroupLayout.PREFERRED_SIZE)
                     .addComponent(frameRateField, javax.swing.GroupLayout.PREFERRED_SIZE, 22, javax.swing.GroupLayout.PREFERRED_SIZE))
                 .addContainerGap(527, Short.MAX_VALUE))
+            .addGroup(jPanel4Layout.createSequentialGroup()
+                .addContainerGap()
+                .addComponent(singlePrecisionCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(singlePrecisionErrorLabel)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(densityCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(massWeightedDensityCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(cacheCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(reorderLabel)
+                    .addComponent(reorderField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(recenterCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(wisdomHolmanCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addComponent(reproducibleCheckBox)
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(closeApproachLabel)
+                    .addComponent(closeApproachField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(escapeRadiusLabel)
+                    .addComponent(escapeRadiusField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(boundaryLabel)
+                    .addComponent(boundaryField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
+                .addGroup(jPanel4Layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                    .addComponent(particleMeshLabel)
+                    .addComponent(particleMeshField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                .addContainerGap(400, Short.MAX_VALUE))
         );
 
         jPanel2.add(jPanel4, "card3");
@@ -403,10 +614,8 @@ public class Runner extends JFrame {
 
         jScrollPane1.setBorder(javax.swing.BorderFactory.createBevelBorder(javax.swing.border.BevelBorder.RAISED));
 
-        jTextArea1.setEditable(false);
-        jTextArea1.setColumns(20);
-        jTextArea1.setRows(5);
-        jScrollPane1.setViewportView(jTextArea1);
+        jTable1.setModel(bodyTableModel);
+        jScrollPane1.setViewportView(jTable1);
 
         jLabel3.setText("Skip Ahead :");
 
@@ -417,7 +626,7 @@ public class Runner extends JFrame {
         });
 
         jComboBox1.setBackground(new java.awt.Color(204, 204, 204));
-        jComboBox1.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "Preset 1", "Preset 2", "Preset 3" }));
+        jComboBox1.setModel(new javax.swing.DefaultComboBoxModel<>(new String[] { "Preset 1", "Preset 2", "Preset 3", "Kepler ring", "Debris field" }));
         jComboBox1.addActionListener(new java.awt.event.ActionListener() {
             public void actionPerformed(java.awt.event.ActionEvent evt) {
                 jComboBox1ActionPerformed(evt);
@@ -426,6 +635,15 @@ public class Runner extends JFrame {
 
         jLabel4.setText("LOAD!");
 
+        jLabel5.setText("Filter IDs :");
+
+        filterField.setToolTipText("An id or a range of ids, like 3 or 10-20");
+        filterField.addActionListener(new java.awt.event.ActionListener() {
+            public void actionPerformed(java.awt.event.ActionEvent evt) {
+                filterFieldActionPerformed(evt);
+            }
+        });
+
         javax.swing.GroupLayout layout = new javax.swing.GroupLayout(getContentPane());
         getContentPane().setLayout(layout);
         layout.setHorizontalGroup(
@@ -441,6 +659,10 @@ public class Runner extends JFrame {
                                 .addGap(18, 18, 18)
                                 .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.LEADING)
                                     .addComponent(jScrollPane1, javax.swing.GroupLayout.PREFERRED_SIZE, 339, javax.swing.GroupLayout.PREFERRED_SIZE)
+                                    .addGroup(layout.createSequentialGroup()
+                                        .addComponent(jLabel5, javax.swing.GroupLayout.PREFERRED_SIZE, 89, javax.swing.GroupLayout.PREFERRED_SIZE)
+                                        .addGap(18, 18, 18)
+                                        .addComponent(filterField, javax.swing.GroupLayout.PREFERRED_SIZE, 175, javax.swing.GroupLayout.PREFERRED_SIZE))
                                     .addGroup(layout.createSequentialGroup()
                                         .addComponent(jLabel3, javax.swing.GroupLayout.PREFERRED_SIZE, 89, javax.swing.GroupLayout.PREFERRED_SIZE)
                                         .addGap(18, 18, 18)
@@ -472,6 +694,10 @@ public class Runner extends JFrame {
                             .addComponent(jLabel4)
                             .addComponent(jComboBox1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
                         .addGap(41, 41, 41)
+                        .addGroup(layout.createParallelGroup(javax.swing.GroupLayout.Alignment.BASELINE)
+                            .addComponent(jLabel5)
+                            .addComponent(filterField, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE))
+                        .addPreferredGap(javax.swing.LayoutStyle.ComponentPlacement.RELATED)
                         .addComponent(jScrollPane1, javax.swing.GroupLayout.PREFERRED_SIZE, javax.swing.GroupLayout.DEFAULT_SIZE, javax.swing.GroupLayout.PREFERRED_SIZE)
                         .addGap(173, 173, 173))))
         );
@@ -503,19 +729,16 @@ public class Runner extends JFrame {
 
     private void jCheckBox1ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jCheckBox1ActionPerformed
          settings.setShowGrid(jCheckBox1.isSelected()); // Toggle grid visibility based on checkbox state
-         simulation.configure(settings);
     }//GEN-LAST:event_jCheckBox1ActionPerformed
 
     private void jCheckBox2ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jCheckBox2ActionPerformed
         settings.setShowTrail(jCheckBox2.isSelected()); // Toggle grid visibility based on checkbox state
-         simulation.configure(settings);
     }//GEN-LAST:event_jCheckBox2ActionPerformed
 
     private void speedFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_speedFieldActionPerformed
         try {
                 int speed = Integer.parseInt(speedField.getText());
                 settings.setSimulationSpeed(speed);
-                simulation.configure(settings);
             } catch (NumberFormatException ex) {
                 // Handle invalid input
                 speedField.setText(String.valueOf(settings.getSimulationSpeed()));
@@ -526,7 +749,6 @@ public class Runner extends JFrame {
         try {
                 int frameRate = Integer.parseInt(frameRateField.getText());
                 settings.setFrameRate(frameRate);
-                simulation.configure(settings);
             } catch (NumberFormatException ex) {
                 // Handle invalid input
                 frameRateField.setText(String.valueOf(settings.getFrameRate()));
@@ -535,7 +757,6 @@ public class Runner extends JFrame {
 
     private void jCheckBox3ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jCheckBox3ActionPerformed
          settings.setShowCenterOfGravity(jCheckBox3.isSelected()); // Toggle grid visibility based on checkbox state
-         simulation.configure(settings);
 
     }//GEN-LAST:event_jCheckBox3ActionPerformed
 
@@ -543,21 +764,25 @@ public class Runner extends JFrame {
          String selectedPreset = (String) jComboBox1.getSelectedItem();
         switch (selectedPreset) {
             case "Preset 1":
-                settings.setBodies(createPreset1Bodies());
+                simulation.replaceBodies(createPreset1Bodies());
                 break;
             case "Preset 2":
-                settings.setBodies(createPreset2Bodies());
+                simulation.replaceBodies(createPreset2Bodies());
                 break;
             case "Preset 3":
-                settings.setBodies(createPreset3Bodies());
+                simulation.replaceBodies(createPreset3Bodies());
+                break;
+            case "Kepler ring":
+                loadGenerated(InitialConditions.keplerRing(GENERATED_BODIES, 1e6, 1e3, 100, 200, 1));
+                break;
+            case "Debris field":
+                loadGenerated(InitialConditions.debrisField(4, 4 * GENERATED_BODIES, 1e6, 250, 100, 200, 1));
                 break;
         }
-        simulation.configure(settings);
     }//GEN-LAST:event_jComboBox1ActionPerformed
 
     private void jCheckBox4ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jCheckBox4ActionPerformed
-         settings.setInfinite(jCheckBox3.isSelected()); // Toggle grid visibility based on checkbox state
-         simulation.configure(settings);
+         settings.setInfinite(jCheckBox4.isSelected());
     }//GEN-LAST:event_jCheckBox4ActionPerformed
 
     private void jTextField1ActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_jTextField1ActionPerformed
@@ -571,52 +796,142 @@ public class Runner extends JFrame {
     }//GEN-LAST:event_jTextField1ActionPerformed
 
     private void EarthActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_EarthActionPerformed
-         bodies.add(new OrbitalBody(new double[]{150, 50}, new double[]{-15, -30}, 3, Color.RED));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{150, 50}, new double[]{-15, -30}, 3, Color.RED));
         
     }//GEN-LAST:event_EarthActionPerformed
 
     private void JupiterActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_JupiterActionPerformed
-         bodies.add(new OrbitalBody(new double[]{100, 100}, new double[]{30, 0}, 1, Color.CYAN));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{100, 100}, new double[]{30, 0}, 1, Color.CYAN));
     }//GEN-LAST:event_JupiterActionPerformed
 
     private void SaturnActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_SaturnActionPerformed
-         bodies.add(new OrbitalBody(new double[]{-100, -100}, new double[]{-30, 0}, 5, Color.BLUE));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{-100, -100}, new double[]{-30, 0}, 5, Color.BLUE));
     }//GEN-LAST:event_SaturnActionPerformed
 
     private void VenusActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_VenusActionPerformed
-         bodies.add(new OrbitalBody(new double[]{0, 0}, new double[]{0, 1}, 1, Color.GREEN));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{0, 0}, new double[]{0, 1}, 1, Color.GREEN));
     }//GEN-LAST:event_VenusActionPerformed
 
     private void UranusActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_UranusActionPerformed
-         bodies.add(new OrbitalBody(new double[]{-200, -50}, new double[]{10, -10}, 1, Color.magenta));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{-200, -50}, new double[]{10, -10}, 1, Color.magenta));
     }//GEN-LAST:event_UranusActionPerformed
 
     private void MercuryActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MercuryActionPerformed
-         bodies.add(new OrbitalBody(new double[]{50, -150}, new double[]{5, 40}, 2, Color.lightGray));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{50, -150}, new double[]{5, 40}, 2, Color.lightGray));
     }//GEN-LAST:event_MercuryActionPerformed
 
     private void NeptuneActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_NeptuneActionPerformed
-         bodies.add(new OrbitalBody(new double[]{110, 70}, new double[]{-45, -30}, 4, Color.RED));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{110, 70}, new double[]{-45, -30}, 4, Color.RED));
     }//GEN-LAST:event_NeptuneActionPerformed
 
     private void AddActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_AddActionPerformed
-        bodies.clear();
+        simulation.replaceBodies(new ArrayList<>());
         CardLayout card = (CardLayout)jPanel2.getLayout();
         card.show(jPanel2, "card4");
     }//GEN-LAST:event_AddActionPerformed
 
+    private void filterFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_filterFieldActionPerformed
+        String text = filterField.getText().trim();
+        try {
+            if (text.isEmpty()) {
+                bodyTableModel.setIdFilter(null);
+            } else if (text.contains("-")) {
+                int from = Integer.parseInt(text.substring(0, text.indexOf('-')).trim());
+                int to = Integer.parseInt(text.substring(text.indexOf('-') + 1).trim());
+                bodyTableModel.setIdFilter(id -> id >= from && id <= to);
+            } else {
+                int only = Integer.parseInt(text);
+                bodyTableModel.setIdFilter(id -> id == only);
+            }
+        } catch (NumberFormatException ex) {
+            // Handle invalid input
+            filterField.setText("");
+            bodyTableModel.setIdFilter(null);
+        }
+    }//GEN-LAST:event_filterFieldActionPerformed
+
     private void MarsActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_MarsActionPerformed
-         bodies.add(new OrbitalBody(new double[]{115, 70}, new double[]{-65, -30}, 5, Color.YELLOW));
-         simulation.configure(settings);
+         simulation.addBody(new OrbitalBody(new double[]{115, 70}, new double[]{-65, -30}, 5, Color.YELLOW));
     }//GEN-LAST:event_MarsActionPerformed
 
+    private void singlePrecisionCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_singlePrecisionCheckBoxActionPerformed
+        settings.setSinglePrecisionForces(singlePrecisionCheckBox.isSelected());
+    }//GEN-LAST:event_singlePrecisionCheckBoxActionPerformed
+
+    private void densityCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_densityCheckBoxActionPerformed
+        settings.setShowDensity(densityCheckBox.isSelected());
+    }//GEN-LAST:event_densityCheckBoxActionPerformed
+
+    private void massWeightedDensityCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_massWeightedDensityCheckBoxActionPerformed
+        settings.setMassWeightedDensity(massWeightedDensityCheckBox.isSelected());
+    }//GEN-LAST:event_massWeightedDensityCheckBoxActionPerformed
+
+    private void cacheCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_cacheCheckBoxActionPerformed
+        settings.setTrajectoryCache(cacheCheckBox.isSelected() ? TrajectoryCache.inUserHome() : null);
+    }//GEN-LAST:event_cacheCheckBoxActionPerformed
+
+    private void reorderFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_reorderFieldActionPerformed
+        try {
+                int interval = Integer.parseInt(reorderField.getText());
+                if (interval < 0) throw new NumberFormatException();
+                settings.setReorderInterval(interval);
+            } catch (NumberFormatException ex) {
+                reorderField.setText(String.valueOf(settings.getReorderInterval()));
+            }
+    }//GEN-LAST:event_reorderFieldActionPerformed
+
+    private void recenterCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_recenterCheckBoxActionPerformed
+        settings.setRecenterOnCenterOfMass(recenterCheckBox.isSelected());
+    }//GEN-LAST:event_recenterCheckBoxActionPerformed
+
+    private void wisdomHolmanCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_wisdomHolmanCheckBoxActionPerformed
+        settings.setWisdomHolman(wisdomHolmanCheckBox.isSelected());
+    }//GEN-LAST:event_wisdomHolmanCheckBoxActionPerformed
+
+    private void reproducibleCheckBoxActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_reproducibleCheckBoxActionPerformed
+        settings.setReproducible(reproducibleCheckBox.isSelected());
+    }//GEN-LAST:event_reproducibleCheckBoxActionPerformed
+
+    private void closeApproachFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_closeApproachFieldActionPerformed
+        try {
+                double value = Double.parseDouble(closeApproachField.getText());
+                if (!(value >= 0) || Double.isInfinite(value)) throw new NumberFormatException();
+                settings.setCloseApproachDistance(value);
+            } catch (NumberFormatException ex) {
+                closeApproachField.setText(String.valueOf(settings.getCloseApproachDistance()));
+            }
+    }//GEN-LAST:event_closeApproachFieldActionPerformed
+
+    private void escapeRadiusFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_escapeRadiusFieldActionPerformed
+        try {
+                double value = Double.parseDouble(escapeRadiusField.getText());
+                if (!(value >= 0) || Double.isInfinite(value)) throw new NumberFormatException();
+                settings.setEscapeRadius(value);
+            } catch (NumberFormatException ex) {
+                escapeRadiusField.setText(String.valueOf(settings.getEscapeRadius()));
+            }
+    }//GEN-LAST:event_escapeRadiusFieldActionPerformed
+
+    private void boundaryFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_boundaryFieldActionPerformed
+        try {
+                double value = Double.parseDouble(boundaryField.getText());
+                if (!(value >= 0) || Double.isInfinite(value)) throw new NumberFormatException();
+                settings.setBoundary(value);
+            } catch (NumberFormatException ex) {
+                boundaryField.setText(String.valueOf(settings.getBoundary()));
+            }
+    }//GEN-LAST:event_boundaryFieldActionPerformed
+
+    private void particleMeshFieldActionPerformed(java.awt.event.ActionEvent evt) {//GEN-FIRST:event_particleMeshFieldActionPerformed
+        try {
+                int size = Integer.parseInt(particleMeshField.getText());
+                if (size != 0 && (size < 2 || Integer.bitCount(size) != 1)) throw new NumberFormatException();
+                settings.setParticleMeshSize(size);
+            } catch (NumberFormatException ex) {
+                particleMeshField.setText(String.valueOf(settings.getParticleMeshSize()));
+            }
+    }//GEN-LAST:event_particleMeshFieldActionPerformed
+
     /**
      * @param args the command line arguments
      */
@@ -652,16 +967,17 @@ public class Runner extends JFrame {
         });
     }
     
-    private void updateTextArea(java.util.List<OrbitalBody> bodies) {
-        StringBuilder sb = new StringBuilder();
-        for (OrbitalBody body : bodies) {
-            sb.append(body.toString()).append("\n");
+      
+    private void loadGenerated(InitialConditions conditions) {
+        if (settings.getCloseApproachDistance() == 0) {
+            settings.setCloseApproachDistance(GENERATED_CLOSE_APPROACH);
+            closeApproachField.setText(String.valueOf(GENERATED_CLOSE_APPROACH));
         }
-        jTextArea1.setText(sb.toString());
+        simulation.replaceBodies(Utils.toBodies(conditions, Color.DARK_GRAY));
     }
-      
+
     private ArrayList<OrbitalBody> createPreset1Bodies() {
-        bodies.clear();
+        ArrayList<OrbitalBody> bodies = new ArrayList<>();
         bodies.add(new OrbitalBody(new double[]{150, 50}, new double[]{-15, -30}, 3, Color.BLACK));
         bodies.add(new OrbitalBody(new double[]{50, -150}, new double[]{5, 40}, 3, Color.ORANGE));
         bodies.add(new OrbitalBody(new double[]{-200, -50}, new double[]{10, -10}, 3, Color.BLUE));
@@ -669,7 +985,7 @@ public class Runner extends JFrame {
     }
 
     private ArrayList<OrbitalBody> createPreset2Bodies() {
-        bodies.clear();
+        ArrayList<OrbitalBody> bodies = new ArrayList<>();
         bodies.add(new OrbitalBody(new double[]{150, 50}, new double[]{-15, -30}, 3, Color.BLACK));
         bodies.add(new OrbitalBody(new double[]{50, -150}, new double[]{5, 40}, 3, Color.GREEN));
         bodies.add(new OrbitalBody(new double[]{-200, -50}, new double[]{10, -10}, 3, Color.BLUE));
@@ -677,7 +993,7 @@ public class Runner extends JFrame {
     }
 
     private ArrayList<OrbitalBody> createPreset3Bodies() {
-        bodies.clear();
+        ArrayList<OrbitalBody> bodies = new ArrayList<>();
         bodies.add(new OrbitalBody(new double[]{150, 50}, new double[]{-15, -30}, 3, Color.RED));
         bodies.add(new OrbitalBody(new double[]{50, -150}, new double[]{5, 40}, 3, Color.GREEN));
         bodies.add(new OrbitalBody(new double[]{-200, -50}, new double[]{10, -10}, 3, Color.BLUE));
@@ -696,6 +1012,15 @@ public class Runner extends JFrame {
     private javax.swing.JButton Saturn;
     private javax.swing.JButton Uranus;
     private javax.swing.JButton Venus;
+    private javax.swing.JTextField boundaryField;
+    private javax.swing.JLabel boundaryLabel;
+    private javax.swing.JCheckBox cacheCheckBox;
+    private javax.swing.JTextField closeApproachField;
+    private javax.swing.JLabel closeApproachLabel;
+    private javax.swing.JCheckBox densityCheckBox;
+    private javax.swing.JTextField escapeRadiusField;
+    private javax.swing.JLabel escapeRadiusLabel;
+    private javax.swing.JTextField filterField;
     private javax.swing.JTextField frameRateField;
     private javax.swing.JButton jButton1;
     private javax.swing.JButton jButton2;
@@ -711,14 +1036,25 @@ public class Runner extends JFrame {
     private javax.swing.JLabel jLabel2;
     private javax.swing.JLabel jLabel3;
     private javax.swing.JLabel jLabel4;
+    private javax.swing.JLabel jLabel5;
     private javax.swing.JPanel jPanel1;
     private javax.swing.JPanel jPanel2;
     private javax.swing.JPanel jPanel3;
     private javax.swing.JPanel jPanel4;
     private javax.swing.JPanel jPanel5;
     private javax.swing.JScrollPane jScrollPane1;
-    private javax.swing.JTextArea jTextArea1;
+    private javax.swing.JTable jTable1;
     private javax.swing.JTextField jTextField1;
+    private javax.swing.JCheckBox massWeightedDensityCheckBox;
+    private javax.swing.JTextField particleMeshField;
+    private javax.swing.JLabel particleMeshLabel;
+    private javax.swing.JCheckBox recenterCheckBox;
+    private javax.swing.JTextField reorderField;
+    private javax.swing.JLabel reorderLabel;
+    private javax.swing.JCheckBox reproducibleCheckBox;
+    private javax.swing.JCheckBox singlePrecisionCheckBox;
+    private javax.swing.JLabel singlePrecisionErrorLabel;
     private javax.swing.JTextField speedField;
+    private javax.swing.JCheckBox wisdomHolmanCheckBox;
     // End of variables declaration//GEN-END:variables
 }
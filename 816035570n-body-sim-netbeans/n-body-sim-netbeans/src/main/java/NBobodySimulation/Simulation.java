@@ -1,27 +1,36 @@
 package NBobodySimulation;
 
 import javafx.application.Platform;
-//import org.apache.commons.math4.legacy.exception.NumberIsTooLargeException;
-//import org.apache.commons.math4.legacy.exception.NumberIsTooSmallException;
-//import org.apache.commons.math4.legacy.ode.nonstiff.DormandPrince853Integrator;
 
-// If you're using Maven, use these imports instead
-import org.apache.commons.math3.exception.NumberIsTooLargeException;
-import org.apache.commons.math3.exception.NumberIsTooSmallException;
-import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public class Simulation implements Configurable {
 
-    private DormandPrince853Integrator integrator;
+    private IntegrationSession session;
     private double[] flattenedBodies;
+    private double[] derivatives;
     private double currentTime = 0;
     private SimulationSettings settings;
     private DifferentialEquations differentialEquations;
+    private double[] masses;
+    private volatile SystemStatistics statistics;
+    private final List<FrameListener> frameListeners = new CopyOnWriteArrayList<>();
+    private volatile Parareal skipAhead;
+    private volatile double skipAheadProgress;
+    private volatile double singlePrecisionError;
+    // Bodies added while running, waiting for the session to apply the command
+    private final Map<Integer, OrbitalBody> joining = new ConcurrentHashMap<>();
     
 
     private final SimulationPanel panel;
 
-    private SimulationState state = SimulationState.INACTIVE;
+    private volatile SimulationState state = SimulationState.INACTIVE;
 
     public Simulation() {
         panel = new SimulationPanel();
@@ -37,10 +46,117 @@ public class Simulation implements Configurable {
     
     
 
+    /**
+     * @return The fraction of the skip ahead time slices that are done while {@link SimulationState#SKIPPING}.
+     */
+    public double getSkipAheadProgress() {
+        return skipAheadProgress;
+    }
+
+    /**
+     * @return The largest relative acceleration error of single precision forces, measured on the bodies as the
+     * simulation started, or 0 when forces are in double precision.
+     */
+    public double getSinglePrecisionError() {
+        return singlePrecisionError;
+    }
+
+    /**
+     * @return The statistics of the last frame, or null before the simulation has started.
+     */
+    public SystemStatistics getStatistics() {
+        return statistics;
+    }
+
     public SimulationPanel getPanel() {
         return this.panel;
     }
 
+    public void addFrameListener(FrameListener listener) {
+        frameListeners.add(listener);
+    }
+
+    public void removeFrameListener(FrameListener listener) {
+        frameListeners.remove(listener);
+    }
+
+    /**
+     * Adds a body. While the simulation runs or is paused, it joins at the next frame and the integration carries on;
+     * otherwise it is added to the settings and the view is set up again.
+     */
+    public void addBody(OrbitalBody body) {
+        if (isSkippingAhead()) return;
+        if (isRunning()) {
+            joining.put(body.getId(), body);
+            session.submit(BodyCommand.add(body.getId(), body.getMass(), body.flatten()));
+            return;
+        }
+        synchronized (settings.getBodies()) {
+            settings.getBodies().add(body);
+        }
+        configure(settings);
+    }
+
+    /**
+     * Removes a body, at the next frame while the simulation runs or is paused.
+     */
+    public void removeBody(OrbitalBody body) {
+        if (isSkippingAhead()) return;
+        if (isRunning()) {
+            session.submit(BodyCommand.remove(body.getId()));
+            return;
+        }
+        synchronized (settings.getBodies()) {
+            settings.getBodies().remove(body);
+        }
+        configure(settings);
+    }
+
+    /**
+     * Sets the mass, position and velocity of a body, at the next frame while the simulation runs or is paused.
+     */
+    public void editBody(OrbitalBody body, double mass, double[] position, double[] velocity) {
+        if (isSkippingAhead()) return;
+        if (isRunning()) {
+            session.submit(BodyCommand.edit(body.getId(), mass, new double[]{position[0], position[1], velocity[0], velocity[1]}));
+            return;
+        }
+        synchronized (settings.getBodies()) {
+            body.setMass(mass);
+            body.setPosition(position.clone());
+            body.setVelocity(velocity.clone());
+        }
+        configure(settings);
+    }
+
+    /**
+     * Swaps all bodies for others, such as a preset. While the simulation runs or is paused, the old bodies leave and
+     * the new ones join at the next frame.
+     */
+    public void replaceBodies(ArrayList<OrbitalBody> bodies) {
+        if (isSkippingAhead()) return;
+        if (isRunning()) {
+            synchronized (settings.getBodies()) {
+                for (OrbitalBody body : settings.getBodies()) session.submit(BodyCommand.remove(body.getId()));
+            }
+            for (OrbitalBody body : bodies) addBody(body);
+            return;
+        }
+        settings.setBodies(bodies);
+        configure(settings);
+    }
+
+    // A session is integrating, so body changes go to it as commands
+    private boolean isRunning() {
+        return (state == SimulationState.ACTIVE || state == SimulationState.PAUSED) && skipAhead == null;
+    }
+
+    private boolean isSkippingAhead() {
+        if (skipAhead == null) return false;
+        System.out.println("Bodies can be changed once the skip ahead is done");
+        return true;
+    }
+
     @Override
     public void configure(SimulationSettings config) {
         this.settings = config;
@@ -50,64 +166,175 @@ public class Simulation implements Configurable {
 
     private void reset(){
         panel.clear();
-        differentialEquations = new DifferentialEquations(settings.getMasses());
-        flattenedBodies = new double[settings.getBodies().size() * settings.getBodies().get(0).getDimensions() * 2]; // n bodies, d dimensions, position and acceleration
+        masses = settings.getMasses();
+        differentialEquations = new DifferentialEquations(masses);
+        flattenedBodies = new double[settings.getBodies().size() * settings.getDimensions() * 2]; // n bodies, d dimensions, position and acceleration
+        derivatives = new double[flattenedBodies.length];
         currentTime = settings.getSkipAhead();
         
     }
    
 
-    private void integrate(){
+    /**
+     * Takes the next frame from the integration session, applying any body removals on the way.
+     *
+     * @return False if the session has ended and there are no more frames.
+     */
+    private boolean advance() {
         try {
-            // Get the position and velocity of particles at currentTime
-            integrator.integrate(differentialEquations, currentTime, flattenedBodies, currentTime + (settings.getSimulationSpeed() / settings.getFrameRate()), flattenedBodies);
-        } catch (NumberIsTooSmallException e) {
-            // Asymptote error (the integrator can't converge and gives up)
-            System.out.println(e.getMessage());
-            breakSimulationAfterUpdate();
-        } catch (NumberIsTooLargeException e) {
-            // Double overflow error (inputs too large for double datatype to handle)
-            System.out.println(e.getMessage());
-            breakSimulationAfterUpdate();
-        } catch (Exception e) {
-            System.out.println(e.getMessage());
-            breakSimulationAfterUpdate();
+            IntegrationSession.Frame frame = session.nextFrame();
+            while (frame.isBodyChange()) {
+                applyFrame(frame);
+                frame = session.nextFrame();
+            }
+            if (frame.isEnd()) return false;
+            applyFrame(frame);
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
         }
     }
 
+    private void applyFrame(IntegrationSession.Frame frame) {
+        ArrayList<OrbitalBody> bodies = settings.getBodies();
+        // The list and the state vector are read together by updateBodies, the panel and the body table
+        synchronized (bodies) {
+            if (frame.isBodyChange()) changeBodies(bodies, frame);
+            currentTime = frame.getTime();
+            flattenedBodies = frame.getState();
+            derivatives = frame.getDerivatives();
+            masses = frame.getMasses();
+        }
+    }
+
+    /**
+     * Rebuilds the body list in the order of a body change frame. Bodies that stay keep their objects, and so their
+     * trails; bodies that joined are taken from those waiting to join.
+     */
+    private void changeBodies(ArrayList<OrbitalBody> bodies, IntegrationSession.Frame frame) {
+        boolean[] removed = frame.getRemoved();
+        if (removed != null) {
+            for (int i = 0; i < removed.length; i++) {
+                if (removed[i]) System.out.println("Body " + bodies.get(i).getId() + " left the simulation at t=" + frame.getTime());
+            }
+        }
+        Map<Integer, Integer> indices = new HashMap<>();
+        for (int i = 0; i < bodies.size(); i++) indices.put(bodies.get(i).getId(), i);
+        int[] ids = frame.getIds();
+        int[] previous = new int[ids.length];
+        ArrayList<OrbitalBody> changed = new ArrayList<>(ids.length);
+        for (int i = 0; i < ids.length; i++) {
+            Integer index = indices.get(ids[i]);
+            previous[i] = index == null ? -1 : index;
+            OrbitalBody body = index == null ? joining.remove(ids[i]) : bodies.get(index);
+            body.setMass(frame.getMasses()[i]);
+            changed.add(body);
+        }
+        bodies.clear();
+        bodies.addAll(changed);
+        panel.changeBodies(previous);
+    }
+
     public void start() {
         if(settings == null) throw new RuntimeException("Simulation not configured!");
         if(settings.getBodies().isEmpty()) return;
         if(state == SimulationState.INACTIVE) {
+            panel.finishScaling();
             reset();
-            integrator = new DormandPrince853Integrator(Math.pow(10, -10), 10000, 0.01, 0.0001);
             flattenedBodies = Utils.flattenBodies(settings.getBodies()); // Flatten particles into the flattenedParticles array.
-            if (currentTime != 0) integrate();
-            updateBodies();
+            differentialEquations.setSinglePrecision(settings.singlePrecisionForces());
+            singlePrecisionError = settings.singlePrecisionForces() ? differentialEquations.measureSinglePrecisionError(flattenedBodies) : 0;
+            differentialEquations.setParticleMesh(settings.getParticleMeshSize());
+            if (currentTime != 0) {
+                // Fast-forwarding can take long, so it runs in the background and the simulation starts when it is done
+                Parareal parareal = new Parareal(masses, flattenedBodies.clone(), 0, currentTime);
+                parareal.setSinglePrecision(settings.singlePrecisionForces());
+                parareal.setParticleMesh(settings.getParticleMeshSize());
+                parareal.setWisdomHolmanCoarse(settings.useWisdomHolman());
+                parareal.setCloseApproachDistance(settings.getCloseApproachDistance());
+                parareal.setReproducible(settings.isReproducible());
+                skipAheadProgress = 0;
+                skipAhead = parareal;
+                state = SimulationState.SKIPPING;
+                new SkipAheadThread(parareal, currentTime).start();
+                return;
+            }
+            startSession();
             SimulationThread simulationThread = new SimulationThread();
             simulationThread.start();
         } else if (state == SimulationState.PAUSED) {
+            if (skipAhead != null) {
+                // Paused while skipping ahead; the simulation starts once the skip is done
+                state = SimulationState.SKIPPING;
+                return;
+            }
             SimulationThread simulationThread = new SimulationThread();
             simulationThread.start();
         } else throw new RuntimeException("Invalid attempt to double run simulation!");
         state = SimulationState.ACTIVE;
     }
 
+    private void startSession() {
+        differentialEquations.computeDerivatives(currentTime, flattenedBodies, derivatives);
+        // The session owns its own copy of the state from here on; frames come back as fresh arrays
+        session = new IntegrationSession(settings, differentialEquations, masses, flattenedBodies.clone(), currentTime);
+        session.setCache(settings.getTrajectoryCache());
+        session.setReorderInterval(settings.getReorderInterval());
+        ArrayList<OrbitalBody> bodies = settings.getBodies();
+        int[] ids = new int[bodies.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = bodies.get(i).getId();
+        session.setIds(ids);
+        session.start();
+        updateStatistics();
+        updateBodies();
+    }
+
     private void updateBodies() {
-        int flattenedBodyLength = settings.getBodies().get(0).getDimensions() * 2;
-        for (int i = 0; i < flattenedBodies.length; i += flattenedBodyLength) {
-            double[] position = new double[]{flattenedBodies[i], flattenedBodies[i + 1]};
-            double[] velocity = new double[]{flattenedBodies[i + 2], flattenedBodies[i + 3]};
-            settings.getBodies().get(i / flattenedBodyLength).update(position, velocity);
+        SimulationEvents.UpdateBodies event = new SimulationEvents.UpdateBodies();
+        event.begin();
+        // Bodies can be removed by the simulation thread, so the list and the state vector are read together
+        synchronized (settings.getBodies()) {
+            if (settings.getBodies().isEmpty()) return;
+            event.bodies = settings.getBodies().size();
+            int flattenedBodyLength = settings.getBodies().get(0).getDimensions() * 2;
+            for (int i = 0; i < flattenedBodies.length; i += flattenedBodyLength) {
+                double[] position = new double[]{flattenedBodies[i], flattenedBodies[i + 1]};
+                double[] velocity = new double[]{flattenedBodies[i + 2], flattenedBodies[i + 3]};
+                double[] acceleration = new double[]{derivatives[i + 2], derivatives[i + 3]};
+                settings.getBodies().get(i / flattenedBodyLength).update(position, velocity, acceleration);
+            }
         }
+        event.commit();
     }
 
     public void step() {
-        currentTime += (settings.getSimulationSpeed() / settings.getFrameRate());
-        integrate();
+        SimulationEvents.Step event = new SimulationEvents.Step();
+        event.begin();
+        if (!advance()) {
+            breakSimulationAfterUpdate();
+            return;
+        }
+        updateStatistics();
+        for (FrameListener listener : frameListeners) {
+            listener.onFrame(currentTime, flattenedBodies);
+            listener.onStatistics(currentTime, statistics);
+        }
         Platform.runLater(this::updateBodies);
-        panel.draw();
-        
+        panel.showFrame(flattenedBodies, masses);
+        if (event.shouldCommit()) {
+            event.simulationTime = currentTime;
+            event.bodies = masses.length;
+            event.commit();
+        }
+    }
+
+    // One pass for the totals. Frames are shared with the session and its cache, so they are only read; recentering is
+    // done by the session.
+    private void updateStatistics() {
+        SystemStatistics current = SystemStatistics.compute(flattenedBodies, masses);
+        statistics = current;
+        panel.setStatistics(current);
     }
 
     private void breakSimulationAfterUpdate() {
@@ -117,6 +344,9 @@ public class Simulation implements Configurable {
 
     private void breakSimulation() {
         state = SimulationState.INACTIVE;
+        Parareal skipping = skipAhead;
+        if (skipping != null) skipping.cancel();
+        if (session != null) session.close();
     }
 
     public void pause(){
@@ -127,6 +357,58 @@ public class Simulation implements Configurable {
         breakSimulationAfterUpdate();
     }
 
+    /**
+     * Integrates from the start to the skip ahead time with {@link Parareal}, off the event dispatch thread, then
+     * starts the simulation from there unless it was stopped or paused in the meantime.
+     */
+    private class SkipAheadThread extends Thread {
+        private final Parareal parareal;
+        private final double target;
+
+        SkipAheadThread(Parareal parareal, double target) {
+            super("Skip ahead");
+            setDaemon(true);
+            this.parareal = parareal;
+            this.target = target;
+        }
+
+        @Override
+        public void run() {
+            long start = System.currentTimeMillis();
+            double[] skipped;
+            try {
+                skipped = parareal.run((iteration, converged, slices) -> {
+                    skipAheadProgress = (double) converged / slices;
+                    System.out.println("Skipping ahead to t=" + target + ": iteration " + iteration + ", " + converged
+                            + " of " + slices + " time slices done");
+                });
+            } catch (CancellationException e) {
+                System.out.println("Skip ahead cancelled");
+                skipped = null;
+            } catch (RuntimeException e) {
+                System.out.println(e.getMessage());
+                skipAhead = null;
+                state = SimulationState.INACTIVE;
+                return;
+            }
+            if (skipped == null || state == SimulationState.INACTIVE) {
+                // Stopped; clean up like the simulation thread does
+                skipAhead = null;
+                reset();
+                return;
+            }
+            System.out.println("Skipped ahead to t=" + target + " in " + (System.currentTimeMillis() - start) + " ms");
+            flattenedBodies = skipped;
+            startSession();
+            // Only now can a paused simulation be started directly
+            skipAhead = null;
+            if (state == SimulationState.SKIPPING) {
+                state = SimulationState.ACTIVE;
+                new SimulationThread().start();
+            }
+        }
+    }
+
     private class SimulationThread extends Thread {
         @Override
         public void run() {
@@ -144,7 +426,6 @@ public class Simulation implements Configurable {
             }
             if(state == SimulationState.INACTIVE) {
                 reset();
-                OrbitalBody.resetCounter();
             }
         }
     }
@@ -5,6 +5,8 @@ import javafx.embed.swing.JFXPanel;
 import javafx.scene.Scene;
 import javafx.scene.canvas.Canvas;
 import javafx.scene.canvas.GraphicsContext;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.WritableImage;
 import javafx.scene.layout.StackPane;
 import javafx.scene.paint.Color;
 //import org.apache.commons.math4.legacy.ode.nonstiff.DormandPrince853Integrator;
@@ -12,7 +14,10 @@ import org.apache.commons.math3.ode.nonstiff.DormandPrince853Integrator; // if y
 
 import javax.swing.*;
 import java.awt.*;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicReference;
 
 class InvalidSimulationPanelSizeException extends RuntimeException {
     public InvalidSimulationPanelSizeException(int width, int height, int minWidth, int minHeight) {
@@ -26,6 +31,8 @@ public class SimulationPanel extends JPanel implements Configurable {
 
     private static final int MIN_WIDTH = 800;
     private static final int MIN_HEIGHT = 800;
+    // Massless test particles still show as a dot
+    private static final double MIN_CIRCLE_DIAMETER = 2;
 
     double particleScale = 1;
     double[] translationScale = new double[2];
@@ -37,8 +44,54 @@ public class SimulationPanel extends JPanel implements Configurable {
     private ArrayList<OrbitalBody> bodies;
     private SimulationSettings settings;
     private Color backgroundColor = Color.BLACK;
+    // Replaced, never changed in place, when the bodies change, so a view keeps the ones of its frame
     double[] circleDiameter;
-    double[][] oldCanvasPos;
+    private Color[] colors;
+    private SimulationSettings listenedSettings;
+    private final PropertyChangeListener settingsListener = this::applySettingChange;
+    // The latest frame not drawn yet, and the frame on screen
+    private final AtomicReference<View> pendingView = new AtomicReference<>();
+    private View view;
+    // For each body, the trail points it had when its trail was last drawn. Guarded by the lock on the body list.
+    private long[] trailDrawn = new long[0];
+    // Set when the trail canvas was cleared, so the next frame draws the whole trails instead of their new segments
+    private boolean trailsStale = true;
+    private DensityMap densityMap;
+    private WritableImage densityImage;
+    private double maxCircleDiameter;
+    // The average mass when the bodies were configured, which sets the size of every circle
+    private double avgMass;
+    private double[] dragStart;
+    private volatile SystemStatistics statistics;
+    // Works out the scale of the latest configuration in the background; an older one is cut short and discarded
+    private volatile ScaleThread scaleThread;
+
+    private static final double ZOOM_STEP = 1.1;
+    // Above this many bodies the center of mass is drawn without the lines to every body
+    private static final int MAX_CONNECTED_BODIES = 16;
+
+    /**
+     * The bodies of one frame as they are drawn. Built on the simulation thread as the frame arrives, so the JavaFX
+     * thread only queries it.
+     */
+    private static class View {
+        final double[] state;
+        final double[] masses;
+        final double[] diameters;
+        final Color[] colors;
+        final double maxDiameter;
+        // Left out while the density map is shown, which does not need it
+        SpatialGrid grid;
+
+        View(double[] state, double[] masses, double[] diameters, Color[] colors, double maxDiameter, SpatialGrid grid) {
+            this.state = state;
+            this.masses = masses;
+            this.diameters = diameters;
+            this.colors = colors;
+            this.maxDiameter = maxDiameter;
+            this.grid = grid;
+        }
+    }
 
     public SimulationPanel() {
         jfxPanel = new JFXPanel();
@@ -66,6 +119,12 @@ public class SimulationPanel extends JPanel implements Configurable {
 
     @Override
     public void configure(SimulationSettings settings) {
+        if (listenedSettings != settings) {
+            if (listenedSettings != null) listenedSettings.removePropertyChangeListener(settingsListener);
+            if (settings != null) settings.addPropertyChangeListener(settingsListener);
+            listenedSettings = settings;
+        }
+        finishScaling();
         Platform.runLater(() -> {
             validatePanelSize(getWidth(), getHeight());
             this.settings = settings;
@@ -81,20 +140,100 @@ public class SimulationPanel extends JPanel implements Configurable {
 
             bodies = settings.getBodies();
 
-            circleDiameter = new double[bodies.size()];
-            for (int i = 0; i < bodies.size(); i++) circleDiameter[i] = Math.sqrt(bodies.get(i).getMass()/settings.avgMass()) * 10;
-            oldCanvasPos = new double[bodies.size()][settings.getBodies().get(0).getDimensions()];
-            for (int i = 0; i < bodies.size(); i++) oldCanvasPos[i] = returnRelativePosition(bodies.get(i).getPosition());
+            avgMass = settings.avgMass();
+            synchronized (bodies) {
+                int[] unchanged = new int[bodies.size()];
+                for (int i = 0; i < unchanged.length; i++) unchanged[i] = -1;
+                changeBodies(unchanged);
+                view = null;
+                trailsStale = true;
+            }
             setBackgroundColor(settings.getBackgroundColor());
             StackPane root = new StackPane();
+            root.setOnScroll(e -> zoom(e.getDeltaY() > 0 ? 1 / ZOOM_STEP : ZOOM_STEP, e.getX(), e.getY()));
+            root.setOnMousePressed(e -> dragStart = new double[]{e.getX(), e.getY()});
+            root.setOnMouseDragged(e -> {
+                if (dragStart == null) return;
+                pan(e.getX() - dragStart[0], e.getY() - dragStart[1]);
+                dragStart = new double[]{e.getX(), e.getY()};
+            });
             Scene scene = new Scene(root, getWidth(), getHeight(), backgroundColor);
             root.getChildren().addAll(gridCanvas, trailCanvas, canvas);
             jfxPanel.setScene(scene);
+            if (settings.showGrid()) drawGrid(gridCanvas.getGraphicsContext2D());
+        });
+        if (settings != null && !settings.getBodies().isEmpty()) {
+            // The pre-run integrates, so it stays off the JavaFX thread and the scale is applied once it is done
+            scaleThread = new ScaleThread(settings, Utils.flattenBodies(settings.getBodies()));
+            scaleThread.start();
+        }
+    }
 
+    /**
+     * Cuts the scale pre-run short and waits for it, so it has let go of the trajectory cache entry the simulation is
+     * about to open. The scale is still applied from the frames run so far.
+     */
+    void finishScaling() {
+        ScaleThread thread = scaleThread;
+        if (thread == null) return;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private class ScaleThread extends Thread {
+        private final SimulationSettings settings;
+        private final double[] flatBodies;
+
+        ScaleThread(SimulationSettings settings, double[] flatBodies) {
+            super("Scale pre-run");
+            setDaemon(true);
+            this.settings = settings;
+            this.flatBodies = flatBodies;
+        }
+
+        @Override
+        public void run() {
             DormandPrince853Integrator integrator = new DormandPrince853Integrator(Math.pow(10, -10), 10000, 0.01, 0.0001);
-            double[][] scales = generateScale(integrator, Utils.flattenBodies(bodies), settings);
+            double[][] scales = generateScale(integrator, flatBodies, settings);
             double[][] canvasRectangle = calculateRectangle(scales, calculateBuffer(settings.getBodies()));
-            setScaleFactors(canvasRectangle);
+            Platform.runLater(() -> {
+                // A newer configuration has its own pre-run
+                if (scaleThread == this) setScaleFactors(canvasRectangle);
+            });
+        }
+    }
+
+    /**
+     * Applies a single settings change without rebuilding the scene. Frame rate, speed and the center of gravity
+     * toggle are read on every frame, so they need no work here.
+     */
+    private void applySettingChange(PropertyChangeEvent event) {
+        Platform.runLater(() -> {
+            switch (event.getPropertyName()) {
+                case SimulationSettings.SHOW_GRID:
+                    GraphicsContext gridGC = gridCanvas.getGraphicsContext2D();
+                    gridGC.clearRect(0, 0, gridCanvas.getWidth(), gridCanvas.getHeight());
+                    if (settings != null && settings.showGrid()) drawGrid(gridGC);
+                    break;
+                case SimulationSettings.SHOW_TRAIL:
+                    if (settings != null && !settings.showTrail())
+                        trailCanvas.getGraphicsContext2D().clearRect(0, 0, trailCanvas.getWidth(), trailCanvas.getHeight());
+                    trailsStale = true;
+                    break;
+                case SimulationSettings.SHOW_DENSITY:
+                    render();
+                    break;
+                case SimulationSettings.BACKGROUND_COLOR:
+                    backgroundColor = Utils.convertAWTColorToFXColor((java.awt.Color) event.getNewValue());
+                    if (jfxPanel.getScene() != null) jfxPanel.getScene().setFill(backgroundColor);
+                    break;
+                default:
+                    break;
+            }
         });
     }
 
@@ -102,24 +241,51 @@ public class SimulationPanel extends JPanel implements Configurable {
         final int SIMULATION_LENGTH = 10;
         double simulationTime = settings.getSkipAhead();
 
-        double[][] minsAndMaxs = minAndMaxPositions(flatBodies);
-
-        DifferentialEquations differentialEquations = new DifferentialEquations(settings.getMasses());
-
-        for (double time = simulationTime; time < SIMULATION_LENGTH * settings.getSimulationSpeed() + simulationTime; time += settings.getSimulationSpeed() / 5) {
+        double[] masses = settings.getMasses();
+        double endTime = SIMULATION_LENGTH * settings.getSimulationSpeed() + simulationTime;
+        // The same forces as the simulation
+        DifferentialEquations differentialEquations = new DifferentialEquations(masses);
+        differentialEquations.setSinglePrecision(settings.singlePrecisionForces());
+        differentialEquations.setParticleMesh(settings.getParticleMeshSize());
+        SystemStatistics initial = SystemStatistics.compute(flatBodies, masses);
+        // Frame the bodies where the simulation will show them
+        double[][] minsAndMaxs = (settings.recenterOnCenterOfMass() ? initial.recenter(flatBodies.clone()) : initial).getBounds();
+
+        TrajectoryCache cache = settings.getTrajectoryCache();
+        if (cache != null && simulationTime == 0) {
+            // Runs as the simulation's own session would, so it is recorded in the cache and the simulation replays it
+            // instead of integrating the same stretch again, and a repeated start replays the pre-run too
+            IntegrationSession session = new IntegrationSession(settings, differentialEquations, masses, flatBodies.clone(), simulationTime);
+            session.setCache(cache);
+            session.start();
             try {
-                integrator.integrate(differentialEquations, time, flatBodies, time + settings.getSimulationSpeed() / 5, flatBodies);
-                double[][] currentMinsAndMaxs = minAndMaxPositions(flatBodies);
-                for (int i = 0; i < 2; i++) {
-                    if (currentMinsAndMaxs[0][i] < minsAndMaxs[0][i]) {
-                        minsAndMaxs[0][i] = currentMinsAndMaxs[0][i];
-                    }
-                    if (currentMinsAndMaxs[1][i] > minsAndMaxs[1][i]) {
-                        minsAndMaxs[1][i] = currentMinsAndMaxs[1][i];
-                    }
+                while (true) {
+                    IntegrationSession.Frame frame = session.nextFrame();
+                    if (frame.isEnd()) break;
+                    if (frame.isBodyChange()) continue;
+                    widen(minsAndMaxs, SystemStatistics.compute(frame.getState(), frame.getMasses()).getBounds());
+                    if (frame.getTime() >= endTime) break;
+                }
+            } catch (InterruptedException e) {
+                // Cut short by finishScaling
+            }
+            session.close();
+            try {
+                // The simulation opens the same cache entry next
+                session.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            if (settings.recenterOnCenterOfMass()) initial.recenter(flatBodies);
+            for (double time = simulationTime; time < endTime; time += settings.getSimulationSpeed() / 5) {
+                if (Thread.currentThread().isInterrupted()) break;
+                try {
+                    integrator.integrate(differentialEquations, time, flatBodies, time + settings.getSimulationSpeed() / 5, flatBodies);
+                    widen(minsAndMaxs, SystemStatistics.compute(flatBodies, masses).getBounds());
+                } catch (Exception e) {
+                    break;
                 }
-            } catch (Exception e) {
-                break;
             }
         }
 
@@ -134,19 +300,15 @@ public class SimulationPanel extends JPanel implements Configurable {
         return coordinatePositions;
     }
 
-    private double[][] minAndMaxPositions(double[] flatBodies) {
-        double minX = Double.MAX_VALUE;
-        double minY = Double.MAX_VALUE;
-        double maxX = Double.MIN_VALUE;
-        double maxY = Double.MIN_VALUE;
-
-        for (int i = 0; i < flatBodies.length; i += settings.getBodies().get(0).getDimensions() * 2) {
-            minX = Math.min(minX, flatBodies[i]);
-            minY = Math.min(minY, flatBodies[i + 1]);
-            maxX = Math.max(maxX, flatBodies[i]);
-            maxY = Math.max(maxY, flatBodies[i + 1]);
+    private static void widen(double[][] minsAndMaxs, double[][] currentMinsAndMaxs) {
+        for (int i = 0; i < 2; i++) {
+            if (currentMinsAndMaxs[0][i] < minsAndMaxs[0][i]) {
+                minsAndMaxs[0][i] = currentMinsAndMaxs[0][i];
+            }
+            if (currentMinsAndMaxs[1][i] > minsAndMaxs[1][i]) {
+                minsAndMaxs[1][i] = currentMinsAndMaxs[1][i];
+            }
         }
-        return new double[][]{{minX, minY}, {maxX, maxY}};
     }
 
     private static double[][] calculateRectangle(double[][] originalRectangle, double buffer) {
@@ -192,10 +354,12 @@ public class SimulationPanel extends JPanel implements Configurable {
 
         // Calculates the average squared velocity
         double avgSquaredVelocity = 0;
+        double totalMass = 0;
         for(int i = 0; i < bodies.size(); i++) {
             avgSquaredVelocity += squares[i] * bodies.get(i).getMass();
+            totalMass += bodies.get(i).getMass();
         }
-        avgSquaredVelocity = Math.sqrt(avgSquaredVelocity / settings.totalMass());
+        avgSquaredVelocity = Math.sqrt(avgSquaredVelocity / totalMass);
 
         // Determines the buffer as a product of ASV and a constant
         buffer = avgSquaredVelocity * 5;
@@ -263,6 +427,38 @@ public class SimulationPanel extends JPanel implements Configurable {
         translationScale[1] = canvasRectangle[1][1];
     }
 
+    /**
+     * Zooms the view, keeping the point under the cursor fixed. Must be called on the JavaFX thread.
+     *
+     * @param factor  The change in world units per pixel; below 1 zooms in.
+     * @param screenX The x position of the cursor on the canvas.
+     * @param screenY The y position of the cursor on the canvas.
+     */
+    void zoom(double factor, double screenX, double screenY) {
+        double worldX = translationScale[0] + screenX * particleScale;
+        double worldY = translationScale[1] - screenY * particleScale;
+        particleScale *= factor;
+        translationScale[0] = worldX - screenX * particleScale;
+        translationScale[1] = worldY + screenY * particleScale;
+        viewChanged();
+    }
+
+    /**
+     * Moves the view by a distance in pixels. Must be called on the JavaFX thread.
+     */
+    void pan(double dx, double dy) {
+        translationScale[0] -= dx * particleScale;
+        translationScale[1] += dy * particleScale;
+        viewChanged();
+    }
+
+    // Trails are drawn in screen space, so the old ones no longer line up with the new view
+    private void viewChanged() {
+        trailCanvas.getGraphicsContext2D().clearRect(0, 0, trailCanvas.getWidth(), trailCanvas.getHeight());
+        trailsStale = true;
+        render();
+    }
+
     public void setBackgroundColor(java.awt.Color color) {
         this.backgroundColor = Utils.convertAWTColorToFXColor(color);
         Platform.runLater(() -> {
@@ -283,36 +479,132 @@ public class SimulationPanel extends JPanel implements Configurable {
         };
     }
 
+    /**
+     * Sets the statistics of the frame about to be drawn. Called by the simulation after every step.
+     */
+    void setStatistics(SystemStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Rebuilds the per-body drawing state after bodies left, joined or were edited. Called by the simulation while it
+     * holds the lock on the body list, right after changing it.
+     *
+     * @param previous For each body, its index before the change, or -1 for a body that just joined.
+     */
+    void changeBodies(int[] previous) {
+        if (bodies == null || bodies.size() != previous.length) return;
+        double[] diameters = new double[previous.length];
+        Color[] bodyColors = new Color[previous.length];
+        long[] drawn = new long[previous.length];
+        double maxDiameter = 0;
+        for (int i = 0; i < previous.length; i++) {
+            // Masses can be edited, so every circle is sized again
+            diameters[i] = circleDiameter(bodies.get(i).getMass());
+            bodyColors[i] = bodies.get(i).getColor();
+            if (previous[i] >= 0 && previous[i] < trailDrawn.length) drawn[i] = trailDrawn[previous[i]];
+            maxDiameter = Math.max(maxDiameter, diameters[i]);
+        }
+        circleDiameter = diameters;
+        colors = bodyColors;
+        trailDrawn = drawn;
+        maxCircleDiameter = maxDiameter;
+    }
+
+    private double circleDiameter(double mass) {
+        return Math.max(MIN_CIRCLE_DIAMETER, Math.sqrt(mass / avgMass) * 10);
+    }
+
     public void clear(){
         canvas.getGraphicsContext2D().clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
         trailCanvas.getGraphicsContext2D().clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        trailsStale = true;
         GraphicsContext gridGC = gridCanvas.getGraphicsContext2D();
         gridGC.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
         if(settings.showGrid()) drawGrid(gridGC);
     }
 
+    /**
+     * Hands the panel a new frame. Called on the simulation thread, which builds the spatial index of the frame here,
+     * so the JavaFX thread only queries it. Frames that arrive while the JavaFX thread is still behind replace each
+     * other, and only the latest is drawn.
+     *
+     * @param state  The flattened state of the frame. Must not change afterwards.
+     * @param masses The masses of the bodies of the frame.
+     */
+    void showFrame(double[] state, double[] masses) {
+        double[] diameters = circleDiameter;
+        if (diameters == null || diameters.length != masses.length || settings == null) return;
+        SpatialGrid grid = settings.showDensity() ? null : new SpatialGrid(state, masses.length);
+        View next = new View(state, masses, diameters, colors, maxCircleDiameter, grid);
+        if (pendingView.getAndSet(next) == null) Platform.runLater(this::drawPending);
+    }
+
+    private void drawPending() {
+        View next = pendingView.getAndSet(null);
+        if (next == null) return;
+        view = next;
+        render();
+    }
+
+    /**
+     * Draws the last frame again, such as after the view moved.
+     */
     public void draw() {
-        Platform.runLater(() -> {
-            GraphicsContext gc = canvas.getGraphicsContext2D();
-            gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
-            if (settings.showGrid())
-                drawGrid(gridCanvas.getGraphicsContext2D());
-            if(settings.showCenterOfGravity())
-                drawCenterOfMass(gc);
-            synchronized (bodies) {
-                    for(int i = 0; i < bodies.size(); i++) {
-                        OrbitalBody body = bodies.get(i);
-                        double[] relativePosition = returnRelativePosition(body.getPosition());
-                        oldCanvasPos[i][0] = relativePosition[0];
-                        oldCanvasPos[i][1] = relativePosition[1];
-                        gc.setFill(body.getColor());
-                        double radius = circleDiameter[i] / 2;
-                        gc.fillOval(relativePosition[0] - radius, relativePosition[1] - radius, radius * 2, radius * 2);
-                        if (settings.showTrail())
-                            drawTrail(trailCanvas.getGraphicsContext2D(), body, radius/6);
-                    }
-            }
+        Platform.runLater(this::render);
+    }
+
+    private void render() {
+        View current = view;
+        if (current == null || settings == null) return;
+        SimulationEvents.Draw event = new SimulationEvents.Draw();
+        event.begin();
+        GraphicsContext gc = canvas.getGraphicsContext2D();
+        gc.clearRect(0, 0, canvas.getWidth(), canvas.getHeight());
+        int count = current.masses.length;
+        event.bodies = count;
+        event.density = settings.showDensity();
+        if (settings.showCenterOfGravity()) drawCenterOfMass(gc, current);
+        if (settings.showDensity()) {
+            drawDensity(gc, current);
+            event.commit();
+            return;
+        }
+        if (current.grid == null) current.grid = new SpatialGrid(current.state, count);
+
+        // Visible world rectangle, widened by the largest circle so partly visible bodies are kept
+        double margin = current.maxDiameter / 2 * particleScale;
+        double minX = translationScale[0] - margin;
+        double maxX = translationScale[0] + canvas.getWidth() * particleScale + margin;
+        double minY = translationScale[1] - canvas.getHeight() * particleScale - margin;
+        double maxY = translationScale[1] + margin;
+        double[] state = current.state;
+        current.grid.query(minX, minY, maxX, maxY, i -> {
+            double x = (state[4 * i] - translationScale[0]) / particleScale;
+            double y = -(state[4 * i + 1] - translationScale[1]) / particleScale;
+            double radius = current.diameters[i] / 2;
+            gc.setFill(current.colors[i]);
+            gc.fillOval(x - radius, y - radius, radius * 2, radius * 2);
         });
+        if (settings.showTrail()) drawTrails(trailCanvas.getGraphicsContext2D(), minX, minY, maxX, maxY);
+        event.commit();
+    }
+
+    private void drawDensity(GraphicsContext gc, View current) {
+        int width = (int) canvas.getWidth();
+        int height = (int) canvas.getHeight();
+        if (width <= 0 || height <= 0) return;
+        if (densityMap == null) densityMap = new DensityMap(width, height);
+        densityMap.setSize(width, height);
+        // The image only grows, and only its top left corner is drawn
+        if (densityImage == null || densityImage.getWidth() < width || densityImage.getHeight() < height) {
+            densityImage = new WritableImage(Math.max(width, densityImage == null ? 0 : (int) densityImage.getWidth()),
+                    Math.max(height, densityImage == null ? 0 : (int) densityImage.getHeight()));
+        }
+        int[] pixels = densityMap.render(current.state, settings.massWeightedDensity() ? current.masses : null, current.masses.length,
+                translationScale[0], translationScale[1], particleScale);
+        densityImage.getPixelWriter().setPixels(0, 0, width, height, PixelFormat.getIntArgbInstance(), pixels, 0, width);
+        gc.drawImage(densityImage, 0, 0, width, height, 0, 0, width, height);
     }
 
     private void drawGrid(GraphicsContext gc) {
@@ -325,49 +617,56 @@ public class SimulationPanel extends JPanel implements Configurable {
         }
     }
 
-    private void drawTrail(GraphicsContext gc, OrbitalBody body, double lineWidth) {
-        gc.setStroke(body.getColor());
-        gc.setLineWidth(lineWidth);  // increase the trail size
-        double[][] trail = body.getTrail();
-        for (int i = 1; i < trail.length; i++) {
-            double x1 = trail[i - 1][0];
-            double y1 = trail[i - 1][1];
-            double x2 = trail[i][0];
-            double y2 = trail[i][1];
-
-            double[] s = returnRelativePosition(new double[]{x1, y1});
-            double[] e = returnRelativePosition(new double[]{x2, y2});
-
-            gc.strokeLine(s[0], s[1], e[0], e[1]);
+    /**
+     * Trails stay on their own canvas, so only the segments added since the last frame are drawn, unless the canvas was
+     * cleared. A trail can cross the view even when its body is off screen, so trails are culled as a whole and per
+     * segment rather than by the spatial index.
+     */
+    private void drawTrails(GraphicsContext gc, double minX, double minY, double maxX, double maxY) {
+        synchronized (bodies) {
+            boolean whole = trailsStale;
+            trailsStale = false;
+            if (trailDrawn.length != bodies.size() || circleDiameter.length != bodies.size()) return;
+            for (int i = 0; i < bodies.size(); i++) {
+                OrbitalBody body = bodies.get(i);
+                gc.setStroke(body.getColor());
+                gc.setLineWidth(circleDiameter[i] / 12);
+                trailDrawn[i] = body.forEachTrailSegment(whole ? 0 : trailDrawn[i], minX, minY, maxX, maxY, (x1, y1, x2, y2) -> {
+                    // Skip segments whose bounding box misses the view
+                    if (Math.max(x1, x2) < minX || Math.min(x1, x2) > maxX || Math.max(y1, y2) < minY || Math.min(y1, y2) > maxY) return;
+                    gc.strokeLine((x1 - translationScale[0]) / particleScale, -(y1 - translationScale[1]) / particleScale,
+                            (x2 - translationScale[0]) / particleScale, -(y2 - translationScale[1]) / particleScale);
+                });
+            }
+            gc.setLineWidth(1);
         }
-        gc.setLineWidth(1);  // reset to default line width
     }
 
-    private void drawCenterOfMass(GraphicsContext gc){
-        double[] centerOfMassAbsolutePosition = new double[2];
-
-        // Calculates the center of mass
-        for (int i = 0; i < 2; i++) {
-            centerOfMassAbsolutePosition[i] = ((bodies.get(0).getMass() * bodies.get(0).getPosition()[i])
-                    + (bodies.get(1).getMass() * bodies.get(1).getPosition()[i])
-                    + (bodies.get(2).getMass() * bodies.get(2).getPosition()[i])) / settings.totalMass();
-        }
+    private void drawCenterOfMass(GraphicsContext gc, View current){
+        SystemStatistics frameStatistics = statistics;
+        if (frameStatistics == null) return;
 
-        double[] centerOfMassRelativePosition = returnRelativePosition(centerOfMassAbsolutePosition);
+        double[] centerOfMassRelativePosition = returnRelativePosition(frameStatistics.getCenterOfMass());
 
 
         // Displays the center of mass
         gc.setFill(Color.valueOf("#555555"));
         gc.fillOval((centerOfMassRelativePosition[0] - 5), (centerOfMassRelativePosition[1] - 5), 10, 10);
 
+        int count = current.masses.length;
+        if (count > MAX_CONNECTED_BODIES) return;
+
+        double[][] canvasPos = new double[count][];
+        for (int i = 0; i < count; i++) canvasPos[i] = returnRelativePosition(new double[]{current.state[4 * i], current.state[4 * i + 1]});
+
         gc.setStroke(Color.valueOf("#555555"));
-        for (int i = 0; i < 2; i++) {
-            for (int j = i + 1; j < 3; j++) {
-                gc.strokeLine(oldCanvasPos[i][0], oldCanvasPos[i][1], oldCanvasPos[j][0], oldCanvasPos[j][1]);
+        for (int i = 0; i < count - 1; i++) {
+            for (int j = i + 1; j < count; j++) {
+                gc.strokeLine(canvasPos[i][0], canvasPos[i][1], canvasPos[j][0], canvasPos[j][1]);
             }
         }
-        for (int i = 0; i < 3; i++) {
-            gc.strokeLine(oldCanvasPos[i][0], oldCanvasPos[i][1], centerOfMassRelativePosition[0], centerOfMassRelativePosition[1]);
+        for (int i = 0; i < count; i++) {
+            gc.strokeLine(canvasPos[i][0], canvasPos[i][1], centerOfMassRelativePosition[0], centerOfMassRelativePosition[1]);
         }
     }
 }
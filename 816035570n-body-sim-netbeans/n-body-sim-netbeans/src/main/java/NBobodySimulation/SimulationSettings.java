@@ -3,8 +3,20 @@ package NBobodySimulation;
 import java.util.stream.Collectors;
 import java.util.ArrayList;
 import java.awt.Color;
+import java.beans.PropertyChangeListener;
+import java.beans.PropertyChangeSupport;
 
-public class SimulationSettings {
+public class SimulationSettings implements IntegrationSettings {
+    // property names sent to listeners, so each change can be applied on its own
+    public static final String BACKGROUND_COLOR = "backgroundColor";
+    public static final String SHOW_TRAIL = "showTrail";
+    public static final String SHOW_GRID = "showGrid";
+    public static final String SHOW_CENTER_OF_GRAVITY = "showCenterOfGravity";
+    public static final String FRAME_RATE = "frameRate";
+    public static final String SIMULATION_SPEED = "simulationSpeed";
+    public static final String SHOW_DENSITY = "showDensity";
+
+    private final PropertyChangeSupport changes = new PropertyChangeSupport(this);
     private Color backgroundColor;
     private boolean isInfinite;
     private boolean showTrail;
@@ -13,6 +25,18 @@ public class SimulationSettings {
     private int frameRate;
     private int skipAhead;
     private double simulationSpeed; 
+    private boolean singlePrecisionForces;
+    private boolean showDensity;
+    private boolean massWeightedDensity;
+    private boolean recenterOnCenterOfMass;
+    private double closeApproachDistance;
+    private double escapeRadius;
+    private double boundary;
+    private boolean wisdomHolman;
+    private int particleMeshSize;
+    private boolean reproducible;
+    private int reorderInterval;
+    private TrajectoryCache trajectoryCache;
     private ArrayList<OrbitalBody> bodies;
     
     
@@ -21,16 +45,28 @@ public class SimulationSettings {
         this.bodies = new ArrayList<>();
     }
     
+    // change listeners
+    public void addPropertyChangeListener(PropertyChangeListener listener){
+        changes.addPropertyChangeListener(listener);
+    }
+    
+    public void removePropertyChangeListener(PropertyChangeListener listener){
+        changes.removePropertyChangeListener(listener);
+    }
+    
     // accessors & mutators
     public Color getBackgroundColor() {
         return backgroundColor;
     }
     
     public void setBackgroundColor(Color backgroundColor){
+        Color old = this.backgroundColor;
         this.backgroundColor = backgroundColor;
+        changes.firePropertyChange(BACKGROUND_COLOR, old, backgroundColor);
     }
     
-    public boolean isFinite(){
+    // nothing draws differently for it, so it is not sent to listeners
+    public boolean isInfinite(){
         return isInfinite;
     }
     
@@ -43,7 +79,9 @@ public class SimulationSettings {
     }
     
     public void setShowTrail(boolean showTrail){
+        boolean old = this.showTrail;
         this.showTrail = showTrail;
+        changes.firePropertyChange(SHOW_TRAIL, old, showTrail);
     }
     
     public boolean showGrid() {
@@ -51,7 +89,9 @@ public class SimulationSettings {
     }
     
     public void setShowGrid(boolean showGrid){
+        boolean old = this.showGrid;
         this.showGrid = showGrid;
+        changes.firePropertyChange(SHOW_GRID, old, showGrid);
     }
     
     public boolean showCenterOfGravity(){
@@ -59,7 +99,144 @@ public class SimulationSettings {
     }
     
     public void setShowCenterOfGravity(boolean showCenterOfGravity){
+        boolean old = this.showCenterOfGravity;
         this.showCenterOfGravity = showCenterOfGravity;
+        changes.firePropertyChange(SHOW_CENTER_OF_GRAVITY, old, showCenterOfGravity);
+    }
+    
+    public boolean showDensity(){
+        return showDensity;
+    }
+    
+    public void setShowDensity(boolean showDensity){
+        boolean old = this.showDensity;
+        this.showDensity = showDensity;
+        changes.firePropertyChange(SHOW_DENSITY, old, showDensity);
+    }
+    
+    public boolean massWeightedDensity(){
+        return massWeightedDensity;
+    }
+    
+    public void setMassWeightedDensity(boolean massWeightedDensity){
+        this.massWeightedDensity = massWeightedDensity;
+    }
+    
+    @Override
+    public boolean recenterOnCenterOfMass(){
+        return recenterOnCenterOfMass;
+    }
+    
+    public void setRecenterOnCenterOfMass(boolean recenterOnCenterOfMass){
+        this.recenterOnCenterOfMass = recenterOnCenterOfMass;
+    }
+    
+    @Override
+    public double getCloseApproachDistance(){
+        return closeApproachDistance;
+    }
+    
+    /**
+     * Bodies closer than this are integrated with a more accurate method until they separate. 0 disables the check.
+     */
+    public void setCloseApproachDistance(double closeApproachDistance){
+        this.closeApproachDistance = closeApproachDistance;
+    }
+    
+    @Override
+    public double getEscapeRadius(){
+        return escapeRadius;
+    }
+    
+    /**
+     * Unbound bodies farther than this from the center of mass are removed from the simulation. 0 disables the check.
+     */
+    public void setEscapeRadius(double escapeRadius){
+        this.escapeRadius = escapeRadius;
+    }
+    
+    @Override
+    public double getBoundary(){
+        return boundary;
+    }
+    
+    /**
+     * Bodies outside the square from -boundary to boundary on both axes are removed from the simulation. 0 disables
+     * the check.
+     */
+    public void setBoundary(double boundary){
+        this.boundary = boundary;
+    }
+    
+    @Override
+    public boolean useWisdomHolman(){
+        return wisdomHolman;
+    }
+    
+    /**
+     * Integrates with the Wisdom-Holman mapping, which takes far larger steps for a system dominated by one central
+     * mass such as the planets, but does not handle close approaches.
+     */
+    public void setWisdomHolman(boolean wisdomHolman){
+        this.wisdomHolman = wisdomHolman;
+    }
+    
+    public int getParticleMeshSize(){
+        return particleMeshSize;
+    }
+    
+    /**
+     * Evaluates the forces on a particle-mesh grid with this many cells along each side, a power of two, instead of
+     * summing over every pair. Much faster for thousands of bodies in a smooth distribution, but forces closer than a
+     * couple of cells are smoothed out. 0 sums over every pair.
+     */
+    public void setParticleMeshSize(int particleMeshSize){
+        this.particleMeshSize = particleMeshSize;
+    }
+    
+    public boolean isReproducible(){
+        return reproducible;
+    }
+    
+    /**
+     * Makes the skip ahead give bitwise the same state on any machine, whatever its number of cores, at the cost of
+     * some of its speed on machines with fewer than 16 cores, up to several times on one core. The integration itself
+     * always does.
+     */
+    public void setReproducible(boolean reproducible){
+        this.reproducible = reproducible;
+    }
+    
+    public int getReorderInterval(){
+        return reorderInterval;
+    }
+    
+    /**
+     * Sorts the bodies by position every this many integration segments of 100 frames, so bodies close in space are
+     * close in memory, or never for 0. Only worth it for hundreds of thousands of bodies on the particle mesh.
+     */
+    public void setReorderInterval(int reorderInterval){
+        this.reorderInterval = reorderInterval;
+    }
+    
+    public TrajectoryCache getTrajectoryCache(){
+        return trajectoryCache;
+    }
+    
+    /**
+     * Runs replay from and are recorded to this cache, so starting the same bodies with the same settings again only
+     * integrates past the furthest point reached before. Null, the default, disables caching.
+     */
+    public void setTrajectoryCache(TrajectoryCache trajectoryCache){
+        this.trajectoryCache = trajectoryCache;
+    }
+    
+    public boolean singlePrecisionForces(){
+        return singlePrecisionForces;
+    }
+    
+    public void setSinglePrecisionForces(boolean singlePrecisionForces){
+        this.singlePrecisionForces = singlePrecisionForces;
     }
     
     public void setBodies(ArrayList<OrbitalBody> bodies){
@@ -106,15 +283,24 @@ public class SimulationSettings {
     }
     
       public void setSimulationSpeed(double simulationSpeed) {
+        double old = this.simulationSpeed;
         this.simulationSpeed = simulationSpeed;
+        changes.firePropertyChange(SIMULATION_SPEED, old, simulationSpeed);
     }
     
+    @Override
+    public double getFrameInterval() {
+        return simulationSpeed / frameRate;
+    }
+
       public int getFrameRate() {
         return frameRate;
     }
     
        public void setFrameRate(int frameRate) {
+        int old = this.frameRate;
         this.frameRate = frameRate;
+        changes.firePropertyChange(FRAME_RATE, old, frameRate);
     }
     
      public double totalMass() {
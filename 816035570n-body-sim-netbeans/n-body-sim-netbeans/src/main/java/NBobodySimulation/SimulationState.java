@@ -2,6 +2,8 @@ package NBobodySimulation;
 
 public enum SimulationState {
     ACTIVE,
+    // Fast-forwarding to the skip ahead time in the background before the simulation starts
+    SKIPPING,
     INACTIVE,
     PAUSED,
 }
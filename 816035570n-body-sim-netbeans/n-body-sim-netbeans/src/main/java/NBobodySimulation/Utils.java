@@ -26,6 +26,19 @@ public class Utils {
         return flattened;
     }
 
+    /**
+     * Builds {@link OrbitalBody} objects from generated initial conditions. Only sensible for small systems.
+     */
+    public static ArrayList<OrbitalBody> toBodies(InitialConditions conditions, java.awt.Color color) {
+        double[] masses = conditions.getMasses();
+        double[] flatBodies = conditions.getFlatBodies();
+        ArrayList<OrbitalBody> bodies = new ArrayList<>(masses.length);
+        for (int i = 0; i < masses.length; i++) {
+            bodies.add(new OrbitalBody(new double[]{flatBodies[4 * i], flatBodies[4 * i + 1]}, new double[]{flatBodies[4 * i + 2], flatBodies[4 * i + 3]}, masses[i], color));
+        }
+        return bodies;
+    }
+
     // Uses reflection to dynamically load and cache classes at runtime
     private static final Map<String, Class<?>> classCache = new HashMap<>();
     public static Class<?> loadClass(String className, String backupClassName) {